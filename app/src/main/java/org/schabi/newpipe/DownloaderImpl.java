@@ -85,6 +85,16 @@ public final class DownloaderImpl extends Downloader {
         return instance;
     }
 
+    /**
+     * Get the client used for extraction requests. Clients for other purposes should be
+     * derived from it with {@link OkHttpClient#newBuilder()} to keep its TLS configuration.
+     *
+     * @return the OkHttp client
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
     /**
      * Enable TLS 1.2 and 1.1 on Android Kitkat. This function is mostly taken
      * from the documentation of OkHttpClient.Builder.sslSocketFactory(_,_).
@@ -48,6 +48,7 @@ import org.schabi.newpipe.extractor.MediaFormat;
 import org.schabi.newpipe.extractor.NewPipe;
 import org.schabi.newpipe.extractor.localization.Localization;
 import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.DeliveryMethod;
 import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.SubtitlesStream;
@@ -1035,7 +1036,16 @@ public class DownloadDialog extends DialogFragment
                     new MissionRecoveryInfo(secondaryStream)};
         }
 
-        DownloadManagerService.startMission(context, urls, storage, kind, threads,
+        // an HLS stream is a playlist, the mission downloads its segments
+        final boolean segmented = secondaryStream == null
+                && selectedStream.getDeliveryMethod() == DeliveryMethod.HLS;
+        if (segmented) {
+            // the segments are joined as they are, the post-processing expects DASH files
+            psName = null;
+            psArgs = null;
+        }
+
+        DownloadManagerService.startMission(context, urls, segmented, storage, kind, threads,
                 currentInfo.getUrl(), psName, psArgs, nearLength, recoveryInfo);
 
         Toast.makeText(context, getString(R.string.download_has_started),
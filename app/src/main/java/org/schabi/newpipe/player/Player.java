@@ -182,7 +182,9 @@ import org.schabi.newpipe.player.event.PlayerGestureListener;
 import org.schabi.newpipe.player.event.PlayerServiceEventListener;
 import org.schabi.newpipe.player.helper.AudioReactor;
 import org.schabi.newpipe.player.helper.LoadController;
+import org.schabi.newpipe.player.helper.MediaPrefetcher;
 import org.schabi.newpipe.player.helper.MediaSessionManager;
+import org.schabi.newpipe.player.helper.PlayerCacheManager;
 import org.schabi.newpipe.player.helper.PlayerDataSource;
 import org.schabi.newpipe.player.helper.PlayerHelper;
 import org.schabi.newpipe.player.listeners.view.PlaybackSpeedClickListener;
@@ -211,6 +213,7 @@ import org.schabi.newpipe.util.SerializedCache;
 import org.schabi.newpipe.util.StreamTypeUtil;
 import org.schabi.newpipe.util.external_communication.KoreUtils;
 import org.schabi.newpipe.util.external_communication.ShareUtils;
+import org.schabi.newpipe.views.BulletCommentsView;
 import org.schabi.newpipe.views.ExpandableSurfaceView;
 import org.schabi.newpipe.views.player.PlayerFastSeekOverlay;
 
@@ -312,7 +315,9 @@ public final class Player implements
     @NonNull private final DefaultTrackSelector trackSelector;
     @NonNull private final LoadController loadController;
     @NonNull private final RenderersFactory renderFactory;
+    @NonNull private final MediaPrefetcher prefetcher;
 
+    @NonNull private final PlayerDataSource dataSource;
     @NonNull private final VideoPlaybackResolver videoResolver;
     @NonNull private final AudioPlaybackResolver audioResolver;
 
@@ -435,8 +440,10 @@ public final class Player implements
         setupBroadcastReceiver();
 
         trackSelector = new DefaultTrackSelector(context, PlayerHelper.getQualitySelector());
-        final PlayerDataSource dataSource = new PlayerDataSource(context, DownloaderImpl.USER_AGENT,
-                new DefaultBandwidthMeter.Builder(context).build());
+        final DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter.Builder(context)
+                .build();
+        dataSource = new PlayerDataSource(context, DownloaderImpl.USER_AGENT, bandwidthMeter);
+        prefetcher = new MediaPrefetcher(context, bandwidthMeter);
         loadController = new LoadController();
         renderFactory = new DefaultRenderersFactory(context);
 
@@ -954,6 +961,7 @@ public final class Player implements
             Log.d(TAG, "destroy() called");
         }
         destroyPlayer();
+        dataSource.release();
         unregisterBroadcastReceiver();
 
         databaseUpdateDisposable.clear();
@@ -997,7 +1005,7 @@ public final class Player implements
         }
 
         if (playQueue != null) {
-            playQueueManager = new MediaSourceManager(this, playQueue);
+            playQueueManager = new MediaSourceManager(this, playQueue, prefetcher);
         }
     }
 
@@ -2175,6 +2183,15 @@ public final class Player implements
                     .getMediaCapabilities()
                     .contains(StreamingService.ServiceInfo.MediaCapability.BULLET_COMMENTS)) {
                 clearBCPlayer();
+                if (bcPlayer != null) {
+                    bcPlayer.release();
+                }
+                binding.bulletCommentsView.setRenderMode(
+                        PlayerHelper.isBulletCommentsCanvasRendererEnabled(context)
+                                ? BulletCommentsView.RenderMode.CANVAS
+                                : BulletCommentsView.RenderMode.VIEWS);
+                binding.bulletCommentsView.setDensityCap(
+                        PlayerHelper.getBulletCommentsDensityCap(context));
                 bcPlayer = new MovieBulletCommentsPlayer(binding.bulletCommentsView);
                 bcPlayer.setInitialData(currentMetadata.getServiceId(),
                         currentMetadata.getStreamUrl());
@@ -2875,6 +2892,30 @@ public final class Player implements
         return currentDurationMillis - currentPositionMillis < timeToEndMillis;
     }
 
+    @Override // own playback listener (this is a getter)
+    public boolean isBufferedAhead(final long bufferMillis) {
+        // If live or not playing, then keep the bandwidth for the current stream
+        if (exoPlayerIsNull() || isLive() || !isPlaying()) {
+            return false;
+        }
+
+        final long bufferedPositionMillis = simpleExoPlayer.getBufferedPosition();
+        final long currentDurationMillis = simpleExoPlayer.getDuration();
+        return bufferedPositionMillis - simpleExoPlayer.getCurrentPosition() >= bufferMillis
+                || (currentDurationMillis != C.TIME_UNSET
+                && bufferedPositionMillis >= currentDurationMillis);
+    }
+
+    @Override // own playback listener (this is a getter)
+    public boolean isAudioOnlyPlayback() {
+        return isAudioOnly;
+    }
+
+    @Override // own playback listener (this is a getter)
+    public boolean isMeteredNetwork() {
+        return ListHelper.isMeteredNetwork(context);
+    }
+
     /**
      * Checks if the current playback is a livestream AND is playing at or beyond the live edge.
      *
@@ -2919,6 +2960,7 @@ public final class Player implements
             return;
         }
         currentItem = item;
+        PlayerCacheManager.getInstance(context).pinPlayingItem();
 
         // Check if on wrong window
         if (currentPlayQueueIndex != playQueue.getIndex()) {
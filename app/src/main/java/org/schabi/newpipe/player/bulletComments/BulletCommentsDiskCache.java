@@ -0,0 +1,249 @@
+package org.schabi.newpipe.player.bulletComments;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.extractor.bulletComments.BulletCommentsInfoItem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk cache of bullet comments, keyed by service id and url.
+ * <p>
+ * Comments are stored sorted by offset in a compact binary format: offsets as varint deltas,
+ * colors, relative font sizes, positions, and indices into a table of distinct texts.
+ * Files which are older than {@link #TTL_MILLIS} are ignored, and the least recently used files
+ * are deleted when the cache is larger than {@link #MAX_CACHE_SIZE}.
+ * </p>
+ * <p>
+ * All methods do I/O and should not be called on the main thread.
+ * </p>
+ */
+public final class BulletCommentsDiskCache {
+    private static final String TAG = "BCDiskCache";
+    private static final String CACHE_FOLDER_NAME = "bullet_comments";
+    private static final String FILE_EXTENSION = ".bcc";
+    private static final int MAGIC = 0x42434331; // "BCC1"
+    private static final int VERSION = 1;
+    private static final long MAX_CACHE_SIZE = 32 * 1024 * 1024L;
+    private static final long TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final File cacheDir;
+
+    public BulletCommentsDiskCache(@NonNull final Context context) {
+        this.cacheDir = new File(context.getCacheDir(), CACHE_FOLDER_NAME);
+    }
+
+    /**
+     * @param serviceId service id.
+     * @param url       url of the stream.
+     * @return cached comments sorted by offset, or null if not cached or expired.
+     */
+    @Nullable
+    public List<BulletCommentsInfoItem> get(final int serviceId, @NonNull final String url) {
+        final File file = getFile(serviceId, url);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION
+                    || input.readInt() != serviceId || !url.equals(input.readUTF())) {
+                return null;
+            }
+            final long savedAt = input.readLong();
+            if (System.currentTimeMillis() - savedAt > TTL_MILLIS) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return null;
+            }
+            final List<BulletCommentsInfoItem> items = readItems(input, serviceId, url);
+            //Used for LRU eviction.
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return items;
+        } catch (final IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read cached comments of " + url, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Save comments and evict the least recently used files if the cache is too large.
+     *
+     * @param serviceId service id.
+     * @param url       url of the stream.
+     * @param items     comments sorted by offset.
+     */
+    public void put(final int serviceId,
+                    @NonNull final String url,
+                    @NonNull final List<BulletCommentsInfoItem> items) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            return;
+        }
+        final File file = getFile(serviceId, url);
+        final File tempFile = new File(cacheDir, file.getName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(serviceId);
+            output.writeUTF(url);
+            output.writeLong(System.currentTimeMillis());
+            writeItems(output, items);
+        } catch (final IOException e) {
+            Log.w(TAG, "Failed to cache comments of " + url, e);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        evict();
+    }
+
+    private File getFile(final int serviceId, final String url) {
+        // The url is stored in the file, so hash collisions are detected when reading.
+        return new File(cacheDir,
+                serviceId + "_" + Integer.toHexString(url.hashCode()) + FILE_EXTENSION);
+    }
+
+    private void evict() {
+        final File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        if (files == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (final File file : files) {
+            totalSize += file.length();
+        }
+        if (totalSize <= MAX_CACHE_SIZE) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (final File file : files) {
+            if (totalSize <= MAX_CACHE_SIZE) {
+                break;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+            }
+        }
+    }
+
+    private static void writeItems(final DataOutputStream output,
+                                   final List<BulletCommentsInfoItem> items)
+            throws IOException {
+        final Map<String, Integer> textIndices = new HashMap<>();
+        final List<String> texts = new ArrayList<>();
+        final int[] itemTextIndices = new int[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            final String text = items.get(i).getCommentText();
+            Integer index = textIndices.get(text);
+            if (index == null) {
+                index = texts.size();
+                textIndices.put(text, index);
+                texts.add(text);
+            }
+            itemTextIndices[i] = index;
+        }
+
+        output.writeInt(texts.size());
+        for (final String text : texts) {
+            output.writeUTF(text);
+        }
+        output.writeInt(items.size());
+        long lastOffset = 0;
+        for (int i = 0; i < items.size(); i++) {
+            final BulletCommentsInfoItem item = items.get(i);
+            final long offset = item.getDuration().toMillis();
+            writeVarLong(output, offset - lastOffset);
+            lastOffset = offset;
+            output.writeInt(item.getArgbColor());
+            output.writeFloat((float) item.getRelativeFontSize());
+            output.writeByte(item.getPosition().ordinal());
+            writeVarLong(output, itemTextIndices[i]);
+        }
+    }
+
+    private static List<BulletCommentsInfoItem> readItems(final DataInputStream input,
+                                                          final int serviceId,
+                                                          final String url)
+            throws IOException {
+        final String[] texts = new String[input.readInt()];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = input.readUTF();
+        }
+        final BulletCommentsInfoItem.Position[] positions =
+                BulletCommentsInfoItem.Position.values();
+        final int count = input.readInt();
+        final List<BulletCommentsInfoItem> items = new ArrayList<>(count);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            offset += readVarLong(input);
+            final int color = input.readInt();
+            final float relativeFontSize = input.readFloat();
+            final int position = input.readUnsignedByte();
+            final String text = texts[(int) readVarLong(input)];
+
+            final BulletCommentsInfoItem item = new BulletCommentsInfoItem(serviceId, url, text);
+            item.setCommentText(text);
+            item.setArgbColor(color);
+            item.setRelativeFontSize(relativeFontSize);
+            item.setPosition(position < positions.length
+                    ? positions[position] : BulletCommentsInfoItem.Position.REGULAR);
+            item.setDuration(Duration.ofMillis(offset));
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static void writeVarLong(final DataOutputStream output, final long value)
+            throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            output.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        output.writeByte((int) remaining);
+    }
+
+    private static long readVarLong(final DataInputStream input) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            final int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift >= 64) {
+                throw new IOException("Malformed varint");
+            }
+        }
+    }
+}
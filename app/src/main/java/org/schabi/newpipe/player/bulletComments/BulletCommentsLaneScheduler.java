@@ -0,0 +1,390 @@
+package org.schabi.newpipe.player.bulletComments;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Places bullet comments into lanes so that they do not overlap.
+ * <p>
+ * Scrolling comments move from the right edge to the left edge in a fixed duration,
+ * so longer comments are faster. A scrolling lane is free if its last comment has fully
+ * entered the screen and a new comment would not catch up with it before it leaves.
+ * Fixed comments stay at the top or the bottom for the same duration.
+ * </p>
+ * <p>
+ * When all lanes are full or the density cap is reached, comments are dropped or queued
+ * depending on the {@link OverflowPolicy}.
+ * </p>
+ *
+ * @param <T> Type of comments.
+ */
+public final class BulletCommentsLaneScheduler<T> {
+    /**
+     * Kind of lanes.
+     */
+    public enum LaneType {
+        /**
+         * Comments scrolling from right to left. Lanes are counted from the top.
+         */
+        SCROLLING,
+        /**
+         * Comments fixed at the top. Lanes are counted from the top.
+         */
+        TOP,
+        /**
+         * Comments fixed at the bottom. Lanes are counted from the bottom.
+         */
+        BOTTOM
+    }
+
+    /**
+     * What to do with comments which cannot be placed.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop comments which cannot be placed.
+         */
+        DROP,
+        /**
+         * Queue comments and place them as soon as a lane of their kind is free. Each kind of
+         * lanes has its own queue, so a full kind does not hold back the others. Comments which
+         * have been queued longer than the duration of comments are dropped.
+         */
+        QUEUE
+    }
+
+    /**
+     * Called when a comment is placed.
+     *
+     * @param <T> Type of comments.
+     */
+    public interface OnPlacedListener<T> {
+        /**
+         * @param item     comment.
+         * @param laneType kind of the lane.
+         * @param lane     index of the lane.
+         * @param width    width of the comment.
+         */
+        void onPlaced(T item, LaneType laneType, int lane, float width);
+    }
+
+    /**
+     * A comment waiting for a free lane.
+     */
+    private static final class Pending<T> {
+        Pending(final T item, final LaneType laneType, final float width,
+                final long submittedMillis) {
+            this.item = item;
+            this.laneType = laneType;
+            this.width = width;
+            this.submittedMillis = submittedMillis;
+        }
+
+        final T item;
+        final LaneType laneType;
+        final float width;
+        final long submittedMillis;
+    }
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final int laneCount;
+    private final long durationMillis;
+    private final OnPlacedListener<T> listener;
+
+    /**
+     * Start time of the last comment of each scrolling lane, or {@link #EMPTY}.
+     */
+    private final long[] scrollingTailStart;
+    /**
+     * Width of the last comment of each scrolling lane.
+     */
+    private final float[] scrollingTailWidth;
+    /**
+     * End time of the comment of each top lane.
+     */
+    private final long[] topEnd;
+    /**
+     * End time of the comment of each bottom lane.
+     */
+    private final long[] bottomEnd;
+
+    /**
+     * End times of comments on screen. Comments are placed with a non-decreasing clock and
+     * have the same duration, so a FIFO queue is sorted.
+     */
+    private long[] activeEnd = new long[64];
+    private int activeHead = 0;
+    private int activeCount = 0;
+
+    /**
+     * Queued comments of each {@link LaneType}, indexed by its ordinal.
+     */
+    private final Deque<Pending<T>>[] pending;
+    private int pendingCount = 0;
+
+    private float viewWidth = 0;
+    private float laneGap = 0;
+    private int densityCap = Integer.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private int maxQueueSize = 256;
+    private long droppedCount = 0;
+
+    /**
+     * @param laneCount      number of lanes.
+     * @param durationMillis duration a comment stays on screen.
+     * @param listener       called when a comment is placed.
+     */
+    public BulletCommentsLaneScheduler(final int laneCount,
+                                       final long durationMillis,
+                                       @NonNull final OnPlacedListener<T> listener) {
+        this.laneCount = laneCount;
+        this.durationMillis = durationMillis;
+        this.listener = listener;
+        scrollingTailStart = new long[laneCount];
+        scrollingTailWidth = new float[laneCount];
+        topEnd = new long[laneCount];
+        bottomEnd = new long[laneCount];
+        //noinspection unchecked
+        pending = new Deque[LaneType.values().length];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new ArrayDeque<>();
+        }
+        reset();
+    }
+
+    /**
+     * @param viewWidth width of the area comments scroll through.
+     */
+    public void setViewWidth(final float viewWidth) {
+        this.viewWidth = viewWidth;
+    }
+
+    /**
+     * @param laneGap minimum horizontal space between comments in a scrolling lane.
+     */
+    public void setLaneGap(final float laneGap) {
+        this.laneGap = laneGap;
+    }
+
+    /**
+     * @param densityCap maximum number of comments on screen.
+     */
+    public void setDensityCap(final int densityCap) {
+        this.densityCap = densityCap;
+    }
+
+    public void setOverflowPolicy(@NonNull final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param maxQueueSize maximum number of queued comments. The oldest ones are dropped.
+     */
+    public void setMaxQueueSize(final int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * @return number of comments which were not shown.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return number of queued comments.
+     */
+    public int getQueuedCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @param nowMillis current time.
+     * @return number of comments on screen.
+     */
+    public int getActiveCount(final long nowMillis) {
+        expire(nowMillis);
+        return activeCount;
+    }
+
+    /**
+     * Remove all comments from lanes and the queue.
+     */
+    public void reset() {
+        Arrays.fill(scrollingTailStart, EMPTY);
+        Arrays.fill(topEnd, EMPTY);
+        Arrays.fill(bottomEnd, EMPTY);
+        activeHead = 0;
+        activeCount = 0;
+        for (final Deque<Pending<T>> queue : pending) {
+            queue.clear();
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Place queued comments into lanes which became free. Call before {@link #submit}.
+     *
+     * @param nowMillis current time.
+     */
+    public void retryQueued(final long nowMillis) {
+        for (final Deque<Pending<T>> queue : pending) {
+            while (!queue.isEmpty()) {
+                final Pending<T> head = queue.peek();
+                if (nowMillis - head.submittedMillis > durationMillis) {
+                    queue.poll();
+                    pendingCount--;
+                    droppedCount++;
+                } else if (tryPlace(nowMillis, head.item, head.laneType, head.width)) {
+                    queue.poll();
+                    pendingCount--;
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Place a comment, or drop or queue it if there is no free lane.
+     *
+     * @param nowMillis current time.
+     * @param item      comment.
+     * @param laneType  kind of the lane.
+     * @param width     width of the comment.
+     */
+    public void submit(final long nowMillis,
+                       @NonNull final T item,
+                       @NonNull final LaneType laneType,
+                       final float width) {
+        final Deque<Pending<T>> queue = pending[laneType.ordinal()];
+        // Keep the order of queued comments of the same kind.
+        if ((queue.isEmpty() || overflowPolicy == OverflowPolicy.DROP)
+                && tryPlace(nowMillis, item, laneType, width)) {
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            droppedCount++;
+            return;
+        }
+        if (pendingCount >= maxQueueSize) {
+            dropOldestQueued();
+        }
+        queue.add(new Pending<>(item, laneType, width, nowMillis));
+        pendingCount++;
+    }
+
+    private void dropOldestQueued() {
+        Deque<Pending<T>> oldest = null;
+        for (final Deque<Pending<T>> queue : pending) {
+            if (!queue.isEmpty() && (oldest == null
+                    || queue.peek().submittedMillis < oldest.peek().submittedMillis)) {
+                oldest = queue;
+            }
+        }
+        if (oldest != null) {
+            oldest.poll();
+            pendingCount--;
+            droppedCount++;
+        }
+    }
+
+    private boolean tryPlace(final long nowMillis,
+                             final T item,
+                             final LaneType laneType,
+                             final float width) {
+        expire(nowMillis);
+        if (activeCount >= densityCap) {
+            return false;
+        }
+        final int lane = findFreeLane(nowMillis, laneType, width);
+        if (lane < 0) {
+            return false;
+        }
+        switch (laneType) {
+            case TOP:
+                topEnd[lane] = nowMillis + durationMillis;
+                break;
+            case BOTTOM:
+                bottomEnd[lane] = nowMillis + durationMillis;
+                break;
+            case SCROLLING:
+            default:
+                scrollingTailStart[lane] = nowMillis;
+                scrollingTailWidth[lane] = width;
+                break;
+        }
+        addActive(nowMillis + durationMillis);
+        listener.onPlaced(item, laneType, lane, width);
+        return true;
+    }
+
+    /**
+     * @return index of the first free lane, or -1.
+     */
+    private int findFreeLane(final long nowMillis, final LaneType laneType, final float width) {
+        for (int lane = 0; lane < laneCount; lane++) {
+            final boolean free;
+            switch (laneType) {
+                case TOP:
+                    free = topEnd[lane] <= nowMillis;
+                    break;
+                case BOTTOM:
+                    free = bottomEnd[lane] <= nowMillis;
+                    break;
+                case SCROLLING:
+                default:
+                    free = isScrollingLaneFree(lane, nowMillis, width);
+                    break;
+            }
+            if (free) {
+                return lane;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isScrollingLaneFree(final int lane, final long nowMillis, final float width) {
+        final long tailStart = scrollingTailStart[lane];
+        if (tailStart == EMPTY) {
+            return true;
+        }
+        final long elapsed = nowMillis - tailStart;
+        if (elapsed >= durationMillis) {
+            return true;
+        }
+        final float tailWidth = scrollingTailWidth[lane];
+        final float tailSpeed = (viewWidth + tailWidth) / durationMillis;
+        if (tailSpeed * elapsed < tailWidth + laneGap) {
+            // The last comment has not fully entered the screen yet.
+            return false;
+        }
+        final float speed = (viewWidth + width) / durationMillis;
+        // The new comment must not reach the left edge before the last comment leaves.
+        return speed <= tailSpeed || speed * (durationMillis - elapsed) <= viewWidth;
+    }
+
+    private void expire(final long nowMillis) {
+        while (activeCount > 0 && activeEnd[activeHead] <= nowMillis) {
+            activeHead = (activeHead + 1) % activeEnd.length;
+            activeCount--;
+        }
+    }
+
+    private void addActive(final long endMillis) {
+        if (activeCount == activeEnd.length) {
+            final long[] grown = new long[activeEnd.length * 2];
+            for (int i = 0; i < activeCount; i++) {
+                grown[i] = activeEnd[(activeHead + i) % activeEnd.length];
+            }
+            activeEnd = grown;
+            activeHead = 0;
+        }
+        activeEnd[(activeHead + activeCount) % activeEnd.length] = endMillis;
+        activeCount++;
+    }
+}
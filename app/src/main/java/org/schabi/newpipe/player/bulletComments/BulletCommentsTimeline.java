@@ -0,0 +1,224 @@
+package org.schabi.newpipe.player.bulletComments;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Comments sorted by their offset in milliseconds, with a cursor which is moved forward on
+ * every tick. Seeking uses a binary search, so a tick only touches the comments it emits.
+ * <p>
+ * Comments can be added while playing. A batch is merged into the sorted arrays, and
+ * appending a batch which starts after the last comment does not move existing comments.
+ * </p>
+ *
+ * @param <T> Type of comments.
+ */
+public final class BulletCommentsTimeline<T> {
+    private final ToLongFunction<? super T> offsetOf;
+    /**
+     * Offsets of comments in milliseconds, sorted in ascending order.
+     */
+    private long[] offsets = new long[0];
+    /**
+     * Comments, parallel to {@link #offsets}.
+     */
+    private Object[] items = new Object[0];
+    /**
+     * Number of comments. The arrays may be larger.
+     */
+    private int size = 0;
+    /**
+     * Index of the next comment to emit.
+     */
+    private int cursor = 0;
+    /**
+     * All comments before this position in milliseconds have been emitted or skipped.
+     */
+    private long cursorPosition = Long.MIN_VALUE;
+
+    /**
+     * Create an empty timeline.
+     *
+     * @param offsetOf Function which returns the offset of a comment in milliseconds.
+     */
+    public BulletCommentsTimeline(@NonNull final ToLongFunction<? super T> offsetOf) {
+        this.offsetOf = offsetOf;
+    }
+
+    /**
+     * Create a timeline. The order of comments with the same offset is preserved.
+     *
+     * @param comments Comments in any order.
+     * @param offsetOf Function which returns the offset of a comment in milliseconds.
+     */
+    public BulletCommentsTimeline(@NonNull final Collection<? extends T> comments,
+                                  @NonNull final ToLongFunction<? super T> offsetOf) {
+        this(offsetOf);
+        addAll(comments);
+    }
+
+    /**
+     * @return Number of comments.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Index of the next comment to emit.
+     */
+    public int getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return Offset of the last comment in milliseconds, or {@link Long#MIN_VALUE} if empty.
+     */
+    public long getLastOffset() {
+        return size == 0 ? Long.MIN_VALUE : offsets[size - 1];
+    }
+
+    /**
+     * Add comments. Comments before the cursor position are not emitted.
+     * The order of comments with the same offset is preserved, and added comments come
+     * after existing comments with the same offset.
+     *
+     * @param comments Comments in any order. Sorted batches are not sorted again.
+     */
+    public void addAll(@NonNull final Collection<? extends T> comments) {
+        final int count = comments.size();
+        if (count == 0) {
+            return;
+        }
+        final Object[] batch = comments.toArray();
+        final long[] batchOffsets = new long[count];
+        sortBatch(batch, batchOffsets);
+
+        if (batchOffsets[0] >= getLastOffset()) {
+            // Appending, e.g. the next page or new comments of a live stream.
+            ensureCapacity(size + count);
+            System.arraycopy(batchOffsets, 0, offsets, size, count);
+            System.arraycopy(batch, 0, items, size, count);
+            size += count;
+        } else {
+            merge(batch, batchOffsets);
+        }
+        cursor = lowerBound(cursorPosition);
+    }
+
+    /**
+     * Move the cursor to the first comment whose offset is not less than the position.
+     *
+     * @param positionMillis Position in milliseconds.
+     */
+    public void seekTo(final long positionMillis) {
+        cursorPosition = positionMillis;
+        cursor = lowerBound(positionMillis);
+    }
+
+    /**
+     * Emit all comments from the cursor whose offset is less than the position,
+     * and move the cursor after them.
+     *
+     * @param untilMillis Position in milliseconds (exclusive).
+     * @param out         List to add emitted comments to.
+     * @return Number of emitted comments.
+     */
+    @SuppressWarnings("unchecked")
+    public int advanceTo(final long untilMillis, @NonNull final List<? super T> out) {
+        final int start = cursor;
+        while (cursor < size && offsets[cursor] < untilMillis) {
+            out.add((T) items[cursor]);
+            cursor++;
+        }
+        cursorPosition = Math.max(cursorPosition, untilMillis);
+        return cursor - start;
+    }
+
+    /**
+     * Sort a batch by offset in place and fill its offsets.
+     */
+    private void sortBatch(final Object[] batch, final long[] batchOffsets) {
+        final int count = batch.length;
+        boolean sorted = true;
+        for (int i = 0; i < count; i++) {
+            @SuppressWarnings("unchecked") final T item = (T) batch[i];
+            batchOffsets[i] = offsetOf.applyAsLong(item);
+            if (i > 0 && batchOffsets[i] < batchOffsets[i - 1]) {
+                sorted = false;
+            }
+        }
+        if (sorted) {
+            return;
+        }
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final long[] unsortedOffsets = batchOffsets.clone();
+        final Object[] unsorted = batch.clone();
+        //Arrays.sort for objects is stable.
+        Arrays.sort(order, (a, b) -> Long.compare(unsortedOffsets[a], unsortedOffsets[b]));
+        for (int i = 0; i < count; i++) {
+            batchOffsets[i] = unsortedOffsets[order[i]];
+            batch[i] = unsorted[order[i]];
+        }
+    }
+
+    /**
+     * Merge a sorted batch into the sorted arrays.
+     */
+    private void merge(final Object[] batch, final long[] batchOffsets) {
+        final int count = batch.length;
+        final int newSize = size + count;
+        final long[] mergedOffsets = new long[Math.max(newSize, offsets.length)];
+        final Object[] mergedItems = new Object[mergedOffsets.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < newSize; k++) {
+            if (j >= count || (i < size && offsets[i] <= batchOffsets[j])) {
+                mergedOffsets[k] = offsets[i];
+                mergedItems[k] = items[i];
+                i++;
+            } else {
+                mergedOffsets[k] = batchOffsets[j];
+                mergedItems[k] = batch[j];
+                j++;
+            }
+        }
+        offsets = mergedOffsets;
+        items = mergedItems;
+        size = newSize;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= offsets.length) {
+            return;
+        }
+        final int newCapacity = Math.max(capacity, offsets.length + (offsets.length >> 1));
+        offsets = Arrays.copyOf(offsets, newCapacity);
+        items = Arrays.copyOf(items, newCapacity);
+    }
+
+    /**
+     * @param positionMillis Position in milliseconds.
+     * @return Index of the first comment whose offset is not less than the position.
+     */
+    private int lowerBound(final long positionMillis) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (offsets[mid] < positionMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -2,30 +2,45 @@ package org.schabi.newpipe.player.bulletComments;
 
 import android.util.Log;
 
+import org.schabi.newpipe.extractor.Page;
 import org.schabi.newpipe.extractor.bulletComments.BulletCommentsInfo;
 import org.schabi.newpipe.extractor.bulletComments.BulletCommentsInfoItem;
 import org.schabi.newpipe.util.ExtractorHelper;
 import org.schabi.newpipe.views.BulletCommentsView;
 
 import java.time.Duration;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 
 public class MovieBulletCommentsPlayer {
     public MovieBulletCommentsPlayer(final BulletCommentsView bulletCommentsView) {
         super();
         this.bulletCommentsView = bulletCommentsView;
+        this.diskCache = new BulletCommentsDiskCache(bulletCommentsView.getContext());
     }
 
     private final String TAG = "MovieBCPlayer";
     protected int serviceId;
     protected String url;
     protected final BulletCommentsView bulletCommentsView;
-    protected List<BulletCommentsInfoItem> commentsInfoItems;
+    protected final BulletCommentsTimeline<BulletCommentsInfoItem> timeline =
+            new BulletCommentsTimeline<>(item -> item.getDuration().toMillis());
+    private Disposable loadingDisposable = null;
+    private final BulletCommentsDiskCache diskCache;
+    private static final Comparator<BulletCommentsInfoItem> BY_DURATION =
+            Comparator.comparing(BulletCommentsInfoItem::getDuration);
+    /**
+     * Reused buffer of comments emitted in a tick.
+     */
+    private final List<BulletCommentsInfoItem> emittedComments = new ArrayList<>();
+    private static final BulletCommentsInfoItem[] NO_COMMENTS = new BulletCommentsInfoItem[0];
 
     /**
      * Set data. Call before init().
@@ -43,37 +58,101 @@ public class MovieBulletCommentsPlayer {
 
     /**
      * Fetch comments and init. Call after setInitialData().
+     * Comments are drawn as soon as the first page is loaded,
+     * and following pages are added while playing.
+     * Comments are loaded from the disk cache if possible.
      */
     public void init() {
         this.bulletCommentsView.clearComments();
         isLoading = true;
         //See also: BaseListInfoFragment.java line 142
         try {
-            ExtractorHelper.getBulletCommentsInfo(this.serviceId, this.url, false)
-                    .filter(Objects::nonNull)
-                    .map((BulletCommentsInfo commentsInfo) -> commentsInfo
-                            .getRelatedItems()
-                    )
-                    .filter(Objects::nonNull)
-                    .map(s -> s.stream().toArray(BulletCommentsInfoItem[]::new))
+            loadingDisposable = Observable.defer(this::loadComments)
+                    //Sort on the io thread, so that adding only merges on the main thread.
+                    .map(MovieBulletCommentsPlayer::sortByDuration)
                     .subscribeOn(Schedulers.io())
                     .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe((BulletCommentsInfoItem[] newCommentsInfoItems) -> {
-                                this.commentsInfoItems = Arrays.asList(newCommentsInfoItems);
-                                Log.d(TAG, "Got "
-                                        + newCommentsInfoItems.length
-                                        + " comments."
-                                        + this.url);
-                                isLoading = false;
-                            },
-                            throwable -> Log.e(TAG, Log.getStackTraceString(throwable))
+                    .subscribe(this::addComments,
+                            throwable -> Log.e(TAG, Log.getStackTraceString(throwable)),
+                            () -> Log.d(TAG, "Got all "
+                                    + timeline.size()
+                                    + " comments."
+                                    + this.url)
                     );
         } catch (final Exception e) {
             Log.e(TAG, Log.getStackTraceString(e));
         }
     }
 
-    protected Duration lastPosition = Duration.ZERO;
+    /**
+     * Load comments from the disk cache, or from the network and save them to the disk cache
+     * when all pages are loaded. Called on the io thread.
+     *
+     * @return Comments of each page.
+     */
+    private Observable<List<BulletCommentsInfoItem>> loadComments() {
+        final List<BulletCommentsInfoItem> cached = diskCache.get(this.serviceId, this.url);
+        if (cached != null) {
+            Log.d(TAG, "Got " + cached.size() + " comments from disk cache." + this.url);
+            return Observable.just(cached);
+        }
+        final List<BulletCommentsInfoItem> loaded = new ArrayList<>();
+        return ExtractorHelper.getBulletCommentsInfo(this.serviceId, this.url, false)
+                .filter(Objects::nonNull)
+                .flatMapObservable((BulletCommentsInfo commentsInfo) -> Observable
+                        .just(commentsInfo.getRelatedItems())
+                        .concatWith(loadMoreComments(commentsInfo,
+                                commentsInfo.getNextPage())))
+                .filter(Objects::nonNull)
+                .doOnNext(loaded::addAll)
+                .doOnComplete(() -> {
+                    loaded.sort(BY_DURATION);
+                    diskCache.put(this.serviceId, this.url, loaded);
+                });
+    }
+
+    /**
+     * Load following pages one after another.
+     *
+     * @param commentsInfo Info of the first page.
+     * @param page         Page to load.
+     * @return Comments of each page.
+     */
+    private Observable<List<BulletCommentsInfoItem>> loadMoreComments(
+            final BulletCommentsInfo commentsInfo,
+            final Page page) {
+        if (!Page.isValid(page)) {
+            return Observable.empty();
+        }
+        return ExtractorHelper.getMoreBulletCommentItems(this.serviceId, commentsInfo, page)
+                .toObservable()
+                .concatMap(itemsPage -> Observable.just(itemsPage.getItems())
+                        .concatWith(loadMoreComments(commentsInfo, itemsPage.getNextPage())));
+    }
+
+    private static List<BulletCommentsInfoItem> sortByDuration(
+            final List<BulletCommentsInfoItem> items) {
+        final List<BulletCommentsInfoItem> sorted = new ArrayList<>(items);
+        sorted.sort(BY_DURATION);
+        return sorted;
+    }
+
+    /**
+     * Add comments which arrived, e.g. the next page or new comments of a live stream.
+     * Comments before the current position are not drawn. Call on the main thread.
+     *
+     * @param items Comments.
+     */
+    public void addComments(final List<BulletCommentsInfoItem> items) {
+        timeline.addAll(items);
+        isLoading = false;
+        Log.d(TAG, "Got "
+                + items.size()
+                + " comments."
+                + this.url);
+    }
+
+    protected long lastPositionMillis = 0;
 
     /**
      * Draw all comments which duration is between last
@@ -82,21 +161,31 @@ public class MovieBulletCommentsPlayer {
      * @param drawUntilPosition Duration to draw comments until.
      */
     public void drawComments(final Duration drawUntilPosition) {
+        drawComments(drawUntilPosition.toMillis());
+    }
+
+    /**
+     * Draw all comments which offset is between last
+     * drawUntilPosition and current drawUntilPosition.
+     *
+     * @param drawUntilMillis Position in milliseconds to draw comments until.
+     */
+    private void drawComments(final long drawUntilMillis) {
         if (isLoading) {
+            //Keep the position, so that comments loaded later start from here.
+            seekTo(drawUntilMillis);
             return;
         }
-        //Log.d(TAG, "Showing comments between "+ lastDuration + " and " + drawUntilPosition);
-        final BulletCommentsInfoItem[] nextCommentsInfoItems = commentsInfoItems
-                .stream()
-                .filter(item -> {
-                            final Duration d = item.getDuration();
-                            return d.compareTo(lastPosition) >= 0
-                                    && d.compareTo(drawUntilPosition) < 0;
-                        }
-                )
-                .toArray(BulletCommentsInfoItem[]::new);
-        bulletCommentsView.drawComments(nextCommentsInfoItems);
-        this.lastPosition = drawUntilPosition;
+        if (drawUntilMillis < lastPositionMillis) {
+            //Seeked backwards without start(), nothing to draw.
+            timeline.seekTo(drawUntilMillis);
+        }
+        //Log.d(TAG, "Showing comments between "+ lastPositionMillis + " and " + drawUntilMillis);
+        emittedComments.clear();
+        timeline.advanceTo(drawUntilMillis, emittedComments);
+        bulletCommentsView.drawComments(emittedComments.toArray(NO_COMMENTS));
+        emittedComments.clear();
+        this.lastPositionMillis = drawUntilMillis;
     }
 
     /**
@@ -105,10 +194,20 @@ public class MovieBulletCommentsPlayer {
      * @param currentPosition Current position.
      */
     public void start(final Duration currentPosition) {
-        this.lastPosition = currentPosition;
+        seekTo(currentPosition.toMillis());
         bulletCommentsView.resumeComments();
     }
 
+    /**
+     * Move the timeline cursor without drawing comments.
+     *
+     * @param positionMillis Position in milliseconds.
+     */
+    private void seekTo(final long positionMillis) {
+        this.lastPositionMillis = positionMillis;
+        timeline.seekTo(positionMillis);
+    }
+
     /**
      * Pause comments.
      */
@@ -123,17 +222,28 @@ public class MovieBulletCommentsPlayer {
         bulletCommentsView.clearComments();
     }
 
+    /**
+     * Stop loading comments and clear them. The player is not used after this.
+     */
+    public void release() {
+        if (loadingDisposable != null) {
+            loadingDisposable.dispose();
+            loadingDisposable = null;
+        }
+        clear();
+    }
+
     /**
      * Draw all comments after max(movieDuration - INTERVAL, lastPosition).
      *
      * @param movieDuration The duration of the movie, used to avoid drawing too many comments.
      */
     public void complete(final Duration movieDuration) {
-        final Duration minimumLastPosition = movieDuration.minus(INTERVAL);
-        if (minimumLastPosition.compareTo(lastPosition) >= 0) {
-            lastPosition = minimumLastPosition;
+        final long minimumLastPositionMillis = movieDuration.minus(INTERVAL).toMillis();
+        if (minimumLastPositionMillis >= lastPositionMillis) {
+            seekTo(minimumLastPositionMillis);
         }
         //Show all comments.
-        drawComments(Duration.ofSeconds(Long.MAX_VALUE));
+        drawComments(Long.MAX_VALUE);
     }
 }
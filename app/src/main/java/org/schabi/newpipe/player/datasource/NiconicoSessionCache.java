@@ -0,0 +1,274 @@
+package org.schabi.newpipe.player.datasource;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.grack.nanojson.JsonObject;
+import com.grack.nanojson.JsonParser;
+import com.grack.nanojson.JsonParserException;
+import com.grack.nanojson.JsonWriter;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.schabi.newpipe.DownloaderImpl;
+import org.schabi.newpipe.extractor.downloader.Response;
+import org.schabi.newpipe.extractor.exceptions.ReCaptchaException;
+import org.schabi.newpipe.extractor.services.niconico.NiconicoService;
+import org.schabi.newpipe.extractor.services.niconico.extractors.NiconicoDMCPayloadBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.schabi.newpipe.MainActivity.DEBUG;
+
+/**
+ * Caches the Niconico DMC sessions of the watch pages being played, so opening, seeking and
+ * retrying a video reuses the {@code content_uri} of its session instead of downloading the
+ * watch page and creating a new session every time.
+ * <p>
+ * A session expires once its lifetime passes without a heartbeat. Sessions in use are kept
+ * alive with heartbeats in the background, and concurrent resolutions of the same watch page
+ * share one session request. The owner must call {@link #clear()} once released.
+ */
+public final class NiconicoSessionCache {
+    private static final String TAG = NiconicoSessionCache.class.getSimpleName();
+    private static final String SESSIONS_URL = "https://api.dmc.nico/api/sessions";
+
+    /**
+     * Lifetime of a session if the DMC response has none.
+     */
+    private static final long DEFAULT_LIFETIME_MILLIS = 120_000;
+
+    /**
+     * Heartbeats sent per lifetime, the web player sends one every third of the lifetime.
+     */
+    private static final int HEARTBEATS_PER_LIFETIME = 3;
+
+    /**
+     * A session expiring sooner than this is not handed out, a new one is created instead.
+     */
+    private static final long EXPIRY_MARGIN_MILLIS = 10_000;
+
+    /**
+     * Sessions kept, the least recently resolved one is dropped beyond this.
+     */
+    private static final int MAXIMUM_SESSIONS = 4;
+
+    private static final ScheduledExecutorService HEARTBEAT =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Map<String, FutureTask<Session>> sessions =
+            new LinkedHashMap<>(MAXIMUM_SESSIONS + 1, 0.75f, true);
+
+    /**
+     * Resolve the url of the content of a watch page, reusing its session if still alive.
+     * Blocks while the session is created.
+     *
+     * @param watchUrl url of the watch page
+     * @return the {@code content_uri} of the session
+     * @throws IOException if the session can not be created
+     */
+    @NonNull
+    public String resolve(@NonNull final String watchUrl) throws IOException {
+        final FutureTask<Session> task;
+        final boolean created;
+
+        synchronized (sessions) {
+            final FutureTask<Session> cached = sessions.get(watchUrl);
+            if (cached != null && (!cached.isDone() || isAlive(cached))) {
+                task = cached;
+                created = false;
+            } else {
+                if (cached != null) {
+                    stop(cached);
+                }
+                task = new FutureTask<>(() -> createSession(watchUrl));
+                sessions.put(watchUrl, task);
+                created = true;
+                trim();
+            }
+        }
+
+        // the first caller creates the session, the others wait for it
+        if (created) {
+            task.run();
+        }
+
+        try {
+            final Session session = task.get();
+            if (DEBUG && !created) {
+                Log.d(TAG, "reusing session " + session.id + " of " + watchUrl);
+            }
+            return session.contentUri;
+        } catch (final ExecutionException e) {
+            synchronized (sessions) {
+                if (sessions.get(watchUrl) == task) {
+                    sessions.remove(watchUrl);
+                }
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not create a session for " + watchUrl, e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating a session");
+        }
+    }
+
+    /**
+     * Drop all sessions and stop their heartbeats.
+     */
+    public void clear() {
+        synchronized (sessions) {
+            for (final FutureTask<Session> task : sessions.values()) {
+                stop(task);
+            }
+            sessions.clear();
+        }
+    }
+
+    private void trim() {
+        final Iterator<FutureTask<Session>> iterator = sessions.values().iterator();
+        while (sessions.size() > MAXIMUM_SESSIONS && iterator.hasNext()) {
+            final FutureTask<Session> task = iterator.next();
+            if (task.isDone()) {
+                stop(task);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean isAlive(@NonNull final FutureTask<Session> task) {
+        final Session session = getSession(task);
+        return session != null
+                && session.expiresAt - SystemClock.elapsedRealtime() > EXPIRY_MARGIN_MILLIS;
+    }
+
+    private static void stop(@NonNull final FutureTask<Session> task) {
+        final Session session = getSession(task);
+        if (session != null && session.heartbeat != null) {
+            session.heartbeat.cancel(false);
+        }
+    }
+
+    private static Session getSession(@NonNull final FutureTask<Session> task) {
+        if (!task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (final ExecutionException | InterruptedException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private Session createSession(@NonNull final String watchUrl) throws IOException {
+        final DownloaderImpl downloader = DownloaderImpl.getInstance();
+        try {
+            final Response page = downloader.get(watchUrl, null, NiconicoService.LOCALE);
+            final Document document = Jsoup.parse(page.responseBody());
+            final Element watchData = document.getElementById("js-initial-watch-data");
+            if (watchData == null) {
+                throw new IOException("No watch data in " + watchUrl);
+            }
+
+            final JsonObject delivery = JsonParser.object().from(watchData.attr("data-api-data"))
+                    .getObject("media").getObject("delivery");
+            final String payload = NiconicoDMCPayloadBuilder.buildJSON(
+                    delivery.getObject("movie").getObject("session"),
+                    delivery.getObject("encryption"));
+
+            final Session session = new Session(watchUrl);
+            session.update(post(SESSIONS_URL + "?_format=json", payload));
+            session.heartbeat = HEARTBEAT.scheduleWithFixedDelay(session::heartbeat,
+                    session.lifetime / HEARTBEATS_PER_LIFETIME,
+                    session.lifetime / HEARTBEATS_PER_LIFETIME, TimeUnit.MILLISECONDS);
+
+            if (DEBUG) {
+                Log.d(TAG, "created session " + session.id + " of " + watchUrl
+                        + ", lifetime " + session.lifetime + " ms");
+            }
+            return session;
+        } catch (final ReCaptchaException | JsonParserException e) {
+            throw new IOException("Could not create a session for " + watchUrl, e);
+        }
+    }
+
+    @NonNull
+    private static JsonObject post(@NonNull final String url, @NonNull final String body)
+            throws IOException, ReCaptchaException, JsonParserException {
+        final Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Content-Type", Collections.singletonList("application/json"));
+
+        final Response response = DownloaderImpl.getInstance().post(url, headers,
+                body.getBytes(StandardCharsets.UTF_8), NiconicoService.LOCALE);
+        if (response.responseCode() >= 400) {
+            throw new IOException("DMC responded " + response.responseCode());
+        }
+        return JsonParser.object().from(response.responseBody()).getObject("data");
+    }
+
+    private static final class Session {
+        private final String watchUrl;
+        private JsonObject data;
+        private String id;
+        private volatile String contentUri;
+        private long lifetime;
+        private volatile ScheduledFuture<?> heartbeat;
+        private volatile long expiresAt;
+
+        Session(@NonNull final String watchUrl) {
+            this.watchUrl = watchUrl;
+        }
+
+        void update(@NonNull final JsonObject newData) throws IOException {
+            final JsonObject session = newData.getObject("session");
+            final String newContentUri = session.getString("content_uri");
+            if (newContentUri == null) {
+                throw new IOException("No content uri in the DMC session");
+            }
+
+            data = newData;
+            id = session.getString("id");
+            contentUri = newContentUri;
+            lifetime = session.getObject("keep_method").getObject("heartbeat")
+                    .getLong("lifetime", DEFAULT_LIFETIME_MILLIS);
+            if (lifetime <= 0) {
+                lifetime = DEFAULT_LIFETIME_MILLIS;
+            }
+            expiresAt = SystemClock.elapsedRealtime() + lifetime;
+        }
+
+        void heartbeat() {
+            try {
+                update(post(SESSIONS_URL + "/" + id + "?_format=json&_method=PUT",
+                        JsonWriter.string(data)));
+            } catch (final IOException | ReCaptchaException | JsonParserException e) {
+                // the session expires and the next resolution creates a new one
+                Log.w(TAG, "Heartbeat of session " + id + " of " + watchUrl + " failed", e);
+            }
+        }
+    }
+}
@@ -1,33 +1,26 @@
 package org.schabi.newpipe.player.helper;
 
 import android.content.Context;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.android.exoplayer2.database.StandaloneDatabaseProvider;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSource;
 import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer2.upstream.FileDataSource;
 import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
-import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
-import com.google.android.exoplayer2.upstream.cache.SimpleCache;
 
 import org.schabi.newpipe.player.datasource.YoutubeHttpDataSource;
 
-import java.io.File;
-
 /* package-private */ final class CacheFactory implements DataSource.Factory {
-    private static final String TAG = CacheFactory.class.getSimpleName();
-
-    private static final String CACHE_FOLDER_NAME = "exoplayer";
     private static final int CACHE_FLAGS = CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR;
-    private static SimpleCache cache;
 
+    private final Cache cache;
+    private final PlayerCacheManager.Stats stats;
     private final long maxFileSize;
     private final Context context;
     private final String userAgent;
@@ -42,7 +35,7 @@ import java.io.File;
 
         Builder(@NonNull final Context context,
                 @NonNull final String userAgent,
-                @NonNull final TransferListener transferListener) {
+                @Nullable final TransferListener transferListener) {
             this.context = context;
             this.userAgent = userAgent;
             this.transferListener = transferListener;
@@ -53,34 +46,25 @@ import java.io.File;
             this.upstreamDataSourceFactory = upstreamDataSourceFactory;
         }
 
-        public CacheFactory build() {
+        public CacheFactory build(@NonNull final PlayerCacheManager.Partition partition) {
             return new CacheFactory(context, userAgent, transferListener,
-                    upstreamDataSourceFactory);
+                    upstreamDataSourceFactory, partition);
         }
     }
 
     private CacheFactory(@NonNull final Context context,
                          @NonNull final String userAgent,
-                         @NonNull final TransferListener transferListener,
-                         @Nullable final DataSource.Factory upstreamDataSourceFactory) {
+                         @Nullable final TransferListener transferListener,
+                         @Nullable final DataSource.Factory upstreamDataSourceFactory,
+                         @NonNull final PlayerCacheManager.Partition partition) {
         this.context = context;
         this.userAgent = userAgent;
         this.transferListener = transferListener;
         this.upstreamDataSourceFactory = upstreamDataSourceFactory;
 
-        final File cacheDir = new File(context.getExternalCacheDir(), CACHE_FOLDER_NAME);
-        if (!cacheDir.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            cacheDir.mkdir();
-        }
-
-        if (cache == null) {
-            final LeastRecentlyUsedCacheEvictor evictor
-                    = new LeastRecentlyUsedCacheEvictor(PlayerHelper.getPreferredCacheSize());
-            cache = new SimpleCache(cacheDir, evictor, new StandaloneDatabaseProvider(context));
-            Log.d(TAG, "initExoPlayerCache: cacheDir = " + cacheDir.getAbsolutePath());
-        }
-
+        final PlayerCacheManager cacheManager = PlayerCacheManager.getInstance(context);
+        cache = cacheManager.getCache(partition);
+        stats = cacheManager.getStats(partition);
         maxFileSize = PlayerHelper.getPreferredFileSize();
     }
 
@@ -110,9 +94,10 @@ import java.io.File;
                 upstreamDataSourceFactoryToUse)
                 .setTransferListener(transferListener)
                 .createDataSource();
+        dataSource.addTransferListener(stats);
 
         final FileDataSource fileSource = new FileDataSource();
         final CacheDataSink dataSink = new CacheDataSink(cache, maxFileSize);
-        return new CacheDataSource(cache, dataSource, fileSource, dataSink, CACHE_FLAGS, null);
+        return new CacheDataSource(cache, dataSource, fileSource, dataSink, CACHE_FLAGS, stats);
     }
 }
@@ -0,0 +1,244 @@
+package org.schabi.newpipe.player.helper;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import org.schabi.newpipe.extractor.services.youtube.ItagItem;
+import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.Stream;
+import org.schabi.newpipe.player.playqueue.PlayQueueItem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.schabi.newpipe.MainActivity.DEBUG;
+
+/**
+ * Downloads the beginning of the streams of the next queue item into the player cache, so the
+ * player does not rebuffer when moving to it.
+ * <p>
+ * Only one item is prefetched at a time, and at a fraction of the estimated bandwidth so the
+ * playing item keeps loading. The prefetch does not report to the bandwidth meter, since the
+ * throttled reads would lower its estimate.
+ */
+public final class MediaPrefetcher {
+    private static final String TAG = MediaPrefetcher.class.getSimpleName();
+
+    /**
+     * Seconds of each stream prefetched.
+     */
+    private static final int PREFETCH_SECONDS = 15;
+
+    /**
+     * Fraction of the estimated bandwidth used while prefetching.
+     */
+    private static final float BANDWIDTH_FRACTION = 0.5f;
+
+    /**
+     * Rate used until the bandwidth meter has an estimate, in bits per second.
+     */
+    private static final long MINIMUM_BITRATE = 500_000;
+
+    private static final int DEFAULT_VIDEO_BITRATE = 1_500_000;
+    private static final int DEFAULT_AUDIO_BITRATE = 128_000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    @NonNull
+    private final Context context;
+    @NonNull
+    private final BandwidthMeter bandwidthMeter;
+
+    @Nullable
+    private PlayQueueItem item;
+    @Nullable
+    private Future<?> task;
+
+    public MediaPrefetcher(@NonNull final Context context,
+                           @NonNull final BandwidthMeter bandwidthMeter) {
+        this.context = context;
+        this.bandwidthMeter = bandwidthMeter;
+    }
+
+    /**
+     * Prefetch the streams of an item, unless it is already prefetched or being prefetched.
+     * The previous item being prefetched is cancelled.
+     *
+     * @param nextItem the item to prefetch
+     * @param targets  the beginnings of the streams of the item
+     */
+    public synchronized void prefetch(@NonNull final PlayQueueItem nextItem,
+                                      @NonNull final List<Target> targets) {
+        if (nextItem == item || targets.isEmpty()) {
+            return;
+        }
+
+        cancel();
+        item = nextItem;
+        final List<Target> copy = new ArrayList<>(targets);
+        task = EXECUTOR.submit(() -> {
+            for (final Target target : copy) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                prefetch(target);
+            }
+        });
+    }
+
+    /**
+     * Cancel the prefetch of an item, unless it is the given one.
+     *
+     * @param nextItem the item which can go on prefetching, or {@code null}
+     */
+    public synchronized void cancelUnless(@Nullable final PlayQueueItem nextItem) {
+        if (nextItem != item) {
+            cancel();
+        }
+    }
+
+    /**
+     * Cancel the prefetch in progress, the data already downloaded is kept in the cache.
+     */
+    public synchronized void cancel() {
+        if (task != null) {
+            task.cancel(true);
+            task = null;
+        }
+        item = null;
+    }
+
+    private void prefetch(@NonNull final Target target) {
+        if (PlayerCacheManager.getInstance(context).getCache(target.partition)
+                .isCached(target.cacheKey, 0, target.length)) {
+            return;
+        }
+
+        final DataSource dataSource = target.dataSourceFactory.createDataSource();
+        final DataSpec dataSpec = new DataSpec.Builder()
+                .setUri(target.uri)
+                .setLength(target.length)
+                .setKey(target.cacheKey)
+                .build();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final long start = SystemClock.elapsedRealtime();
+        long done = 0;
+
+        try {
+            dataSource.open(dataSpec);
+            int read;
+            while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                done += read;
+                throttle(done, start);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Prefetched " + done + " bytes of " + target.cacheKey);
+            }
+        } catch (final InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        } catch (final IOException e) {
+            // the player loads the stream itself when reaching it
+            Log.w(TAG, "Could not prefetch " + target.cacheKey, e);
+        } finally {
+            try {
+                dataSource.close();
+            } catch (final IOException e) {
+                Log.w(TAG, "Could not close the prefetch of " + target.cacheKey, e);
+            }
+        }
+    }
+
+    private void throttle(final long done, final long start) throws InterruptedIOException {
+        final long bitrate = Math.max(bandwidthMeter.getBitrateEstimate(), MINIMUM_BITRATE);
+        final long bytesPerSecond = (long) (bitrate / 8 * BANDWIDTH_FRACTION);
+        final long wait = done * 1000 / bytesPerSecond - (SystemClock.elapsedRealtime() - start);
+        if (wait <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(wait);
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("Prefetch cancelled");
+        }
+    }
+
+    /**
+     * The beginning of a stream, read the way the player reads it so it is cached under the
+     * same key.
+     */
+    public static final class Target {
+        @NonNull
+        private final Uri uri;
+        @NonNull
+        private final String cacheKey;
+        @NonNull
+        private final PlayerCacheManager.Partition partition;
+        @NonNull
+        private final DataSource.Factory dataSourceFactory;
+        private final long length;
+
+        private Target(@NonNull final Uri uri,
+                       @NonNull final String cacheKey,
+                       @NonNull final PlayerCacheManager.Partition partition,
+                       @NonNull final DataSource.Factory dataSourceFactory,
+                       final long length) {
+            this.uri = uri;
+            this.cacheKey = cacheKey;
+            this.partition = partition;
+            this.dataSourceFactory = dataSourceFactory;
+            this.length = length;
+        }
+
+        /**
+         * @param stream            the stream
+         * @param uri               the uri the player reads
+         * @param cacheKey          the cache key of the stream
+         * @param dataSourceFactory a factory writing to the partition of the stream, see
+         *                          {@link PlayerDataSource}
+         * @return the first {@link #PREFETCH_SECONDS} seconds of the stream, estimated from its
+         * bitrate
+         */
+        @NonNull
+        public static Target of(@NonNull final Stream stream,
+                                @NonNull final Uri uri,
+                                @NonNull final String cacheKey,
+                                @NonNull final DataSource.Factory dataSourceFactory) {
+            return new Target(uri, cacheKey, PlayerCacheManager.Partition.of(stream),
+                    dataSourceFactory, (long) bitrateOf(stream) / 8 * PREFETCH_SECONDS);
+        }
+
+        private static int bitrateOf(@NonNull final Stream stream) {
+            final ItagItem itagItem = stream.getItagItem();
+            if (itagItem != null && itagItem.getBitrate() > 0) {
+                return itagItem.getBitrate();
+            }
+            if (stream instanceof AudioStream) {
+                final int averageBitrate = ((AudioStream) stream).getAverageBitrate();
+                return averageBitrate > 0 ? averageBitrate * 1000 : DEFAULT_AUDIO_BITRATE;
+            }
+            return DEFAULT_VIDEO_BITRATE;
+        }
+    }
+}
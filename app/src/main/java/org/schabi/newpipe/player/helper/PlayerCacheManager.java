@@ -0,0 +1,350 @@
+package org.schabi.newpipe.player.helper;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.database.StandaloneDatabaseProvider;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.Stream;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The disk cache of the player, split in partitions with their own share of the total budget,
+ * so a long video does not evict the audio streams or the manifests.
+ * <p>
+ * The data touched since the playing item started is pinned: its partition can grow beyond its
+ * share while all partitions together fit in the budget, so seeking back in a video bigger than
+ * its partition is served from the cache.
+ */
+public final class PlayerCacheManager {
+    private static final String TAG = PlayerCacheManager.class.getSimpleName();
+    private static final String CACHE_FOLDER_NAME = "exoplayer";
+
+    public enum Partition {
+        /**
+         * Video streams, and streams with both video and audio.
+         */
+        VIDEO("video", 70),
+        /**
+         * Audio streams, played alone or along a video stream.
+         */
+        AUDIO("audio", 25),
+        /**
+         * Manifests, playlists and subtitles.
+         */
+        MANIFEST("manifest", 5);
+
+        private final String folderName;
+        private final int budgetPercent;
+
+        Partition(final String folderName, final int budgetPercent) {
+            this.folderName = folderName;
+            this.budgetPercent = budgetPercent;
+        }
+
+        /**
+         * @param stream a stream to play
+         * @return the partition caching the stream
+         */
+        @NonNull
+        public static Partition of(@NonNull final Stream stream) {
+            return stream instanceof AudioStream ? AUDIO : VIDEO;
+        }
+    }
+
+    private static PlayerCacheManager instance;
+
+    private final Map<Partition, SimpleCache> caches = new EnumMap<>(Partition.class);
+    private final Map<Partition, PartitionEvictor> evictors = new EnumMap<>(Partition.class);
+    private final Map<Partition, Stats> stats = new EnumMap<>(Partition.class);
+
+    /**
+     * Data touched since this time is kept, see {@link System#currentTimeMillis()}.
+     */
+    private final AtomicLong pinnedSince = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * Bytes cached by all partitions, checked against the total budget.
+     */
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    private PlayerCacheManager(@NonNull final Context context) {
+        final File cacheDir = new File(context.getExternalCacheDir(), CACHE_FOLDER_NAME);
+        final StandaloneDatabaseProvider databaseProvider =
+                new StandaloneDatabaseProvider(context);
+        deleteUnpartitionedCache(cacheDir, databaseProvider);
+
+        for (final Partition partition : Partition.values()) {
+            final PartitionEvictor evictor = new PartitionEvictor(cachedBytes, pinnedSince);
+            evictors.put(partition, evictor);
+            caches.put(partition, new SimpleCache(new File(cacheDir, partition.folderName),
+                    evictor, databaseProvider));
+            stats.put(partition, new Stats());
+        }
+        Log.d(TAG, "initExoPlayerCache: cacheDir = " + cacheDir.getAbsolutePath());
+    }
+
+    /**
+     * Get the cache manager, applying the cache size preferred by the user.
+     *
+     * @param context a context
+     * @return the cache manager
+     */
+    @NonNull
+    public static synchronized PlayerCacheManager getInstance(@NonNull final Context context) {
+        if (instance == null) {
+            instance = new PlayerCacheManager(context.getApplicationContext());
+        }
+        instance.setBudget(PlayerHelper.getPreferredCacheSize(context));
+        return instance;
+    }
+
+    /**
+     * The cache used to be a single {@link SimpleCache} in the cache folder, its files are
+     * deleted since the partitions use subfolders.
+     */
+    private static void deleteUnpartitionedCache(@NonNull final File cacheDir,
+                                                 @NonNull final StandaloneDatabaseProvider
+                                                         databaseProvider) {
+        final File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            if (file.isFile()) {
+                Log.d(TAG, "Deleting the unpartitioned cache");
+                SimpleCache.delete(cacheDir, databaseProvider);
+                return;
+            }
+        }
+    }
+
+    private void setBudget(final long totalBytes) {
+        for (final Partition partition : Partition.values()) {
+            evictors.get(partition).setBudget(totalBytes * partition.budgetPercent / 100,
+                    totalBytes);
+        }
+    }
+
+    @NonNull
+    Cache getCache(@NonNull final Partition partition) {
+        return caches.get(partition);
+    }
+
+    /**
+     * Pin the data of the item starting to play, the data of the previous item is unpinned.
+     */
+    public void pinPlayingItem() {
+        pinnedSince.set(System.currentTimeMillis());
+    }
+
+    /**
+     * @param partition a partition
+     * @return the hit and miss counters of the partition
+     */
+    @NonNull
+    public Stats getStats(@NonNull final Partition partition) {
+        return stats.get(partition);
+    }
+
+    /**
+     * @param partition a partition
+     * @return the amount of bytes in the partition
+     */
+    public long getCachedBytes(@NonNull final Partition partition) {
+        return caches.get(partition).getCacheSpace();
+    }
+
+    /**
+     * Counts the reads served by the cache (hits) and by the network (misses) of a partition.
+     */
+    public static final class Stats implements CacheDataSource.EventListener, TransferListener {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong hitBytes = new AtomicLong();
+        private final AtomicLong missBytes = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getHitBytes() {
+            return hitBytes.get();
+        }
+
+        public long getMissBytes() {
+            return missBytes.get();
+        }
+
+        @Override
+        public void onCachedBytesRead(final long cacheSizeBytes, final long cachedBytesRead) {
+            hits.incrementAndGet();
+            hitBytes.addAndGet(cachedBytesRead);
+        }
+
+        @Override
+        public void onCacheIgnored(final int reason) {
+        }
+
+        @Override
+        public void onTransferInitializing(@NonNull final DataSource source,
+                                           @NonNull final DataSpec dataSpec,
+                                           final boolean isNetwork) {
+        }
+
+        @Override
+        public void onTransferStart(@NonNull final DataSource source,
+                                    @NonNull final DataSpec dataSpec,
+                                    final boolean isNetwork) {
+            if (isNetwork) {
+                misses.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onBytesTransferred(@NonNull final DataSource source,
+                                       @NonNull final DataSpec dataSpec,
+                                       final boolean isNetwork,
+                                       final int bytesTransferred) {
+            if (isNetwork) {
+                missBytes.addAndGet(bytesTransferred);
+            }
+        }
+
+        @Override
+        public void onTransferEnd(@NonNull final DataSource source,
+                                  @NonNull final DataSpec dataSpec,
+                                  final boolean isNetwork) {
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "hits=" + getHits() + " (" + getHitBytes() + " bytes), misses=" + getMisses()
+                    + " (" + getMissBytes() + " bytes)";
+        }
+    }
+
+    /**
+     * Evicts the least recently used data of a partition beyond its share. The pinned data is
+     * kept while all partitions together are within the total budget.
+     * <p>
+     * A partition only evicts its own data, from its own cache thread. So the total can pass the
+     * budget by the data added to a partition within its share, until the partition holding
+     * pinned data beyond its share adds data again.
+     */
+    static final class PartitionEvictor implements CacheEvictor {
+        private final TreeSet<CacheSpan> spans = new TreeSet<>((a, b) -> {
+            final long difference = a.lastTouchTimestamp - b.lastTouchTimestamp;
+            return difference == 0 ? a.compareTo(b) : (difference < 0 ? -1 : 1);
+        });
+        private final AtomicLong allCachedBytes;
+        private final AtomicLong pinnedSince;
+        private long currentSize;
+        private volatile long maxBytes;
+        private volatile long totalBytes;
+
+        /**
+         * @param allCachedBytes bytes cached by all partitions, shared by their evictors
+         * @param pinnedSince    data touched since this time is pinned
+         */
+        PartitionEvictor(@NonNull final AtomicLong allCachedBytes,
+                         @NonNull final AtomicLong pinnedSince) {
+            this.allCachedBytes = allCachedBytes;
+            this.pinnedSince = pinnedSince;
+        }
+
+        void setBudget(final long partitionBytes, final long allBytes) {
+            maxBytes = partitionBytes;
+            totalBytes = allBytes;
+        }
+
+        @Override
+        public boolean requiresCacheSpanTouches() {
+            return true;
+        }
+
+        @Override
+        public void onCacheInitialized() {
+        }
+
+        @Override
+        public void onStartFile(@NonNull final Cache cache, @NonNull final String key,
+                                final long position, final long length) {
+            if (length != C.LENGTH_UNSET) {
+                evictCache(cache, length);
+            }
+        }
+
+        @Override
+        public void onSpanAdded(@NonNull final Cache cache, @NonNull final CacheSpan span) {
+            spans.add(span);
+            currentSize += span.length;
+            allCachedBytes.addAndGet(span.length);
+            evictCache(cache, 0);
+        }
+
+        @Override
+        public void onSpanRemoved(@NonNull final Cache cache, @NonNull final CacheSpan span) {
+            if (spans.remove(span)) {
+                currentSize -= span.length;
+                allCachedBytes.addAndGet(-span.length);
+            }
+        }
+
+        @Override
+        public void onSpanTouched(@NonNull final Cache cache, @NonNull final CacheSpan oldSpan,
+                                  @NonNull final CacheSpan newSpan) {
+            onSpanRemoved(cache, oldSpan);
+            onSpanAdded(cache, newSpan);
+        }
+
+        private void evictCache(@NonNull final Cache cache, final long requiredSpace) {
+            if (currentSize + requiredSpace <= maxBytes) {
+                return;
+            }
+
+            // unpinned data first, then the pinned data while all partitions pass the budget
+            final long pinned = pinnedSince.get();
+            for (final CacheSpan span : new ArrayList<>(spans)) {
+                if (currentSize + requiredSpace <= maxBytes) {
+                    return;
+                }
+                if (span.lastTouchTimestamp < pinned) {
+                    cache.removeSpan(span);
+                }
+            }
+
+            for (final CacheSpan span : new ArrayList<>(spans)) {
+                if (currentSize + requiredSpace <= maxBytes
+                        || allCachedBytes.get() + requiredSpace <= totalBytes) {
+                    return;
+                }
+                cache.removeSpan(span);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.schabi.newpipe.player.helper;
 import android.content.Context;
 import android.net.Uri;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.source.SingleSampleMediaSource;
@@ -18,32 +19,18 @@ import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer2.upstream.DefaultLoadErrorHandlingPolicy;
 import com.google.android.exoplayer2.upstream.ResolvingDataSource;
 import com.google.android.exoplayer2.upstream.TransferListener;
-import com.grack.nanojson.JsonObject;
-import com.grack.nanojson.JsonParser;
-import com.grack.nanojson.JsonParserException;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.schabi.newpipe.DownloaderImpl;
-import org.schabi.newpipe.extractor.downloader.Response;
-import org.schabi.newpipe.extractor.exceptions.ReCaptchaException;
-import org.schabi.newpipe.extractor.services.niconico.NiconicoService;
-import org.schabi.newpipe.extractor.services.niconico.extractors.NiconicoDMCPayloadBuilder;
-
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.source.SingleSampleMediaSource;
 import com.google.android.exoplayer2.source.dash.DashMediaSource;
 import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
+import com.google.android.exoplayer2.source.hls.HlsDataSourceFactory;
 import com.google.android.exoplayer2.source.hls.HlsMediaSource;
 import com.google.android.exoplayer2.source.hls.playlist.DefaultHlsPlaylistTracker;
 import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParserFactory;
@@ -57,6 +44,7 @@ import com.google.android.exoplayer2.upstream.TransferListener;
 import org.schabi.newpipe.extractor.services.youtube.dashmanifestcreators.YoutubeOtfDashManifestCreator;
 import org.schabi.newpipe.extractor.services.youtube.dashmanifestcreators.YoutubePostLiveStreamDvrDashManifestCreator;
 import org.schabi.newpipe.extractor.services.youtube.dashmanifestcreators.YoutubeProgressiveDashManifestCreator;
+import org.schabi.newpipe.player.datasource.NiconicoSessionCache;
 import org.schabi.newpipe.player.datasource.YoutubeHttpDataSource;
 
 import java.util.Map;
@@ -83,7 +71,22 @@ public class PlayerDataSource {
     private final int continueLoadingCheckIntervalBytes;
     private final CacheFactory.Builder cacheDataSourceFactoryBuilder;
     private final DataSource.Factory cachelessDataSourceFactory;
-    private final DataSource.Factory nicoCachelessDataSourceFactory;
+
+    /**
+     * Builders of the caches of progressive streams, with their own upstream so the upstream
+     * set by the YouTube factories does not leak in.
+     */
+    private final CacheFactory.Builder progressiveCacheFactoryBuilder;
+    private final CacheFactory.Builder nicoCacheFactoryBuilder;
+    private final NiconicoSessionCache nicoSessionCache = new NiconicoSessionCache();
+
+    /**
+     * Builders of the caches filled by {@link MediaPrefetcher}, they share the upstreams of the
+     * progressive builders but do not report to the bandwidth meter.
+     */
+    private final CacheFactory.Builder progressivePrefetchFactoryBuilder;
+    private final CacheFactory.Builder youtubePrefetchFactoryBuilder;
+    private final CacheFactory.Builder nicoPrefetchFactoryBuilder;
 
     public PlayerDataSource(@NonNull final Context context,
                             @NonNull final String userAgent,
@@ -91,10 +94,19 @@ public class PlayerDataSource {
         continueLoadingCheckIntervalBytes = PlayerHelper.getProgressiveLoadIntervalBytes(context);
         cacheDataSourceFactoryBuilder = new CacheFactory.Builder(context, userAgent,
                 transferListener);
-        cachelessDataSourceFactory = new DefaultDataSource.Factory(context,
+        final DefaultHttpDataSource.Factory httpDataSourceFactory =
                 new DefaultHttpDataSource.Factory().setUserAgent(userAgent)
-                        .setDefaultRequestProperties(Map.of("Referer", "https://www.bilibili.com")))
+                        .setDefaultRequestProperties(Map.of("Referer", "https://www.bilibili.com"));
+        cachelessDataSourceFactory = new DefaultDataSource.Factory(context, httpDataSourceFactory)
                 .setTransferListener(transferListener);
+        progressiveCacheFactoryBuilder = new CacheFactory.Builder(context, userAgent,
+                transferListener);
+        progressiveCacheFactoryBuilder.setUpstreamDataSourceFactory(httpDataSourceFactory);
+        progressivePrefetchFactoryBuilder = new CacheFactory.Builder(context, userAgent, null);
+        progressivePrefetchFactoryBuilder.setUpstreamDataSourceFactory(httpDataSourceFactory);
+        youtubePrefetchFactoryBuilder = new CacheFactory.Builder(context, userAgent, null);
+        youtubePrefetchFactoryBuilder.setUpstreamDataSourceFactory(
+                getYoutubeHttpDataSourceFactory(false, true));
 
         YoutubeProgressiveDashManifestCreator.getCache().setMaximumSize(
                 MAXIMUM_SIZE_CACHED_GENERATED_MANIFESTS_PER_CACHE);
@@ -102,52 +114,56 @@ public class PlayerDataSource {
                 MAXIMUM_SIZE_CACHED_GENERATED_MANIFESTS_PER_CACHE);
         YoutubePostLiveStreamDvrDashManifestCreator.getCache().setMaximumSize(
                 MAXIMUM_SIZE_CACHED_GENERATED_MANIFESTS_PER_CACHE);
-        nicoCachelessDataSourceFactory = new DefaultDataSource
-                .Factory(context, new DefaultHttpDataSource.Factory().setUserAgent(userAgent)
+        final DefaultHttpDataSource.Factory nicoHttpDataSourceFactory =
+                new DefaultHttpDataSource.Factory().setUserAgent(userAgent)
                 .setDefaultRequestProperties(Map.of("Referer", "https://www.nicovideo.jp/",
                         "Origin", "https://www.nicovideo.jp",
                         "X-Frontend-ID", "6",
                         "X-Frontend-Version", "0",
                         "X-Niconico-Language", "en-us"
-                )))
-                .setTransferListener(transferListener);
+                ));
+        // the watch page is resolved only on a cache miss
+        final DataSource.Factory nicoResolvingDataSourceFactory = new ResolvingDataSource.Factory(
+                nicoHttpDataSourceFactory, dataSpec -> dataSpec.withUri(
+                        Uri.parse(nicoSessionCache.resolve(String.valueOf(dataSpec.uri)))));
+        nicoCacheFactoryBuilder = new CacheFactory.Builder(context, userAgent, transferListener);
+        nicoCacheFactoryBuilder.setUpstreamDataSourceFactory(nicoResolvingDataSourceFactory);
+        nicoPrefetchFactoryBuilder = new CacheFactory.Builder(context, userAgent, null);
+        nicoPrefetchFactoryBuilder.setUpstreamDataSourceFactory(nicoResolvingDataSourceFactory);
     }
-    public String getNicoUrl(String url){
-        final Map<String, List<String>> headers = new HashMap<>();
-        headers.put("Content-Type", Collections.singletonList("application/json"));
-        DownloaderImpl downloader = DownloaderImpl.getInstance();
-        Response response;
+
+    /**
+     * Stop the heartbeats of the Niconico sessions, called once the player is released.
+     */
+    public void release() {
+        nicoSessionCache.clear();
+    }
+
+    /**
+     * Resolve the content url of a Niconico watch page, reusing its DMC session if alive.
+     *
+     * @param url url of the watch page
+     * @return the content url, or {@code null} if the session could not be created
+     */
+    @Nullable
+    public String getNicoUrl(final String url) {
         try {
-            response = downloader.get(String.valueOf(url), null, NiconicoService.LOCALE); // NiconicoService.LOCALE = Localization.fromLocalizationCode("ja-JP")
-            final Document page = Jsoup.parse(response.responseBody());
-            JsonObject watch = JsonParser.object().from(
-                    page.getElementById("js-initial-watch-data").attr("data-api-data"));
-            final JsonObject session
-                    = watch.getObject("media").getObject("delivery").getObject("movie");
-
-            final JsonObject encryption = watch.getObject("media").getObject("delivery").getObject("encryption");
-            final String s = NiconicoDMCPayloadBuilder.buildJSON(session.getObject("session"), encryption);
-            response = downloader.post("https://api.dmc.nico/api/sessions?_format=json", headers, s.getBytes(StandardCharsets.UTF_8), NiconicoService.LOCALE);
-            final JsonObject content = JsonParser.object().from(response.responseBody());
-            final String contentURL = content.getObject("data").getObject("session")
-                    .getString("content_uri");
-            return String.valueOf(Uri.parse(contentURL));
-        } catch (ReCaptchaException | JsonParserException | IOException e) {
+            return nicoSessionCache.resolve(url);
+        } catch (final IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
-    public MediaSource.Factory getNicoDataSource() {
-        DataSource.Factory newFactory = new ResolvingDataSource.Factory(nicoCachelessDataSourceFactory, dataSpec -> {
-            return dataSpec.withUri(Uri.parse(getNicoUrl(String.valueOf(dataSpec.uri))));
-        });
-        return new ProgressiveMediaSource.Factory(newFactory)
+    public MediaSource.Factory getNicoDataSource(
+            @NonNull final PlayerCacheManager.Partition partition) {
+        return new ProgressiveMediaSource.Factory(nicoCacheFactoryBuilder.build(partition))
                 .setContinueLoadingCheckIntervalBytes(continueLoadingCheckIntervalBytes);
     }
 
-    public HlsMediaSource.Factory getNicoHlsMediaSourceFactory() {
-        DataSource.Factory newFactory = new ResolvingDataSource.Factory(cacheDataSourceFactoryBuilder.build(), dataSpec -> {
+    public HlsMediaSource.Factory getNicoHlsMediaSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
+        DataSource.Factory newFactory = new ResolvingDataSource.Factory(cacheDataSourceFactoryBuilder.build(partition), dataSpec -> {
             return dataSpec.withAdditionalHeaders(Map.of("Referer", "https://www.nicovideo.jp/",
                     "Origin", "https://www.nicovideo.jp",
                     "X-Frontend-ID", "6",
@@ -178,23 +194,26 @@ public class PlayerDataSource {
     }
 
     public HlsMediaSource.Factory getHlsMediaSourceFactory(
-            @Nullable final HlsPlaylistParserFactory hlsPlaylistParserFactory) {
+            @Nullable final HlsPlaylistParserFactory hlsPlaylistParserFactory,
+            @NonNull final PlayerCacheManager.Partition partition) {
         final HlsMediaSource.Factory factory = new HlsMediaSource.Factory(
-                cacheDataSourceFactoryBuilder.build());
+                getHlsDataSourceFactory(partition));
         if (hlsPlaylistParserFactory != null) {
             factory.setPlaylistParserFactory(hlsPlaylistParserFactory);
         }
         return factory;
     }
 
-    public DashMediaSource.Factory getDashMediaSourceFactory() {
+    public DashMediaSource.Factory getDashMediaSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
         return new DashMediaSource.Factory(
-                getDefaultDashChunkSourceFactory(cacheDataSourceFactoryBuilder.build()),
-                cacheDataSourceFactoryBuilder.build());
+                getDefaultDashChunkSourceFactory(cacheDataSourceFactoryBuilder.build(partition)),
+                cacheDataSourceFactoryBuilder.build(PlayerCacheManager.Partition.MANIFEST));
     }
 
-    public ProgressiveMediaSource.Factory getProgressiveMediaSourceFactory() {
-        return new ProgressiveMediaSource.Factory(cachelessDataSourceFactory)
+    public ProgressiveMediaSource.Factory getProgressiveMediaSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
+        return new ProgressiveMediaSource.Factory(progressiveCacheFactoryBuilder.build(partition))
                 .setContinueLoadingCheckIntervalBytes(continueLoadingCheckIntervalBytes);
     }
 
@@ -205,30 +224,75 @@ public class PlayerDataSource {
     }
 
     public SingleSampleMediaSource.Factory getSingleSampleMediaSourceFactory() {
-        return new SingleSampleMediaSource.Factory(cacheDataSourceFactoryBuilder.build());
+        return new SingleSampleMediaSource.Factory(
+                cacheDataSourceFactoryBuilder.build(PlayerCacheManager.Partition.MANIFEST));
     }
 
-    public DashMediaSource.Factory getYoutubeDashMediaSourceFactory() {
+    public DashMediaSource.Factory getYoutubeDashMediaSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
         cacheDataSourceFactoryBuilder.setUpstreamDataSourceFactory(
                 getYoutubeHttpDataSourceFactory(true, true));
         return new DashMediaSource.Factory(
-                getDefaultDashChunkSourceFactory(cacheDataSourceFactoryBuilder.build()),
-                cacheDataSourceFactoryBuilder.build());
+                getDefaultDashChunkSourceFactory(cacheDataSourceFactoryBuilder.build(partition)),
+                cacheDataSourceFactoryBuilder.build(PlayerCacheManager.Partition.MANIFEST));
     }
 
-    public HlsMediaSource.Factory getYoutubeHlsMediaSourceFactory() {
+    public HlsMediaSource.Factory getYoutubeHlsMediaSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
         cacheDataSourceFactoryBuilder.setUpstreamDataSourceFactory(
                 getYoutubeHttpDataSourceFactory(false, false));
-        return new HlsMediaSource.Factory(cacheDataSourceFactoryBuilder.build());
+        return new HlsMediaSource.Factory(getHlsDataSourceFactory(partition));
     }
 
-    public ProgressiveMediaSource.Factory getYoutubeProgressiveMediaSourceFactory() {
+    public ProgressiveMediaSource.Factory getYoutubeProgressiveMediaSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
         cacheDataSourceFactoryBuilder.setUpstreamDataSourceFactory(
                 getYoutubeHttpDataSourceFactory(false, true));
-        return new ProgressiveMediaSource.Factory(cacheDataSourceFactoryBuilder.build())
+        return new ProgressiveMediaSource.Factory(cacheDataSourceFactoryBuilder.build(partition))
                 .setContinueLoadingCheckIntervalBytes(continueLoadingCheckIntervalBytes);
     }
 
+    /**
+     * Cache the playlists in the manifest partition and the segments in the given partition.
+     * The factories are built now, so they keep the upstream set on the builder.
+     */
+    @NonNull
+    private HlsDataSourceFactory getHlsDataSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
+        final DataSource.Factory playlistFactory =
+                cacheDataSourceFactoryBuilder.build(PlayerCacheManager.Partition.MANIFEST);
+        final DataSource.Factory segmentFactory = cacheDataSourceFactoryBuilder.build(partition);
+        return dataType -> (dataType == C.DATA_TYPE_MANIFEST ? playlistFactory : segmentFactory)
+                .createDataSource();
+    }
+
+    /**
+     * @param partition partition of the stream
+     * @return a factory filling the cache like {@link #getProgressiveMediaSourceFactory}
+     */
+    public DataSource.Factory getProgressivePrefetchDataSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
+        return progressivePrefetchFactoryBuilder.build(partition);
+    }
+
+    /**
+     * @param partition partition of the stream
+     * @return a factory filling the cache like {@link #getYoutubeProgressiveMediaSourceFactory}
+     */
+    public DataSource.Factory getYoutubeProgressivePrefetchDataSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
+        return youtubePrefetchFactoryBuilder.build(partition);
+    }
+
+    /**
+     * @param partition partition of the stream
+     * @return a factory filling the cache like {@link #getNicoDataSource}
+     */
+    public DataSource.Factory getNicoPrefetchDataSourceFactory(
+            @NonNull final PlayerCacheManager.Partition partition) {
+        return nicoPrefetchFactoryBuilder.build(partition);
+    }
+
     @NonNull
     private DefaultDashChunkSource.Factory getDefaultDashChunkSourceFactory(
             final DataSource.Factory dataSourceFactory) {
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.PixelFormat;
+import android.net.Uri;
 import android.os.Build;
 import android.provider.Settings;
 import android.view.Gravity;
@@ -48,6 +49,7 @@ import org.schabi.newpipe.R;
 import org.schabi.newpipe.extractor.InfoItem;
 import org.schabi.newpipe.extractor.MediaFormat;
 import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.StreamInfoItem;
 import org.schabi.newpipe.extractor.stream.SubtitlesStream;
@@ -205,9 +207,9 @@ public final class PlayerHelper {
         final String resolution = videoStream.getResolution();
         final MediaFormat mediaFormat = videoStream.getFormat();
         if (resolution.equals(RESOLUTION_UNKNOWN) && mediaFormat == null) {
-            // The hash code is only used in the cache key in the case when the resolution and the
-            // media format are unknown
-            cacheKey += " " + videoStream.hashCode();
+            // The stable id is only used in the cache key in the case when the resolution and
+            // the media format are unknown
+            cacheKey += " " + stableIdOf(videoStream);
         } else {
             if (mediaFormat != null) {
                 cacheKey += " " + videoStream.getFormat().getName();
@@ -228,9 +230,9 @@ public final class PlayerHelper {
         final int averageBitrate = audioStream.getAverageBitrate();
         final MediaFormat mediaFormat = audioStream.getFormat();
         if (averageBitrate == UNKNOWN_BITRATE && mediaFormat == null) {
-            // The hash code is only used in the cache key in the case when the resolution and the
-            // media format are unknown
-            cacheKey += " " + audioStream.hashCode();
+            // The stable id is only used in the cache key in the case when the resolution and
+            // the media format are unknown
+            cacheKey += " " + stableIdOf(audioStream);
         } else {
             if (mediaFormat != null) {
                 cacheKey += " " + audioStream.getFormat().getName();
@@ -243,6 +245,24 @@ public final class PlayerHelper {
         return cacheKey;
     }
 
+    /**
+     * Identify a stream without the parts of its url which change when a signed url expires,
+     * so a cached stream is found again after its url is renewed.
+     *
+     * @param stream the stream
+     * @return the path of the stream url, or the hash of the stream content if not an url
+     */
+    @NonNull
+    private static String stableIdOf(@NonNull final Stream stream) {
+        if (stream.isUrl()) {
+            final String path = Uri.parse(stream.getContent()).getPath();
+            if (path != null) {
+                return path;
+            }
+        }
+        return String.valueOf(stream.getContent().hashCode());
+    }
+
     /**
      * Given a {@link StreamInfo} and the existing queue items,
      * provide the {@link SinglePlayQueue} consisting of the next video for auto queueing.
@@ -368,8 +388,28 @@ public final class PlayerHelper {
         return isUsingInexactSeek(context) ? SeekParameters.CLOSEST_SYNC : SeekParameters.EXACT;
     }
 
-    public static long getPreferredCacheSize() {
-        return 64 * 1024 * 1024L;
+    public static boolean isBulletCommentsCanvasRendererEnabled(@NonNull final Context context) {
+        return getPreferences(context)
+                .getBoolean(context.getString(R.string.bullet_comments_canvas_renderer_key), false);
+    }
+
+    /**
+     * @param context the context to get the preferences from
+     * @return the maximum number of bullet comments on screen, {@link Integer#MAX_VALUE} if
+     *         there is no limit
+     */
+    public static int getBulletCommentsDensityCap(@NonNull final Context context) {
+        final int densityCap = Integer.parseInt(getPreferences(context).getString(
+                context.getString(R.string.bullet_comments_density_cap_key),
+                context.getString(R.string.bullet_comments_density_cap_default_value)));
+        return densityCap > 0 ? densityCap : Integer.MAX_VALUE;
+    }
+
+    public static long getPreferredCacheSize(@NonNull final Context context) {
+        final String preferredCacheSize = getPreferences(context).getString(
+                context.getString(R.string.player_cache_size_key),
+                context.getString(R.string.player_cache_size_default_value));
+        return Long.parseLong(preferredCacheSize) * 1024 * 1024L;
     }
 
     public static long getPreferredFileSize() {
@@ -9,7 +9,9 @@ import com.google.android.exoplayer2.Player;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.StreamType;
 import org.schabi.newpipe.extractor.stream.VideoStream;
+import org.schabi.newpipe.player.helper.MediaPrefetcher;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -54,6 +56,14 @@ public interface MediaItemTag {
         return Optional.empty();
     }
 
+    /**
+     * @return the beginnings of the streams read by the source of this item
+     */
+    @NonNull
+    default List<MediaPrefetcher.Target> getPrefetchTargets() {
+        return Collections.emptyList();
+    }
+
     <T> Optional<T> getMaybeExtras(@NonNull Class<T> type);
 
     <T> MediaItemTag withExtras(@NonNull T extra);
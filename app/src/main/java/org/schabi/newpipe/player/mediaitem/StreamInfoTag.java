@@ -5,10 +5,12 @@ import com.google.android.exoplayer2.MediaItem;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.StreamType;
 import org.schabi.newpipe.extractor.stream.VideoStream;
+import org.schabi.newpipe.player.helper.MediaPrefetcher;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -26,24 +28,43 @@ public final class StreamInfoTag implements MediaItemTag {
     private final MediaItemTag.Quality quality;
     @Nullable
     private final Object extras;
+    @NonNull
+    private final List<MediaPrefetcher.Target> prefetchTargets;
 
     private StreamInfoTag(@NonNull final StreamInfo streamInfo,
                           @Nullable final MediaItemTag.Quality quality,
-                          @Nullable final Object extras) {
+                          @Nullable final Object extras,
+                          @NonNull final List<MediaPrefetcher.Target> prefetchTargets) {
         this.streamInfo = streamInfo;
         this.quality = quality;
         this.extras = extras;
+        this.prefetchTargets = prefetchTargets;
     }
 
     public static StreamInfoTag of(@NonNull final StreamInfo streamInfo,
                                    @NonNull final List<VideoStream> sortedVideoStreams,
                                    final int selectedVideoStreamIndex) {
         final Quality quality = Quality.of(sortedVideoStreams, selectedVideoStreamIndex);
-        return new StreamInfoTag(streamInfo, quality, null);
+        return new StreamInfoTag(streamInfo, quality, null, new CopyOnWriteArrayList<>());
     }
 
     public static StreamInfoTag of(@NonNull final StreamInfo streamInfo) {
-        return new StreamInfoTag(streamInfo, null, null);
+        return new StreamInfoTag(streamInfo, null, null, new CopyOnWriteArrayList<>());
+    }
+
+    /**
+     * Add the beginning of a stream read by the source of this item, while the source is built.
+     *
+     * @param target the beginning of the stream
+     */
+    public void addPrefetchTarget(@NonNull final MediaPrefetcher.Target target) {
+        prefetchTargets.add(target);
+    }
+
+    @NonNull
+    @Override
+    public List<MediaPrefetcher.Target> getPrefetchTargets() {
+        return Collections.unmodifiableList(prefetchTargets);
     }
 
     @Override
@@ -110,6 +131,6 @@ public final class StreamInfoTag implements MediaItemTag {
 
     @Override
     public StreamInfoTag withExtras(@NonNull final Object extra) {
-        return new StreamInfoTag(streamInfo, quality, extra);
+        return new StreamInfoTag(streamInfo, quality, extra, prefetchTargets);
     }
 }
@@ -1,6 +1,7 @@
 package org.schabi.newpipe.player.playback;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -12,6 +13,7 @@ import com.google.android.exoplayer2.source.MediaSource;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 import org.schabi.newpipe.extractor.exceptions.ExtractionException;
+import org.schabi.newpipe.player.helper.MediaPrefetcher;
 import org.schabi.newpipe.player.mediaitem.MediaItemTag;
 import org.schabi.newpipe.player.mediasource.FailedMediaSource;
 import org.schabi.newpipe.player.mediasource.LoadedMediaSource;
@@ -27,6 +29,7 @@ import org.schabi.newpipe.util.ServiceHelper;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -49,26 +52,55 @@ public class MediaSourceManager {
     private final String TAG = "MediaSourceManager@" + hashCode();
 
     /**
-     * Determines how many streams before and after the current stream should be loaded.
-     * The default value (1) ensures seamless playback under typical network settings.
+     * Determines how many streams before and after the current stream should be loaded at
+     * least. The default value (1) ensures seamless playback under typical network settings.
      * <p>
      * The streams after the current will be loaded into the playlist timeline while the
-     * streams before will only be cached for future usage.
+     * streams before will only be cached for future usage. The window after the current stream
+     * grows when loading is slow, see {@link #getWindowSize(long, boolean, boolean)}.
      * </p>
      *
-     * @see #onMediaSourceReceived(PlayQueueItem, ManagedMediaSource)
+     * @see #onMediaSourceReceived(PlayQueueItem, ManagedMediaSource, long)
      */
-    private static final int WINDOW_SIZE = 1;
+    private static final int MINIMUM_WINDOW_SIZE = 1;
 
     /**
-     * Determines the maximum number of disposables allowed in the {@link #loaderReactor}.
-     * Once exceeded, new calls to {@link #loadImmediate()} will evict all disposables in the
-     * {@link #loaderReactor} in order to load a new set of items.
+     * Determines how many streams after the current stream can be loaded at most.
+     */
+    private static final int MAXIMUM_WINDOW_SIZE = 5;
+
+    /**
+     * Determines how long loading a stream takes on average before one more stream after the
+     * current is loaded, so a stream is loaded before playback reaches it.
+     */
+    private static final long LOAD_MILLIS_PER_EXTRA_ITEM = 2000;
+
+    /**
+     * Determines how many more streams are loaded while playing audio only, since audio
+     * streams are short to buffer and long playlists are common in the background.
+     */
+    private static final int AUDIO_ONLY_EXTRA_ITEMS = 2;
+
+    /**
+     * Determines how many streams are loaded at the same time at most. The current stream is
+     * always loaded, the others wait for a load to finish.
      *
      * @see #loadImmediate()
-     * @see #maybeLoadItem(PlayQueueItem)
      */
-    private static final int MAXIMUM_LOADER_SIZE = WINDOW_SIZE * 2 + 1;
+    private static final int MAXIMUM_CONCURRENT_LOADS = 3;
+
+    /**
+     * Weight of the last load time in {@link #averageLoadMillis}.
+     */
+    private static final float LOAD_MILLIS_SMOOTHING = 0.3f;
+
+    /**
+     * Determines how far ahead the current stream must be buffered before the beginning of
+     * the next stream is prefetched.
+     *
+     * @see #maybePrefetchNext()
+     */
+    private static final long PREFETCH_BUFFER_AHEAD_MILLIS = 30_000;
 
     @NonNull
     private final PlaybackListener playbackListener;
@@ -92,6 +124,11 @@ public class MediaSourceManager {
     @NonNull
     private final Observable<Long> nearEndIntervalSignal;
 
+    @NonNull
+    private final MediaPrefetcher prefetcher;
+    @NonNull
+    private final Disposable prefetchLoader;
+
     /**
      * Process only the last load order when receiving a stream of load orders (lessens I/O).
      * <p>
@@ -121,20 +158,33 @@ public class MediaSourceManager {
     @NonNull
     private final AtomicBoolean isBlocked;
 
+    /**
+     * Smoothed time taken to load a stream, from the request to the received media source.
+     */
+    private long averageLoadMillis;
+
+    /**
+     * Whether some streams of the window were not loaded due to
+     * {@link #MAXIMUM_CONCURRENT_LOADS}.
+     */
+    private boolean hasPendingLoads;
+
     @NonNull
     private ManagedMediaSourcePlaylist playlist;
 
     private final Handler removeMediaSourceHandler = new Handler();
 
     public MediaSourceManager(@NonNull final PlaybackListener listener,
-                              @NonNull final PlayQueue playQueue) {
-        this(listener, playQueue, 400L,
+                              @NonNull final PlayQueue playQueue,
+                              @NonNull final MediaPrefetcher prefetcher) {
+        this(listener, playQueue, prefetcher, 400L,
                 /*playbackNearEndGapMillis=*/TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS),
                 /*progressUpdateIntervalMillis*/TimeUnit.MILLISECONDS.convert(2, TimeUnit.SECONDS));
     }
 
     private MediaSourceManager(@NonNull final PlaybackListener listener,
                                @NonNull final PlayQueue playQueue,
+                               @NonNull final MediaPrefetcher prefetcher,
                                final long loadDebounceMillis,
                                final long playbackNearEndGapMillis,
                                final long progressUpdateIntervalMillis) {
@@ -158,6 +208,9 @@ public class MediaSourceManager {
         this.debouncedSignal = PublishSubject.create();
         this.debouncedLoader = getDebouncedLoader();
 
+        this.prefetcher = prefetcher;
+        this.prefetchLoader = getPrefetchLoader();
+
         this.playQueueReactor = EmptySubscription.INSTANCE;
         this.loaderReactor = new CompositeDisposable();
 
@@ -189,6 +242,9 @@ public class MediaSourceManager {
 
         playQueueReactor.cancel();
         loaderReactor.dispose();
+
+        prefetchLoader.dispose();
+        prefetcher.cancel();
     }
 
     /*//////////////////////////////////////////////////////////////////////////
@@ -267,6 +323,9 @@ public class MediaSourceManager {
                 break;
         }
 
+        // Stop prefetching an item which is no longer next
+        prefetcher.cancelUnless(getNextItem());
+
         // update ui and notification
         switch (event.type()) {
             case APPEND: case REMOVE: case MOVE: case REORDER:
@@ -285,7 +344,8 @@ public class MediaSourceManager {
     //////////////////////////////////////////////////////////////////////////*/
 
     private boolean isPlayQueueReady() {
-        final boolean isWindowLoaded = playQueue.size() - playQueue.getIndex() > WINDOW_SIZE;
+        final boolean isWindowLoaded =
+                playQueue.size() - playQueue.getIndex() > MINIMUM_WINDOW_SIZE;
         return playQueue.isComplete() || isWindowLoaded;
     }
 
@@ -375,6 +435,39 @@ public class MediaSourceManager {
                 .subscribe(timestamp -> loadImmediate());
     }
 
+    private Disposable getPrefetchLoader() {
+        return Observable.interval(progressUpdateIntervalMillis,
+                                   TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
+                .filter(ignored -> playbackListener.isBufferedAhead(PREFETCH_BUFFER_AHEAD_MILLIS))
+                .subscribe(ignored -> maybePrefetchNext());
+    }
+
+    /**
+     * Prefetches the beginning of the next item once its source is loaded, see
+     * {@link MediaPrefetcher}.
+     */
+    private void maybePrefetchNext() {
+        final PlayQueueItem nextItem = getNextItem();
+        if (nextItem == null) {
+            return;
+        }
+
+        final ManagedMediaSource mediaSource = playlist.get(playQueue.indexOf(nextItem));
+        if (!(mediaSource instanceof LoadedMediaSource)
+                || !mediaSource.isStreamEqual(nextItem)) {
+            return;
+        }
+
+        MediaItemTag.from(((LoadedMediaSource) mediaSource).getMediaItem())
+                .ifPresent(tag -> prefetcher.prefetch(nextItem, tag.getPrefetchTargets()));
+    }
+
+    @Nullable
+    private PlayQueueItem getNextItem() {
+        final int nextIndex = playQueue.getIndex() + 1;
+        return nextIndex < playQueue.size() ? playQueue.getItem(nextIndex) : null;
+    }
+
     private void loadDebounced() {
         debouncedSignal.onNext(System.currentTimeMillis());
     }
@@ -383,16 +476,24 @@ public class MediaSourceManager {
         if (DEBUG) {
             Log.d(TAG, "MediaSource - loadImmediate() called");
         }
-        final ItemsToLoad itemsToLoad = getItemsToLoad(playQueue);
+        final int windowSize = getWindowSize(averageLoadMillis,
+                playbackListener.isAudioOnlyPlayback(), playbackListener.isMeteredNetwork());
+        final ItemsToLoad itemsToLoad = getItemsToLoad(playQueue, windowSize);
         if (itemsToLoad == null) {
             return;
         }
 
         // Evict the previous items being loaded to free up memory, before start loading new ones
-        maybeClearLoaders();
+        maybeClearLoaders(windowSize);
 
         maybeLoadItem(itemsToLoad.center);
+        hasPendingLoads = false;
         for (final PlayQueueItem item : itemsToLoad.neighbors) {
+            if (loadingItems.size() >= MAXIMUM_CONCURRENT_LOADS) {
+                // loaded once a load finishes, the nearest streams first
+                hasPendingLoads = true;
+                break;
+            }
             maybeLoadItem(item);
         }
     }
@@ -412,10 +513,12 @@ public class MediaSourceManager {
             }
 
             loadingItems.add(item);
+            final long loadStart = SystemClock.elapsedRealtime();
             final Disposable loader = getLoadedMediaSource(item)
                     .observeOn(AndroidSchedulers.mainThread())
                     /* No exception handling since getLoadedMediaSource guarantees nonnull return */
-                    .subscribe(mediaSource -> onMediaSourceReceived(item, mediaSource));
+                    .subscribe(mediaSource -> onMediaSourceReceived(item, mediaSource,
+                            loadStart));
             loaderReactor.add(loader);
         }
     }
@@ -449,13 +552,20 @@ public class MediaSourceManager {
     }
 
     private void onMediaSourceReceived(@NonNull final PlayQueueItem item,
-                                       @NonNull final ManagedMediaSource mediaSource) {
+                                       @NonNull final ManagedMediaSource mediaSource,
+                                       final long loadStart) {
+        final long loadMillis = SystemClock.elapsedRealtime() - loadStart;
+        averageLoadMillis = (long) (averageLoadMillis
+                + (loadMillis - averageLoadMillis) * LOAD_MILLIS_SMOOTHING);
         if (DEBUG) {
             Log.d(TAG, "MediaSource - Loaded=[" + item.getTitle()
-                    + "] with url=[" + item.getUrl() + "]");
+                    + "] with url=[" + item.getUrl() + "] in " + loadMillis + " ms");
         }
 
         loadingItems.remove(item);
+        if (hasPendingLoads) {
+            loadDebounced();
+        }
 
         final int itemIndex = playQueue.indexOf(item);
         // Only update the playlist timeline for items at the current index or after.
@@ -522,12 +632,18 @@ public class MediaSourceManager {
         playlist.invalidate(currentIndex, removeMediaSourceHandler, this::loadImmediate);
     }
 
-    private void maybeClearLoaders() {
+    /**
+     * Evicts all disposables in the {@link #loaderReactor} once they exceed the number of
+     * streams in the window, in order to load a new set of items.
+     *
+     * @param windowSize the number of streams loaded after the current stream
+     */
+    private void maybeClearLoaders(final int windowSize) {
         if (DEBUG) {
             Log.d(TAG, "MediaSource - maybeClearLoaders() called.");
         }
         if (!loadingItems.contains(playQueue.getItem())
-                && loaderReactor.size() > MAXIMUM_LOADER_SIZE) {
+                && loaderReactor.size() > windowSize + MINIMUM_WINDOW_SIZE + 1) {
             loaderReactor.clear();
             loadingItems.clear();
         }
@@ -557,8 +673,31 @@ public class MediaSourceManager {
     // Manager Helpers
     //////////////////////////////////////////////////////////////////////////*/
 
+    /**
+     * Determines how many streams after the current stream should be loaded.
+     *
+     * @param averageLoadMillis the average time taken to load a stream
+     * @param isAudioOnly       whether only audio is played
+     * @param isMetered         whether the network is metered
+     * @return the number of streams to load after the current stream
+     */
+    static int getWindowSize(final long averageLoadMillis,
+                             final boolean isAudioOnly,
+                             final boolean isMetered) {
+        int windowSize = MINIMUM_WINDOW_SIZE
+                + (int) (averageLoadMillis / LOAD_MILLIS_PER_EXTRA_ITEM);
+        if (isAudioOnly) {
+            windowSize += AUDIO_ONLY_EXTRA_ITEMS;
+        }
+        if (isMetered) {
+            windowSize /= 2;
+        }
+        return Math.max(MINIMUM_WINDOW_SIZE, Math.min(MAXIMUM_WINDOW_SIZE, windowSize));
+    }
+
     @Nullable
-    private static ItemsToLoad getItemsToLoad(@NonNull final PlayQueue playQueue) {
+    private static ItemsToLoad getItemsToLoad(@NonNull final PlayQueue playQueue,
+                                              final int windowSize) {
         // The current item has higher priority
         final int currentIndex = playQueue.getIndex();
         final PlayQueueItem currentItem = playQueue.getItem(currentIndex);
@@ -566,20 +705,17 @@ public class MediaSourceManager {
             return null;
         }
 
-        // The rest are just for seamless playback
+        // The rest are just for seamless playback, the nearest first
         // Although timeline is not updated prior to the current index, these sources are still
         // loaded into the cache for faster retrieval at a potentially later time.
-        final int leftBound = Math.max(0, currentIndex - MediaSourceManager.WINDOW_SIZE);
-        final int rightLimit = currentIndex + MediaSourceManager.WINDOW_SIZE + 1;
-        final int rightBound = Math.min(playQueue.size(), rightLimit);
-        final Set<PlayQueueItem> neighbors = new ArraySet<>(
-                playQueue.getStreams().subList(leftBound, rightBound));
-
-        // Do a round robin
-        final int excess = rightLimit - playQueue.size();
-        if (excess >= 0) {
-            neighbors.addAll(playQueue.getStreams()
-                    .subList(0, Math.min(playQueue.size(), excess)));
+        final int size = playQueue.size();
+        final Set<PlayQueueItem> neighbors = new LinkedHashSet<>();
+        for (int i = 1; i <= windowSize; i++) {
+            // Do a round robin
+            neighbors.add(playQueue.getItem((currentIndex + i) % size));
+            if (i <= MINIMUM_WINDOW_SIZE && currentIndex - i >= 0) {
+                neighbors.add(playQueue.getItem(currentIndex - i));
+            }
         }
         neighbors.remove(currentItem);
 
@@ -22,6 +22,39 @@ public interface PlaybackListener {
      */
     boolean isApproachingPlaybackEdge(long timeToEndMillis);
 
+    /**
+     * Called to check if the currently playing stream is buffered far enough ahead to spend
+     * bandwidth on the next stream. Implementation should return true when at least
+     * bufferMillis past the current position, or the whole stream, is buffered.
+     * <p>
+     * May be called at any time.
+     * </p>
+     *
+     * @param bufferMillis
+     * @return whether the stream is buffered far enough ahead
+     */
+    boolean isBufferedAhead(long bufferMillis);
+
+    /**
+     * Called to check if only the audio of the streams is played, e.g. in the background.
+     * <p>
+     * May be called at any time.
+     * </p>
+     *
+     * @return whether only audio is played
+     */
+    boolean isAudioOnlyPlayback();
+
+    /**
+     * Called to check if the active network is metered, to load less ahead of the playback.
+     * <p>
+     * May be called at any time.
+     * </p>
+     *
+     * @return whether the network is metered
+     */
+    boolean isMeteredNetwork();
+
     /**
      * Called when the stream at the current queue index is not ready yet.
      * Signals to the listener to block the player from playing anything and notify the source
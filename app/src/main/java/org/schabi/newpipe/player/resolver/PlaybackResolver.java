@@ -41,7 +41,9 @@ import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.StreamType;
 import org.schabi.newpipe.extractor.stream.VideoStream;
+import org.schabi.newpipe.player.helper.MediaPrefetcher;
 import org.schabi.newpipe.player.helper.NonUriHlsPlaylistParserFactory;
+import org.schabi.newpipe.player.helper.PlayerCacheManager;
 import org.schabi.newpipe.player.helper.PlayerDataSource;
 import org.schabi.newpipe.player.mediaitem.MediaItemTag;
 import org.schabi.newpipe.player.mediaitem.StreamInfoTag;
@@ -141,12 +143,15 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
             }
             MediaSource.Factory factory;
             Uri uri = Uri.parse(sourceUrl);
+            final PlayerCacheManager.Partition partition = PlayerCacheManager.Partition.of(stream);
             if(flag){
-                factory = dataSource.getNicoHlsMediaSourceFactory();
+                factory = dataSource.getNicoHlsMediaSourceFactory(partition);
                 uri = Uri.parse(dataSource.getNicoUrl(String.valueOf(uri)));
             }
             else{
-                factory = dataSource.getNicoDataSource();
+                factory = dataSource.getNicoDataSource(partition);
+                addPrefetchTarget(metadata, MediaPrefetcher.Target.of(stream, uri, cacheKey,
+                        dataSource.getNicoPrefetchDataSourceFactory(partition)));
             }
             return factory.createMediaSource(
                     new MediaItem.Builder()
@@ -186,7 +191,11 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
                     "Try to generate a progressive media source from an empty string or from a "
                             + "null object");
         } else {
-            return dataSource.getProgressiveMediaSourceFactory().createMediaSource(
+            addPrefetchTarget(metadata, MediaPrefetcher.Target.of(stream, Uri.parse(url), cacheKey,
+                    dataSource.getProgressivePrefetchDataSourceFactory(
+                            PlayerCacheManager.Partition.of(stream))));
+            return dataSource.getProgressiveMediaSourceFactory(
+                    PlayerCacheManager.Partition.of(stream)).createMediaSource(
                     new MediaItem.Builder()
                             .setTag(metadata)
                             .setUri(Uri.parse(url))
@@ -208,7 +217,8 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
         }
 
         if (isUrlStream) {
-            return dataSource.getDashMediaSourceFactory().createMediaSource(
+            return dataSource.getDashMediaSourceFactory(
+                    PlayerCacheManager.Partition.of(stream)).createMediaSource(
                     new MediaItem.Builder()
                             .setTag(metadata)
                             .setUri(Uri.parse(stream.getContent()))
@@ -222,7 +232,8 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
 
             final Uri uri = Uri.parse(baseUrl);
 
-            return dataSource.getDashMediaSourceFactory().createMediaSource(
+            return dataSource.getDashMediaSourceFactory(
+                    PlayerCacheManager.Partition.of(stream)).createMediaSource(
                     createDashManifest(stream.getContent(), stream),
                     new MediaItem.Builder()
                             .setTag(metadata)
@@ -263,7 +274,8 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
         }
 
         if (isUrlStream) {
-            return dataSource.getHlsMediaSourceFactory(null).createMediaSource(
+            return dataSource.getHlsMediaSourceFactory(null,
+                    PlayerCacheManager.Partition.of(stream)).createMediaSource(
                     new MediaItem.Builder()
                             .setTag(metadata)
                             .setUri(Uri.parse(stream.getContent()))
@@ -287,7 +299,8 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
             }
 
             return dataSource.getHlsMediaSourceFactory(
-                            new NonUriHlsPlaylistParserFactory(hlsPlaylist))
+                            new NonUriHlsPlaylistParserFactory(hlsPlaylist),
+                            PlayerCacheManager.Partition.of(stream))
                     .createMediaSource(new MediaItem.Builder()
                             .setTag(metadata)
                             .setUri(Uri.parse(stream.getContent()))
@@ -440,7 +453,8 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
                                     + stream.getContent(), e);
                 }
             case HLS:
-                return dataSource.getYoutubeHlsMediaSourceFactory().createMediaSource(
+                return dataSource.getYoutubeHlsMediaSourceFactory(
+                        PlayerCacheManager.Partition.of(stream)).createMediaSource(
                         new MediaItem.Builder()
                                 .setTag(metadata)
                                 .setUri(Uri.parse(stream.getContent()))
@@ -459,7 +473,8 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
             @NonNull final T stream,
             @NonNull final String cacheKey,
             @NonNull final MediaItemTag metadata) {
-        return dataSource.getYoutubeDashMediaSourceFactory().createMediaSource(dashManifest,
+        return dataSource.getYoutubeDashMediaSourceFactory(
+                PlayerCacheManager.Partition.of(stream)).createMediaSource(dashManifest,
                 new MediaItem.Builder()
                         .setTag(metadata)
                         .setUri(Uri.parse(stream.getContent()))
@@ -473,11 +488,27 @@ public interface PlaybackResolver extends Resolver<StreamInfo, MediaSource> {
             @NonNull final T stream,
             @NonNull final String cacheKey,
             @NonNull final MediaItemTag metadata) {
-        return dataSource.getYoutubeProgressiveMediaSourceFactory()
+        addPrefetchTarget(metadata, MediaPrefetcher.Target.of(stream,
+                Uri.parse(stream.getContent()), cacheKey,
+                dataSource.getYoutubeProgressivePrefetchDataSourceFactory(
+                        PlayerCacheManager.Partition.of(stream))));
+        return dataSource.getYoutubeProgressiveMediaSourceFactory(
+                        PlayerCacheManager.Partition.of(stream))
                 .createMediaSource(new MediaItem.Builder()
                         .setTag(metadata)
                         .setUri(Uri.parse(stream.getContent()))
                         .setCustomCacheKey(cacheKey)
                         .build());
     }
+
+    /**
+     * Record the beginning of a stream in the tag, so the item can be prefetched before it
+     * plays, see {@link MediaPrefetcher}.
+     */
+    private static void addPrefetchTarget(@NonNull final MediaItemTag metadata,
+                                          @NonNull final MediaPrefetcher.Target target) {
+        if (metadata instanceof StreamInfoTag) {
+            ((StreamInfoTag) metadata).addPrefetchTarget(target);
+        }
+    }
 }
@@ -5,8 +5,12 @@ import org.schabi.newpipe.streams.io.SharpStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
+ * Reads big-endian data from a {@link SharpStream} through an internal buffer, or straight from
+ * a {@link ByteBuffer} such as a mapped file.
+ *
  * @author kapodamy
  */
 public class DataReader {
@@ -20,19 +24,45 @@ public class DataReader {
     private long position = 0;
     private final SharpStream stream;
 
+    private final ByteBuffer data;
+    private final int dataStart;
+    private ByteBuffer slice;
+
     private InputStream view;
     private int viewSize;
 
     public DataReader(final SharpStream stream) {
         this.stream = stream;
+        this.data = null;
+        this.dataStart = 0;
+        this.readBuffer = new byte[BUFFER_SIZE];
         this.readOffset = this.readBuffer.length;
     }
 
+    /**
+     * Reads from a buffer, nothing is copied to an internal buffer and {@link #getSlice(int)}
+     * exposes the content without copying it. The position of the given buffer is not modified.
+     *
+     * @param source the buffer, its position is the position zero of the reader
+     */
+    public DataReader(final ByteBuffer source) {
+        this.stream = null;
+        this.data = source.duplicate();
+        this.dataStart = source.position();
+        this.readBuffer = null;
+    }
+
     public long position() {
+        if (data != null) {
+            return data.position() - dataStart;
+        }
         return position;
     }
 
     public int read() throws IOException {
+        if (data != null) {
+            return data.hasRemaining() ? data.get() & 0xFF : -1;
+        }
         if (fillBuffer()) {
             return -1;
         }
@@ -45,6 +75,11 @@ public class DataReader {
 
     public long skipBytes(final long byteAmount) throws IOException {
         long amount = byteAmount;
+        if (data != null) {
+            amount = Math.max(Math.min(amount, data.remaining()), 0);
+            data.position(data.position() + (int) amount);
+            return amount;
+        }
         if (readCount < 0) {
             return 0;
         } else if (readCount == 0) {
@@ -96,6 +131,15 @@ public class DataReader {
         int offset = off;
         int count = c;
 
+        if (data != null) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, data.remaining());
+            data.get(buffer, offset, count);
+            return count;
+        }
+
         if (readCount < 0) {
             return -1;
         }
@@ -133,25 +177,56 @@ public class DataReader {
     }
 
     public boolean available() {
+        if (data != null) {
+            return data.hasRemaining();
+        }
         return readCount > 0 || stream.available() > 0;
     }
 
     public void rewind() throws IOException {
-        stream.rewind();
+        final long current = position();
 
-        if ((position - viewSize) > 0) {
+        if ((current - viewSize) > 0) {
             viewSize = 0; // drop view
         } else {
-            viewSize += position;
+            viewSize += current;
+        }
+
+        if (data != null) {
+            data.position(dataStart);
+            return;
         }
 
+        stream.rewind();
         position = 0;
         readOffset = readBuffer.length;
         readCount = 0;
     }
 
     public boolean canRewind() {
-        return stream.canRewind();
+        return data != null || stream.canRewind();
+    }
+
+    /**
+     * Exposes the next bytes without copying them and without moving the reader. Only available
+     * when reading from a {@link ByteBuffer}, the returned buffer is reused by the next call.
+     *
+     * @param size the size of the slice
+     * @return the slice, or {@code null} if reading from a {@link SharpStream}
+     */
+    public ByteBuffer getSlice(final int size) {
+        if (data == null) {
+            return null;
+        }
+        if (slice == null) {
+            slice = data.duplicate();
+        }
+
+        final int start = data.position();
+        slice.limit(Math.min(start + size, data.limit()));
+        slice.position(start);
+
+        return slice;
     }
 
     /**
@@ -229,9 +304,10 @@ public class DataReader {
     }
 
     private final short[] primitive = new short[LONG_SIZE];
+    private final byte[] primitiveBuffer = new byte[LONG_SIZE];
 
     private void primitiveRead(final int amount) throws IOException {
-        final byte[] buffer = new byte[amount];
+        final byte[] buffer = primitiveBuffer;
         final int read = read(buffer, 0, amount);
 
         if (read != amount) {
@@ -245,7 +321,7 @@ public class DataReader {
         }
     }
 
-    private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    private final byte[] readBuffer;
     private int readOffset;
     private int readCount;
 
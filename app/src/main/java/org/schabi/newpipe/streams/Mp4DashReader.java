@@ -242,6 +242,7 @@ public class Mp4DashReader {
                     moof = null;
 
                     stream.skipBytes(chunk.moof.traf.trun.dataOffset);
+                    chunk.dataPosition = stream.position();
                     return chunk;
                 default:
             }
@@ -907,6 +908,10 @@ public class Mp4DashReader {
     public static class Mp4DashChunk {
         public InputStream data;
         public Moof moof;
+        /**
+         * Position of the first sample in the source
+         */
+        public long dataPosition;
         private int i = 0;
 
         public TrunEntry getNextSampleInfo() {
@@ -3,17 +3,31 @@ package org.schabi.newpipe.streams;
 import org.schabi.newpipe.streams.Mp4DashReader.Hdlr;
 import org.schabi.newpipe.streams.Mp4DashReader.Mdia;
 import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashChunk;
-import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashSample;
 import org.schabi.newpipe.streams.Mp4DashReader.Mp4Track;
 import org.schabi.newpipe.streams.Mp4DashReader.TrackKind;
 import org.schabi.newpipe.streams.Mp4DashReader.TrunEntry;
 import org.schabi.newpipe.streams.io.SharpStream;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
+ * Muxes fragmented (DASH) MP4 tracks into a regular MP4 file.
+ * <p>
+ * The muxing is done in two phases. First the fragments of every track are walked, each one on
+ * its own thread, and the sample tables are collected into primitive arrays. Then the layout of
+ * the {@code mdat} box is known, so the file is written front-to-back: {@code ftyp},
+ * {@code moov} and {@code mdat}, without seeking back. The samples are copied in runs, a whole
+ * chunk of samples at once, through a single reusable buffer.
+ * <p>
+ * When the output overwrites its own sources, see {@link #setFirstSourceOffset(long)}, the
+ * chunks are laid out so the output never passes the unread data of the first source, so no
+ * data has to be moved aside and copied back later.
+ *
  * @author kapodamy
  */
 public class Mp4FromDashWriter {
@@ -24,19 +38,20 @@ public class Mp4FromDashWriter {
     private static final byte SAMPLES_PER_CHUNK = 6;
     // near 3.999 GiB
     private static final long THRESHOLD_FOR_CO64 = 0xFFFEFFFFL;
-    // 2.2 MiB enough for: 1080p 60fps 00h35m00s
-    private static final int THRESHOLD_MOOV_LENGTH = (256 * 1024) + (2048 * 1024);
+    private static final int BUFFER_SIZE = 64 * 1024; // 64 KiB
+
+    private static final int MVHD_SIZE = 0x78;
+    private static final int TKHD_SIZE = 0x68;
+    private static final int EDTS_SIZE = 0x24;
+    private static final int HDLR_SIZE = 0x21;
+    private static final int SGPD_SIZE = 0x1A;
+    private static final int SBGP_SIZE = 0x1C;
 
     private final long time;
 
-    private ByteBuffer auxBuffer;
+    private ByteBuffer buffer;
     private SharpStream outStream;
 
-    private long lastWriteOffset = -1;
-    private long writeOffset;
-
-    private boolean moovSimulation = true;
-
     private boolean done = false;
     private boolean parsed = false;
 
@@ -44,9 +59,9 @@ public class Mp4FromDashWriter {
     private SharpStream[] sourceTracks;
 
     private Mp4DashReader[] readers;
-    private Mp4DashChunk[] readersChunks;
 
     private int overrideMainBrand = 0x00;
+    private long firstSourceOffset = -1;
 
     private final ArrayList<Integer> compatibleBrands = new ArrayList<>(5);
 
@@ -59,7 +74,6 @@ public class Mp4FromDashWriter {
 
         sourceTracks = sources;
         readers = new Mp4DashReader[sourceTracks.length];
-        readersChunks = new Mp4DashChunk[readers.length];
         time = (System.currentTimeMillis() / 1000L) + EPOCH_OFFSET;
 
         compatibleBrands.add(0x6D703431); // mp41
@@ -116,6 +130,16 @@ public class Mp4FromDashWriter {
         overrideMainBrand = brand;
     }
 
+    /**
+     * Use when the output is written over the sources, in the same file. The first source must
+     * be stored before the other ones.
+     *
+     * @param offset position of the first source in the file, the output starts at zero
+     */
+    public void setFirstSourceOffset(final long offset) {
+        firstSourceOffset = offset;
+    }
+
     public boolean isDone() {
         return done;
     }
@@ -136,13 +160,11 @@ public class Mp4FromDashWriter {
         sourceTracks = null;
 
         readers = null;
-        readersChunks = null;
 
-        auxBuffer = null;
+        buffer = null;
         outStream = null;
     }
 
-    @SuppressWarnings("MethodLength")
     public void build(final SharpStream output) throws IOException {
         if (done) {
             throw new RuntimeException("already done");
@@ -151,529 +173,393 @@ public class Mp4FromDashWriter {
             throw new IOException("the provided output is not writable");
         }
 
-        //
-        // WARNING: the muxer requires at least 8 samples of every track
-        //          not allowed for very short tracks (less than 0.5 seconds)
-        //
         outStream = output;
-        long read = 8; // mdat box header size
-        long totalSampleSize = 0;
-        final int[] sampleExtra = new int[readers.length];
-        final int[] defaultMediaTime = new int[readers.length];
-        final int[] defaultSampleDuration = new int[readers.length];
-        final int[] sampleCount = new int[readers.length];
-
-        final TablesInfo[] tablesInfo = new TablesInfo[tracks.length];
-        for (int i = 0; i < tablesInfo.length; i++) {
-            tablesInfo[i] = new TablesInfo();
-        }
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
 
-        final int singleSampleBuffer;
-        if (tracks.length == 1 && tracks[0].kind == TrackKind.Audio) {
+        final int firstChunkSamples;
+        final int chunkSamples;
+        if (tracks.length == 1 && tracks[0].kind == TrackKind.Audio
+                && tracks[0].trak.mdia.mdhdTimeScale >= 1000) {
             // near 1 second of audio data per chunk, avoid split the audio stream in large chunks
-            singleSampleBuffer = tracks[0].trak.mdia.mdhdTimeScale / 1000;
+            firstChunkSamples = tracks[0].trak.mdia.mdhdTimeScale / 1000;
+            chunkSamples = firstChunkSamples;
         } else {
-            singleSampleBuffer = -1;
+            firstChunkSamples = SAMPLES_PER_CHUNK_INIT;
+            chunkSamples = SAMPLES_PER_CHUNK;
         }
 
+        // phase 1: collect the sample tables of every track
+        final SampleTables[] tables = collectSampleTables(firstChunkSamples, chunkSamples);
 
-        for (int i = 0; i < readers.length; i++) {
-            int samplesSize = 0;
-            int sampleSizeChanges = 0;
-            int compositionOffsetLast = -1;
+        long mdatSize = 0;
+        for (final SampleTables table : tables) {
+            mdatSize += table.totalSampleSize;
+        }
 
-            Mp4DashChunk chunk;
-            while ((chunk = readers[i].getNextChunk(true)) != null) {
+        final boolean is64 = mdatSize + 8 > THRESHOLD_FOR_CO64;
 
-                if (defaultMediaTime[i] < 1 && chunk.moof.traf.tfhd.defaultSampleDuration > 0) {
-                    defaultMediaTime[i] = chunk.moof.traf.tfhd.defaultSampleDuration;
-                }
+        // phase 2: lay out the chunks, the moov box size is known before writing anything
+        final long mdatOffset = getFtypSize() + getMoovSize(tables, is64);
+        final IntArray order = layoutChunks(tables, mdatOffset + (is64 ? 16 : 8));
 
-                read += chunk.moof.traf.trun.chunkSize;
-                sampleExtra[i] += chunk.moof.traf.trun.chunkDuration; // calculate track duration
+        makeFtyp();
+        makeMoov(tables, is64);
+        makeMdat(mdatSize, is64);
 
-                TrunEntry info;
-                while ((info = chunk.getNextSampleInfo()) != null) {
-                    if (info.isKeyframe) {
-                        tablesInfo[i].stss++;
-                    }
-
-                    if (info.sampleDuration > defaultSampleDuration[i]) {
-                        defaultSampleDuration[i] = info.sampleDuration;
-                    }
+        copySamples(tables, order);
+        flush();
+    }
 
-                    tablesInfo[i].stsz++;
-                    if (samplesSize != info.sampleSize) {
-                        samplesSize = info.sampleSize;
-                        sampleSizeChanges++;
-                    }
+    /**
+     * Walk the fragments of all tracks, every additional track is walked on its own thread.
+     * Each reader owns its source, so the tracks can be read concurrently.
+     */
+    private SampleTables[] collectSampleTables(final int firstChunkSamples,
+                                               final int chunkSamples) throws IOException {
+        final SampleTables[] tables = new SampleTables[readers.length];
+        final Exception[] errors = new Exception[readers.length];
+        final Thread[] workers = new Thread[readers.length];
+
+        for (int i = 1; i < readers.length; i++) {
+            final int index = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    tables[index] = collectSampleTables(index, firstChunkSamples, chunkSamples);
+                } catch (final IOException | RuntimeException e) {
+                    errors[index] = e;
+                }
+            }, "Mp4FromDashWriter-track-" + i);
+            workers[i].start();
+        }
 
-                    if (info.hasCompositionTimeOffset) {
-                        if (info.sampleCompositionTimeOffset != compositionOffsetLast) {
-                            tablesInfo[i].ctts++;
-                            compositionOffsetLast = info.sampleCompositionTimeOffset;
+        try {
+            tables[0] = collectSampleTables(0, firstChunkSamples, chunkSamples);
+        } finally {
+            for (int i = 1; i < workers.length; i++) {
+                try {
+                    workers[i].join();
+                } catch (final InterruptedException e) {
+                    for (final Thread worker : workers) {
+                        if (worker != null) {
+                            worker.interrupt();
                         }
                     }
-
-                    totalSampleSize += info.sampleSize;
+                    throw new InterruptedIOException("interrupted while reading the tracks");
                 }
             }
+        }
 
-            if (defaultMediaTime[i] < 1) {
-                defaultMediaTime[i] = defaultSampleDuration[i];
+        for (final Exception error : errors) {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw (RuntimeException) error;
             }
+        }
 
-            readers[i].rewind();
+        return tables;
+    }
 
-            if (singleSampleBuffer > 0) {
-                initChunkTables(tablesInfo[i], singleSampleBuffer, singleSampleBuffer);
-            } else {
-                initChunkTables(tablesInfo[i], SAMPLES_PER_CHUNK_INIT, SAMPLES_PER_CHUNK);
-            }
+    private SampleTables collectSampleTables(final int index, final int firstChunkSamples,
+                                             final int chunkSamples) throws IOException {
+        final SampleTables tables = new SampleTables();
+        final Mp4DashReader reader = readers[index];
 
-            sampleCount[i] = tablesInfo[i].stsz;
+        int lastSampleSize = 0;
+        int sampleSizeChanges = 0;
+        int chunkLeft = 0;
+        long duration = 0;
 
-            if (sampleSizeChanges == 1) {
-                tablesInfo[i].stsz = 0;
-                tablesInfo[i].stszDefault = samplesSize;
-            } else {
-                tablesInfo[i].stszDefault = 0;
-            }
+        Mp4DashChunk chunk;
+        while ((chunk = reader.getNextChunk(true)) != null) {
+            duration += chunk.moof.traf.trun.chunkDuration; // calculate track duration
+            int fragmentSize = 0;
 
-            if (tablesInfo[i].stss == tablesInfo[i].stsz) {
-                tablesInfo[i].stss = -1; // for audio tracks (all samples are keyframes)
-            }
+            TrunEntry info;
+            while ((info = chunk.getNextSampleInfo()) != null) {
+                if (chunkLeft < 1) {
+                    chunkLeft = tables.chunkSizes.size == 0 ? firstChunkSamples : chunkSamples;
+                    tables.chunkSizes.add(0);
+                }
+                chunkLeft--;
+                tables.chunkSizes.addToLast(info.sampleSize);
+
+                tables.sampleCount++;
+                tables.sizes.add(info.sampleSize);
+                if (lastSampleSize != info.sampleSize) {
+                    lastSampleSize = info.sampleSize;
+                    sampleSizeChanges++;
+                }
 
-            // ensure track duration
-            if (tracks[i].trak.tkhd.duration < 1) {
-                tracks[i].trak.tkhd.duration = sampleExtra[i]; // this never should happen
-            }
-        }
+                if (info.isKeyframe) {
+                    tables.syncSamples.add(tables.sampleCount); // the index is not base zero
+                }
 
+                if (info.sampleDuration > tables.sampleDuration) {
+                    tables.sampleDuration = info.sampleDuration;
+                }
 
-        final boolean is64 = read > THRESHOLD_FOR_CO64;
+                // composition offsets as [sample_count, sample_offset] runs
+                final int compositionOffset = info.sampleCompositionTimeOffset;
+                if (tables.compositionOffsets.size > 0
+                        && tables.compositionOffsets.last() == compositionOffset) {
+                    tables.compositionOffsets.addToPrevious(1);
+                } else {
+                    tables.compositionOffsets.add(1);
+                    tables.compositionOffsets.add(compositionOffset);
+                }
+                tables.hasCompositionOffsets |= info.hasCompositionTimeOffset;
 
-        // calculate the moov size
-        final int auxSize = makeMoov(defaultMediaTime, tablesInfo, is64);
+                fragmentSize += info.sampleSize;
+            }
 
-        if (auxSize < THRESHOLD_MOOV_LENGTH) {
-            auxBuffer = ByteBuffer.allocate(auxSize); // cache moov in the memory
+            tables.addFragment(chunk.dataPosition, fragmentSize);
+            tables.totalSampleSize += fragmentSize;
         }
 
-        moovSimulation = false;
-        writeOffset = 0;
+        reader.rewind();
 
-        final int ftypSize = makeFtyp();
+        if (sampleSizeChanges == 1) {
+            tables.defaultSampleSize = lastSampleSize;
+        }
 
-        // reserve moov space in the output stream
-        if (auxSize > 0) {
-            int length = auxSize;
-            final byte[] buffer = new byte[64 * 1024]; // 64 KiB
-            while (length > 0) {
-                final int count = Math.min(length, buffer.length);
-                outWrite(buffer, count);
-                length -= count;
+        // stsc_table_entry = [first_chunk, samples_per_chunk, sample_description_index]
+        int samplesLeft = tables.sampleCount;
+        for (int i = 0; i < tables.chunkSizes.size; i++) {
+            final int samples = Math.min(samplesLeft, i == 0 ? firstChunkSamples : chunkSamples);
+            samplesLeft -= samples;
+
+            if (i == 0 || tables.samplesPerChunk.data[tables.samplesPerChunk.size - 2] != samples) {
+                tables.samplesPerChunk.add(i + 1);
+                tables.samplesPerChunk.add(samples);
+                tables.samplesPerChunk.add(1);
             }
         }
 
-        if (auxBuffer == null) {
-            outSeek(ftypSize);
+        // ensure track duration
+        if (tracks[index].trak.tkhd.duration < 1) {
+            tracks[index].trak.tkhd.duration = duration; // this never should happen
         }
 
-        // tablesInfo contains row counts
-        // and after returning from makeMoov() will contain those table offsets
-        makeMoov(defaultMediaTime, tablesInfo, is64);
+        return tables;
+    }
 
-        // write tables: stts stsc sbgp
-        // reset for ctts table: sampleCount sampleExtra
-        for (int i = 0; i < readers.length; i++) {
-            writeEntryArray(tablesInfo[i].stts, 2, sampleCount[i], defaultSampleDuration[i]);
-            writeEntryArray(tablesInfo[i].stsc, tablesInfo[i].stscBEntries.length,
-                    tablesInfo[i].stscBEntries);
-            tablesInfo[i].stscBEntries = null;
-            if (tablesInfo[i].ctts > 0) {
-                sampleCount[i] = 1; // the index is not base zero
-                sampleExtra[i] = -1;
-            }
-            if (tablesInfo[i].sbgp > 0) {
-                writeEntryArray(tablesInfo[i].sbgp, 1, sampleCount[i]);
-            }
-        }
+    /**
+     * Compute the offset of every chunk, the chunks of all tracks are interleaved one by one.
+     * <p>
+     * If the output is written over the sources, a chunk of the other tracks is delayed while
+     * writing it would overwrite data of the first source not read yet. Those chunks are placed
+     * later, after enough data of the first track was read.
+     *
+     * @return the tracks in the order their chunks are written
+     */
+    private IntArray layoutChunks(final SampleTables[] tables, final long firstChunkOffset) {
+        final IntArray order = new IntArray();
+        final int[] next = new int[tables.length];
+        final SampleTables first = tables[0];
+        long offset = firstChunkOffset;
 
-        if (auxBuffer == null) {
-            outRestore();
+        for (final SampleTables table : tables) {
+            table.chunkOffsets = new long[table.chunkSizes.size];
         }
 
-        outWrite(makeMdat(totalSampleSize, is64));
+        // position of the first source, the data before it was already read
+        long readPosition = 0;
+        int fragment = -1;
+        int fragmentLeft = 0;
 
-        final int[] sampleIndex = new int[readers.length];
-        final int[] sizes
-                = new int[singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK];
-        final int[] sync = new int[singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK];
+        for (int round = 0; ; round++) {
+            boolean pending = false;
 
-        int written = readers.length;
-        while (written > 0) {
-            written = 0;
+            for (int i = 0; i < tables.length; i++) {
+                final SampleTables table = tables[i];
 
-            for (int i = 0; i < readers.length; i++) {
-                if (sampleIndex[i] < 0) {
-                    continue; // track is done
-                }
+                while (next[i] <= round && next[i] < table.chunkSizes.size) {
+                    final int size = table.chunkSizes.data[next[i]];
 
-                final long chunkOffset = writeOffset;
-                int syncCount = 0;
-                final int limit;
-                if (singleSampleBuffer > 0) {
-                    limit = singleSampleBuffer;
-                } else {
-                    limit = sampleIndex[i] == 0 ? SAMPLES_PER_CHUNK_INIT : SAMPLES_PER_CHUNK;
-                }
-
-                int j = 0;
-                for (; j < limit; j++) {
-                    final Mp4DashSample sample = getNextSample(i);
-
-                    if (sample == null) {
-                        if (tablesInfo[i].ctts > 0 && sampleExtra[i] >= 0) {
-                            writeEntryArray(tablesInfo[i].ctts, 1, sampleCount[i],
-                                    sampleExtra[i]); // flush last entries
-                            outRestore();
-                        }
-                        sampleIndex[i] = -1;
+                    if (i > 0 && firstSourceOffset >= 0 && next[0] < first.chunkSizes.size
+                            && offset + size > firstSourceOffset + readPosition - 1) {
                         break;
                     }
 
-                    sampleIndex[i]++;
-
-                    if (tablesInfo[i].ctts > 0) {
-                        if (sample.info.sampleCompositionTimeOffset == sampleExtra[i]) {
-                            sampleCount[i]++;
-                        } else {
-                            if (sampleExtra[i] >= 0) {
-                                tablesInfo[i].ctts = writeEntryArray(tablesInfo[i].ctts, 2,
-                                        sampleCount[i], sampleExtra[i]);
-                                outRestore();
+                    table.chunkOffsets[next[i]++] = offset;
+                    offset += size;
+                    order.add(i);
+
+                    if (i == 0) {
+                        int length = size;
+                        while (length > 0) {
+                            if (fragmentLeft < 1) {
+                                fragment++;
+                                fragmentLeft = first.fragmentSizes.data[fragment];
+                                readPosition = first.fragmentPositions[fragment];
+                                continue;
                             }
-                            sampleCount[i] = 1;
-                            sampleExtra[i] = sample.info.sampleCompositionTimeOffset;
+                            final int count = Math.min(length, fragmentLeft);
+                            readPosition += count;
+                            fragmentLeft -= count;
+                            length -= count;
                         }
                     }
-
-                    if (tablesInfo[i].stss > 0 && sample.info.isKeyframe) {
-                        sync[syncCount++] = sampleIndex[i];
-                    }
-
-                    if (tablesInfo[i].stsz > 0) {
-                        sizes[j] = sample.data.length;
-                    }
-
-                    outWrite(sample.data, sample.data.length);
                 }
 
-                if (j > 0) {
-                    written++;
-
-                    if (tablesInfo[i].stsz > 0) {
-                        tablesInfo[i].stsz = writeEntryArray(tablesInfo[i].stsz, j, sizes);
-                    }
-
-                    if (syncCount > 0) {
-                        tablesInfo[i].stss = writeEntryArray(tablesInfo[i].stss, syncCount, sync);
-                    }
-
-                    if (tablesInfo[i].stco > 0) {
-                        if (is64) {
-                            tablesInfo[i].stco = writeEntry64(tablesInfo[i].stco, chunkOffset);
-                        } else {
-                            tablesInfo[i].stco = writeEntryArray(tablesInfo[i].stco, 1,
-                                    (int) chunkOffset);
-                        }
-                    }
-
-                    outRestore();
-                }
+                pending |= next[i] < table.chunkSizes.size;
             }
-        }
-
-        if (auxBuffer != null) {
-            // dump moov
-            outSeek(ftypSize);
-            outStream.write(auxBuffer.array(), 0, auxBuffer.capacity());
-            auxBuffer = null;
-        }
-    }
 
-    private Mp4DashSample getNextSample(final int track) throws IOException {
-        if (readersChunks[track] == null) {
-            readersChunks[track] = readers[track].getNextChunk(false);
-            if (readersChunks[track] == null) {
-                return null; // EOF reached
+            if (!pending) {
+                return order;
             }
         }
-
-        final Mp4DashSample sample = readersChunks[track].getNextSample();
-        if (sample == null) {
-            readersChunks[track] = null;
-            return getNextSample(track);
-        } else {
-            return sample;
-        }
-    }
-
-
-    private int writeEntry64(final int offset, final long value) throws IOException {
-        outBackup();
-
-        auxSeek(offset);
-        auxWrite(ByteBuffer.allocate(8).putLong(value).array());
-
-        return offset + 8;
     }
 
-    private int writeEntryArray(final int offset, final int count, final int... values)
+    private void copySamples(final SampleTables[] tables, final IntArray order)
             throws IOException {
-        outBackup();
-
-        auxSeek(offset);
-
-        final int size = count * 4;
-        final ByteBuffer buffer = ByteBuffer.allocate(size);
-
-        for (int i = 0; i < count; i++) {
-            buffer.putInt(values[i]);
-        }
-
-        auxWrite(buffer.array());
+        final int[] next = new int[tables.length];
 
-        return offset + size;
-    }
-
-    private void outBackup() {
-        if (auxBuffer == null && lastWriteOffset < 0) {
-            lastWriteOffset = writeOffset;
+        for (int i = 0; i < order.size; i++) {
+            final int track = order.data[i];
+            copyChunk(track, tables[track], tables[track].chunkSizes.data[next[track]++]);
         }
     }
 
     /**
-     * Restore to the previous position before the first call to writeEntry64()
-     * or writeEntryArray() methods.
+     * Copy all samples of a chunk, the samples can be split across several fragments
      */
-    private void outRestore() throws IOException {
-        if (lastWriteOffset > 0) {
-            outSeek(lastWriteOffset);
-            lastWriteOffset = -1;
-        }
-    }
-
-    private void initChunkTables(final TablesInfo tables, final int firstCount,
-                                 final int successiveCount) {
-        // tables.stsz holds amount of samples of the track (total)
-        final int totalSamples = (tables.stsz - firstCount);
-        final float chunkAmount = totalSamples / (float) successiveCount;
-        final int remainChunkOffset = (int) Math.ceil(chunkAmount);
-        final boolean remain = remainChunkOffset != (int) chunkAmount;
-        int index = 0;
-
-        tables.stsc = 1;
-        if (firstCount != successiveCount) {
-            tables.stsc++;
-        }
-        if (remain) {
-            tables.stsc++;
-        }
+    private void copyChunk(final int index, final SampleTables tables, final int size)
+            throws IOException {
+        int length = size;
 
-        // stsc_table_entry = [first_chunk, samples_per_chunk, sample_description_index]
-        tables.stscBEntries = new int[tables.stsc * 3];
-        tables.stco = remainChunkOffset + 1; // total entries in chunk offset box
+        while (length > 0) {
+            if (tables.fragmentLeft < 1) {
+                tables.fragment = readers[index].getNextChunk(false);
+                if (tables.fragment == null) {
+                    throw new EOFException("EOF reached while reading a sample");
+                }
+                tables.fragmentLeft = tables.fragmentSizes.data[tables.fragmentIndex++];
+                continue;
+            }
 
-        tables.stscBEntries[index++] = 1;
-        tables.stscBEntries[index++] = firstCount;
-        tables.stscBEntries[index++] = 1;
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
 
-        if (firstCount != successiveCount) {
-            tables.stscBEntries[index++] = 2;
-            tables.stscBEntries[index++] = successiveCount;
-            tables.stscBEntries[index++] = 1;
-        }
+            final int count = Math.min(Math.min(length, tables.fragmentLeft), buffer.remaining());
+            final int read = tables.fragment.data.read(buffer.array(), buffer.position(), count);
+            if (read < 1) {
+                throw new EOFException("EOF reached while reading a sample");
+            }
 
-        if (remain) {
-            tables.stscBEntries[index++] = remainChunkOffset + 1;
-            tables.stscBEntries[index++] = totalSamples % successiveCount;
-            tables.stscBEntries[index] = 1;
+            buffer.position(buffer.position() + read);
+            tables.fragmentLeft -= read;
+            length -= read;
         }
     }
 
-    private void outWrite(final byte[] buffer) throws IOException {
-        outWrite(buffer, buffer.length);
+    private void flush() throws IOException {
+        outStream.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
     }
 
-    private void outWrite(final byte[] buffer, final int count) throws IOException {
-        writeOffset += count;
-        outStream.write(buffer, 0, count);
-    }
-
-    private void outSeek(final long offset) throws IOException {
-        if (outStream.canSeek()) {
-            outStream.seek(offset);
-            writeOffset = offset;
-        } else if (outStream.canRewind()) {
-            outStream.rewind();
-            writeOffset = 0;
-            outSkip(offset);
-        } else {
-            throw new IOException("cannot seek or rewind the output stream");
+    private void ensureCapacity(final int amount) throws IOException {
+        if (buffer.remaining() < amount) {
+            flush();
         }
     }
 
-    private void outSkip(final long amount) throws IOException {
-        outStream.skip(amount);
-        writeOffset += amount;
+    private void writeInt(final int value) throws IOException {
+        ensureCapacity(4);
+        buffer.putInt(value);
     }
 
-    private int lengthFor(final int offset) throws IOException {
-        final int size = auxOffset() - offset;
-
-        if (moovSimulation) {
-            return size;
-        }
-
-        auxSeek(offset);
-        auxWrite(size);
-        auxSkip(size - 4);
-
-        return size;
+    private void writeLong(final long value) throws IOException {
+        ensureCapacity(8);
+        buffer.putLong(value);
     }
 
-    private int make(final int type, final int extra, final int columns, final int rows)
-            throws IOException {
-        final byte base = 16;
-        final int size = columns * rows * 4;
-        int total = size + base;
-        int offset = auxOffset();
-
-        if (extra >= 0) {
-            total += 4;
-        }
-
-        auxWrite(ByteBuffer.allocate(12)
-                .putInt(total)
-                .putInt(type)
-                .putInt(0x00)// default version & flags
-                .array()
-        );
-
-        if (extra >= 0) {
-            offset += 4;
-            auxWrite(extra);
+    private void write(final byte[] data) throws IOException {
+        if (data.length > buffer.capacity()) {
+            flush();
+            outStream.write(data);
+        } else {
+            ensureCapacity(data.length);
+            buffer.put(data);
         }
-
-        auxWrite(rows);
-        auxSkip(size);
-
-        return offset + base;
     }
 
-    private void auxWrite(final int value) throws IOException {
-        auxWrite(ByteBuffer.allocate(4)
-                .putInt(value)
-                .array()
-        );
-    }
-
-    private void auxWrite(final byte[] buffer) throws IOException {
-        if (moovSimulation) {
-            writeOffset += buffer.length;
-        } else if (auxBuffer == null) {
-            outWrite(buffer, buffer.length);
-        } else {
-            auxBuffer.put(buffer);
+    private void writeEntries(final IntArray entries) throws IOException {
+        int index = 0;
+        while (index < entries.size) {
+            ensureCapacity(4);
+            final int count = Math.min(entries.size - index, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(entries.data, index, count);
+            buffer.position(buffer.position() + (count * 4));
+            index += count;
         }
     }
 
-    private void auxSeek(final int offset) throws IOException {
-        if (moovSimulation) {
-            writeOffset = offset;
-        } else if (auxBuffer == null) {
-            outSeek(offset);
-        } else {
-            auxBuffer.position(offset);
-        }
+    private void writeBoxHeader(final long size, final int type) throws IOException {
+        writeInt((int) size);
+        writeInt(type);
     }
 
-    private void auxSkip(final int amount) throws IOException {
-        if (moovSimulation) {
-            writeOffset += amount;
-        } else if (auxBuffer == null) {
-            outSkip(amount);
-        } else {
-            auxBuffer.position(auxBuffer.position() + amount);
-        }
+    private static int tableSize(final int extra, final int columns, final int rows) {
+        return 16 + (extra >= 0 ? 4 : 0) + (columns * rows * 4);
     }
 
-    private int auxOffset() {
-        return auxBuffer == null ? (int) writeOffset : auxBuffer.position();
+    private void writeTableHeader(final int type, final int extra, final int columns,
+                                  final int rows) throws IOException {
+        writeBoxHeader(tableSize(extra, columns, rows), type);
+        writeInt(0x00); // default version & flags
+        if (extra >= 0) {
+            writeInt(extra);
+        }
+        writeInt(rows);
     }
 
-    private int makeFtyp() throws IOException {
+    private int getFtypSize() {
         int size = 16 + (compatibleBrands.size() * 4);
         if (overrideMainBrand != 0) {
             size += 4;
         }
+        return size;
+    }
 
-        final ByteBuffer buffer = ByteBuffer.allocate(size);
-        buffer.putInt(size);
-        buffer.putInt(0x66747970); // "ftyp"
+    private void makeFtyp() throws IOException {
+        writeBoxHeader(getFtypSize(), 0x66747970); // "ftyp"
 
         if (overrideMainBrand == 0) {
-            buffer.putInt(0x6D703432); // mayor brand "mp42"
-            buffer.putInt(512); // default minor version
+            writeInt(0x6D703432); // mayor brand "mp42"
+            writeInt(512); // default minor version
         } else {
-            buffer.putInt(overrideMainBrand);
-            buffer.putInt(0);
-            buffer.putInt(0x6D703432); // "mp42" compatible brand
+            writeInt(overrideMainBrand);
+            writeInt(0);
+            writeInt(0x6D703432); // "mp42" compatible brand
         }
 
         for (final Integer brand : compatibleBrands) {
-            buffer.putInt(brand); // compatible brand
+            writeInt(brand); // compatible brand
         }
-
-        outWrite(buffer.array());
-
-        return size;
     }
 
-    private byte[] makeMdat(final long refSize, final boolean is64) {
-        long size = refSize;
+    private void makeMdat(final long refSize, final boolean is64) throws IOException {
         if (is64) {
-            size += 16;
+            writeBoxHeader(0x01, 0x6D646174); // mdat
+            writeLong(refSize + 16);
         } else {
-            size += 8;
+            writeBoxHeader(refSize + 8, 0x6D646174); // mdat
         }
-
-        final ByteBuffer buffer = ByteBuffer.allocate(is64 ? 16 : 8)
-                .putInt(is64 ? 0x01 : (int) size)
-                .putInt(0x6D646174); // mdat
-
-        if (is64) {
-            buffer.putLong(size);
-        }
-
-        return buffer.array();
     }
 
     private void makeMvhd(final long longestTrack) throws IOException {
-        auxWrite(new byte[]{
+        write(new byte[]{
                 0x00, 0x00, 0x00, 0x78, 0x6D, 0x76, 0x68, 0x64, 0x01, 0x00, 0x00, 0x00
         });
-        auxWrite(ByteBuffer.allocate(28)
-                .putLong(time)
-                .putLong(time)
-                .putInt(DEFAULT_TIMESCALE)
-                .putLong(longestTrack)
-                .array()
-        );
-
-        auxWrite(new byte[]{
+        writeLong(time);
+        writeLong(time);
+        writeInt(DEFAULT_TIMESCALE);
+        writeLong(longestTrack);
+
+        write(new byte[]{
                 0x00, 0x01, 0x00, 0x00, 0x01, 0x00, // default volume and rate
                 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // reserved values
                 // default matrix
@@ -682,20 +568,21 @@ public class Mp4FromDashWriter {
                 0x00, 0x00, 0x00, 0x00,
                 0x40, 0x00, 0x00, 0x00
         });
-        auxWrite(new byte[24]); // predefined
-        auxWrite(ByteBuffer.allocate(4)
-                .putInt(tracks.length + 1)
-                .array()
-        );
+        write(new byte[24]); // predefined
+        writeInt(tracks.length + 1);
     }
 
-    private int makeMoov(final int[] defaultMediaTime, final TablesInfo[] tablesInfo,
-                         final boolean is64) throws RuntimeException, IOException {
-        final int start = auxOffset();
+    private long getMoovSize(final SampleTables[] tables, final boolean is64) {
+        long size = 8 + MVHD_SIZE;
+        for (int i = 0; i < tracks.length; i++) {
+            size += getTrakSize(i, tables[i], is64);
+        }
+        return size;
+    }
 
-        auxWrite(new byte[]{
-                0x00, 0x00, 0x00, 0x00, 0x6D, 0x6F, 0x6F, 0x76
-        });
+    private void makeMoov(final SampleTables[] tables, final boolean is64)
+            throws RuntimeException, IOException {
+        writeBoxHeader(getMoovSize(tables, is64), 0x6D6F6F76); // moov
 
         long longestTrack = 0;
         final long[] durations = new long[tracks.length];
@@ -717,43 +604,40 @@ public class Mp4FromDashWriter {
                 throw
                     new RuntimeException("bad track matrix length (expected 36) in track n°" + i);
             }
-            makeTrak(i, durations[i], defaultMediaTime[i], tablesInfo[i], is64);
+            makeTrak(i, durations[i], tables[i], is64);
         }
+    }
 
-        return lengthFor(start);
+    private long getTrakSize(final int index, final SampleTables tables, final boolean is64) {
+        return 8 + TKHD_SIZE + EDTS_SIZE + getMdiaSize(tracks[index], tables, is64);
     }
 
-    private void makeTrak(final int index, final long duration, final int defaultMediaTime,
-                          final TablesInfo tables, final boolean is64) throws IOException {
-        final int start = auxOffset();
+    private void makeTrak(final int index, final long duration, final SampleTables tables,
+                          final boolean is64) throws IOException {
+        writeBoxHeader(getTrakSize(index, tables, is64), 0x7472616B); // trak
 
-        auxWrite(new byte[]{
-                // trak header
-                0x00, 0x00, 0x00, 0x00, 0x74, 0x72, 0x61, 0x6B,
+        write(new byte[]{
                 // tkhd header
                 0x00, 0x00, 0x00, 0x68, 0x74, 0x6B, 0x68, 0x64, 0x01, 0x00, 0x00, 0x03
         });
 
-        final ByteBuffer buffer = ByteBuffer.allocate(48);
-        buffer.putLong(time);
-        buffer.putLong(time);
-        buffer.putInt(index + 1);
-        buffer.position(24);
-        buffer.putLong(duration);
-        buffer.position(40);
+        writeLong(time);
+        writeLong(time);
+        writeInt(index + 1);
+        writeInt(0x00); // reserved
+        writeLong(duration);
+        writeLong(0x00); // reserved
+        ensureCapacity(8);
         buffer.putShort(tracks[index].trak.tkhd.bLayer);
         buffer.putShort(tracks[index].trak.tkhd.bAlternateGroup);
         buffer.putShort(tracks[index].trak.tkhd.bVolume);
-        auxWrite(buffer.array());
+        buffer.putShort((short) 0x00); // reserved
 
-        auxWrite(tracks[index].trak.tkhd.matrix);
-        auxWrite(ByteBuffer.allocate(8)
-                .putInt(tracks[index].trak.tkhd.bWidth)
-                .putInt(tracks[index].trak.tkhd.bHeight)
-                .array()
-        );
+        write(tracks[index].trak.tkhd.matrix);
+        writeInt(tracks[index].trak.tkhd.bWidth);
+        writeInt(tracks[index].trak.tkhd.bHeight);
 
-        auxWrite(new byte[]{
+        write(new byte[]{
                 0x00, 0x00, 0x00, 0x24, 0x65, 0x64, 0x74, 0x73, // edts header
                 0x00, 0x00, 0x00, 0x1C, 0x65, 0x6C, 0x73, 0x74,
                 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01 // elst header
@@ -771,107 +655,127 @@ public class Mp4FromDashWriter {
             bMediaRate = tracks[index].trak.edstElst.bMediaRate;
         }
 
-        auxWrite(ByteBuffer
-                .allocate(12)
-                .putInt((int) duration)
-                .putInt(mediaTime)
-                .putInt(bMediaRate)
-                .array()
-        );
+        writeInt((int) duration);
+        writeInt(mediaTime);
+        writeInt(bMediaRate);
 
-        makeMdia(tracks[index].trak.mdia, tables, is64, tracks[index].kind == TrackKind.Audio);
+        makeMdia(tracks[index], tables, is64);
+    }
 
-        lengthFor(start);
+    private long getMdiaSize(final Mp4Track track, final SampleTables tables,
+                             final boolean is64) {
+        final Mdia mdia = track.trak.mdia;
+        final long minf = 8 + mdia.minf.mhd.length + mdia.minf.dinf.length
+                + getStblSize(track, tables, is64);
+
+        return 8 + mdia.mdhd.length + HDLR_SIZE + minf;
     }
 
-    private void makeMdia(final Mdia mdia, final TablesInfo tablesInfo, final boolean is64,
-                          final boolean isAudio) throws IOException {
-        final int startMdia = auxOffset();
-        auxWrite(new byte[]{0x00, 0x00, 0x00, 0x00, 0x6D, 0x64, 0x69, 0x61}); // mdia
-        auxWrite(mdia.mdhd);
-        auxWrite(makeHdlr(mdia.hdlr));
+    private long getStblSize(final Mp4Track track, final SampleTables tables,
+                             final boolean is64) {
+        long size = 8 + track.trak.mdia.minf.stblStsd.length;
 
-        final int startMinf = auxOffset();
-        auxWrite(new byte[]{0x00, 0x00, 0x00, 0x00, 0x6D, 0x69, 0x6E, 0x66}); // minf
-        auxWrite(mdia.minf.mhd);
-        auxWrite(mdia.minf.dinf);
+        size += tableSize(-1, 2, 1); // stts
+        if (tables.hasSyncSamples()) {
+            size += tableSize(-1, 1, tables.syncSamples.size);
+        }
+        if (tables.hasCompositionOffsets) {
+            size += tableSize(-1, 2, tables.compositionOffsets.size / 2);
+        }
+        size += tableSize(-1, 3, tables.samplesPerChunk.size / 3);
+        size += tableSize(tables.defaultSampleSize, 1, tables.getSampleSizeCount());
+        size += tableSize(-1, is64 ? 2 : 1, tables.chunkSizes.size);
 
-        final int startStbl = auxOffset();
-        auxWrite(new byte[]{0x00, 0x00, 0x00, 0x00, 0x73, 0x74, 0x62, 0x6C}); // stbl
-        auxWrite(mdia.minf.stblStsd);
+        if (track.kind == TrackKind.Audio) {
+            size += SGPD_SIZE + SBGP_SIZE;
+        }
+
+        return size;
+    }
+
+    private void makeMdia(final Mp4Track track, final SampleTables tables, final boolean is64)
+            throws IOException {
+        final Mdia mdia = track.trak.mdia;
+
+        writeBoxHeader(getMdiaSize(track, tables, is64), 0x6D646961); // mdia
+        write(mdia.mdhd);
+        makeHdlr(mdia.hdlr);
+
+        writeBoxHeader(8 + mdia.minf.mhd.length + mdia.minf.dinf.length
+                + getStblSize(track, tables, is64), 0x6D696E66); // minf
+        write(mdia.minf.mhd);
+        write(mdia.minf.dinf);
+
+        writeBoxHeader(getStblSize(track, tables, is64), 0x7374626C); // stbl
+        write(mdia.minf.stblStsd);
 
         //
         // In audio tracks the following tables is not required: ssts ctts
         // And stsz can be empty if has a default sample size
         //
-        if (moovSimulation) {
-            make(0x73747473, -1, 2, 1); // stts
-            if (tablesInfo.stss > 0) {
-                make(0x73747373, -1, 1, tablesInfo.stss);
-            }
-            if (tablesInfo.ctts > 0) {
-                make(0x63747473, -1, 2, tablesInfo.ctts);
-            }
-            make(0x73747363, -1, 3, tablesInfo.stsc);
-            make(0x7374737A, tablesInfo.stszDefault, 1, tablesInfo.stsz);
-            make(is64 ? 0x636F3634 : 0x7374636F, -1, is64 ? 2 : 1, tablesInfo.stco);
-        } else {
-            tablesInfo.stts = make(0x73747473, -1, 2, 1);
-            if (tablesInfo.stss > 0) {
-                tablesInfo.stss = make(0x73747373, -1, 1, tablesInfo.stss);
-            }
-            if (tablesInfo.ctts > 0) {
-                tablesInfo.ctts = make(0x63747473, -1, 2, tablesInfo.ctts);
-            }
-            tablesInfo.stsc = make(0x73747363, -1, 3, tablesInfo.stsc);
-            tablesInfo.stsz = make(0x7374737A, tablesInfo.stszDefault, 1, tablesInfo.stsz);
-            tablesInfo.stco = make(is64 ? 0x636F3634 : 0x7374636F, -1, is64 ? 2 : 1,
-                    tablesInfo.stco);
+        writeTableHeader(0x73747473, -1, 2, 1); // stts
+        writeInt(tables.sampleCount);
+        writeInt(tables.sampleDuration);
+
+        if (tables.hasSyncSamples()) {
+            writeTableHeader(0x73747373, -1, 1, tables.syncSamples.size); // stss
+            writeEntries(tables.syncSamples);
         }
 
-        if (isAudio) {
-            auxWrite(makeSgpd());
-            tablesInfo.sbgp = makeSbgp(); // during simulation the returned offset is ignored
+        if (tables.hasCompositionOffsets) {
+            writeTableHeader(0x63747473, -1, 2, tables.compositionOffsets.size / 2); // ctts
+            writeEntries(tables.compositionOffsets);
         }
 
-        lengthFor(startStbl);
-        lengthFor(startMinf);
-        lengthFor(startMdia);
-    }
+        writeTableHeader(0x73747363, -1, 3, tables.samplesPerChunk.size / 3); // stsc
+        writeEntries(tables.samplesPerChunk);
 
-    private byte[] makeHdlr(final Hdlr hdlr) {
-        final ByteBuffer buffer = ByteBuffer.wrap(new byte[]{
-                0x00, 0x00, 0x00, 0x21, 0x68, 0x64, 0x6C, 0x72, // hdlr
-                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-                0x00// null string character
-        });
+        writeTableHeader(0x7374737A, tables.defaultSampleSize, 1,
+                tables.getSampleSizeCount()); // stsz
+        if (tables.getSampleSizeCount() > 0) {
+            writeEntries(tables.sizes);
+        }
 
-        buffer.position(12);
-        buffer.putInt(hdlr.type);
-        buffer.putInt(hdlr.subType);
-        buffer.put(hdlr.bReserved); // always is a zero array
+        if (is64) {
+            writeTableHeader(0x636F3634, -1, 2, tables.chunkOffsets.length); // co64
+            for (final long offset : tables.chunkOffsets) {
+                writeLong(offset);
+            }
+        } else {
+            writeTableHeader(0x7374636F, -1, 1, tables.chunkOffsets.length); // stco
+            for (final long offset : tables.chunkOffsets) {
+                writeInt((int) offset);
+            }
+        }
 
-        return buffer.array();
+        if (track.kind == TrackKind.Audio) {
+            makeSgpd();
+            makeSbgp(tables.sampleCount);
+        }
     }
 
-    private int makeSbgp() throws IOException {
-        final int offset = auxOffset();
+    private void makeHdlr(final Hdlr hdlr) throws IOException {
+        writeBoxHeader(HDLR_SIZE, 0x68646C72); // hdlr
+        writeInt(0x00); // default version & flags
+        writeInt(hdlr.type);
+        writeInt(hdlr.subType);
+        write(hdlr.bReserved); // always is a zero array
+        write(new byte[]{0x00}); // null string character
+    }
 
-        auxWrite(new byte[] {
+    private void makeSbgp(final int sampleCount) throws IOException {
+        write(new byte[] {
                 0x00, 0x00, 0x00, 0x1C, // box size
                 0x73, 0x62, 0x67, 0x70, // "sbpg"
                 0x00, 0x00, 0x00, 0x00, // default box flags
                 0x72, 0x6F, 0x6C, 0x6C, // group type "roll"
-                0x00, 0x00, 0x00, 0x01, // group table size
-                0x00, 0x00, 0x00, 0x00, // group[0] total samples (to be set later)
-                0x00, 0x00, 0x00, 0x01 // group[0] description index
+                0x00, 0x00, 0x00, 0x01 // group table size
         });
-
-        return offset + 0x14;
+        writeInt(sampleCount); // group[0] total samples
+        writeInt(0x01); // group[0] description index
     }
 
-    private byte[] makeSgpd() {
+    private void makeSgpd() throws IOException {
         /*
          * Sample Group Description Box
          *
@@ -885,7 +789,7 @@ public class Mp4FromDashWriter {
          * most of m4a encoders and ffmpeg uses this box with dummy values (same values)
          */
 
-        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {
+        write(new byte[] {
                 0x00, 0x00, 0x00, 0x1A, // box size
                 0x73, 0x67, 0x70, 0x64, // "sgpd"
                 0x01, 0x00, 0x00, 0x00, // box flags (unknown flag sets)
@@ -894,19 +798,74 @@ public class Mp4FromDashWriter {
                 0x00, 0x00, 0x00, 0x01, // ¿¿??
                 (byte) 0xFF, (byte) 0xFF // ¿¿??
         });
+    }
+
+    /**
+     * Growable array of primitive integers
+     */
+    static class IntArray {
+        int[] data = new int[256];
+        int size;
+
+        void add(final int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        int last() {
+            return data[size - 1];
+        }
+
+        void addToLast(final int amount) {
+            data[size - 1] += amount;
+        }
 
-        return buffer.array();
+        void addToPrevious(final int amount) {
+            data[size - 2] += amount;
+        }
     }
 
-    static class TablesInfo {
-        int stts;
-        int stsc;
-        int[] stscBEntries;
-        int ctts;
-        int stsz;
-        int stszDefault;
-        int stss;
-        int stco;
-        int sbgp;
+    /**
+     * Sample tables of a track, and the state of the track while copying its samples
+     */
+    static class SampleTables {
+        int sampleCount;
+        int sampleDuration;
+        int defaultSampleSize;
+        long totalSampleSize;
+
+        final IntArray sizes = new IntArray();
+        final IntArray syncSamples = new IntArray();
+        final IntArray compositionOffsets = new IntArray();
+        boolean hasCompositionOffsets;
+
+        final IntArray samplesPerChunk = new IntArray();
+        final IntArray chunkSizes = new IntArray();
+        long[] chunkOffsets;
+
+        final IntArray fragmentSizes = new IntArray();
+        long[] fragmentPositions = new long[256];
+        Mp4DashChunk fragment;
+        int fragmentIndex;
+        int fragmentLeft;
+
+        void addFragment(final long position, final int size) {
+            if (fragmentSizes.size == fragmentPositions.length) {
+                fragmentPositions = Arrays.copyOf(fragmentPositions, fragmentSizes.size * 2);
+            }
+            fragmentPositions[fragmentSizes.size] = position;
+            fragmentSizes.add(size);
+        }
+
+        boolean hasSyncSamples() {
+            // for audio tracks (all samples are keyframes)
+            return syncSamples.size != sampleCount;
+        }
+
+        int getSampleSizeCount() {
+            return defaultSampleSize > 0 ? 0 : sampleCount;
+        }
     }
 }
@@ -94,7 +94,7 @@ public class OggFromWebMWriter implements Closeable {
         }
 
         try {
-            webm = new WebMReader(source);
+            webm = WebMReader.open(source);
             webm.parse();
             webmSegment = webm.getNextSegment();
         } finally {
@@ -194,10 +194,15 @@ public class OggFromWebMWriter implements Closeable {
             bloq = getNextBlock();
 
             if (bloq != null && addPacketSegment(bloq)) {
-                final int pos = page.position();
-                //noinspection ResultOfMethodCallIgnored
-                bloq.data.read(page.array(), pos, bloq.dataSize);
-                page.position(pos + bloq.dataSize);
+                if (bloq.payload != null) {
+                    // mapped source, copy straight from the file
+                    page.put(bloq.payload);
+                } else {
+                    final int pos = page.position();
+                    //noinspection ResultOfMethodCallIgnored
+                    bloq.data.read(page.array(), pos, bloq.dataSize);
+                    page.position(pos + bloq.dataSize);
+                }
                 continue;
             }
 
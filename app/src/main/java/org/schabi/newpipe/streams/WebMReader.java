@@ -5,6 +5,7 @@ import org.schabi.newpipe.streams.io.SharpStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -44,6 +45,8 @@ public class WebMReader {
     private static final int ID_BLOCK = 0x21;
     private static final int ID_GROUP_BLOCK = 0x20;
 
+    private static final int[] BLOCK_TYPES = {ID_SIMPLE_BLOCK, ID_GROUP_BLOCK};
+    private static final int[] BLOCK_IN_GROUP_TYPES = {ID_BLOCK};
 
     public enum TrackKind {
         Audio/*2*/, Video/*1*/, Other
@@ -56,10 +59,39 @@ public class WebMReader {
     private boolean done;
     private boolean firstSegment;
 
+    /**
+     * Holders reused by every block, the blocks of the selected track are returned one at time
+     */
+    private final Element blockGroupElement = new Element();
+    private final Element blockElement = new Element();
+    private final SimpleBlock simpleBlock = new SimpleBlock(blockElement);
+
     public WebMReader(final SharpStream source) {
         this.stream = new DataReader(source);
     }
 
+    /**
+     * Parse a buffer, for example a mapped file. The payload of the blocks is exposed as
+     * {@link SimpleBlock#payload} without copying it.
+     *
+     * @param source the WebM file
+     */
+    public WebMReader(final ByteBuffer source) {
+        this.stream = new DataReader(source);
+    }
+
+    /**
+     * Parse a stream, mapped in memory if possible, see {@link SharpStream#mapRemaining()}
+     *
+     * @param source the WebM file
+     * @return the reader
+     * @throws IOException if an I/O error occurs
+     */
+    public static WebMReader open(final SharpStream source) throws IOException {
+        final ByteBuffer mapped = source.mapRemaining();
+        return mapped == null ? new WebMReader(source) : new WebMReader(mapped);
+    }
+
     public void parse() throws IOException {
         Element elem = readElement(ID_EMBL);
         if (!readEbml(elem, 1, 2)) {
@@ -168,7 +200,10 @@ public class WebMReader {
     }
 
     private Element readElement() throws IOException {
-        final Element elem = new Element();
+        return readElement(new Element());
+    }
+
+    private Element readElement(final Element elem) throws IOException {
         elem.offset = stream.position();
         elem.type = (int) readEncodedNumber();
         elem.contentSize = readEncodedNumber();
@@ -178,7 +213,7 @@ public class WebMReader {
     }
 
     private Element readElement(final int expected) throws IOException {
-        final Element elem = readElement();
+        final Element elem = readElement(new Element());
         if (expected != 0 && elem.type != expected) {
             throw new NoSuchElementException("expected " + elementID(expected)
                     + " found " + elementID(elem.type));
@@ -188,9 +223,22 @@ public class WebMReader {
     }
 
     private Element untilElement(final Element ref, final int... expected) throws IOException {
-        Element elem;
+        return untilElement(new Element(), ref, expected);
+    }
+
+    /**
+     * Read elements until one of the expected types is found
+     *
+     * @param elem     holder of the read elements, it is returned if the element is found
+     * @param ref      the parent element or {@code null} to read until the end of the file
+     * @param expected the expected types, or none to return the next element
+     * @return the element or {@code null} if not found
+     * @throws IOException if an I/O error occurs
+     */
+    private Element untilElement(final Element elem, final Element ref, final int[] expected)
+            throws IOException {
         while (ref == null ? stream.available() : (stream.position() < (ref.offset + ref.size))) {
-            elem = readElement();
+            readElement(elem);
             if (expected.length < 1) {
                 return elem;
             }
@@ -369,7 +417,9 @@ public class WebMReader {
     }
 
     private SimpleBlock readSimpleBlock(final Element ref) throws IOException {
-        final SimpleBlock obj = new SimpleBlock(ref);
+        final SimpleBlock obj = simpleBlock;
+        obj.data = null;
+        obj.payload = null;
         obj.trackNumber = readEncodedNumber();
         obj.relativeTimeCode = stream.readShort();
         obj.flags = (byte) stream.read();
@@ -402,6 +452,13 @@ public class WebMReader {
         long offset;
         long contentSize;
         long size;
+
+        void set(final Element elem) {
+            type = elem.type;
+            offset = elem.offset;
+            contentSize = elem.contentSize;
+            size = elem.size;
+        }
     }
 
     public static class Info {
@@ -454,8 +511,18 @@ public class WebMReader {
         }
     }
 
+    /**
+     * A block of the selected track. The instance is reused, it is only valid until the next
+     * block is requested.
+     */
     public static class SimpleBlock {
         public InputStream data;
+
+        /**
+         * The block data without copying it, only available if the reader parses a
+         * {@link ByteBuffer}, otherwise, {@code null}
+         */
+        public ByteBuffer payload;
         public boolean createdFromBlock;
 
         SimpleBlock(final Element ref) {
@@ -502,14 +569,15 @@ public class WebMReader {
             }
 
             while (!insideClusterBounds()) {
-                Element elem = untilElement(ref, ID_SIMPLE_BLOCK, ID_GROUP_BLOCK);
+                Element elem = untilElement(blockElement, ref, BLOCK_TYPES);
                 if (elem == null) {
                     return null;
                 }
 
                 if (elem.type == ID_GROUP_BLOCK) {
-                    currentBlockGroup = elem;
-                    elem = untilElement(currentBlockGroup, ID_BLOCK);
+                    blockGroupElement.set(elem);
+                    currentBlockGroup = blockGroupElement;
+                    elem = untilElement(blockElement, currentBlockGroup, BLOCK_IN_GROUP_TYPES);
 
                     if (elem == null) {
                         ensure(currentBlockGroup);
@@ -521,6 +589,7 @@ public class WebMReader {
                 currentSimpleBlock = readSimpleBlock(elem);
                 if (currentSimpleBlock.trackNumber == tracks[selectedTrack].trackNumber) {
                     currentSimpleBlock.data = stream.getView(currentSimpleBlock.dataSize);
+                    currentSimpleBlock.payload = stream.getSlice(currentSimpleBlock.dataSize);
 
                     // calculate the timestamp in nanoseconds
                     currentSimpleBlock.absoluteTimeCodeNs = currentSimpleBlock.relativeTimeCode
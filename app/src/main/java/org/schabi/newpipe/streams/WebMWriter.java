@@ -75,7 +75,7 @@ public class WebMWriter implements Closeable {
 
         try {
             for (int i = 0; i < readers.length; i++) {
-                readers[i] = new WebMReader(sourceTracks[i]);
+                readers[i] = WebMReader.open(sourceTracks[i]);
                 readers[i].parse();
             }
 
@@ -353,6 +353,7 @@ public class WebMWriter implements Closeable {
 
         final Block bloq = new Block();
         bloq.data = res.data;
+        bloq.payload = res.payload;
         bloq.dataSize = res.dataSize;
         bloq.trackNumber = internalTrackId;
         bloq.flags = res.flags;
@@ -407,6 +408,16 @@ public class WebMWriter implements Closeable {
 
         dump(listBuffer, stream);
 
+        if (bloq.payload != null) {
+            // mapped source, copy straight from the file
+            while (bloq.payload.hasRemaining()) {
+                final int read = Math.min(bloq.payload.remaining(), outBuffer.length);
+                bloq.payload.get(outBuffer, 0, read);
+                dump(outBuffer, read, stream);
+            }
+            return;
+        }
+
         int read;
         while ((read = bloq.data.read(outBuffer)) > 0) {
             dump(outBuffer, read, stream);
@@ -737,6 +748,7 @@ public class WebMWriter implements Closeable {
 
     static class Block {
         InputStream data;
+        ByteBuffer payload;
         int trackNumber;
         byte flags;
         int dataSize;
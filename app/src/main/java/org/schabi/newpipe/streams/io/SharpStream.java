@@ -1,8 +1,11 @@
 package org.schabi.newpipe.streams.io;
 
+import androidx.annotation.Nullable;
+
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Based on C#'s Stream class. SharpStream is a wrapper around the 2 different APIs for SAF
@@ -67,4 +70,16 @@ public abstract class SharpStream implements Closeable, Flushable {
     public long length() throws IOException {
         throw new UnsupportedOperationException("Unsupported operation");
     }
+
+    /**
+     * Map the content from the current position to the end in memory, so it can be parsed
+     * without copying it, see {@link org.schabi.newpipe.streams.WebMReader#open(SharpStream)}
+     *
+     * @return the content, or {@code null} if the stream can not be mapped
+     * @throws IOException if an I/O error occurs
+     */
+    @Nullable
+    public ByteBuffer mapRemaining() throws IOException {
+        return null;
+    }
 }
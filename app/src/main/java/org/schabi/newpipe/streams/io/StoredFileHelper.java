@@ -20,6 +20,8 @@ import org.schabi.newpipe.MainActivity;
 import org.schabi.newpipe.settings.NewPipeSettings;
 import org.schabi.newpipe.util.FilePickerActivityHelper;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
@@ -164,6 +166,56 @@ public class StoredFileHelper implements Serializable {
     }
 
 
+    private StoredFileHelper(final String source, final String sourceTree, final String tag,
+                             final String srcName, final String srcType) {
+        this.source = source;
+        this.sourceTree = sourceTree;
+        this.tag = tag;
+        this.srcName = srcName;
+        this.srcType = srcType;
+    }
+
+    /**
+     * Write the fields needed by {@link #deserialize(StoredFileHelper, Context)}.
+     *
+     * @param output where to write
+     * @throws IOException if the fields cannot be written
+     * @see #readFrom(DataInput)
+     */
+    public void writeTo(@NonNull final DataOutput output) throws IOException {
+        writeNullable(output, source);
+        writeNullable(output, sourceTree);
+        writeNullable(output, tag);
+        writeNullable(output, srcName);
+        writeNullable(output, srcType);
+    }
+
+    /**
+     * Read the fields written by {@link #writeTo(DataOutput)}, the returned instance must be
+     * passed to {@link #deserialize(StoredFileHelper, Context)} before using it.
+     *
+     * @param input where to read
+     * @return the stored file
+     * @throws IOException if the fields cannot be read
+     */
+    @NonNull
+    public static StoredFileHelper readFrom(@NonNull final DataInput input) throws IOException {
+        return new StoredFileHelper(readNullable(input), readNullable(input), readNullable(input),
+                readNullable(input), readNullable(input));
+    }
+
+    private static void writeNullable(final DataOutput output, final String value)
+            throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(final DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
     public static StoredFileHelper deserialize(@NonNull final StoredFileHelper storage,
                                                final Context context) throws IOException {
         final Uri treeUri = storage.sourceTree == null ? null : Uri.parse(storage.sourceTree);
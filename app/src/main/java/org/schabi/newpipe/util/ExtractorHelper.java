@@ -48,6 +48,7 @@ import org.schabi.newpipe.extractor.comments.CommentsInfoItem;
 import org.schabi.newpipe.extractor.feed.FeedExtractor;
 import org.schabi.newpipe.extractor.feed.FeedInfo;
 import org.schabi.newpipe.extractor.bulletComments.BulletCommentsInfo;
+import org.schabi.newpipe.extractor.bulletComments.BulletCommentsInfoItem;
 import org.schabi.newpipe.extractor.kiosk.KioskInfo;
 import org.schabi.newpipe.extractor.playlist.PlaylistInfo;
 import org.schabi.newpipe.extractor.search.SearchInfo;
@@ -170,6 +171,15 @@ public final class ExtractorHelper {
                         BulletCommentsInfo.getInfo(NewPipe.getService(serviceId), url)));
     }
 
+    public static Single<InfoItemsPage<BulletCommentsInfoItem>> getMoreBulletCommentItems(
+            final int serviceId,
+            final BulletCommentsInfo info,
+            final Page nextPage) {
+        checkServiceId(serviceId);
+        return Single.fromCallable(() ->
+                BulletCommentsInfo.getMoreItems(NewPipe.getService(serviceId), info, nextPage));
+    }
+
     public static Single<InfoItemsPage<CommentsInfoItem>> getMoreCommentItems(
             final int serviceId,
             final CommentsInfo info,
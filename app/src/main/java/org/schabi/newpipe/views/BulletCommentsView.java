@@ -4,9 +4,13 @@ import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.ObjectAnimator;
 import android.content.Context;
+import android.graphics.Canvas;
 import android.graphics.Typeface;
+import android.os.SystemClock;
+import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -19,25 +23,65 @@ import androidx.constraintlayout.widget.ConstraintLayout;
 import org.schabi.newpipe.R;
 import org.schabi.newpipe.databinding.BulletCommentsPlayerBinding;
 import org.schabi.newpipe.extractor.bulletComments.BulletCommentsInfoItem;
+import org.schabi.newpipe.player.bulletComments.BulletCommentsLaneScheduler;
+import org.schabi.newpipe.player.bulletComments.BulletCommentsLaneScheduler.LaneType;
+import org.schabi.newpipe.player.bulletComments.BulletCommentsLaneScheduler.OverflowPolicy;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.Random;
 
 public final class BulletCommentsView extends ConstraintLayout {
     private final String TAG = "BulletCommentsView";
 
     /**
-     * Tuple of TextView and ObjectAnimator.
+     * Tuple of TextView and ObjectAnimator, recycled after its animation ends.
      */
-    private static class AnimatedTextView {
-        AnimatedTextView(final TextView textView, final ObjectAnimator animator) {
-            this.textView = textView;
-            this.animator = animator;
+    private final class AnimatedTextView extends AnimatorListenerAdapter {
+        AnimatedTextView(final Context context) {
+            this.textView = new TextView(context);
+            textView.setMaxLines(1);
+            textView.setTypeface(commentsTypeface);
+            this.animator = ObjectAnimator.ofFloat(textView, View.TRANSLATION_X, 0, 0);
+            animator.setInterpolator(new LinearInterpolator());
+            animator.addListener(this);
         }
 
         public final TextView textView;
         public final ObjectAnimator animator;
+
+        @Override
+        public void onAnimationEnd(final Animator animation) {
+            recycle(this);
+        }
+    }
+
+    /**
+     * How comments are rendered.
+     */
+    public enum RenderMode {
+        /**
+         * One animated TextView per comment.
+         */
+        VIEWS,
+        /**
+         * All comments are drawn onto the canvas of this view once per frame.
+         */
+        CANVAS
+    }
+
+    /**
+     * A comment drawn by {@link RenderMode#CANVAS}, with its measurements cached.
+     */
+    private static final class CanvasComment {
+        String text;
+        int color;
+        float textSize;
+        float textWidth;
+        float baseline;
+        long startMillis;
+        boolean fixed;
     }
 
     public BulletCommentsView(final Context context) {
@@ -64,6 +108,10 @@ public final class BulletCommentsView extends ConstraintLayout {
                 .inflate(R.layout.bullet_comments_player, this);
         //Not this: BulletCommentsPlayerBinding.inflate(LayoutInflater.from(context));
         binding = BulletCommentsPlayerBinding.bind(this);
+        measurePaint.setTypeface(commentsTypeface);
+        measurePaint.setTextSize(MEASURE_TEXT_SIZE);
+        canvasPaint.setTypeface(commentsTypeface);
+        laneScheduler.setOverflowPolicy(OverflowPolicy.QUEUE);
         //This does not work. post(this::setLayout);
     }
 
@@ -105,14 +153,131 @@ public final class BulletCommentsView extends ConstraintLayout {
      */
     private final float commentsDuration = 4;
     private final List<AnimatedTextView> animatedTextViews = new ArrayList<>();
-    private final Random random = new Random();
+    /**
+     * Chooses rows of comments so that they do not overlap.
+     */
+    private final BulletCommentsLaneScheduler<BulletCommentsInfoItem> laneScheduler =
+            new BulletCommentsLaneScheduler<>(commentsRowsCount, (long) (commentsDuration * 1000),
+                    this::placeComment);
+
+    /**
+     * Typeface shared by all comments.
+     */
+    private final Typeface commentsTypeface = Typeface.create(Typeface.SERIF, Typeface.BOLD);
+    /**
+     * Maximum count of idle views kept for reuse. About two comments fit in a row at once.
+     */
+    private final int maxPooledTextViews = commentsRowsCount * 2;
+    /**
+     * Idle views, still attached to the container but invisible.
+     */
+    private final Deque<AnimatedTextView> pooledTextViews = new ArrayDeque<>();
+    /**
+     * Paint used to measure comments instead of waiting for a layout pass.
+     */
+    private final TextPaint measurePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+    /**
+     * Text size of {@link #measurePaint}. Widths scale linearly with the text size.
+     */
+    private static final float MEASURE_TEXT_SIZE = 100;
+    /**
+     * Cache of comment widths measured at {@link #MEASURE_TEXT_SIZE}.
+     */
+    private final LruCache<String, Float> textWidthCache = new LruCache<>(512);
+    private long poolHits = 0;
+    private long poolMisses = 0;
+
+    private RenderMode renderMode = RenderMode.VIEWS;
+    private final List<CanvasComment> canvasComments = new ArrayList<>();
+    private final Deque<CanvasComment> pooledCanvasComments = new ArrayDeque<>();
+    private final TextPaint canvasPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+    /**
+     * {@link SystemClock#uptimeMillis()} minus the clock of comments.
+     */
+    private long commentsClockOffset = 0;
+    /**
+     * Clock of comments when paused, or -1 if not paused.
+     */
+    private long commentsClockPausedAt = -1;
+
+    /**
+     * @return how comments are rendered.
+     */
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    /**
+     * Select how comments are rendered. Comments on screen are cleared when changed.
+     *
+     * @param renderMode render mode.
+     */
+    public void setRenderMode(@NonNull final RenderMode renderMode) {
+        if (this.renderMode == renderMode) {
+            return;
+        }
+        clearComments();
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * @return Number of comments drawn with a recycled view.
+     */
+    public long getPoolHits() {
+        return poolHits;
+    }
+
+    /**
+     * @return Number of comments which needed a new view.
+     */
+    public long getPoolMisses() {
+        return poolMisses;
+    }
+
+    /**
+     * @return Number of comments currently animating.
+     */
+    public int getLiveViewCount() {
+        return animatedTextViews.size() + canvasComments.size();
+    }
+
+    /**
+     * @return Number of comments which were dropped because all rows were full.
+     */
+    public long getDroppedCount() {
+        return laneScheduler.getDroppedCount();
+    }
+
+    /**
+     * @param densityCap maximum number of comments on screen.
+     */
+    public void setDensityCap(final int densityCap) {
+        laneScheduler.setDensityCap(densityCap);
+    }
+
+    /**
+     * @param overflowPolicy what to do with comments when all rows are full.
+     */
+    public void setOverflowPolicy(@NonNull final OverflowPolicy overflowPolicy) {
+        laneScheduler.setOverflowPolicy(overflowPolicy);
+    }
 
     /**
      * Clear all child views.
      */
     public void clearComments() {
+        //Cancelling calls onAnimationEnd(), which moves views to the pool.
+        for (final AnimatedTextView animatedTextView : new ArrayList<>(animatedTextViews)) {
+            animatedTextView.animator.cancel();
+        }
         animatedTextViews.clear();
+        pooledTextViews.clear();
+        textWidthCache.evictAll();
         binding.bulletCommentsContainer.removeAllViews();
+        pooledCanvasComments.addAll(canvasComments);
+        canvasComments.clear();
+        laneScheduler.reset();
+        invalidate();
     }
 
     /**
@@ -132,18 +297,250 @@ public final class BulletCommentsView extends ConstraintLayout {
      * Pause animation of comments.
      */
     public void pauseComments() {
-        animatedTextViews.stream().forEach(s -> s.animator.pause());
+        for (final AnimatedTextView animatedTextView : animatedTextViews) {
+            animatedTextView.animator.pause();
+        }
+        if (commentsClockPausedAt < 0) {
+            commentsClockPausedAt = getCommentsClock();
+        }
     }
 
     /**
      * Resume animation of comments.
      */
     public void resumeComments() {
-        animatedTextViews.stream().forEach(s -> s.animator.resume());
+        for (final AnimatedTextView animatedTextView : animatedTextViews) {
+            animatedTextView.animator.resume();
+        }
+        if (commentsClockPausedAt >= 0) {
+            commentsClockOffset = SystemClock.uptimeMillis() - commentsClockPausedAt;
+            commentsClockPausedAt = -1;
+            invalidate();
+        }
     }
 
     /**
-     * Draw comments by creating textViews.
+     * @return clock of comments in milliseconds, which stops while paused.
+     */
+    private long getCommentsClock() {
+        if (commentsClockPausedAt >= 0) {
+            return commentsClockPausedAt;
+        }
+        return SystemClock.uptimeMillis() - commentsClockOffset;
+    }
+
+    /**
+     * Draw canvas comments at positions computed from the clock.
+     *
+     * @param canvas canvas of this view.
+     */
+    @Override
+    protected void dispatchDraw(final Canvas canvas) {
+        super.dispatchDraw(canvas);
+        if (canvasComments.isEmpty()) {
+            return;
+        }
+        final long now = getCommentsClock();
+        final long durationMillis = (long) (commentsDuration * 1000);
+        final int width = getWidth();
+        for (int i = canvasComments.size() - 1; i >= 0; i--) {
+            final CanvasComment comment = canvasComments.get(i);
+            final long elapsed = now - comment.startMillis;
+            if (elapsed >= durationMillis) {
+                //Order of comments does not matter, so swap with the last one.
+                final int last = canvasComments.size() - 1;
+                canvasComments.set(i, canvasComments.get(last));
+                canvasComments.remove(last);
+                pooledCanvasComments.push(comment);
+                continue;
+            }
+            final float x = comment.fixed
+                    ? (width - comment.textWidth) / 2
+                    : width - (width + comment.textWidth) * elapsed / (float) durationMillis;
+            canvasPaint.setColor(comment.color);
+            canvasPaint.setTextSize(comment.textSize);
+            canvas.drawText(comment.text, x, comment.baseline, canvasPaint);
+        }
+        if (!canvasComments.isEmpty() && commentsClockPausedAt < 0) {
+            postInvalidateOnAnimation();
+        }
+    }
+
+    /**
+     * Add a comment drawn by {@link RenderMode#CANVAS}.
+     *
+     * @param item     comment.
+     * @param text     comment text.
+     * @param textSize text size in pixels.
+     * @param centerY  vertical center of the comment.
+     * @param fixed    whether the comment does not scroll.
+     */
+    private void addCanvasComment(final BulletCommentsInfoItem item,
+                                  final String text,
+                                  final float textSize,
+                                  final float centerY,
+                                  final boolean fixed) {
+        CanvasComment comment = pooledCanvasComments.poll();
+        if (comment == null) {
+            poolMisses++;
+            comment = new CanvasComment();
+        } else {
+            poolHits++;
+        }
+        final TextPaint.FontMetrics metrics = measurePaint.getFontMetrics();
+        comment.text = text;
+        comment.color = item.getArgbColor();
+        comment.textSize = textSize;
+        comment.textWidth = measureTextWidth(text, textSize);
+        comment.baseline = centerY
+                - (metrics.ascent + metrics.descent) / 2 * textSize / MEASURE_TEXT_SIZE;
+        comment.startMillis = getCommentsClock();
+        comment.fixed = fixed;
+        canvasComments.add(comment);
+    }
+
+    /**
+     * Add a comment drawn by {@link RenderMode#VIEWS}.
+     *
+     * @param item     comment.
+     * @param text     comment text.
+     * @param textSize text size in pixels.
+     * @param centerY  vertical center of the comment.
+     * @param fixed    whether the comment does not scroll.
+     */
+    private void addTextView(final BulletCommentsInfoItem item,
+                             final String text,
+                             final float textSize,
+                             final float centerY,
+                             final boolean fixed) {
+        final AnimatedTextView animatedTextView = obtainTextView();
+        final TextView textView = animatedTextView.textView;
+        textView.setTextColor(item.getArgbColor());
+        textView.setText(text);
+        textView.setTextSize(TypedValue.COMPLEX_UNIT_PX, textSize);
+
+        final int width = getWidth();
+        final float textWidth = measureTextWidth(text, textSize);
+        final float textHeight = measureTextHeight(textSize);
+        final float startX = fixed ? (width - textWidth) / 2 : width;
+        final float endX = fixed ? startX : -textWidth;
+        textView.setTranslationX(startX);
+        textView.setY(centerY - textHeight / 2);
+
+        final ObjectAnimator animator = animatedTextView.animator;
+        animator.setFloatValues(startX, endX);
+        animator.setDuration((long) (commentsDuration * 1000));
+        animatedTextViews.add(animatedTextView);
+        animator.start();
+    }
+
+    /**
+     * Called by {@link #laneScheduler} when a comment got a row.
+     *
+     * @param item     comment.
+     * @param laneType kind of the row.
+     * @param lane     index of the row, counted from the bottom for {@link LaneType#BOTTOM}.
+     * @param width    width of the comment.
+     */
+    private void placeComment(final BulletCommentsInfoItem item,
+                              final LaneType laneType,
+                              final int lane,
+                              final float width) {
+        final int row = laneType == LaneType.BOTTOM ? commentsRowsCount - 1 - lane : lane;
+        final float centerY = (float) (getHeight() * (0.5 + row) / commentsRowsCount);
+        final float textSize = getTextSize(item);
+        final boolean fixed = laneType != LaneType.SCROLLING;
+        if (renderMode == RenderMode.CANVAS) {
+            addCanvasComment(item, item.getCommentText(), textSize, centerY, fixed);
+        } else {
+            addTextView(item, item.getCommentText(), textSize, centerY, fixed);
+        }
+    }
+
+    /**
+     * @param item comment.
+     * @return text size of the comment in pixels.
+     */
+    private float getTextSize(final BulletCommentsInfoItem item) {
+        return (float) (getHeight() * commentRelativeTextSize * item.getRelativeFontSize());
+    }
+
+    /**
+     * @param item comment.
+     * @return kind of rows the comment is placed in.
+     */
+    private static LaneType getLaneType(final BulletCommentsInfoItem item) {
+        switch (item.getPosition()) {
+            case TOP:
+                return LaneType.TOP;
+            case BOTTOM:
+                return LaneType.BOTTOM;
+            default:
+                return LaneType.SCROLLING;
+        }
+    }
+
+    /**
+     * Take an idle view from the pool or create a new one.
+     *
+     * @return a view which is attached to the container.
+     */
+    private AnimatedTextView obtainTextView() {
+        final AnimatedTextView pooled = pooledTextViews.poll();
+        if (pooled != null) {
+            poolHits++;
+            pooled.textView.setVisibility(View.VISIBLE);
+            return pooled;
+        }
+        poolMisses++;
+        final AnimatedTextView animatedTextView =
+                new AnimatedTextView(binding.bulletCommentsContainer.getContext());
+        binding.bulletCommentsContainer.addView(animatedTextView.textView);
+        return animatedTextView;
+    }
+
+    /**
+     * Return a view whose animation ended to the pool, or remove it if the pool is full.
+     *
+     * @param animatedTextView the view.
+     */
+    private void recycle(final AnimatedTextView animatedTextView) {
+        if (!animatedTextViews.remove(animatedTextView)) {
+            return;
+        }
+        if (pooledTextViews.size() < maxPooledTextViews) {
+            animatedTextView.textView.setVisibility(View.INVISIBLE);
+            pooledTextViews.push(animatedTextView);
+        } else {
+            binding.bulletCommentsContainer.removeView(animatedTextView.textView);
+        }
+    }
+
+    /**
+     * @param text     comment text.
+     * @param textSize text size in pixels.
+     * @return width of the text.
+     */
+    private float measureTextWidth(final String text, final float textSize) {
+        Float width = textWidthCache.get(text);
+        if (width == null) {
+            width = measurePaint.measureText(text);
+            textWidthCache.put(text, width);
+        }
+        return width * textSize / MEASURE_TEXT_SIZE;
+    }
+
+    /**
+     * @param textSize text size in pixels.
+     * @return height of a line of text.
+     */
+    private float measureTextHeight(final float textSize) {
+        final TextPaint.FontMetrics metrics = measurePaint.getFontMetrics();
+        return (metrics.bottom - metrics.top) * textSize / MEASURE_TEXT_SIZE;
+    }
+
+    /**
+     * Draw comments in rows which are not full.
      *
      * @param items comments.
      */
@@ -153,59 +550,20 @@ public final class BulletCommentsView extends ConstraintLayout {
             layoutSet = true;
         }
         //Log.v(TAG, "New comments count: " + items.length);
-        final Context context = binding.bulletCommentsContainer.getContext();
-        final int height = getHeight();
-        final int width = getWidth();
+        final long now = getCommentsClock();
+        laneScheduler.setViewWidth(getWidth());
+        laneScheduler.setLaneGap((float) getHeight() / commentsRowsCount);
+        laneScheduler.retryQueued(now);
         for (final BulletCommentsInfoItem item : items) {
-            //Create TextView.
-            final TextView textView = new TextView(context);
-            textView.setTextColor(item.getArgbColor());
-            textView.setText(item.getCommentText());
-            textView.setTextSize(TypedValue.COMPLEX_UNIT_PX,
-                    (float) (height * commentRelativeTextSize * item.getRelativeFontSize()));
-            textView.setMaxLines(1);
-            textView.setTypeface(Typeface.create(Typeface.SERIF, Typeface.BOLD));
-            final double commentSpace = 1 / 4.4 * height;
-            if (item.getPosition() == BulletCommentsInfoItem.Position.REGULAR
-            | true) {
-                //Setting initial position by addView() won't work properly.
-                //setTop(), ... etc. won't work.
-                final int row = random.nextInt(commentsRowsCount);
-                textView.setX(width);
-                //To get width with getWidth(), it should be called inside post().
-                //or it returns 0.
-                textView.post(() -> {
-                    //Create ObjectAnimator.
-                    final int textWidth = textView.getWidth();
-                    final int textHeight = textView.getHeight();
-                    final ObjectAnimator animator = ObjectAnimator.ofFloat(
-                            textView,
-                            View.TRANSLATION_X,
-                            width,
-                            -textWidth
-                    );
-
-                    textView.setY((float) (height * (0.5 + row) / commentsRowsCount - textHeight / 2));
-                    final AnimatedTextView animatedTextView = new AnimatedTextView(
-                            textView, animator);
-                    animatedTextViews.add(animatedTextView);
-                    animator.setInterpolator(new LinearInterpolator());
-                    animator.setDuration((long) (commentsDuration * 1000));
-                    animator.addListener(new AnimatorListenerAdapter() {
-                        public void onAnimationEnd(final Animator animation) {
-                            binding.bulletCommentsContainer.removeView(textView);
-                            animatedTextViews.remove(animatedTextView);
-                        }
-                    });
-                    animator.start();
-                });
-            } else {
-                // TODO: Non-regular comments not implemented.
-                //textView.setY(random.nextInt(maxTextViewPosY));
-            }
-            binding.bulletCommentsContainer.addView(textView);
+            final float textWidth = measureTextWidth(item.getCommentText(), getTextSize(item));
+            laneScheduler.submit(now, item, getLaneType(item), textWidth);
+        }
+        if (renderMode == RenderMode.CANVAS && !canvasComments.isEmpty()) {
+            invalidate();
         }
         //Log.v(TAG, "Child count: " + binding.bulletCommentsContainer.getChildCount());
-        //Log.v(TAG, "AnimatedTextView count: " + (long) animatedTextViews.size());
+        //Log.v(TAG, "Pool hits: " + poolHits + ", misses: " + poolMisses
+        //        + ", live: " + animatedTextViews.size()
+        //        + ", dropped: " + laneScheduler.getDroppedCount());
     }
 }
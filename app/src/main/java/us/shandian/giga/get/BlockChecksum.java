@@ -0,0 +1,131 @@
+package us.shandian.giga.get;
+
+import java.util.zip.CRC32;
+
+/**
+ * Computes the checksum of the bytes written by a download thread, while writing them. Every
+ * contiguous run of bytes inside a block is a part, the parts of a block written by several
+ * threads (a split block) or several requests (a retry) are combined once the block is
+ * downloaded, see {@link DownloadMission#addPartChecksum}.
+ * <p>
+ * The checksum is of the received bytes, so it only finds corruption on the storage side, a
+ * transfer sending wrong bytes goes unnoticed.
+ */
+class BlockChecksum {
+    private final DownloadMission mMission;
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Block being summed, or -1 if none
+     */
+    private int mBlock = -1;
+
+    /**
+     * Start and end of the part being summed, relative to the block start
+     */
+    private int mStart;
+    private int mEnd;
+
+    BlockChecksum(DownloadMission mission) {
+        mMission = mission;
+    }
+
+    /**
+     * Save the part being summed, called once the bytes written stop or jump to a new position
+     */
+    void flush() {
+        if (mBlock < 0) return;
+
+        if (mEnd > mStart) mMission.addPartChecksum(mBlock, mStart, mEnd, mCrc.getValue());
+        mBlock = -1;
+    }
+
+    /**
+     * Sum bytes written to the current resource
+     *
+     * @param position position of the bytes relative to the resource start
+     * @param buf      the bytes
+     * @param offset   offset in the buffer
+     * @param count    amount of bytes
+     */
+    void update(long position, byte[] buf, int offset, int count) {
+        int blockSize = mMission.getBlockSize();
+
+        while (count > 0) {
+            int block = (int) (position / blockSize);
+            long blockStart = (long) block * blockSize;
+            long end = Math.min(blockStart + blockSize, mMission.length);
+            int len = (int) Math.min(count, end - position);
+            int start = (int) (position - blockStart);
+
+            if (mBlock != block || mEnd != start) {
+                flush();
+                mCrc.reset();
+                mBlock = block;
+                mStart = start;
+                mEnd = start;
+            }
+
+            mCrc.update(buf, offset, len);
+            mEnd += len;
+            if (position + len >= end) flush();
+
+            position += len;
+            offset += len;
+            count -= len;
+        }
+    }
+
+    /**
+     * Combine the CRC32 of two consecutive runs of bytes, like zlib's crc32_combine()
+     *
+     * @param crc1 CRC32 of the first run
+     * @param crc2 CRC32 of the second run
+     * @param len2 length of the second run
+     * @return the CRC32 of both runs
+     */
+    static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) return crc1;
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // operator for one zero bit
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // apply len2 zero bytes to crc1
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) crc1 = times(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0) break;
+
+            square(odd, even);
+            if ((len2 & 1) != 0) crc1 = times(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) square[n] = times(matrix, matrix[n]);
+    }
+}
@@ -0,0 +1,73 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+
+/**
+ * Reads back the downloaded blocks of the current resource and compares them with the
+ * checksums computed while downloading. Only the corrupt blocks are downloaded again.
+ */
+public class BlockVerifier extends MissionTask {
+    private static final String TAG = "BlockVerifier";
+    static final int mId = -4;
+
+    private final DownloadMission mMission;
+
+    BlockVerifier(@NonNull DownloadMission mission) {
+        mMission = mission;
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Integer> corrupt = new ArrayList<>();
+        byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        int verified = 0;
+
+        try (SharpStream f = mMission.storage.getStream()) {
+            long[] checksums = mMission.checksums;
+
+            for (int i = 0; i < checksums.length; i++) {
+                if (!mMission.running || isCancelled()) return;
+
+                long expected = checksums[i];
+                if (expected == DownloadMission.CHECKSUM_UNKNOWN || mMission.verifiedBlocks.get(i))
+                    continue;
+
+                if (mMission.readChecksum(f, i, buf, crc) == expected) {
+                    mMission.verifiedBlocks.set(i);
+                    verified++;
+                } else {
+                    corrupt.add(i);
+                }
+            }
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            return;
+        } catch (IOException e) {
+            if (mMission.running && !isCancelled()) mMission.notifyError(e);
+            return;
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "verified " + verified + " blocks, " + corrupt.size() + " corrupt");
+        }
+
+        if (!mMission.running || isCancelled()) return;
+
+        if (corrupt.isEmpty())
+            mMission.notifyFinished();
+        else
+            mMission.refetchBlocks(corrupt);
+    }
+}
@@ -0,0 +1,96 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+/**
+ * Counts the requests of a mission and the connections and TLS handshakes they needed, to
+ * measure how often pooled connections are reused.
+ */
+public class ConnectionStats extends EventListener {
+
+    /**
+     * Routes the events of a call to the statistics of the mission which made the request
+     */
+    static final EventListener.Factory FACTORY = call -> {
+        ConnectionStats stats = call.request().tag(ConnectionStats.class);
+        return stats == null ? EventListener.NONE : stats;
+    };
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger httpsRequests = new AtomicInteger();
+    private final AtomicInteger multiplexedRequests = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger tlsHandshakes = new AtomicInteger();
+
+    @Override
+    public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress address, @NonNull Proxy proxy, Protocol protocol) {
+        connections.incrementAndGet();
+    }
+
+    @Override
+    public void secureConnectEnd(@NonNull Call call, Handshake handshake) {
+        tlsHandshakes.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+        requests.incrementAndGet();
+        if (call.request().isHttps()) httpsRequests.incrementAndGet();
+        if (connection.protocol() == Protocol.HTTP_2) multiplexedRequests.incrementAndGet();
+    }
+
+    /**
+     * @return amount of requests sent, redirects included
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return amount of connections opened
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return amount of requests sent as HTTP/2 streams
+     */
+    public int getMultiplexedRequests() {
+        return multiplexedRequests.get();
+    }
+
+    /**
+     * @return ratio of requests sent on a pooled connection, between 0 and 1
+     */
+    public float getReuseRate() {
+        int total = requests.get();
+        if (total < 1) return 0f;
+        return Math.max(total - connections.get(), 0) / (float) total;
+    }
+
+    /**
+     * @return amount of HTTPS requests which did not need a TLS handshake
+     */
+    public int getHandshakesAvoided() {
+        return Math.max(httpsRequests.get() - tlsHandshakes.get(), 0);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "requests=" + getRequests() + " connections=" + getConnections()
+                + " http2=" + getMultiplexedRequests() + " reuse=" + Math.round(getReuseRate() * 100)
+                + "% handshakesAvoided=" + getHandshakesAvoided();
+    }
+}
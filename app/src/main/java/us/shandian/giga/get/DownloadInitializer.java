@@ -17,10 +17,10 @@ import us.shandian.giga.util.Utility;
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
 
-public class DownloadInitializer extends Thread {
+public class DownloadInitializer extends MissionTask {
     private final static String TAG = "DownloadInitializer";
     final static int mId = 0;
-    private final static int RESERVE_SPACE_DEFAULT = 5 * 1024 * 1024;// 5 MiB
+    final static int RESERVE_SPACE_DEFAULT = 5 * 1024 * 1024;// 5 MiB
     private final static int RESERVE_SPACE_MAXIMUM = 150 * 1024 * 1024;// 150 MiB
 
     private final DownloadMission mMission;
@@ -58,7 +58,7 @@ public class DownloadInitializer extends Thread {
                         mMission.establishConnection(mId, mConn);
                         dispose();
 
-                        if (Thread.interrupted()) return;
+                        if (isCancelled()) return;
                         long length = Utility.getContentLength(mConn);
 
                         if (i == 0) {
@@ -88,7 +88,7 @@ public class DownloadInitializer extends Thread {
                     mMission.establishConnection(mId, mConn);
                     dispose();
 
-                    if (!mMission.running || Thread.interrupted()) return;
+                    if (!mMission.running || isCancelled()) return;
 
                     httpCode = mConn.getResponseCode();
                     mMission.length = Utility.getContentLength(mConn);
@@ -114,15 +114,18 @@ public class DownloadInitializer extends Thread {
                     mMission.establishConnection(mId, mConn);
                     dispose();
 
-                    if (!mMission.running || Thread.interrupted()) return;
+                    if (!mMission.running || isCancelled()) return;
 
                     synchronized (mMission.LOCK) {
                         if (mConn.getResponseCode() == 206) {
 
                             if (mMission.threadCount > 1) {
-                                int count = (int) (mMission.length / DownloadMission.BLOCK_SIZE);
-                                if ((count * DownloadMission.BLOCK_SIZE) < mMission.length) count++;
+                                int blockSize = DownloadMission.pickBlockSize(mMission.length, mMission.threadCount,
+                                        mMission.minBlockSize, mMission.maxRequestSize);
+                                int count = (int) (mMission.length / blockSize);
+                                if (((long) count * blockSize) < mMission.length) count++;
 
+                                mMission.blockSize = blockSize;
                                 mMission.blocks = new int[count];
                             } else {
                                 // if one thread is required don't calculate blocks, is useless
@@ -144,7 +147,7 @@ public class DownloadInitializer extends Thread {
                         }
                     }
 
-                    if (!mMission.running || Thread.interrupted()) return;
+                    if (!mMission.running || isCancelled()) return;
                 }
 
                 try (SharpStream fs = mMission.storage.getStream()) {
@@ -152,7 +155,7 @@ public class DownloadInitializer extends Thread {
                     fs.seek(mMission.offsets[mMission.current]);
                 }
 
-                if (!mMission.running || Thread.interrupted()) return;
+                if (!mMission.running || isCancelled()) return;
 
                 if (!mMission.unknownLength && mMission.recoveryInfo != null) {
                     String entityTag = mConn.getHeaderField("ETAG");
@@ -173,11 +176,11 @@ public class DownloadInitializer extends Thread {
             } catch (InterruptedIOException | ClosedByInterruptException e) {
                 return;
             } catch (Exception e) {
-                if (!mMission.running || super.isInterrupted()) return;
+                if (!mMission.running || isCancelled()) return;
 
                 if (e instanceof DownloadMission.HttpError && ((DownloadMission.HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
                     // for youtube streams. The url has expired
-                    interrupt();
+                    cancel();
                     mMission.doRecover(ERROR_HTTP_FORBIDDEN);
                     return;
                 }
@@ -197,12 +200,14 @@ public class DownloadInitializer extends Thread {
             }
         }
 
+        // paused while initializing, the state was already reset
+        if (isCancelled()) return;
+
         mMission.start();
     }
 
     @Override
-    public void interrupt() {
-        super.interrupt();
+    protected void onCancel() {
         if (mConn != null) dispose();
     }
 }
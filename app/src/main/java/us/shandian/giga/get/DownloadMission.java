@@ -15,6 +15,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
@@ -22,14 +23,27 @@ import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import javax.net.ssl.SSLException;
 
+import org.schabi.newpipe.streams.io.SharpStream;
 import org.schabi.newpipe.streams.io.StoredFileHelper;
 import us.shandian.giga.postprocessing.Postprocessing;
 import us.shandian.giga.service.DownloadManagerService;
-import us.shandian.giga.util.Utility;
+import us.shandian.giga.util.RateLimiter;
+import us.shandian.giga.util.StripedCounter;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 
@@ -38,9 +52,60 @@ public class DownloadMission extends Mission {
 
     static final int BUFFER_SIZE = 64 * 1024;
     static final int BLOCK_SIZE = 512 * 1024;
+    static final long CHECKSUM_UNKNOWN = -1;
+
+    /**
+     * Default bounds of the block size and of the bytes requested at once, the user can change
+     * them in the settings
+     */
+    public static final int DEFAULT_MIN_BLOCK_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_REQUEST_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * Largest block size, bigger blocks make resuming and re-fetching corrupt blocks costly
+     */
+    static final int MAX_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Amount of blocks every connection should download, used to pick the block size
+     */
+    private static final int BLOCKS_PER_THREAD = 8;
+
+    /**
+     * Time a fast connection should spend on one request
+     */
+    private static final long TARGET_REQUEST_NANOS = 2000000000L;
+
+    /**
+     * Connections opened when a mission starts, more are added while the throughput grows
+     */
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final long RAMP_INTERVAL_NANOS = 3000000000L;
+    private static final long RAMP_SETTLED_NANOS = 30000000000L;
+    private static final double RAMP_MIN_GAIN = 1.1;
+
+    /**
+     * Minimum remaining bytes of an in-flight block to split it with an idle thread
+     */
+    private static final int MIN_STEAL_SIZE = 4 * BUFFER_SIZE;
 
     private static final String TAG = "DownloadMission";
 
+    /**
+     * Milliseconds between applying the progress of download threads
+     */
+    private static final long PROGRESS_REPORT_INTERVAL = 500;
+
+    /**
+     * Thread applying the progress of all missions
+     */
+    private static final ScheduledExecutorService PROGRESS_REPORTER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "DownloadProgressReporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     public static final int ERROR_NOTHING = -1;
     public static final int ERROR_PATH_CREATION = 1000;
     public static final int ERROR_FILE_CREATION = 1001;
@@ -59,6 +124,9 @@ public class DownloadMission extends Mission {
     public static final int ERROR_HTTP_NO_CONTENT = 204;
     static final int ERROR_HTTP_FORBIDDEN = 403;
 
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
     /**
      * The urls of the file to download
      */
@@ -114,12 +182,40 @@ public class DownloadMission extends Mission {
     public long nearLength;
 
     /**
-     * Download blocks, the size is multiple of {@link DownloadMission#BLOCK_SIZE}.
+     * Download blocks, the size is multiple of {@link DownloadMission#getBlockSize()}.
      * Every entry (block) in this array holds an offset, used to resume the download.
      * An block offset can be -1 if the block was downloaded successfully.
      */
     int[] blocks;
 
+    /**
+     * CRC32 of every downloaded block of the current resource, computed while downloading, or
+     * {@link #CHECKSUM_UNKNOWN}. The blocks are read back and compared before moving to the next
+     * resource, see {@link BlockVerifier}.
+     */
+    long[] checksums;
+
+    /**
+     * CRC32 of the parts of the blocks received in this session, keyed by the block position
+     * (high 32 bits) and the part start in the block (low 32 bits). The values hold the part end
+     * and its CRC32. Once downloaded, the parts of a block are combined if they cover the block
+     * from its start, a block resumed from a previous session is left without checksum.
+     */
+    private transient HashMap<Long, long[]> partChecksums;
+
+    /**
+     * Blocks of the current resource matching their checksum, and the amount of verification
+     * passes which found corrupt blocks
+     */
+    transient BitSet verifiedBlocks;
+    private transient int verifyAttempts;
+
+    /**
+     * Size of the download blocks, picked when the mission is initialized.
+     * Missions created before this was adaptive use {@link DownloadMission#BLOCK_SIZE}.
+     */
+    int blockSize;
+
     /**
      * Download/File resume offset in fallback mode (if applicable) {@link DownloadRunnableFallback}
      */
@@ -130,29 +226,131 @@ public class DownloadMission extends Mission {
      */
     public int threadCount = 3;
 
+    /**
+     * Share of the bandwidth given to this mission when running along others,
+     * {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}
+     */
+    public int priority = PRIORITY_NORMAL;
+
+    /**
+     * Maximum of connections given by the download scheduler, 0 if not limited
+     */
+    private transient int connectionBudget;
+
+    /**
+     * Bandwidth given by the download scheduler, {@code null} if not limited
+     */
+    private transient volatile RateLimiter rateLimiter;
+
+    /**
+     * Bytes per second downloaded, measured by the download scheduler
+     */
+    public transient volatile long achievedRate;
+
     /**
      * information required to recover a download
      */
     public MissionRecoveryInfo[] recoveryInfo;
 
-    private transient int finishCount;
+    transient int finishCount;
     public transient volatile boolean running;
     public boolean enqueued;
 
+    /**
+     * Started, but no task of this run got a worker yet
+     */
+    private transient volatile boolean waitingForWorker;
+
     public int errCode = ERROR_NOTHING;
     public Exception errObject = null;
 
     public transient Handler mHandler;
     private transient boolean[] blockAcquired;
 
+    /**
+     * Positions of blocks which are not downloaded and not acquired by any thread
+     */
+    private transient ArrayDeque<Integer> freeBlocks;
+
+    /**
+     * Blocks being downloaded, used to find a block to split when no free blocks are left
+     */
+    private transient ArrayList<Block> inFlightBlocks;
+
+    /**
+     * Throughput of each download thread in bytes per second, measured per block
+     */
+    private transient long[] threadSpeeds;
+
+    /**
+     * Amount of connections chosen by the throughput controller, between 1 and
+     * {@link #threadCount}, and amount of download threads running
+     */
+    private transient int targetConnections;
+    private transient int activeConnections;
+
+    private transient ConnectionStats connectionStats;
+
+    private transient long rampAt;
+    private transient long rampDone;
+    private transient long rampSpeed;
+    private transient long rampWait;
+    private transient boolean rampGrew;
+
+    /**
+     * Amount of consecutive blocks merged into one request, chosen by the throughput controller
+     */
+    private transient int rampSpan;
+
+    /**
+     * Smallest block size and largest amount of bytes requested at once, chosen by the user
+     */
+    public transient int minBlockSize = DEFAULT_MIN_BLOCK_SIZE;
+    public transient int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+
+    /**
+     * Bytes downloaded by every thread which are not added to {@link #done} yet
+     */
+    transient volatile StripedCounter pendingProgress;
+    private transient volatile ScheduledFuture<?> progressReporter;
+
+    /**
+     * Incremented on every snapshot, a journal is only replayed on the snapshot it was made for
+     */
+    long checkpointId;
+
+    private transient MissionJournal journal;
+
     private transient long writingToFileNext;
     private transient volatile boolean writingToFile;
 
+    /**
+     * Run the post-processing while the last resource is downloaded, chosen by the user
+     */
+    public transient boolean pipelinedPostprocessing;
+
+    /**
+     * Post-processing thread started while downloading, and the amount of blocks of the current
+     * resource known to be downloaded from its start
+     */
+    private transient MissionTask psPipeline;
+    private transient int psContiguous;
+
     final Object LOCK = new Lock();
 
+    /**
+     * Held while writing a snapshot, so the snapshots of this mission are written in order
+     */
+    private transient Object snapshotLock = new Object();
+
     @NonNull
-    public transient Thread[] threads = new Thread[0];
-    public transient Thread init = null;
+    public transient MissionTask[] threads = new MissionTask[0];
+    public transient MissionTask init = null;
+
+    /**
+     * Set while {@link #start()} waits for the tasks of the previous run to return
+     */
+    private transient volatile boolean startPending;
 
     public DownloadMission(String[] urls, StoredFileHelper storage, char kind, Postprocessing psInstance) {
         if (Objects.requireNonNull(urls).length < 1)
@@ -171,39 +369,543 @@ public class DownloadMission extends Mission {
     }
 
     /**
-     * Acquire a block
+     * Pick the block size of a new mission. Large files use bigger blocks, so every connection
+     * downloads about {@link #BLOCKS_PER_THREAD} blocks.
+     *
+     * @param length      the file length
+     * @param threadCount maximum of download threads
+     * @param minSize     smallest block size
+     * @param maxSize     largest block size, lowered to {@link #MAX_BLOCK_SIZE}
+     * @return the block size, a multiple of {@link #BUFFER_SIZE}
+     */
+    static int pickBlockSize(long length, int threadCount, int minSize, int maxSize) {
+        long size = length / ((long) Math.max(threadCount, 1) * BLOCKS_PER_THREAD);
+        size = Math.min(Math.min(maxSize, MAX_BLOCK_SIZE), size);
+        size = Math.max(minSize, size);
+        return (int) Math.max(BUFFER_SIZE, (size + BUFFER_SIZE - 1) / BUFFER_SIZE * BUFFER_SIZE);
+    }
+
+    /**
+     * Gets the size of the download blocks of this mission
+     *
+     * @return the block size, {@link #BLOCK_SIZE} for missions created before it was adaptive
+     */
+    int getBlockSize() {
+        return blockSize > 0 ? blockSize : BLOCK_SIZE;
+    }
+
+    /**
+     * Acquire a block. Consecutive free blocks are merged into one request, as many as the
+     * throughput controller allows, see {@link #adaptConnections()}. If there are no free
+     * blocks left, the unfinished remainder of the in-flight block which is expected to finish
+     * last is split and its second half is returned.
      *
-     * @return the block or {@code null} if no more blocks left
+     * @param index index of the thread, starting at 0
+     * @return the block or {@code null} if no more blocks left or the thread must exit
      */
     @Nullable
-    Block acquireBlock() {
+    Block acquireBlock(int index) {
         synchronized (LOCK) {
-            for (int i = 0; i < blockAcquired.length; i++) {
-                if (!blockAcquired[i] && blocks[i] >= 0) {
-                    Block block = new Block();
-                    block.position = i;
-                    block.done = blocks[i];
-
-                    blockAcquired[i] = true;
-                    return block;
+            if (activeConnections > targetConnections) {
+                // the connection count was lowered, retire this thread
+                activeConnections--;
+                return null;
+            }
+
+            int blockSize = getBlockSize();
+            int span = pickSpan();
+
+            Integer position;
+            while ((position = freeBlocks.poll()) != null) {
+                int i = position;
+                if (blockAcquired[i] || blocks[i] < 0) continue;
+
+                Block block = new Block();
+                block.position = i;
+                block.count = 1;
+                block.done = blocks[i];
+                blockAcquired[i] = true;
+
+                // merge the following untouched blocks
+                while (block.count < span) {
+                    int next = i + block.count;
+                    Integer head = freeBlocks.peek();
+                    if (head == null || head != next || blockAcquired[next] || blocks[next] != 0)
+                        break;
+
+                    freeBlocks.poll();
+                    blockAcquired[next] = true;
+                    block.count++;
                 }
+
+                block.limit = (int) Math.min((long) block.count * blockSize, length - (long) i * blockSize);
+                block.acquiredAt = System.nanoTime();
+                block.doneAtAcquire = block.done;
+
+                inFlightBlocks.add(block);
+                return block;
             }
+
+            Block block = stealBlock();
+            if (block == null) activeConnections--;
+            return block;
         }
+    }
 
-        return null;
+    /**
+     * Pick how many consecutive blocks a thread downloads in one request
+     *
+     * @return the amount of blocks, at least 1
+     */
+    private int pickSpan() {
+        // leave blocks for the other connections
+        int span = Math.min(rampSpan, freeBlocks.size() / Math.max(activeConnections, 1));
+        return Math.max(span, 1);
     }
 
     /**
-     * Release an block
+     * Pick the amount of blocks merged into one request, so a connection spends about
+     * {@link #TARGET_REQUEST_NANOS} on each request
      *
-     * @param position the index of the block
-     * @param done     amount of bytes downloaded
+     * @param speed       throughput of the mission in bytes per second
+     * @param connections amount of connections sharing the throughput
+     * @param blockSize   the block size
+     * @param maxSize     largest amount of bytes requested at once
+     * @return the amount of blocks, at least 1
      */
-    void releaseBlock(int position, int done) {
+    static int pickRequestSpan(long speed, int connections, int blockSize, int maxSize) {
+        long size = speed / Math.max(connections, 1) * (TARGET_REQUEST_NANOS / 1000000000L);
+        return (int) Math.max(Math.min(size, maxSize) / blockSize, 1);
+    }
+
+    /**
+     * Split the in-flight block with the longest estimated remaining time
+     *
+     * @return the second half of the block or {@code null} if no block is worth splitting
+     */
+    @Nullable
+    private Block stealBlock() {
+        long now = System.nanoTime();
+        Block victim = null;
+        double slowest = 0;
+
+        for (Block block : inFlightBlocks) {
+            // split every block once, and never split a stolen part
+            if (block.stolenBy != null || block.first > 0) continue;
+
+            int remaining;
+            double speed;
+            synchronized (block) {
+                remaining = block.limit - block.done;
+                speed = block.getSpeed(now);
+            }
+            if (remaining < MIN_STEAL_SIZE) continue;
+
+            double eta = speed > 0 ? remaining / speed : Double.MAX_VALUE;
+            if (victim == null || eta > slowest) {
+                victim = block;
+                slowest = eta;
+            }
+        }
+
+        if (victim == null) return null;
+
+        Block thief = new Block();
+        synchronized (victim) {
+            int remaining = victim.limit - victim.done;
+            if (remaining < MIN_STEAL_SIZE) return null;
+
+            int split = victim.done + remaining / 2;
+            thief.position = victim.position;
+            thief.count = victim.count;
+            thief.first = split;
+            thief.done = split;
+            thief.limit = victim.limit;
+            thief.acquiredAt = now;
+            thief.doneAtAcquire = split;
+            thief.stolenFrom = victim;
+
+            victim.limit = split;
+            victim.stolenBy = thief;
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "block at position=" + victim.position + " split at " + thief.first);
+        }
+        return thief;
+    }
+
+    /**
+     * Release a block or a part of a split block. Once all parts of a block are released,
+     * the offsets of the merged blocks are saved, or set to -1 for every downloaded block.
+     *
+     * @param block    the block
+     * @param finished {@code true} if the block was downloaded until its limit
+     */
+    void releaseBlock(Block block, boolean finished) {
+        long lostProgress = 0;
+
         synchronized (LOCK) {
-            blockAcquired[position] = false;
-            blocks[position] = done;
+            block.released = true;
+            block.finished = finished;
+
+            Block owner = block.stolenFrom != null ? block.stolenFrom : block;
+            Block thief = owner.stolenBy;
+            if (!owner.released || (thief != null && !thief.released)) {
+                // wait for the other part
+                return;
+            }
+
+            inFlightBlocks.remove(owner);
+
+            // only the contiguous progress from the block start can be resumed,
+            // the stolen part starts where the owner part ends
+            int contiguous = owner.done;
+            if (thief != null) {
+                if (owner.finished)
+                    contiguous = thief.done;
+                else
+                    lostProgress = thief.done - thief.first;
+            }
+
+            int blockSize = getBlockSize();
+            for (int k = 0; k < owner.count; k++) {
+                int position = owner.position + k;
+                long start = (long) k * blockSize;
+                long end = Math.min(start + blockSize, length - (long) owner.position * blockSize);
+
+                blockAcquired[position] = false;
+                if (contiguous >= end) {
+                    blocks[position] = -1;
+                    if (checksums != null) {
+                        long value = combinePartChecksums(position, end - start);
+                        if (value != CHECKSUM_UNKNOWN) setChecksum(position, value);
+                    }
+                } else {
+                    blocks[position] = (int) Math.max(contiguous - start, 0);
+                    if (checksums != null) checksums[position] = CHECKSUM_UNKNOWN;
+                    if (running) freeBlocks.add(position);
+                }
+
+                appendToJournal(MissionJournal.RECORD_BLOCK, position, blocks[position]);
+            }
+
+            // wake up the post-processing if waiting for this block
+            LOCK.notifyAll();
         }
+
+        if (lostProgress > 0) notifyProgress(-lostProgress);
+    }
+
+    /**
+     * Save the checksum of a block of the current resource
+     *
+     * @param position the block position
+     * @param value    the CRC32 of the whole block
+     */
+    void setChecksum(int position, long value) {
+        synchronized (LOCK) {
+            if (checksums == null || position >= checksums.length) return;
+
+            checksums[position] = value;
+            appendToJournal(MissionJournal.RECORD_CHECKSUM, position, value);
+        }
+    }
+
+    /**
+     * Save the checksum of a part of a block of the current resource, as received
+     *
+     * @param position the block position
+     * @param start    the part start in the block
+     * @param end      the part end in the block
+     * @param value    the CRC32 of the part
+     */
+    void addPartChecksum(int position, int start, int end, long value) {
+        synchronized (LOCK) {
+            if (partChecksums == null) return;
+            partChecksums.put(((long) position << 32) | start, new long[]{end, value});
+        }
+    }
+
+    /**
+     * Combine the checksums of the parts of a downloaded block, must be called under
+     * {@link #LOCK}. The parts are forgotten.
+     *
+     * @param position the block position
+     * @param length   the block length
+     * @return the CRC32 of the block, or {@link #CHECKSUM_UNKNOWN} if some bytes were not received
+     * in this session
+     */
+    private long combinePartChecksums(int position, long length) {
+        if (partChecksums == null) return CHECKSUM_UNKNOWN;
+
+        long key = (long) position << 32;
+        long value = 0;
+        long start = 0;
+
+        while (start < length) {
+            long[] part = partChecksums.get(key | start);
+            if (part == null || part[0] <= start) {
+                value = CHECKSUM_UNKNOWN;
+                break;
+            }
+
+            value = BlockChecksum.combine(value, part[1], part[0] - start);
+            start = part[0];
+        }
+
+        partChecksums.keySet().removeIf(k -> (k >>> 32) == position);
+        return start == length ? value : CHECKSUM_UNKNOWN;
+    }
+
+    /**
+     * Read back a block of the current resource
+     *
+     * @param f        the stream to read
+     * @param position the block position
+     * @param buf      buffer to read
+     * @param crc      the checksum to compute, reset before reading
+     * @return the CRC32 of the block, or {@link #CHECKSUM_UNKNOWN} if the file ends before it
+     * @throws IOException if the block can not be read
+     */
+    long readChecksum(SharpStream f, int position, byte[] buf, CRC32 crc) throws IOException {
+        long start = (long) position * getBlockSize();
+        long remaining = Math.min(getBlockSize(), length - start);
+
+        crc.reset();
+        f.seek(offsets[current] + start);
+
+        while (remaining > 0) {
+            int len = f.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (len < 0) return CHECKSUM_UNKNOWN;
+
+            crc.update(buf, 0, len);
+            remaining -= len;
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * @return {@code true} if blocks of the current resource have a checksum not verified yet
+     */
+    private boolean needsVerification() {
+        if (checksums == null || verifiedBlocks == null) return false;
+
+        // the post-processing running while downloading has read the blocks already
+        if (pipelinedPostprocessing && psAlgorithm != null && psAlgorithm.canRunWhileDownloading() && current == urls.length - 1)
+            return false;
+
+        for (int i = 0; i < checksums.length; i++) {
+            if (checksums[i] != CHECKSUM_UNKNOWN && !verifiedBlocks.get(i)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Download again the blocks which do not match their checksum
+     *
+     * @param positions the corrupt blocks
+     */
+    void refetchBlocks(List<Integer> positions) {
+        Log.w(TAG, positions.size() + " corrupt blocks found, downloading them again: " + storage.getName());
+
+        if (++verifyAttempts > maxRetry) {
+            notifyError(new IOException(positions.size() + " blocks are still corrupt after downloading them again"));
+            return;
+        }
+
+        long lost = 0;
+        int blockSize = getBlockSize();
+
+        synchronized (LOCK) {
+            for (int position : positions) {
+                blocks[position] = 0;
+                checksums[position] = CHECKSUM_UNKNOWN;
+                lost += Math.min(blockSize, length - (long) position * blockSize);
+                appendToJournal(MissionJournal.RECORD_BLOCK, position, 0);
+            }
+        }
+
+        notifyProgress(-lost);
+
+        finishCount = 0;
+        startThreads();
+    }
+
+    /**
+     * Measure the mission throughput and change the amount of connections. A connection is added
+     * while the throughput grows by {@link #RAMP_MIN_GAIN}, and removed if adding it made the
+     * download slower. Once the throughput stops growing it is measured again after
+     * {@link #RAMP_SETTLED_NANOS}. The size of the requests follows the throughput of each
+     * connection, between the block size and {@link #maxRequestSize}.
+     */
+    synchronized void adaptConnections() {
+        if (!running || blocks == null || blocks.length < 1) return;
+
+        long now = System.nanoTime();
+        long elapsed = now - rampAt;
+        if (elapsed < rampWait) return;
+
+        long speed = (done - rampDone) * 1000000000L / elapsed;
+        boolean spawn = false;
+
+        synchronized (LOCK) {
+            if (freeBlocks == null) return;
+
+            rampSpan = pickRequestSpan(speed, activeConnections, getBlockSize(), maxRequestSize);
+
+            if (rampSpeed < 1 || speed > rampSpeed * RAMP_MIN_GAIN) {
+                if (targetConnections < getMaxConnections() && freeBlocks.size() > activeConnections) {
+                    targetConnections++;
+                    activeConnections++;
+                    spawn = true;
+                }
+                rampWait = RAMP_INTERVAL_NANOS;
+            } else if (rampGrew && speed * RAMP_MIN_GAIN < rampSpeed && targetConnections > 1) {
+                // the last connection made the download slower
+                targetConnections--;
+                rampWait = RAMP_SETTLED_NANOS;
+            } else {
+                rampWait = RAMP_SETTLED_NANOS;
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "throughput " + (speed / 1024) + " KiB/s, connections=" + targetConnections + " span=" + rampSpan);
+        }
+
+        rampAt = now;
+        rampDone = done;
+        rampSpeed = speed;
+        rampGrew = spawn;
+
+        if (!spawn) return;
+
+        int index = threads.length;
+        if (index >= threadSpeeds.length) threadSpeeds = Arrays.copyOf(threadSpeeds, index + 1);
+
+        threads = Arrays.copyOf(threads, index + 1);
+        threads[index] = runAsync(index + 1, new DownloadRunnable(this, index));
+    }
+
+    /**
+     * @return maximum of connections, the amount chosen by the user lowered to the
+     * connections given by the download scheduler
+     */
+    int getMaxConnections() {
+        int budget = connectionBudget;
+        return budget > 0 ? Math.min(threadCount, budget) : threadCount;
+    }
+
+    /**
+     * Set the connections given by the download scheduler. If lowered, the extra threads exit
+     * after their current block, if raised, the throughput controller adds connections again.
+     *
+     * @param budget maximum of connections, 0 if not limited
+     */
+    public synchronized void setConnectionBudget(int budget) {
+        synchronized (LOCK) {
+            if (budget == connectionBudget) return;
+
+            connectionBudget = budget;
+
+            int max = getMaxConnections();
+            if (targetConnections > max) {
+                targetConnections = max;
+            } else if (targetConnections < max) {
+                // measure again soon instead of waiting for the settled interval
+                rampWait = RAMP_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    /**
+     * Set the bandwidth given by the download scheduler
+     *
+     * @param rate bytes per second, 0 if not limited
+     */
+    public void setRateLimit(long rate) {
+        RateLimiter limiter = rateLimiter;
+        if (rate < 1) {
+            rateLimiter = null;
+        } else if (limiter == null) {
+            rateLimiter = new RateLimiter(rate);
+        } else if (limiter.getRate() != rate) {
+            limiter.setRate(rate);
+        }
+    }
+
+    /**
+     * @return bytes per second given by the download scheduler, 0 if not limited
+     */
+    public long getRateLimit() {
+        RateLimiter limiter = rateLimiter;
+        return limiter == null ? 0 : limiter.getRate();
+    }
+
+    /**
+     * Called by download threads for every buffer read, sleeps while the mission is over its
+     * bandwidth
+     *
+     * @param len amount of bytes read
+     * @throws InterruptedIOException if the thread was interrupted while sleeping
+     */
+    void throttle(int len) throws InterruptedIOException {
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) limiter.acquire(len);
+    }
+
+    /**
+     * Set the priority of this mission, see {@link #priority}
+     *
+     * @param priority {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+        writeThisToFileAsync();
+    }
+
+    /**
+     * Gets the statistics of the connections used by this mission since the app was started
+     *
+     * @return the statistics
+     */
+    public ConnectionStats getConnectionStats() {
+        synchronized (LOCK) {
+            if (connectionStats == null) connectionStats = new ConnectionStats();
+            return connectionStats;
+        }
+    }
+
+    /**
+     * Save the throughput of a download thread
+     *
+     * @param index index of the thread, starting at 0
+     * @param block the block downloaded by the thread
+     */
+    void reportSpeed(int index, Block block) {
+        long[] speeds = threadSpeeds;
+        if (speeds == null || index < 0 || index >= speeds.length) return;
+
+        long elapsed = System.nanoTime() - block.acquiredAt;
+        if (elapsed <= 0) return;
+
+        speeds[index] = (block.done - block.doneAtAcquire) * 1000000000L / elapsed;
+
+        if (DEBUG) {
+            Log.d(TAG, index + ":block at position=" + block.position + " "
+                    + (speeds[index] / 1024) + " KiB/s");
+        }
+    }
+
+    /**
+     * Gets the throughput of each download thread, measured on the last block downloaded
+     *
+     * @return bytes per second of every thread
+     */
+    public long[] getThreadSpeeds() {
+        return threadSpeeds == null ? new long[0] : threadSpeeds.clone();
     }
 
     /**
@@ -212,7 +914,8 @@ public class DownloadMission extends Mission {
      * @param headRequest {@code true} for use {@code HEAD} request method, otherwise, {@code GET} is used
      * @param rangeStart  range start
      * @param rangeEnd    range end
-     * @return a {@link java.net.URLConnection URLConnection} linking to the URL.
+     * @return a {@link java.net.URLConnection URLConnection} linking to the URL, running on the
+     * connection pool shared by all missions.
      * @throws IOException if an I/O exception occurs.
      */
     HttpURLConnection openConnection(boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
@@ -220,7 +923,7 @@ public class DownloadMission extends Mission {
     }
 
     HttpURLConnection openConnection(String url, boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        HttpURLConnection conn = new OkHttpURLConnection(new URL(url), getConnectionStats());
         conn.setInstanceFollowRedirects(true);
         conn.setRequestProperty("User-Agent", DownloaderImpl.USER_AGENT);
         conn.setRequestProperty("Referer", "https://www.bilibili.com");
@@ -263,15 +966,16 @@ public class DownloadMission extends Mission {
             case 204:
             case 205:
             case 207:
-                throw new HttpError(statusCode);
+                break;
             case 416:
                 return;// let the download thread handle this error
             default:
-                if (statusCode < 200 || statusCode > 299) {
-                    throw new HttpError(statusCode);
-                }
+                if (statusCode >= 200 && statusCode <= 299) return;
         }
 
+        // release the pooled response, the caller does not read the body of an error
+        conn.disconnect();
+        throw new HttpError(statusCode);
     }
 
 
@@ -279,7 +983,28 @@ public class DownloadMission extends Mission {
         mHandler.obtainMessage(what, this).sendToTarget();
     }
 
+    /**
+     * Add downloaded bytes without locking. Called for every buffer, the bytes are applied to
+     * {@link #done} by the progress reporter or the next {@link #notifyProgress(long)} call.
+     *
+     * @param index    index of the calling thread
+     * @param deltaLen amount of bytes
+     */
+    void addProgress(int index, long deltaLen) {
+        StripedCounter counter = pendingProgress;
+        if (counter == null)
+            notifyProgress(deltaLen);
+        else
+            counter.add(index, deltaLen);
+    }
+
     synchronized void notifyProgress(long deltaLen) {
+        boolean rollback = deltaLen < 0;
+
+        StripedCounter counter = pendingProgress;
+        if (counter != null) deltaLen += counter.sumThenReset();
+        if (deltaLen == 0 && !rollback) return;
+
         if (unknownLength) {
             length += deltaLen;// Update length before proceeding
         }
@@ -288,13 +1013,32 @@ public class DownloadMission extends Mission {
 
         if (metadata == null) return;
 
-        if (!writingToFile && (done > writingToFileNext || deltaLen < 0)) {
-            writingToFile = true;
-            writingToFileNext = done + BLOCK_SIZE;
-            writeThisToFileAsync();
+        if (done > writingToFileNext || rollback) {
+            writingToFileNext = done + getBlockSize();
+            synchronized (LOCK) {
+                appendToJournal(MissionJournal.RECORD_PROGRESS, current, done);
+            }
         }
     }
 
+    /**
+     * Apply the pending progress periodically, the UI and the metadata are updated from here
+     * instead of from the download loop
+     */
+    void startProgressReporter() {
+        stopProgressReporter();
+        progressReporter = PROGRESS_REPORTER.scheduleWithFixedDelay(() -> {
+            notifyProgress(0);
+            if (!running) stopProgressReporter();
+        }, PROGRESS_REPORT_INTERVAL, PROGRESS_REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopProgressReporter() {
+        ScheduledFuture<?> reporter = progressReporter;
+        if (reporter != null) reporter.cancel(false);
+        progressReporter = null;
+    }
+
     synchronized void notifyError(Exception err) {
         Log.e(TAG, "notifyError()", err);
 
@@ -361,18 +1105,39 @@ public class DownloadMission extends Mission {
 
         notify(DownloadManagerService.MESSAGE_ERROR);
 
-        if (running) pauseThreads();
+        if (running)
+            pauseThreads();
+        else
+            cancelPipeline();
     }
 
     synchronized void notifyFinished() {
+        notifyProgress(0);
+
         if (current < urls.length) {
             if (++finishCount < threads.length) return;
 
+            if (needsVerification()) {
+                finishCount = 0;
+                threads = new MissionTask[]{runWaiter(BlockVerifier.mId, new BlockVerifier(this))};
+                return;
+            }
+
             if (DEBUG) {
                 Log.d(TAG, "onFinish: downloaded " + (current + 1) + "/" + urls.length);
             }
 
+            if (psPipeline != null && current == urls.length - 1) {
+                // saved before the post-processing can write over the downloaded resources,
+                // from now on it can not be stopped
+                notifyPostProcessing(1);
+            }
+
             current++;
+            synchronized (LOCK) {
+                LOCK.notifyAll();
+            }
+
             if (current < urls.length) {
                 // prepare next sub-mission
                 offsets[current] = offsets[current - 1] + length;
@@ -381,9 +1146,12 @@ public class DownloadMission extends Mission {
             }
         }
 
+        // the post-processing running while downloading finishes the mission
+        if (psPipeline != null) return;
+
         if (psAlgorithm != null && psState == 0) {
-            threads = new Thread[]{
-                    runAsync(1, this::doPostprocessing)
+            threads = new MissionTask[]{
+                    runPostprocessing()
             };
             return;
         }
@@ -391,6 +1159,12 @@ public class DownloadMission extends Mission {
 
         // this mission is fully finished
 
+        stopProgressReporter();
+
+        if (DEBUG) {
+            Log.d(TAG, "connections: " + getConnectionStats());
+        }
+
         unknownLength = false;
         enqueued = false;
         running = false;
@@ -420,10 +1194,11 @@ public class DownloadMission extends Mission {
         }
 
         synchronized (LOCK) {
-            // don't return without fully write the current state
             psState = state;
-            writeThisToFile();
         }
+
+        // don't return without fully write the current state
+        writeThisToFile();
     }
 
 
@@ -433,8 +1208,8 @@ public class DownloadMission extends Mission {
     public void start() {
         if (running || isFinished() || urls.length < 1) return;
 
-        // ensure that the previous state is completely paused.
-        joinForThreads(10000);
+        // the tasks of the previous run are cancelled, start once they return
+        if (deferStart()) return;
 
         running = true;
         errCode = ERROR_NOTHING;
@@ -449,7 +1224,8 @@ public class DownloadMission extends Mission {
             return;
         }
 
-        notify(DownloadManagerService.MESSAGE_RUNNING);
+        // running once a task gets a worker, see onTaskStarted()
+        waitingForWorker = true;
 
         if (urls[current] == null) {
             doRecover(ERROR_RESOURCE_GONE);
@@ -463,24 +1239,143 @@ public class DownloadMission extends Mission {
 
         init = null;
         finishCount = 0;
+        startThreads();
+    }
+
+    /**
+     * Start the download threads of the current resource, called once it is initialized
+     */
+    void startThreads() {
         blockAcquired = new boolean[blocks.length];
+        freeBlocks = new ArrayDeque<>(blocks.length);
+        inFlightBlocks = new ArrayList<>(threadCount);
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] >= 0) freeBlocks.add(i);
+        }
 
         if (blocks.length < 1) {
-            threads = new Thread[]{runAsync(1, new DownloadRunnableFallback(this))};
+            threads = new MissionTask[]{runAsync(1, new DownloadRunnableFallback(this))};
         } else {
             int remainingBlocks = 0;
             for (int block : blocks) if (block >= 0) remainingBlocks++;
 
+            synchronized (LOCK) {
+                if (checksums == null || checksums.length != blocks.length) {
+                    checksums = new long[blocks.length];
+                    Arrays.fill(checksums, CHECKSUM_UNKNOWN);
+                }
+                if (verifiedBlocks == null) verifiedBlocks = new BitSet(blocks.length);
+                partChecksums = new HashMap<>();
+            }
+
             if (remainingBlocks < 1) {
+                threads = new MissionTask[0];
                 notifyFinished();
                 return;
             }
 
-            threads = new Thread[Math.min(threadCount, remainingBlocks)];
+            synchronized (LOCK) {
+                targetConnections = Math.min(Math.min(getMaxConnections(), INITIAL_CONNECTIONS), remainingBlocks);
+                activeConnections = targetConnections;
+            }
+            rampAt = System.nanoTime();
+            rampDone = done;
+            rampSpeed = 0;
+            rampWait = RAMP_INTERVAL_NANOS;
+            rampGrew = false;
+            rampSpan = 1;
+
+            threads = new MissionTask[targetConnections];
+            threadSpeeds = new long[threadCount];
+            pendingProgress = new StripedCounter(threadCount);
+            startProgressReporter();
+
+            // block records of the journal must match the current blocks
+            writeThisToFileAsync();
 
             for (int i = 0; i < threads.length; i++) {
                 threads[i] = runAsync(i + 1, new DownloadRunnable(this, i));
             }
+
+            if (canPipelinePostprocessing()) {
+                psContiguous = 0;
+                // assigned before running, the post-processing checks it
+                psPipeline = newPostprocessing(true);
+                // waits for the download, so it must not take a post-processing worker
+                psPipeline.submit(MissionTask.WAITERS, getTaskName(-3), this::onTaskStarted);
+            }
+        }
+    }
+
+    /**
+     * The post-processing can run while the last resource is downloaded if it reads the
+     * resources in the same file, other algorithms need every resource fully downloaded.
+     * <p>
+     * Until the download is completed, the post-processing state stays 0 and the output does not
+     * overwrite the downloaded resources, see {@link #isDownloadCompleted()}. So pausing or
+     * failing the download stops the post-processing, which starts again from the beginning
+     * once the mission is resumed.
+     */
+    private boolean canPipelinePostprocessing() {
+        return pipelinedPostprocessing && psPipeline == null && psAlgorithm != null && psState == 0
+                && psAlgorithm.canRunWhileDownloading() && current == urls.length - 1;
+    }
+
+    /**
+     * @return {@code true} if the post-processing is running while downloading
+     */
+    public boolean isPsPipelined() {
+        return psPipeline != null;
+    }
+
+    /**
+     * @return {@code true} once every resource is downloaded, the post-processing running while
+     * downloading can write over the downloaded resources from then on
+     */
+    public boolean isDownloadCompleted() {
+        synchronized (LOCK) {
+            return current >= urls.length;
+        }
+    }
+
+    /**
+     * Wait until the current resource is downloaded beyond a position. Only the blocks
+     * downloaded from the start of the resource without gaps can be read.
+     *
+     * @param position absolute position on file, {@link Long#MAX_VALUE} to wait until every
+     *                 resource is downloaded
+     * @return the absolute position on file where the readable data ends
+     * @throws IOException if the mission is dead, paused or failed, or the waiting thread was
+     *                     interrupted
+     */
+    public long waitForDownload(long position) throws IOException {
+        synchronized (LOCK) {
+            while (true) {
+                if (urls.length < 1) throw new IOException("the download can not be completed");
+                if (current >= urls.length) return Long.MAX_VALUE;
+                if (!running || errCode != ERROR_NOTHING)
+                    throw new InterruptedIOException("the download was stopped");
+
+                long readable = offsets[current];
+                if (blocks == null) {
+                    // not initialized yet or rolled back by the recovery
+                    psContiguous = 0;
+                } else {
+                    while (psContiguous < blocks.length && blocks[psContiguous] < 0) psContiguous++;
+
+                    long contiguous = (long) psContiguous * getBlockSize();
+                    if (psContiguous < blocks.length) contiguous += blocks[psContiguous];
+                    readable += Math.min(contiguous, length);
+                }
+
+                if (readable > position) return readable;
+
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("post-processing stopped while downloading");
+                }
+            }
         }
     }
 
@@ -488,6 +1383,9 @@ public class DownloadMission extends Mission {
      * Pause the mission
      */
     public void pause() {
+        // also drops a start waiting for the previous tasks
+        startPending = false;
+
         if (!running) return;
 
         if (isPsRunning()) {
@@ -502,10 +1400,11 @@ public class DownloadMission extends Mission {
 
         if (init != null && init.isAlive()) {
             // NOTE: if start() method is running ¡will no have effect!
-            init.interrupt();
+            init.cancel();
             synchronized (LOCK) {
-                resetState(false, true, ERROR_NOTHING);
+                resetState(false, false, ERROR_NOTHING);
             }
+            writeThisToFile();
             return;
         }
 
@@ -519,7 +1418,9 @@ public class DownloadMission extends Mission {
 
     private void pauseThreads() {
         running = false;
-        joinForThreads(-1);
+        cancelTasks();
+        stopProgressReporter();
+        notifyProgress(0);
         writeThisToFile();
     }
 
@@ -528,6 +1429,7 @@ public class DownloadMission extends Mission {
      */
     @Override
     public boolean delete() {
+        if (psPipeline != null) psPipeline.cancel();
         if (psAlgorithm != null) psAlgorithm.cleanupTemporalDir();
 
         notify(DownloadManagerService.MESSAGE_DELETED);
@@ -543,40 +1445,113 @@ public class DownloadMission extends Mission {
      * Resets the mission state
      *
      * @param rollback       {@code true} true to forget all progress, otherwise, {@code false}
-     * @param persistChanges {@code true} to commit changes to the metadata file, otherwise, {@code false}
+     * @param persistChanges {@code true} to commit changes to the metadata file, otherwise, {@code false}.
+     *                       The changes are committed with {@link #writeThisToFile()}, so do not
+     *                       persist them holding {@link #LOCK}
      */
     public void resetState(boolean rollback, boolean persistChanges, int errorCode) {
         length = 0;
         errCode = errorCode;
         errObject = null;
         unknownLength = false;
-        threads = new Thread[0];
+        threads = new MissionTask[0];
         fallbackResumeOffset = 0;
         blocks = null;
+        checksums = null;
+        partChecksums = null;
+        verifiedBlocks = null;
+        verifyAttempts = 0;
         blockAcquired = null;
+        freeBlocks = null;
+        inFlightBlocks = null;
 
         if (rollback) current = 0;
         if (persistChanges) writeThisToFile();
     }
 
-    private void initializer() {
+    /**
+     * Prepare the current resource, {@link #blocks} are set once done and the mission is
+     * started again
+     */
+    void initializer() {
         init = runAsync(DownloadInitializer.mId, new DownloadInitializer(this));
     }
 
-    private void writeThisToFileAsync() {
-        runAsync(-2, this::writeThisToFile);
+    void writeThisToFileAsync() {
+        MissionTask.METADATA.execute(this::writeThisToFile);
     }
 
     /**
-     * Write this {@link DownloadMission} to the meta file asynchronously
-     * if no thread is already running.
+     * Write a snapshot of this {@link DownloadMission} to the meta file and start a new journal.
+     * The snapshot is taken holding {@link #LOCK}, but written without it, the records appended
+     * meanwhile go to the new journal. Must not be called holding {@link #LOCK}.
      */
-    void writeThisToFile() {
-        synchronized (LOCK) {
-            if (metadata == null) return;
-            Utility.writeToFile(metadata, this);
-            writingToFile = false;
+    public void writeThisToFile() {
+        synchronized (snapshotLock) {
+            File file;
+            byte[] snapshot;
+            MissionJournal next;
+
+            synchronized (LOCK) {
+                if (metadata == null) return;
+
+                file = metadata;
+                closeJournal();
+                checkpointId++;
+                snapshot = MissionJournal.takeSnapshot(this);
+                journal = next = new MissionJournal(checkpointId);
+                writingToFile = false;
+            }
+
+            try {
+                MissionJournal.writeSnapshot(file, snapshot);
+                next.open(file);
+            } catch (IOException e) {
+                Log.e(TAG, "writeThisToFile() failed", e);
+                synchronized (LOCK) {
+                    // the next record writes a snapshot again
+                    if (journal == next) closeJournal();
+                }
+                return;
+            }
+
+            synchronized (LOCK) {
+                if (metadata == null) {
+                    // deleted while writing
+                    MissionJournal.delete(file);
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a record to the journal, or write a snapshot if the journal is too long or
+     * there is no journal. Must be called holding {@link #LOCK}.
+     */
+    void appendToJournal(byte type, int key, long value) {
+        if (metadata == null) return;
+
+        if (journal != null) {
+            try {
+                journal.append(type, key, value);
+                if (journal.getRecordCount() < MissionJournal.SNAPSHOT_RECORDS) return;
+            } catch (IOException e) {
+                Log.e(TAG, "appendToJournal() failed", e);
+                closeJournal();
+            }
         }
+
+        if (!writingToFile) {
+            writingToFile = true;
+            writeThisToFileAsync();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) journal.close();
+        journal = null;
     }
 
     /**
@@ -684,15 +1659,20 @@ public class DownloadMission extends Mission {
      * @return {@code true} if the mission is running a recovery procedure, otherwise, {@code false}
      */
     public boolean isRecovering() {
-        return threads.length > 0 && threads[0] instanceof DownloadMissionRecover && threads[0].isAlive();
+        MissionTask[] tasks = threads;
+        return tasks.length > 0 && tasks[0] instanceof DownloadMissionRecover && tasks[0].isAlive();
     }
 
-    private void doPostprocessing() {
-        errCode = ERROR_NOTHING;
-        errObject = null;
+    private void doPostprocessing(boolean pipelined) {
         Thread thread = Thread.currentThread();
+        boolean finish = true;
 
-        notifyPostProcessing(1);
+        // while downloading, the state and the errors belong to the download
+        if (!pipelined) {
+            errCode = ERROR_NOTHING;
+            errObject = null;
+            notifyPostProcessing(1);
+        }
 
         if (DEBUG) {
             thread.setName("[" + TAG + "]  ps = " + psAlgorithm + "  filename = " + storage.getName());
@@ -703,9 +1683,20 @@ public class DownloadMission extends Mission {
         try {
             psAlgorithm.run(this);
         } catch (Exception err) {
+            boolean stopped = err instanceof InterruptedIOException || err instanceof ClosedByInterruptException || thread.isInterrupted();
+
+            if (pipelined && psState == 0 && (stopped || !running || errCode != ERROR_NOTHING)) {
+                // stopped along the download, the downloaded resources are untouched
+                Log.i(TAG, "Post-processing stopped while downloading: " + storage.getName());
+                endPipeline();
+                return;
+            }
+
             Log.e(TAG, "Post-processing failed. " + psAlgorithm.toString(), err);
 
-            if (err instanceof InterruptedIOException || err instanceof ClosedByInterruptException || thread.isInterrupted()) {
+            if (stopped) {
+                notifyPostProcessing(0);
+                if (pipelined) endPipeline();
                 notifyError(DownloadMission.ERROR_POSTPROCESSING_STOPPED, null);
                 return;
             }
@@ -713,17 +1704,27 @@ public class DownloadMission extends Mission {
             if (errCode == ERROR_NOTHING) errCode = ERROR_POSTPROCESSING;
 
             exception = err;
-        } finally {
-            notifyPostProcessing(errCode == ERROR_NOTHING ? 2 : 0);
         }
 
+        notifyPostProcessing(errCode == ERROR_NOTHING ? 2 : 0);
+        if (pipelined) finish = endPipeline();
+
         if (errCode != ERROR_NOTHING) {
             if (exception == null) exception = errObject;
             notifyError(ERROR_POSTPROCESSING, exception);
             return;
         }
 
-        notifyFinished();
+        if (finish) notifyFinished();
+    }
+
+    /**
+     * @return {@code true} if the download is finished, so the post-processing must finish the
+     * mission, otherwise, the last download thread will do it
+     */
+    private synchronized boolean endPipeline() {
+        psPipeline = null;
+        return current >= urls.length;
     }
 
     /**
@@ -740,15 +1741,17 @@ public class DownloadMission extends Mission {
             return;
         }
 
-        joinForThreads(0);
+        cancelTasks();
 
-        threads = new Thread[]{
-                runAsync(DownloadMissionRecover.mID, new DownloadMissionRecover(this, errorCode))
+        threads = new MissionTask[]{
+                runWaiter(DownloadMissionRecover.mID, new DownloadMissionRecover(this, errorCode))
         };
     }
 
     private boolean deleteThisFromFile() {
         synchronized (LOCK) {
+            closeJournal();
+            MissionJournal.delete(metadata);
             boolean res = metadata.delete();
             metadata = null;
             return res;
@@ -756,80 +1759,137 @@ public class DownloadMission extends Mission {
     }
 
     /**
-     * run a new thread
+     * Queue a task of this mission on the download workers, a task waiting for other tasks must
+     * use {@link #runWaiter(int, MissionTask)}
      *
-     * @param id  id of new thread (used for debugging only)
-     * @param who the Runnable whose {@code run} method is invoked.
+     * @param id   id of the task (used for debugging only)
+     * @param task the task to run
+     * @return the passed task
      */
-    private Thread runAsync(int id, Runnable who) {
-        return runAsync(id, new Thread(who));
+    MissionTask runAsync(int id, MissionTask task) {
+        // known task ids:
+        //   -4:     verification of the downloaded blocks
+        //   -3:     recovery, or post-processing while downloading
+        //   -1:     start waiting for the previous tasks
+        //    0:     initializer
+        //  >=1:     any download task
+
+        return task.submit(MissionTask.DOWNLOADS, getTaskName(id), this::onTaskStarted);
     }
 
     /**
-     * run a new thread
+     * Run a task of this mission apart from the download workers, so it can not wait behind the
+     * connections of other missions
      *
-     * @param id  id of new thread (used for debugging only)
-     * @param who the Thread whose {@code run} method is invoked when this thread is started
-     * @return the passed thread
+     * @param id   id of the task (used for debugging only)
+     * @param task the task to run
+     * @return the passed task
      */
-    private Thread runAsync(int id, Thread who) {
-        // known thread ids:
-        //   -2:     state saving by  notifyProgress()  method
-        //   -1:     wait for saving the state by  pause()  method
-        //    0:     initializer
-        //  >=1:     any download thread
+    private MissionTask runWaiter(int id, MissionTask task) {
+        return task.submit(MissionTask.WAITERS, getTaskName(id), this::onTaskStarted);
+    }
 
-        if (DEBUG) {
-            who.setName(String.format("%s[%s] %s", TAG, id, storage.getName()));
-        }
+    /**
+     * Called by the worker of any task of this mission, the first one makes the mission running
+     */
+    private void onTaskStarted() {
+        if (!waitingForWorker) return;
 
-        who.start();
+        waitingForWorker = false;
+        notify(DownloadManagerService.MESSAGE_RUNNING);
+    }
 
-        return who;
+    /**
+     * @return {@code true} if the mission is started but its tasks wait for a free worker
+     */
+    public boolean isWaitingForWorker() {
+        return running && waitingForWorker;
     }
 
     /**
-     * Waits at most {@code millis} milliseconds for the thread to die
+     * Queue the post-processing on its own workers, apart from the downloads
      *
-     * @param millis the time to wait in milliseconds
+     * @return the queued task
+     */
+    private MissionTask runPostprocessing() {
+        return newPostprocessing(false).submit(MissionTask.POSTPROCESSING, getTaskName(1), this::onTaskStarted);
+    }
+
+    /**
+     * @param pipelined {@code true} if running while downloading
+     * @return the post-processing task, not queued
      */
-    private void joinForThreads(int millis) {
-        final Thread currentThread = Thread.currentThread();
+    private MissionTask newPostprocessing(boolean pipelined) {
+        return MissionTask.of(() -> doPostprocessing(pipelined));
+    }
 
-        if (init != null && init != currentThread && init.isAlive()) {
-            init.interrupt();
+    private String getTaskName(int id) {
+        return DEBUG ? String.format("%s[%s] %s", TAG, id, storage.getName()) : null;
+    }
 
-            if (millis > 0) {
-                try {
-                    init.join(millis);
-                } catch (InterruptedException e) {
-                    Log.w(TAG, "Initializer thread is still running", e);
-                    return;
-                }
-            }
+    /**
+     * Cancel the initializer and the download tasks, except the calling one. Does not wait,
+     * a cancelled task returns by itself.
+     */
+    private void cancelTasks() {
+        MissionTask initializer = init;
+        if (initializer != null && !initializer.isCurrent()) initializer.cancel();
+
+        for (MissionTask task : threads) {
+            if (!task.isCurrent()) task.cancel();
         }
 
-        // if a thread is still alive, possible reasons:
-        //      slow device
-        //      the user is spamming start/pause buttons
-        //      start() method called quickly after pause()
+        cancelPipeline();
+    }
+
+    /**
+     * Stop the post-processing running while downloading, unless the download is completed
+     */
+    private void cancelPipeline() {
+        MissionTask pipeline = psPipeline;
+        if (pipeline != null && !pipeline.isCurrent() && psState == 0) pipeline.cancel();
+    }
 
-        for (Thread thread : threads) {
-            if (!thread.isAlive() || thread == Thread.currentThread()) continue;
-            thread.interrupt();
+    /**
+     * Defer {@link #start()} until the cancelled tasks of the previous run return, so they can
+     * not write over the new ones
+     *
+     * @return {@code true} if deferred, otherwise, {@code false} if no previous task is alive
+     */
+    private boolean deferStart() {
+        ArrayList<MissionTask> alive = new ArrayList<>(threads.length + 2);
+        if (init != null && init.isAlive() && !init.isCurrent()) alive.add(init);
+        for (MissionTask task : threads) {
+            if (task.isAlive() && !task.isCurrent()) alive.add(task);
         }
 
-        try {
-            for (Thread thread : threads) {
-                if (!thread.isAlive()) continue;
-                if (DEBUG) {
-                    Log.w(TAG, "thread alive: " + thread.getName());
-                }
-                if (millis > 0) thread.join(millis);
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("A download thread is still running", e);
+        // the post-processing starts again from the beginning along the download
+        MissionTask pipeline = psPipeline;
+        if (pipeline != null && pipeline.isAlive()) alive.add(pipeline);
+
+        if (alive.isEmpty()) return false;
+
+        if (DEBUG) {
+            Log.w(TAG, "start deferred, " + alive.size() + " tasks still running");
         }
+
+        cancelTasks();
+        startPending = true;
+
+        MissionTask.of(() -> {
+            try {
+                for (MissionTask task : alive) task.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // pause() clears it, the mission was paused again while waiting
+            if (!startPending) return;
+            startPending = false;
+            start();
+        }).submit(MissionTask.WAITERS, getTaskName(-1));
+
+        return true;
     }
 
 
@@ -848,7 +1908,56 @@ public class DownloadMission extends Mission {
 
     public static class Block {
         public int position;
+
+        /**
+         * Amount of consecutive blocks merged into this one, starting at {@link #position}
+         */
+        int count;
+
+        /**
+         * Offset relative to the block start of the next byte to download
+         */
         public int done;
+
+        /**
+         * Offset relative to the block start where this part starts, non-zero for a stolen part
+         */
+        int first;
+
+        /**
+         * Offset relative to the block start where this part ends (exclusive), lowered when
+         * the remainder is stolen by another thread
+         */
+        int limit;
+
+        /**
+         * The second half of this block, downloaded by another thread
+         */
+        Block stolenBy;
+
+        /**
+         * The block this part was stolen from
+         */
+        Block stolenFrom;
+
+        boolean released;
+        boolean finished;
+        long acquiredAt;
+        int doneAtAcquire;
+
+        /**
+         * @param now current time, see {@link System#nanoTime()}
+         * @return bytes per nanosecond downloaded since this block was acquired
+         */
+        double getSpeed(long now) {
+            long elapsed = now - acquiredAt;
+            return elapsed > 0 ? (double) (done - doneAtAcquire) / elapsed : 0;
+        }
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        snapshotLock = new Object();
     }
 
     private static class Lock implements Serializable {
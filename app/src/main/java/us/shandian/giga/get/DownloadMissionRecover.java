@@ -20,7 +20,7 @@ import us.shandian.giga.get.DownloadMission.HttpError;
 
 import static us.shandian.giga.get.DownloadMission.ERROR_RESOURCE_GONE;
 
-public class DownloadMissionRecover extends Thread {
+public class DownloadMissionRecover extends MissionTask {
     private static final String TAG = "DownloadMissionRecover";
     static final int mID = -3;
 
@@ -56,7 +56,7 @@ public class DownloadMissionRecover extends Thread {
             } catch (InterruptedIOException | ClosedByInterruptException e) {
                 return;
             } catch (Exception e) {
-                if (!mMission.running || super.isInterrupted()) return;
+                if (!mMission.running || isCancelled()) return;
                 err = e;
             }
         }
@@ -78,7 +78,7 @@ public class DownloadMissionRecover extends Thread {
         }
 
         // maybe the following check is redundant
-        if (!mMission.running || super.isInterrupted()) return;
+        if (!mMission.running || isCancelled()) return;
 
         if (!mNotInitialized) {
             // set the current download url to null in case if the recovery
@@ -114,7 +114,7 @@ public class DownloadMissionRecover extends Thread {
 
         mMission.writeThisToFile();
 
-        if (!mMission.running || super.isInterrupted()) return;
+        if (!mMission.running || isCancelled()) return;
 
         mMission.running = false;
         mMission.start();
@@ -232,7 +232,7 @@ public class DownloadMissionRecover extends Thread {
 
         mMission.writeThisToFile();
 
-        if (!mMission.running || super.isInterrupted()) return;
+        if (!mMission.running || isCancelled()) return;
 
         mMission.running = false;
         mMission.start();
@@ -309,8 +309,7 @@ public class DownloadMissionRecover extends Thread {
     }
 
     @Override
-    public void interrupt() {
-        super.interrupt();
+    protected void onCancel() {
         if (mConn != null) disconnect();
     }
 }
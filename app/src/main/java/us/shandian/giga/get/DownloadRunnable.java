@@ -21,7 +21,7 @@ import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
  * Runnable to download blocks of a file until the file is completely downloaded,
  * an error occurs or the process is stopped.
  */
-public class DownloadRunnable extends Thread {
+public class DownloadRunnable extends MissionTask {
     private static final String TAG = "DownloadRunnable";
 
     private final DownloadMission mMission;
@@ -34,9 +34,14 @@ public class DownloadRunnable extends Thread {
         mId = id;
     }
 
-    private void releaseBlock(Block block, long remain) {
-        // set the block offset to -1 if it is completed
-        mMission.releaseBlock(block.position, remain < 0 ? -1 : block.done);
+    private void releaseBlock(Block block) {
+        boolean finished;
+        synchronized (block) {
+            finished = block.done >= block.limit;
+        }
+        if (finished) mMission.reportSpeed(mId, block);
+        mMission.releaseBlock(block, finished);
+        mMission.adaptConnections();
     }
 
     @Override
@@ -44,6 +49,8 @@ public class DownloadRunnable extends Thread {
         boolean retry = false;
         Block block = null;
         int retryCount = 0;
+        byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
+        BlockChecksum checksum = new BlockChecksum(mMission);
         SharpStream f;
 
         try {
@@ -53,10 +60,8 @@ public class DownloadRunnable extends Thread {
             return;
         }
 
-        while (mMission.running && mMission.errCode == DownloadMission.ERROR_NOTHING) {
-            if (!retry) {
-                block = mMission.acquireBlock();
-            }
+        while (mMission.running && !isCancelled() && mMission.errCode == DownloadMission.ERROR_NOTHING) {
+            if (!retry) block = mMission.acquireBlock(mId);
 
             if (block == null) {
                 if (DEBUG) Log.d(TAG, mId + ":no more blocks left, exiting");
@@ -70,14 +75,9 @@ public class DownloadRunnable extends Thread {
                     Log.d(TAG, mId + ":acquired block at position=" + block.position + " done=" + block.done);
             }
 
-            long start = (long)block.position * DownloadMission.BLOCK_SIZE;
-            long end = start + DownloadMission.BLOCK_SIZE - 1;
-
-            start += block.done;
-
-            if (end >= mMission.length) {
-                end = mMission.length - 1;
-            }
+            long blockStart = (long) block.position * mMission.getBlockSize();
+            long start = blockStart + block.done;
+            long end = blockStart + block.limit - 1;
 
             try {
                 mConn = mMission.openConnection(false, start, end);
@@ -85,10 +85,12 @@ public class DownloadRunnable extends Thread {
 
                 // check if the download can be resumed
                 if (mConn.getResponseCode() == 416) {
-                    if (block.done > 0) {
+                    if (block.done > block.first) {
                         // try again from the start (of the block)
-                        mMission.notifyProgress(-block.done);
-                        block.done = 0;
+                        mMission.notifyProgress(block.first - block.done);
+                        synchronized (block) {
+                            block.done = block.first;
+                        }
                         retry = true;
                         mConn.disconnect();
                         continue;
@@ -111,16 +113,24 @@ public class DownloadRunnable extends Thread {
                 f.seek(mMission.offsets[mMission.current] + start);
 
                 try (InputStream is = mConn.getInputStream()) {
-                    byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
                     int len;
 
                     // use always start <= end
                     // fixes a deadlock because in some videos, youtube is sending one byte alone
                     while (start <= end && mMission.running && (len = is.read(buf, 0, buf.length)) != -1) {
-                        f.write(buf, 0, len);
+                        synchronized (block) {
+                            // the limit is lowered if another thread steals the remainder
+                            end = blockStart + block.limit - 1;
+                            if (start + len - 1 > end) len = (int) (end - start + 1);
+                            if (len <= 0) break;
+
+                            f.write(buf, 0, len);
+                            block.done += len;
+                        }
+                        checksum.update(start, buf, 0, len);
                         start += len;
-                        block.done += len;
-                        mMission.notifyProgress(len);
+                        mMission.addProgress(mId, len);
+                        mMission.throttle(len);
                     }
                 }
 
@@ -128,7 +138,7 @@ public class DownloadRunnable extends Thread {
                     Log.d(TAG, mId + ":position " + block.position + " stopped " + start + "/" + end);
                 }
             } catch (Exception e) {
-                if (!mMission.running || e instanceof ClosedByInterruptException) break;
+                if (!mMission.running || isCancelled() || e instanceof ClosedByInterruptException) break;
 
                 if (e instanceof HttpError && ((HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
                     // for youtube streams. The url has expired, recover
@@ -148,7 +158,8 @@ public class DownloadRunnable extends Thread {
 
                 retry = true;
             } finally {
-                if (!retry) releaseBlock(block, end - start);
+                checksum.flush();
+                if (!retry) releaseBlock(block);
             }
         }
 
@@ -158,7 +169,7 @@ public class DownloadRunnable extends Thread {
             Log.d(TAG, "thread " + mId + " exited from main download loop");
         }
 
-        if (mMission.errCode == DownloadMission.ERROR_NOTHING && mMission.running) {
+        if (mMission.errCode == DownloadMission.ERROR_NOTHING && mMission.running && !isCancelled()) {
             if (DEBUG) {
                 Log.d(TAG, "no error has happened, notifying");
             }
@@ -171,9 +182,7 @@ public class DownloadRunnable extends Thread {
     }
 
     @Override
-    public void interrupt() {
-        super.interrupt();
-
+    protected void onCancel() {
         try {
             if (mConn != null) mConn.disconnect();
         } catch (Exception e) {
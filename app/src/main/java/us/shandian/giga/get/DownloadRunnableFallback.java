@@ -20,7 +20,7 @@ import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
 /**
  * Single-threaded fallback mode
  */
-public class DownloadRunnableFallback extends Thread {
+public class DownloadRunnableFallback extends MissionTask {
     private static final String TAG = "DownloadRunnableFallback";
 
     private final DownloadMission mMission;
@@ -95,10 +95,11 @@ public class DownloadRunnableFallback extends Thread {
             byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
             int len = 0;
 
-            while (mMission.running && (len = mIs.read(buf, 0, buf.length)) != -1) {
+            while (mMission.running && !isCancelled() && (len = mIs.read(buf, 0, buf.length)) != -1) {
                 mF.write(buf, 0, len);
                 start += len;
                 mMission.notifyProgress(len);
+                mMission.throttle(len);
             }
 
             dispose();
@@ -110,7 +111,7 @@ public class DownloadRunnableFallback extends Thread {
 
             mMission.fallbackResumeOffset = start;
 
-            if (!mMission.running || e instanceof ClosedByInterruptException) return;
+            if (!mMission.running || isCancelled() || e instanceof ClosedByInterruptException) return;
 
             if (e instanceof HttpError && ((HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
                 // for youtube streams. The url has expired, recover
@@ -132,7 +133,7 @@ public class DownloadRunnableFallback extends Thread {
             return;
         }
 
-        if (done) {
+        if (done && !isCancelled()) {
             mMission.notifyFinished();
         } else {
             mMission.fallbackResumeOffset = start;
@@ -140,9 +141,7 @@ public class DownloadRunnableFallback extends Thread {
     }
 
     @Override
-    public void interrupt() {
-        super.interrupt();
-
+    protected void onCancel() {
         if (mConn != null) {
             try {
                 mConn.disconnect();
@@ -0,0 +1,157 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import us.shandian.giga.get.DownloadMission.HttpError;
+
+/**
+ * Reads the segment urls of an HLS media playlist, a master playlist is followed to its first
+ * variant. Only complete (VOD) playlists of plain segments are supported, encrypted and
+ * byte-range segments are rejected.
+ */
+final class HlsPlaylist {
+    private static final String HEADER = "#EXTM3U";
+    private static final String VARIANT = "#EXT-X-STREAM-INF";
+    private static final String END = "#EXT-X-ENDLIST";
+    private static final String KEY = "#EXT-X-KEY:";
+    private static final String BYTE_RANGE = "#EXT-X-BYTERANGE";
+    private static final String MAP = "#EXT-X-MAP:";
+
+    /**
+     * Playlists are small, a longer response is not a playlist
+     */
+    private static final int MAXIMUM_LENGTH = 8 * 1024 * 1024;
+
+    private HlsPlaylist() {
+    }
+
+    /**
+     * Download a playlist and read its segments
+     *
+     * @param mission the mission downloading the segments
+     * @param url     url of a master or media playlist
+     * @return the segment urls in order, the initialization segment first if any
+     * @throws IOException if the playlist can not be downloaded or is not supported
+     * @throws HttpError   if the server responds with an error
+     */
+    @NonNull
+    static String[] fetchSegments(@NonNull DownloadMission mission, @NonNull String url) throws IOException, HttpError {
+        String playlist = fetch(mission, url);
+
+        String variant = getFirstVariant(url, playlist);
+        if (variant != null) {
+            url = variant;
+            playlist = fetch(mission, url);
+            if (getFirstVariant(url, playlist) != null)
+                throw new IOException("nested master playlists are not supported");
+        }
+
+        return parseSegments(url, playlist);
+    }
+
+    /**
+     * @param baseUrl  url of the playlist
+     * @param playlist the playlist text
+     * @return the url of the first variant, or {@code null} if it is not a master playlist
+     * @throws IOException if a variant url is malformed
+     */
+    @Nullable
+    static String getFirstVariant(@NonNull String baseUrl, @NonNull String playlist) throws IOException {
+        boolean variant = false;
+
+        for (String line : playlist.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            if (line.startsWith(VARIANT)) {
+                variant = true;
+            } else if (variant && !line.startsWith("#")) {
+                return resolve(baseUrl, line);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param baseUrl  url of the media playlist
+     * @param playlist the media playlist text
+     * @return the segment urls in order, the initialization segment first if any
+     * @throws IOException if the playlist is not supported
+     */
+    @NonNull
+    static String[] parseSegments(@NonNull String baseUrl, @NonNull String playlist) throws IOException {
+        if (!playlist.startsWith(HEADER)) throw new IOException("not an HLS playlist: " + baseUrl);
+
+        ArrayList<String> segments = new ArrayList<>();
+        boolean ended = false;
+
+        for (String line : playlist.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            if (line.startsWith(KEY)) {
+                if (!line.contains("METHOD=NONE"))
+                    throw new IOException("encrypted segments are not supported");
+            } else if (line.startsWith(BYTE_RANGE)) {
+                throw new IOException("byte-range segments are not supported");
+            } else if (line.startsWith(MAP)) {
+                // only one initialization segment for the whole playlist
+                if (!segments.isEmpty() || line.contains("BYTERANGE"))
+                    throw new IOException("the initialization segment is not supported");
+                segments.add(resolve(baseUrl, getUri(line)));
+            } else if (line.startsWith(END)) {
+                ended = true;
+            } else if (!line.startsWith("#")) {
+                segments.add(resolve(baseUrl, line));
+            }
+        }
+
+        if (!ended) throw new IOException("live playlists can not be downloaded");
+        if (segments.isEmpty()) throw new IOException("the playlist has no segments");
+
+        return segments.toArray(new String[0]);
+    }
+
+    private static String getUri(String tag) throws IOException {
+        int start = tag.indexOf("URI=\"");
+        int end = start < 0 ? -1 : tag.indexOf('"', start + 5);
+        if (end < 0) throw new IOException("no uri in " + tag);
+
+        return tag.substring(start + 5, end);
+    }
+
+    private static String resolve(String baseUrl, String uri) throws IOException {
+        return new URL(new URL(baseUrl), uri).toString();
+    }
+
+    private static String fetch(DownloadMission mission, String url) throws IOException, HttpError {
+        HttpURLConnection conn = mission.openConnection(url, false, -1, -1);
+        try {
+            mission.establishConnection(DownloadInitializer.mId, conn);
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
+            try (InputStream is = conn.getInputStream()) {
+                int len;
+                while ((len = is.read(buf)) != -1) {
+                    buffer.write(buf, 0, len);
+                    if (buffer.size() > MAXIMUM_LENGTH) throw new IOException("not an HLS playlist: " + url);
+                }
+            }
+
+            return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,674 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.extractor.MediaFormat;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import us.shandian.giga.postprocessing.Postprocessing;
+
+/**
+ * Checkpoints of a {@link DownloadMission}, made of a snapshot and an append-only journal.
+ * <p>
+ * The snapshot holds the fields of the mission needed to resume it, in a versioned binary format
+ * ending with a checksum, the error details are not saved. It is written to a temporal file and
+ * renamed over the metadata file, so a process death never leaves a half-written snapshot.
+ * Between snapshots, changed blocks and the progress are appended to the journal as fixed-size
+ * records, so a checkpoint costs O(changed blocks) instead of O(mission).
+ * <p>
+ * The journal header holds the {@link DownloadMission#checkpointId} of its snapshot, a journal
+ * left from an older snapshot is ignored. Every record has a checksum, replaying stops at the
+ * first torn or corrupt record.
+ */
+public class MissionJournal implements Closeable {
+    private static final String TAG = "MissionJournal";
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String SEGMENTS_SUFFIX = ".segments";
+
+    private static final int MAGIC = 0x474A4E31;// "GJN1"
+    private static final int HEADER_SIZE = 12;
+
+    private static final int SNAPSHOT_MAGIC = 0x47534E50;// "GSNP"
+    private static final int SNAPSHOT_VERSION = 2;
+
+    /**
+     * Version 1 held the segment lists of a {@link SegmentedMission}, now in their own file
+     */
+    private static final int SNAPSHOT_VERSION_INLINE_SEGMENTS = 1;
+
+    private static final int SEGMENTS_MAGIC = 0x47534547;// "GSEG"
+
+    private static final byte KIND_DOWNLOAD = 0;
+    private static final byte KIND_SEGMENTED = 1;
+
+    /**
+     * type (1 byte), key (int), value (long), CRC32 of the previous fields (int)
+     */
+    private static final int RECORD_SIZE = 17;
+
+    /**
+     * key: block position, value: block offset or -1 if the block is done
+     */
+    static final byte RECORD_BLOCK = 1;
+
+    /**
+     * key: current resource, value: amount of bytes downloaded
+     */
+    static final byte RECORD_PROGRESS = 2;
+
+    /**
+     * key: amount of segments written, value: length of the current resource written so far,
+     * see {@link SegmentedMission}
+     */
+    static final byte RECORD_SEGMENT = 3;
+
+    /**
+     * key: block position, value: CRC32 of the downloaded block
+     */
+    static final byte RECORD_CHECKSUM = 4;
+
+    /**
+     * Amount of records after which a new snapshot should be written
+     */
+    static final int SNAPSHOT_RECORDS = 1024;
+
+    private final long mCheckpointId;
+    private final byte[] mRecord = new byte[RECORD_SIZE];
+    private final CRC32 mCrc = new CRC32();
+    private int mRecords;
+
+    /**
+     * Records appended before the journal is opened, while its snapshot is written
+     */
+    private ByteArrayOutputStream mBacklog = new ByteArrayOutputStream();
+    private FileOutputStream mOutput;
+    private boolean mClosed;
+
+    /**
+     * Create the journal of a snapshot, the records are kept in memory until {@link #open(File)}
+     *
+     * @param checkpointId the checkpoint id of the snapshot
+     */
+    MissionJournal(long checkpointId) {
+        mCheckpointId = checkpointId;
+    }
+
+    /**
+     * Start writing the journal, once its snapshot is in place. Does nothing if closed.
+     *
+     * @param metadata the metadata file
+     * @throws IOException if the journal can not be written
+     */
+    synchronized void open(@NonNull File metadata) throws IOException {
+        if (mClosed || mOutput != null) return;
+
+        FileOutputStream output = new FileOutputStream(getJournalFile(metadata), false);
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            putInt(header, 0, MAGIC);
+            putLong(header, 4, mCheckpointId);
+            output.write(header);
+            mBacklog.writeTo(output);
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+
+        mBacklog = null;
+        mOutput = output;
+    }
+
+    /**
+     * Serialize the fields of a mission needed to resume it, must be called holding
+     * {@link DownloadMission#LOCK}
+     *
+     * @param mission the mission, its checkpoint id must be already incremented
+     * @return the snapshot
+     */
+    static byte[] takeSnapshot(@NonNull DownloadMission mission) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+
+        try {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeByte(mission instanceof SegmentedMission ? KIND_SEGMENTED : KIND_DOWNLOAD);
+            output.writeLong(mission.checkpointId);
+
+            writeString(output, mission.source);
+            output.writeLong(mission.length);
+            output.writeLong(mission.timestamp);
+            output.writeChar(mission.kind);
+            output.writeBoolean(mission.storage != null);
+            if (mission.storage != null) mission.storage.writeTo(output);
+
+            writeStrings(output, mission.urls);
+            output.writeLong(mission.done);
+            output.writeBoolean(mission.unknownLength);
+            writeLongs(output, mission.offsets);
+            output.writeInt(mission.psState);
+            output.writeBoolean(mission.psAlgorithm != null);
+            if (mission.psAlgorithm != null) {
+                writeString(output, mission.psAlgorithm.getName());
+                writeStrings(output, mission.psAlgorithm.getArgs());
+            }
+            output.writeInt(mission.current);
+            output.writeLong(mission.nearLength);
+            writeInts(output, mission.blocks);
+            writeLongs(output, mission.checksums);
+            output.writeInt(mission.blockSize);
+            output.writeLong(mission.fallbackResumeOffset);
+            output.writeInt(mission.threadCount);
+            output.writeInt(mission.priority);
+            writeRecoveryInfo(output, mission.recoveryInfo);
+            output.writeBoolean(mission.enqueued);
+            output.writeInt(mission.errCode);
+
+            if (mission instanceof SegmentedMission) {
+                SegmentedMission segmented = (SegmentedMission) mission;
+                output.writeInt(segmented.nextSegment);
+                output.writeLong(segmented.committedLength);
+            }
+
+            output.flush();
+        } catch (IOException e) {
+            throw new AssertionError(e);// never thrown by a ByteArrayOutputStream
+        }
+
+        return appendChecksum(buffer);
+    }
+
+    private static byte[] appendChecksum(ByteArrayOutputStream buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        int value = (int) crc.getValue();
+        buffer.write(value >>> 24);
+        buffer.write(value >>> 16);
+        buffer.write(value >>> 8);
+        buffer.write(value);
+
+        return buffer.toByteArray();
+    }
+
+    private static boolean hasValidChecksum(byte[] data) {
+        if (data.length < 4) return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        return (int) crc.getValue() == getInt(data, data.length - 4);
+    }
+
+    /**
+     * Save the segment lists of a {@link SegmentedMission} next to its metadata file, written
+     * like a snapshot
+     *
+     * @param metadata the metadata file of the mission
+     * @param segments the segment urls of every resource
+     * @throws IOException if the lists can not be written
+     */
+    static void writeSegments(@NonNull File metadata, @NonNull String[][] segments) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+
+        output.writeInt(SEGMENTS_MAGIC);
+        output.writeInt(segments.length);
+        for (String[] list : segments) writeStrings(output, list);
+        output.flush();
+
+        writeSnapshot(getSegmentsFile(metadata), appendChecksum(buffer));
+    }
+
+    /**
+     * @param metadata the metadata file of the mission, can be {@code null}
+     * @return the segment lists saved by {@link #writeSegments(File, String[][])}, or
+     * {@code null} if not saved or unreadable
+     */
+    @Nullable
+    static String[][] readSegments(@Nullable File metadata) {
+        if (metadata == null) return null;
+
+        File file = getSegmentsFile(metadata);
+        if (!file.exists()) return null;
+
+        try {
+            byte[] data = new byte[(int) file.length()];
+            try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+                input.readFully(data);
+            }
+
+            if (data.length < 12 || getInt(data, 0) != SEGMENTS_MAGIC || !hasValidChecksum(data))
+                throw new IOException("corrupt segment lists");
+
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data, 4, data.length - 8));
+            String[][] segments = new String[input.readInt()][];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = readStrings(input);
+                if (segments[i] == null || segments[i].length < 1)
+                    throw new IOException("empty segment list");
+            }
+
+            return segments;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the segments of " + metadata.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Write a snapshot to a temporal file and rename it over the metadata file
+     *
+     * @param metadata the metadata file
+     * @param snapshot the snapshot, see {@link #takeSnapshot(DownloadMission)}
+     * @throws IOException if the snapshot can not be written
+     */
+    static void writeSnapshot(@NonNull File metadata, @NonNull byte[] snapshot) throws IOException {
+        File temp = new File(metadata.getPath() + TEMP_SUFFIX);
+
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            file.write(snapshot);
+            file.getFD().sync();
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+
+        if (!temp.renameTo(metadata)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("cannot replace " + metadata.getPath());
+        }
+    }
+
+    /**
+     * Append a record. Once the journal is open the record reaches the OS at once, so it
+     * survives a process death.
+     *
+     * @param type  {@link #RECORD_BLOCK}, {@link #RECORD_PROGRESS}, {@link #RECORD_SEGMENT} or
+     *              {@link #RECORD_CHECKSUM}
+     * @param key   the key of the record
+     * @param value the value of the record
+     * @throws IOException if the record can not be written
+     */
+    synchronized void append(byte type, int key, long value) throws IOException {
+        mRecord[0] = type;
+        putInt(mRecord, 1, key);
+        putLong(mRecord, 5, value);
+
+        mCrc.reset();
+        mCrc.update(mRecord, 0, RECORD_SIZE - 4);
+        putInt(mRecord, RECORD_SIZE - 4, (int) mCrc.getValue());
+
+        if (mOutput == null)
+            mBacklog.write(mRecord);
+        else
+            mOutput.write(mRecord);
+        mRecords++;
+    }
+
+    /**
+     * @return amount of records appended since the snapshot
+     */
+    synchronized int getRecordCount() {
+        return mRecords;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        if (mOutput == null) return;
+
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Load a mission from its snapshot and replay its journal
+     *
+     * @param metadata the metadata file
+     * @return the mission or {@code null} if the snapshot is not readable
+     */
+    @Nullable
+    public static DownloadMission load(@NonNull File metadata) {
+        DownloadMission mission;
+
+        try {
+            mission = readSnapshot(metadata);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read the mission " + metadata.getName(), e);
+            return null;
+        }
+
+        File journal = getJournalFile(metadata);
+        if (!journal.exists()) return mission;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            if (input.readInt() != MAGIC || input.readLong() != mission.checkpointId) {
+                // left from an older snapshot
+                return mission;
+            }
+
+            replay(input, mission);
+        } catch (EOFException e) {
+            // empty journal
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to replay the journal of " + metadata.getName(), e);
+        }
+
+        return mission;
+    }
+
+    private static DownloadMission readSnapshot(File metadata) throws Exception {
+        byte[] snapshot = new byte[(int) metadata.length()];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(metadata))) {
+            input.readFully(snapshot);
+        }
+
+        if (snapshot.length < 8 || getInt(snapshot, 0) != SNAPSHOT_MAGIC) return readLegacySnapshot(metadata);
+
+        if (!hasValidChecksum(snapshot)) throw new IOException("corrupt snapshot");
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(snapshot, 8, snapshot.length - 12));
+        int version = getInt(snapshot, 4);
+        if (version != SNAPSHOT_VERSION && version != SNAPSHOT_VERSION_INLINE_SEGMENTS) throw new IOException("unknown snapshot version " + version);
+
+        byte kind = input.readByte();
+        long checkpointId = input.readLong();
+
+        String source = readString(input);
+        long length = input.readLong();
+        long timestamp = input.readLong();
+        char missionKind = input.readChar();
+        StoredFileHelper storage = input.readBoolean() ? StoredFileHelper.readFrom(input) : null;
+
+        String[] urls = readStrings(input);
+        long done = input.readLong();
+        boolean unknownLength = input.readBoolean();
+        long[] offsets = readLongs(input);
+        int psState = input.readInt();
+        Postprocessing psAlgorithm = null;
+        if (input.readBoolean()) {
+            String name = readString(input);
+            psAlgorithm = Postprocessing.getAlgorithm(name, readStrings(input));
+        }
+
+        int current = input.readInt();
+        long nearLength = input.readLong();
+        int[] blocks = readInts(input);
+        long[] checksums = readLongs(input);
+        int blockSize = input.readInt();
+        long fallbackResumeOffset = input.readLong();
+        int threadCount = input.readInt();
+        int priority = input.readInt();
+        MissionRecoveryInfo[] recoveryInfo = readRecoveryInfo(input);
+        boolean enqueued = input.readBoolean();
+        int errCode = input.readInt();
+
+        DownloadMission mission;
+        if (kind == KIND_SEGMENTED) {
+            if (version == SNAPSHOT_VERSION_INLINE_SEGMENTS) {
+                String[][] segments = new String[input.readInt()][];
+                for (int i = 0; i < segments.length; i++) segments[i] = readStrings(input);
+                writeSegments(metadata, segments);
+            }
+
+            SegmentedMission segmented = new SegmentedMission(urls, storage, missionKind, psAlgorithm);
+            segmented.nextSegment = input.readInt();
+            segmented.committedLength = input.readLong();
+            mission = segmented;
+        } else {
+            mission = new DownloadMission(urls, storage, missionKind, psAlgorithm);
+        }
+
+        mission.checkpointId = checkpointId;
+        mission.source = source;
+        mission.length = length;
+        mission.timestamp = timestamp;
+        mission.done = done;
+        mission.unknownLength = unknownLength;
+        mission.offsets = offsets;
+        mission.psState = psState;
+        mission.current = current;
+        mission.nearLength = nearLength;
+        mission.blocks = blocks;
+        mission.checksums = checksums;
+        mission.blockSize = blockSize;
+        mission.fallbackResumeOffset = fallbackResumeOffset;
+        mission.threadCount = threadCount;
+        mission.priority = priority;
+        mission.recoveryInfo = recoveryInfo;
+        mission.enqueued = enqueued;
+        mission.errCode = errCode;
+
+        return mission;
+    }
+
+    /**
+     * Missions saved before the snapshot format was used are serialized objects, their next
+     * snapshot is written in the current format
+     */
+    private static DownloadMission readLegacySnapshot(File metadata) throws Exception {
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(metadata)))) {
+            DownloadMission mission = (DownloadMission) input.readObject();
+            mission.errObject = null;
+            return mission;
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream output, String[] values) throws IOException {
+        output.writeInt(values == null ? -1 : values.length);
+        if (values != null) for (String value : values) writeString(output, value);
+    }
+
+    private static String[] readStrings(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) return null;
+
+        String[] values = new String[length];
+        for (int i = 0; i < length; i++) values[i] = readString(input);
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream output, int[] values) throws IOException {
+        output.writeInt(values == null ? -1 : values.length);
+        if (values != null) for (int value : values) output.writeInt(value);
+    }
+
+    private static int[] readInts(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) return null;
+
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) values[i] = input.readInt();
+        return values;
+    }
+
+    private static void writeLongs(DataOutputStream output, long[] values) throws IOException {
+        output.writeInt(values == null ? -1 : values.length);
+        if (values != null) for (long value : values) output.writeLong(value);
+    }
+
+    private static long[] readLongs(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) return null;
+
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) values[i] = input.readLong();
+        return values;
+    }
+
+    private static void writeRecoveryInfo(DataOutputStream output, MissionRecoveryInfo[] values) throws IOException {
+        output.writeInt(values == null ? -1 : values.length);
+        if (values == null) return;
+
+        for (MissionRecoveryInfo info : values) {
+            writeString(output, info.getFormat().name());
+            writeString(output, info.getDesired());
+            output.writeBoolean(info.isDesired2());
+            output.writeInt(info.getDesiredBitrate());
+            output.writeChar(info.getKind());
+            writeString(output, info.getValidateCondition());
+        }
+    }
+
+    private static MissionRecoveryInfo[] readRecoveryInfo(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) return null;
+
+        MissionRecoveryInfo[] values = new MissionRecoveryInfo[length];
+        for (int i = 0; i < length; i++) {
+            MediaFormat format = MediaFormat.valueOf(readString(input));
+            String desired = readString(input);
+            boolean desired2 = input.readBoolean();
+            int desiredBitrate = input.readInt();
+            char kind = input.readChar();
+            values[i] = new MissionRecoveryInfo(format, desired, desired2, desiredBitrate, kind, readString(input));
+        }
+        return values;
+    }
+
+    private static void replay(DataInputStream input, DownloadMission mission) throws IOException {
+        byte[] record = new byte[RECORD_SIZE];
+        CRC32 crc = new CRC32();
+        int count = 0;
+
+        while (true) {
+            try {
+                input.readFully(record);
+            } catch (EOFException e) {
+                break;// the last record may be torn
+            }
+
+            crc.reset();
+            crc.update(record, 0, RECORD_SIZE - 4);
+            if ((int) crc.getValue() != getInt(record, RECORD_SIZE - 4)) {
+                Log.w(TAG, "corrupt journal record #" + count);
+                break;
+            }
+
+            int key = getInt(record, 1);
+            long value = getLong(record, 5);
+
+            switch (record[0]) {
+                case RECORD_BLOCK:
+                    if (mission.blocks != null && key >= 0 && key < mission.blocks.length)
+                        mission.blocks[key] = (int) value;
+                    // the checksum of an unfinished block is computed again
+                    if (value >= 0 && mission.checksums != null && key >= 0 && key < mission.checksums.length)
+                        mission.checksums[key] = DownloadMission.CHECKSUM_UNKNOWN;
+                    break;
+                case RECORD_PROGRESS:
+                    if (key == mission.current) mission.done = value;
+                    break;
+                case RECORD_SEGMENT:
+                    if (mission instanceof SegmentedMission)
+                        ((SegmentedMission) mission).restoreSegments(key, value);
+                    break;
+                case RECORD_CHECKSUM:
+                    if (mission.checksums != null && key >= 0 && key < mission.checksums.length)
+                        mission.checksums[key] = value;
+                    break;
+            }
+
+            count++;
+        }
+    }
+
+    /**
+     * @param file a file of the metadata directory
+     * @return {@code true} if the file is a snapshot, otherwise, {@code false} for journals,
+     * segment lists and temporal files
+     */
+    public static boolean isSnapshot(@NonNull File file) {
+        String name = file.getName();
+        return !name.endsWith(JOURNAL_SUFFIX) && !name.endsWith(SEGMENTS_SUFFIX) && !name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Delete the journal, the segment lists and the temporal files of a snapshot
+     *
+     * @param metadata the metadata file
+     */
+    public static void delete(@NonNull File metadata) {
+        //noinspection ResultOfMethodCallIgnored
+        getJournalFile(metadata).delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(metadata.getPath() + TEMP_SUFFIX).delete();
+        //noinspection ResultOfMethodCallIgnored
+        getSegmentsFile(metadata).delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(metadata.getPath() + SEGMENTS_SUFFIX + TEMP_SUFFIX).delete();
+    }
+
+    private static File getJournalFile(File metadata) {
+        return new File(metadata.getPath() + JOURNAL_SUFFIX);
+    }
+
+    private static File getSegmentsFile(File metadata) {
+        return new File(metadata.getPath() + SEGMENTS_SUFFIX);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,221 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work of a {@link DownloadMission} running on an executor shared by all missions, so the
+ * amount of threads does not grow with the amount of missions.
+ * <p>
+ * Cancelling is cooperative: the worker is interrupted and {@link #onCancel()} releases what
+ * can block the task, like a connection. The task must return once {@link #isCancelled()}.
+ * A task cancelled before starting never runs.
+ */
+public abstract class MissionTask implements Runnable {
+    /**
+     * Workers for the connections and initializers of all missions
+     */
+    private static final int DOWNLOAD_WORKERS = 32;
+
+    /**
+     * Workers for the post-processing of downloaded missions, apart from the downloads. The
+     * post-processing running while downloading waits for the download, it uses {@link #WAITERS}.
+     */
+    private static final int POSTPROCESSING_WORKERS = 2;
+
+    /**
+     * Idle seconds before a worker exits
+     */
+    private static final long KEEP_ALIVE = 30;
+
+    static final ExecutorService DOWNLOADS = newExecutor("DownloadWorker", DOWNLOAD_WORKERS);
+    static final ExecutorService POSTPROCESSING = newExecutor("PostprocessingWorker", POSTPROCESSING_WORKERS);
+
+    /**
+     * Unbounded workers for the tasks waiting for other tasks, like a start waiting for the
+     * previous tasks or a post-processing waiting for the download, and for the recoveries and
+     * verifications. Never queued behind the connections, so they can not starve each other.
+     */
+    static final ExecutorService WAITERS = newCachedExecutor("MissionWaiter");
+
+    /**
+     * Writes the metadata of all missions in order
+     */
+    static final ExecutorService METADATA = newExecutor("MetadataWriter", 1);
+
+    private static final int STATE_NEW = 0;
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_RUNNING = 2;
+    private static final int STATE_DONE = 3;
+
+    private int state = STATE_NEW;
+    private Thread worker;
+    private String name;
+    private Runnable onStart;
+    private volatile boolean cancelled;
+
+    private static ExecutorService newExecutor(String name, int workers) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, name + "-" + count.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService newCachedExecutor(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                runnable -> new Thread(runnable, name + "-" + count.incrementAndGet()));
+    }
+
+    /**
+     * Wrap a {@link Runnable}, it should check {@link Thread#isInterrupted()} to stop
+     */
+    static MissionTask of(@NonNull Runnable runnable) {
+        return new MissionTask() {
+            @Override
+            public void run() {
+                runnable.run();
+            }
+        };
+    }
+
+    /**
+     * Queue this task on an executor
+     *
+     * @param executor the executor
+     * @param name     name of the worker while running this task, or {@code null}
+     * @return this task
+     */
+    final MissionTask submit(@NonNull ExecutorService executor, String name) {
+        return submit(executor, name, null);
+    }
+
+    /**
+     * Queue this task on an executor
+     *
+     * @param executor the executor
+     * @param name     name of the worker while running this task, or {@code null}
+     * @param onStart  called by the worker before running this task, or {@code null}
+     * @return this task
+     */
+    final MissionTask submit(@NonNull ExecutorService executor, String name, Runnable onStart) {
+        synchronized (this) {
+            if (state != STATE_NEW) throw new IllegalStateException("task already submitted");
+            state = STATE_QUEUED;
+            this.name = name;
+            this.onStart = onStart;
+        }
+
+        executor.execute(this::execute);
+        return this;
+    }
+
+    private void execute() {
+        Thread current = Thread.currentThread();
+        synchronized (this) {
+            if (state != STATE_QUEUED) return;// cancelled while queued
+            state = STATE_RUNNING;
+            worker = current;
+        }
+
+        String workerName = current.getName();
+        if (name != null) current.setName(name);
+
+        try {
+            if (onStart != null) onStart.run();
+            run();
+        } finally {
+            if (name != null) current.setName(workerName);
+
+            synchronized (this) {
+                state = STATE_DONE;
+                worker = null;
+                notifyAll();
+            }
+
+            // do not pass an interruption to the next task of the worker
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Ask this task to stop, does not wait for it
+     */
+    public final void cancel() {
+        boolean running;
+        synchronized (this) {
+            cancelled = true;
+            if (state == STATE_QUEUED) {
+                state = STATE_DONE;
+                notifyAll();
+                return;
+            }
+
+            running = state == STATE_RUNNING;
+            if (running && worker != Thread.currentThread()) worker.interrupt();
+        }
+
+        if (running) onCancel();
+    }
+
+    /**
+     * Interrupt the worker without cancelling this task, wakes a task waiting
+     */
+    public final synchronized void interrupt() {
+        if (state == STATE_RUNNING && worker != Thread.currentThread()) worker.interrupt();
+    }
+
+    /**
+     * Called once cancelled while running, from the cancelling thread. Release here what can
+     * block the task without being interrupted, like a connection.
+     */
+    protected void onCancel() {
+    }
+
+    /**
+     * @return {@code true} if the task must return as soon as possible
+     */
+    protected final boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return {@code true} if the task waits for a free worker
+     */
+    public final synchronized boolean isQueued() {
+        return state == STATE_QUEUED;
+    }
+
+    /**
+     * @return {@code true} if the task is queued or running
+     */
+    public final synchronized boolean isAlive() {
+        return state == STATE_QUEUED || state == STATE_RUNNING;
+    }
+
+    /**
+     * @return {@code true} if the calling thread is running this task
+     */
+    final synchronized boolean isCurrent() {
+        return worker == Thread.currentThread();
+    }
+
+    /**
+     * Wait until this task returns, a cancelled task which was queued returns at once
+     *
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    final synchronized void join() throws InterruptedException {
+        while (state == STATE_QUEUED || state == STATE_RUNNING) wait();
+    }
+}
@@ -0,0 +1,214 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.DownloaderImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * {@link HttpURLConnection} running on a shared {@link OkHttpClient}, so keep-alive connections
+ * and HTTP/2 streams are reused across blocks and missions. Only the part of the API used by
+ * the downloader is implemented.
+ * <p>
+ * Unlike {@link HttpURLConnection}, {@link #getInputStream()} returns the body for any status
+ * code, check {@link #getResponseCode()} first. Closing the stream releases the connection.
+ */
+class OkHttpURLConnection extends HttpURLConnection {
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private static OkHttpClient sharedClient;
+
+    private final OkHttpClient mClient;
+    private final ConnectionStats mStats;
+
+    private Call mCall;
+    private Response mResponse;
+
+    /**
+     * Gets the client shared by all missions. It is built from the client of
+     * {@link DownloaderImpl}, so it keeps its TLS configuration.
+     *
+     * @return the client
+     */
+    static synchronized OkHttpClient getSharedClient() {
+        if (sharedClient != null) return sharedClient;
+
+        DownloaderImpl downloader = DownloaderImpl.getInstance();
+        OkHttpClient.Builder builder = downloader != null
+                ? downloader.getClient().newBuilder()
+                : new OkHttpClient.Builder();
+
+        sharedClient = builder
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .connectTimeout(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
+                .readTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS)
+                .followRedirects(true)
+                .followSslRedirects(true)
+                .eventListenerFactory(ConnectionStats.FACTORY)
+                .build();
+
+        return sharedClient;
+    }
+
+    /**
+     * @param url   the url
+     * @param stats connection statistics of the mission, or {@code null}
+     */
+    OkHttpURLConnection(@NonNull URL url, @Nullable ConnectionStats stats) {
+        super(url);
+        mClient = getSharedClient();
+        mStats = stats;
+        setConnectTimeout(CONNECT_TIMEOUT);
+        setReadTimeout(READ_TIMEOUT);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mResponse != null) return;
+
+        Request.Builder request = new Request.Builder()
+                .url(url)
+                .method(method, null);
+
+        for (Map.Entry<String, List<String>> header : getRequestProperties().entrySet()) {
+            if (header.getKey() == null) continue;
+            for (String value : header.getValue()) request.addHeader(header.getKey(), value);
+        }
+
+        if (mStats != null) request.tag(ConnectionStats.class, mStats);
+
+        OkHttpClient client = mClient;
+        if (getConnectTimeout() != client.connectTimeoutMillis()
+                || getReadTimeout() != client.readTimeoutMillis()
+                || getInstanceFollowRedirects() != client.followRedirects()) {
+            // derived clients share the connection pool
+            client = client.newBuilder()
+                    .connectTimeout(getConnectTimeout(), TimeUnit.MILLISECONDS)
+                    .readTimeout(getReadTimeout(), TimeUnit.MILLISECONDS)
+                    .followRedirects(getInstanceFollowRedirects())
+                    .build();
+        }
+
+        synchronized (this) {
+            mCall = client.newCall(request.build());
+        }
+
+        Response response = mCall.execute();
+
+        synchronized (this) {
+            mResponse = response;
+            connected = true;
+        }
+    }
+
+    /**
+     * Cancels the request. It can be called from another thread to abort a blocking read.
+     */
+    @Override
+    public synchronized void disconnect() {
+        // cancelling a completed call is a no-op, the connection stays in the pool
+        if (mCall != null) mCall.cancel();
+        if (mResponse != null) mResponse.close();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return mClient.proxy() != null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        connect();
+        return mResponse.code();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        connect();
+        return mResponse.message();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        ResponseBody body = mResponse.body();
+        if (body == null) throw new IOException("no response body");
+        return body.byteStream();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            connect();
+        } catch (IOException e) {
+            return null;
+        }
+        return mResponse.header(name);
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        try {
+            connect();
+        } catch (IOException e) {
+            return null;
+        }
+        return n < mResponse.headers().size() ? mResponse.headers().name(n) : null;
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        try {
+            connect();
+        } catch (IOException e) {
+            return null;
+        }
+        return n < mResponse.headers().size() ? mResponse.headers().value(n) : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            connect();
+        } catch (IOException e) {
+            return super.getHeaderFields();
+        }
+        return mResponse.headers().toMultimap();
+    }
+
+    @Override
+    public int getContentLength() {
+        long length = getContentLengthLong();
+        return length > Integer.MAX_VALUE ? -1 : (int) length;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        String value = getHeaderField("Content-Length");
+        if (value == null) return -1;
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
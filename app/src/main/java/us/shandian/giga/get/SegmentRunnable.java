@@ -0,0 +1,186 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import us.shandian.giga.get.DownloadMission.HttpError;
+import us.shandian.giga.get.SegmentedMission.Segment;
+import us.shandian.giga.util.Utility;
+
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
+
+/**
+ * Runnable to download segments of a {@link SegmentedMission} until all segments are
+ * downloaded, an error occurs or the process is stopped. A failed segment is resumed from
+ * where it stopped, like the blocks of {@link DownloadRunnable}.
+ */
+public class SegmentRunnable extends MissionTask {
+    private static final String TAG = "SegmentRunnable";
+
+    private final SegmentedMission mMission;
+    private final int mId;
+
+    private HttpURLConnection mConn;
+
+    SegmentRunnable(SegmentedMission mission, int id) {
+        mMission = Objects.requireNonNull(mission);
+        mId = id;
+    }
+
+    @Override
+    public void run() {
+        boolean retry = false;
+        Segment segment = null;
+        int retryCount = 0;
+        byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
+        SharpStream f;
+
+        try {
+            // not loaded yet if the mission was resumed after restarting the app
+            mMission.loadSegments();
+        } catch (Exception e) {
+            if (mMission.running) mMission.notifyError(e);
+            return;
+        }
+
+        try {
+            f = mMission.storage.getStream();
+        } catch (IOException e) {
+            mMission.notifyError(e);// this never should happen
+            return;
+        }
+
+        while (mMission.running && !isCancelled() && mMission.errCode == DownloadMission.ERROR_NOTHING) {
+            if (!retry) {
+                segment = mMission.acquireSegment();
+            }
+
+            if (segment == null) {
+                if (DEBUG) Log.d(TAG, mId + ":no more segments left, exiting");
+                break;
+            }
+
+            if (DEBUG) {
+                Log.d(TAG, mId + ":segment " + segment.index + " done=" + segment.size + " direct=" + segment.direct);
+            }
+
+            try {
+                mConn = mMission.openConnection(segment.url, false, segment.size > 0 ? segment.size : -1, -1);
+                mMission.establishConnection(mId, mConn);
+
+                int statusCode = mConn.getResponseCode();
+                if (segment.size > 0 && statusCode != 206) {
+                    // the server can not resume, download the whole segment again
+                    mMission.notifyProgress(-segment.size);
+                    segment.size = 0;
+
+                    if (statusCode != 200) {
+                        retry = true;
+                        mConn.disconnect();
+                        continue;
+                    }
+                } else if (statusCode == 416) {
+                    throw new HttpError(416);
+                }
+
+                retry = false;
+
+                long contentLength = Utility.getContentLength(mConn);
+                long expected = contentLength < 0 ? -1 : segment.size + contentLength;
+
+                if (segment.direct) {
+                    f.seek(segment.position + segment.size);
+                } else if (segment.buffer == null) {
+                    // one byte more, so reading the end does not grow the buffer
+                    segment.buffer = new byte[contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength + 1 : DownloadMission.BUFFER_SIZE];
+                }
+
+                try (InputStream is = mConn.getInputStream()) {
+                    int len;
+                    while (mMission.running) {
+                        if (segment.direct) {
+                            if ((len = is.read(buf, 0, buf.length)) == -1) break;
+                            f.write(buf, 0, len);
+                        } else {
+                            if (segment.size == segment.buffer.length)
+                                segment.buffer = Arrays.copyOf(segment.buffer, segment.size * 2);
+
+                            len = is.read(segment.buffer, segment.size, segment.buffer.length - segment.size);
+                            if (len == -1) break;
+                        }
+
+                        segment.size += len;
+                        mMission.addProgress(mId, len);
+                        mMission.throttle(len);
+                    }
+                }
+
+                if (!mMission.running) break;
+
+                if (expected >= 0 && segment.size < expected) {
+                    throw new IOException("segment " + segment.index + " ended at " + segment.size + " of " + expected);
+                }
+            } catch (Exception e) {
+                if (!mMission.running || isCancelled() || e instanceof ClosedByInterruptException) break;
+
+                if (e instanceof HttpError && ((HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
+                    // the segment urls have expired. The threads wait for the segments of each
+                    // other, so any thread stops the mission, the others are woken up
+                    mMission.notifyError(ERROR_HTTP_FORBIDDEN, null);
+                    break;
+                }
+
+                if (retryCount++ >= mMission.maxRetry) {
+                    mMission.notifyError(e);
+                    break;
+                }
+
+                retry = true;
+                continue;
+            }
+
+            try {
+                mMission.commitSegment(segment, f);
+            } catch (IOException e) {
+                mMission.notifyError(e);
+                break;
+            }
+        }
+
+        f.close();
+
+        if (DEBUG) {
+            Log.d(TAG, "thread " + mId + " exited from main download loop");
+        }
+
+        if (mMission.errCode == DownloadMission.ERROR_NOTHING && mMission.running && !isCancelled()) {
+            if (DEBUG) {
+                Log.d(TAG, "no error has happened, notifying");
+            }
+            mMission.notifyFinished();
+        }
+
+        if (DEBUG && !mMission.running) {
+            Log.d(TAG, "The mission has been paused. Passing.");
+        }
+    }
+
+    @Override
+    protected void onCancel() {
+        try {
+            if (mConn != null) mConn.disconnect();
+        } catch (Exception e) {
+            // nothing to do
+        }
+    }
+
+}
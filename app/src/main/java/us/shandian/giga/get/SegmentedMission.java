@@ -0,0 +1,330 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import us.shandian.giga.postprocessing.Postprocessing;
+import us.shandian.giga.util.StripedCounter;
+
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+
+/**
+ * Mission of segmented resources (HLS), every url is a playlist listing the segment urls of
+ * the resource.
+ * <p>
+ * The playlists are read once, when the mission starts, and the segment lists are saved next
+ * to the mission metadata (see {@link MissionJournal#writeSegments}), the lists are large so
+ * they are not part of the mission itself.
+ * <p>
+ * Segments are downloaded in parallel by {@link SegmentRunnable} and written in order, so
+ * their lengths are not required before downloading. The first unwritten segment goes
+ * straight to the file, the following ones are kept in memory until the previous segments are
+ * written, at most {@link #SEGMENTS_AHEAD_PER_THREAD} per thread.
+ * <p>
+ * Only written segments are saved, segments being downloaded when the mission is paused are
+ * downloaded again.
+ */
+public class SegmentedMission extends DownloadMission {
+    private static final long serialVersionUID = 1L;
+
+    private static final String TAG = "SegmentedMission";
+
+    /**
+     * Amount of segments every thread can download ahead of the first unwritten segment
+     */
+    private static final int SEGMENTS_AHEAD_PER_THREAD = 2;
+
+    /**
+     * The segment urls of every resource, in order, loaded by {@link #loadSegments()}
+     */
+    transient volatile String[][] segments;
+
+    private final transient Object segmentsLock = new Object();
+
+    /**
+     * Amount of segments of the current resource written to the file
+     */
+    int nextSegment;
+
+    /**
+     * Length of the current resource written to the file
+     */
+    long committedLength;
+
+    /**
+     * Segments not acquired by any thread
+     */
+    private transient ArrayDeque<Integer> freeSegments;
+
+    /**
+     * Downloaded segments waiting for the previous segments to be written
+     */
+    private transient HashMap<Integer, Segment> completedSegments;
+
+    /**
+     * @param urls       the HLS playlist of every resource
+     * @param storage    where the resources are written
+     * @param kind       type of the resources
+     * @param psInstance postprocessing algorithm, {@code null} to write the resources as they are
+     */
+    public SegmentedMission(String[] urls, StoredFileHelper storage, char kind, Postprocessing psInstance) {
+        super(urls, storage, kind, psInstance);
+    }
+
+    @Override
+    void initializer() {
+        // the playlist is downloaded, do not block the caller
+        init = runAsync(DownloadInitializer.mId, MissionTask.of(this::prepareResource));
+    }
+
+    /**
+     * Read the segments of the current resource, the segment lengths are known once
+     * downloaded so there is nothing to probe
+     */
+    private void prepareResource() {
+        try {
+            loadSegments();
+        } catch (Exception e) {
+            if (running) notifyError(e);
+            return;
+        }
+
+        if (!running || Thread.interrupted()) return;
+
+        synchronized (LOCK) {
+            blocks = new int[segments[current].length];
+            nextSegment = 0;
+            committedLength = 0;
+            length = 0;
+        }
+
+        if (current == 0 && psAlgorithm != null && psAlgorithm.reserveSpace) {
+            offsets[0] = DownloadInitializer.RESERVE_SPACE_DEFAULT;
+        }
+
+        running = false;
+        start();
+    }
+
+    /**
+     * Load the segment lists, saved with the mission metadata or read from the playlists the
+     * first time. Does nothing if already loaded.
+     *
+     * @throws IOException if a playlist can not be downloaded or is not supported
+     * @throws HttpError   if the server responds with an error
+     */
+    void loadSegments() throws IOException, HttpError {
+        if (segments != null) return;
+
+        synchronized (segmentsLock) {
+            if (segments != null) return;
+
+            String[][] lists = MissionJournal.readSegments(metadata);
+            if (lists == null || lists.length != urls.length) {
+                lists = new String[urls.length][];
+                for (int i = 0; i < urls.length; i++) lists[i] = HlsPlaylist.fetchSegments(this, urls[i]);
+
+                if (metadata != null) MissionJournal.writeSegments(metadata, lists);
+            }
+
+            segments = lists;
+        }
+    }
+
+    @Override
+    void startThreads() {
+        int total = blocks.length;
+        updateLength();
+
+        if (nextSegment >= total) {
+            threads = new MissionTask[0];
+            notifyFinished();
+            return;
+        }
+
+        resetSegments();
+
+        synchronized (this) {
+            // segments kept in memory are lost when paused, count only the written ones
+            done = offsets[current] - offsets[0] + committedLength;
+        }
+
+        int count = Math.min(getMaxConnections(), total - nextSegment);
+        threads = new MissionTask[count];
+        pendingProgress = new StripedCounter(count);
+        startProgressReporter();
+
+        writeThisToFileAsync();
+
+        for (int i = 0; i < count; i++) {
+            threads[i] = runAsync(i + 1, new SegmentRunnable(this, i));
+        }
+    }
+
+    /**
+     * Make every unwritten segment of the current resource available to the threads
+     */
+    void resetSegments() {
+        synchronized (LOCK) {
+            freeSegments = new ArrayDeque<>(blocks.length - nextSegment);
+            for (int i = nextSegment; i < blocks.length; i++) freeSegments.add(i);
+            completedSegments = new HashMap<>();
+        }
+    }
+
+    /**
+     * Acquire the next segment to download, waits if the thread is too far ahead of the first
+     * unwritten segment. The segments must be loaded, see {@link #loadSegments()}.
+     *
+     * @return the segment or {@code null} if no more segments left or the mission was paused
+     */
+    @Nullable
+    Segment acquireSegment() {
+        synchronized (LOCK) {
+            while (running) {
+                Integer index = freeSegments.peek();
+                if (index == null) return null;
+
+                if (index < nextSegment + threadCount * SEGMENTS_AHEAD_PER_THREAD) {
+                    freeSegments.poll();
+
+                    Segment segment = new Segment(index, segments[current][index]);
+                    if (index == nextSegment) {
+                        // the previous segments are written, the position is known
+                        segment.direct = true;
+                        segment.position = offsets[current] + committedLength;
+                    }
+                    return segment;
+                }
+
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Write a downloaded segment and the following downloaded segments, or keep it until the
+     * previous segments are written. Only one thread writes at once, the one holding the
+     * first unwritten segment.
+     *
+     * @param segment the downloaded segment
+     * @param f       stream of the calling thread
+     * @throws IOException if the segments can not be written
+     */
+    void commitSegment(@NonNull Segment segment, @NonNull SharpStream f) throws IOException {
+        synchronized (LOCK) {
+            if (segment.index != nextSegment) {
+                completedSegments.put(segment.index, segment);
+                return;
+            }
+        }
+
+        while (segment != null) {
+            if (!segment.direct) {
+                f.seek(offsets[current] + committedLength);
+                f.write(segment.buffer, 0, segment.size);
+            }
+
+            synchronized (LOCK) {
+                committedLength += segment.size;
+                blocks[segment.index] = -1;
+                nextSegment++;
+                appendToJournal(MissionJournal.RECORD_SEGMENT, nextSegment, committedLength);
+
+                segment = completedSegments.remove(nextSegment);
+                LOCK.notifyAll();
+            }
+        }
+
+        updateLength();
+
+        if (nextSegment >= blocks.length && f.canSetLength()) {
+            // drop anything left from a segment downloaded before pausing
+            f.setLength(offsets[current] + committedLength);
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "written " + nextSegment + "/" + blocks.length + " segments");
+        }
+    }
+
+    /**
+     * Estimate the length of the current resource from the written segments, the length is
+     * exact once all segments are written
+     */
+    private void updateLength() {
+        int total = blocks.length;
+        if (nextSegment >= total)
+            length = committedLength;
+        else if (nextSegment > 0)
+            length = committedLength / nextSegment * total;
+    }
+
+    /**
+     * Restore the written segments, replayed from the journal
+     *
+     * @param count  amount of segments written
+     * @param length length of the current resource written
+     */
+    void restoreSegments(int count, long length) {
+        if (blocks == null || count < 0 || count > blocks.length) return;
+
+        for (int i = nextSegment; i < count; i++) blocks[i] = -1;
+        nextSegment = count;
+        committedLength = length;
+    }
+
+    @Override
+    public void resetState(boolean rollback, boolean persistChanges, int errorCode) {
+        nextSegment = 0;
+        committedLength = 0;
+        super.resetState(rollback, persistChanges, errorCode);
+    }
+
+    @Override
+    void doRecover(int errorCode) {
+        // the recovery renews single urls, an expired segment list can not be renewed
+        Log.i(TAG, "Segments expired, the mission can not be recovered: " + storage.getName());
+        notifyError(errorCode, null);
+        urls = new String[0];// mark this mission as dead
+    }
+
+    static class Segment {
+        final int index;
+        final String url;
+
+        /**
+         * Written straight to the file at {@link #position}, otherwise, kept in
+         * {@link #buffer} until the previous segments are written
+         */
+        boolean direct;
+        long position;
+
+        byte[] buffer;
+
+        /**
+         * Amount of bytes downloaded
+         */
+        int size;
+
+        Segment(int index, String url) {
+            this.index = index;
+            this.url = url;
+        }
+    }
+}
@@ -3,9 +3,12 @@ package us.shandian.giga.io;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
 public class ChunkFileInputStream extends SharpStream {
     private static final int REPORT_INTERVAL = 256 * 1024;
+    private static final int MAP_WINDOW_SIZE = 4 * 1024 * 1024;// 4 MiB
 
     private SharpStream source;
     private final long offset;
@@ -15,6 +18,17 @@ public class ChunkFileInputStream extends SharpStream {
     private long progressReport;
     private final ProgressReport onProgress;
 
+    private DownloadedLength downloaded;
+    private long readable = Long.MAX_VALUE;
+
+    /**
+     * Region of the chunk mapped in memory, local files are read from it without a system call
+     * per read. The window moves forward as the chunk is read.
+     */
+    private boolean mapped;
+    private MappedByteBuffer window;
+    private long windowStart;
+
     public ChunkFileInputStream(SharpStream target, long start, long end, ProgressReport callback) throws IOException {
         source = target;
         offset = start;
@@ -36,6 +50,17 @@ public class ChunkFileInputStream extends SharpStream {
         }
 
         source.seek(offset);
+        mapped = source instanceof FileStream;
+    }
+
+    /**
+     * Read a chunk which is still being downloaded, reads block until the requested data arrives
+     *
+     * @param callback the downloaded length of the file, or {@code null} if the chunk is complete
+     */
+    public void setDownloadedLength(DownloadedLength callback) {
+        downloaded = callback;
+        readable = callback == null ? Long.MAX_VALUE : 0;
     }
 
     /**
@@ -52,8 +77,15 @@ public class ChunkFileInputStream extends SharpStream {
         if ((position + 1) > length) {
             return 0;
         }
+        if (position >= readable) waitForDownload(position);
+
+        int res;
+        if (mapped && moveWindow(offset + position)) {
+            res = window.get((int) (offset + position - windowStart)) & 0xFF;
+        } else {
+            res = source.read();
+        }
 
-        int res = source.read();
         if (res >= 0) {
             position++;
         }
@@ -74,8 +106,9 @@ public class ChunkFileInputStream extends SharpStream {
         if (len == 0) {
             return 0;
         }
+        if ((position + len) > readable) waitForDownload(position + len - 1);
 
-        int res = source.read(b, off, len);
+        int res = mapped ? readMapped(b, off, len) : source.read(b, off, len);
         position += res;
 
         if (onProgress != null && position > progressReport) {
@@ -86,6 +119,78 @@ public class ChunkFileInputStream extends SharpStream {
         return res;
     }
 
+    private int readMapped(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+
+        while (total < len) {
+            if (!moveWindow(offset + position + total)) {
+                // continue with the regular reads
+                int res = source.read(b, off + total, len - total);
+                return res < 0 && total < 1 ? res : total + Math.max(res, 0);
+            }
+
+            int index = (int) (offset + position + total - windowStart);
+            int count = Math.min(len - total, window.limit() - index);
+
+            window.position(index);
+            window.get(b, off + total, count);
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Map the region starting at a position, if not mapped yet
+     *
+     * @param absolute absolute position on file
+     * @return {@code true} if the position is mapped, {@code false} if the file can not be
+     * mapped, the source is placed at the position to continue with the regular reads
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean moveWindow(long absolute) throws IOException {
+        if (window != null && absolute >= windowStart && absolute < windowStart + window.limit()) {
+            return true;
+        }
+
+        // drop the previous region first, mapping can fail if the address space is exhausted
+        window = null;
+
+        try {
+            window = ((FileStream) source).map(absolute, Math.min(MAP_WINDOW_SIZE, offset + length - absolute));
+            windowStart = absolute;
+            return true;
+        } catch (IOException e) {
+            mapped = false;
+            source.seek(absolute);
+            return false;
+        }
+    }
+
+    /**
+     * Map the rest of the chunk at once, only a local file already downloaded and smaller than
+     * 2 GiB can be mapped
+     *
+     * @return the rest of the chunk, or {@code null} if it can not be mapped
+     */
+    @Override
+    public ByteBuffer mapRemaining() {
+        long size = length - position;
+        if (downloaded != null || !(source instanceof FileStream) || size > Integer.MAX_VALUE) return null;
+
+        try {
+            return ((FileStream) source).map(offset + position, size);
+        } catch (IOException e) {
+            // the address space can be exhausted, read through the stream instead
+            return null;
+        }
+    }
+
+    private void waitForDownload(long last) throws IOException {
+        // never return less than requested, the readers treat short reads as truncated files
+        readable = downloaded.waitFor(offset + last) - offset;
+    }
+
     @Override
     public long skip(long pos) throws IOException {
         pos = Math.min(pos + position, length);
@@ -110,6 +215,7 @@ public class ChunkFileInputStream extends SharpStream {
     @SuppressWarnings("EmptyCatchBlock")
     @Override
     public void close() {
+        window = null;
         source.close();
         source = null;
     }
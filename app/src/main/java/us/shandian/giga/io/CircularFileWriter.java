@@ -7,6 +7,7 @@ import org.schabi.newpipe.streams.io.SharpStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.Objects;
 
 public class CircularFileWriter extends SharpStream {
@@ -53,24 +54,11 @@ public class CircularFileWriter extends SharpStream {
         aux.flush();
 
         boolean underflow = aux.offset < aux.length || out.offset < out.length;
-        byte[] buffer = new byte[COPY_BUFFER_SIZE];
 
         aux.target.seek(0);
         out.target.seek(out.length);
 
-        long length = amount;
-        while (length > 0) {
-            int read = (int) Math.min(length, Integer.MAX_VALUE);
-            read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
-
-            if (read < 1) {
-                amount -= length;
-                break;
-            }
-
-            out.writeProof(buffer, read);
-            length -= read;
-        }
+        amount = out.copyFrom(aux.target, amount);
 
         if (underflow) {
             if (out.offset >= out.length) {
@@ -101,9 +89,10 @@ public class CircularFileWriter extends SharpStream {
             // move the excess data to the beginning of the file
             long readOffset = amount;
             long writeOffset = 0;
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
 
             aux.length -= amount;
-            length = aux.length;
+            long length = aux.length;
             while (length > 0) {
                 int read = (int) Math.min(length, Integer.MAX_VALUE);
                 read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
@@ -448,6 +437,56 @@ public class CircularFileWriter extends SharpStream {
             target.seek(absoluteOffset);
         }
 
+        /**
+         * Copy data from the current position of another stream. If both streams are local
+         * files the kernel moves the data, otherwise, it is copied through a buffer.
+         *
+         * @param source the stream to read
+         * @param amount amount of bytes to copy
+         * @return amount of bytes copied, less than requested if the source ends first
+         * @throws IOException if an I/O error occurs
+         */
+        long copyFrom(SharpStream source, long amount) throws IOException {
+            if (!(source instanceof FileChannelProvider) || !(target instanceof FileChannelProvider)) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                long copied = 0;
+
+                while (copied < amount) {
+                    int read = source.read(buffer, 0, (int) Math.min(amount - copied, buffer.length));
+                    if (read < 1) break;
+
+                    writeProof(buffer, read);
+                    copied += read;
+                }
+
+                return copied;
+            }
+
+            FileChannel input = ((FileChannelProvider) source).getChannel();
+            FileChannel output = ((FileChannelProvider) target).getChannel();
+            long inputStart = input.position();
+            long outputStart = output.position();
+            long copied = 0;
+
+            while (copied < amount) {
+                long count;
+                try {
+                    // restore the position, a failed transfer can write partially
+                    output.position(outputStart + copied);
+                    count = input.transferTo(inputStart + copied, amount - copied, output);
+                } catch (IOException e) {
+                    if (onWriteError == null || !onWriteError.handle(e)) throw e;
+                    continue;
+                }
+
+                if (count < 1) break;// end of the source
+                copied += count;
+            }
+
+            input.position(inputStart + copied);
+            return copied;
+        }
+
         void writeProof(byte[] buffer, int length) throws IOException {
             if (onWriteError == null) {
                 target.write(buffer, 0, length);
@@ -0,0 +1,16 @@
+package us.shandian.giga.io;
+
+import java.io.IOException;
+
+public interface DownloadedLength {
+
+    /**
+     * Wait until the file is downloaded beyond a position
+     *
+     * @param position absolute position on file
+     * @return the absolute position on file where the downloaded data ends, greater than the
+     * given position
+     * @throws IOException if the download can not be completed or the thread was interrupted
+     */
+    long waitFor(long position) throws IOException;
+}
@@ -0,0 +1,18 @@
+package us.shandian.giga.io;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by streams over a local file, used to move data between files with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} instead
+ * of copying it through a buffer.
+ */
+public interface FileChannelProvider {
+
+    /**
+     * Get the channel of the file, its position is the position of the stream
+     *
+     * @return the channel
+     */
+    FileChannel getChannel();
+}
@@ -8,46 +8,82 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
+ * Stream over a local file, reads and writes go straight to its {@link FileChannel}
+ *
  * @author kapodamy
  */
-public class FileStream extends SharpStream {
+public class FileStream extends SharpStream implements FileChannelProvider {
 
-    public RandomAccessFile source;
+    private RandomAccessFile source;
+    private FileChannel channel;
+    private final ByteBuffer single = ByteBuffer.allocate(1);
 
     public FileStream(@NonNull File target) throws FileNotFoundException {
         this.source = new RandomAccessFile(target, "rw");
+        this.channel = source.getChannel();
     }
 
     public FileStream(@NonNull String path) throws FileNotFoundException {
         this.source = new RandomAccessFile(path, "rw");
+        this.channel = source.getChannel();
+    }
+
+    @Override
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Map a region of the file in memory, read-only
+     *
+     * @param position absolute position on file where the region starts
+     * @param size     size of the region
+     * @return the mapped region, changes made to the file through other streams are visible
+     * @throws IOException if the region can not be mapped
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
     }
 
     @Override
     public int read() throws IOException {
-        return source.read();
+        single.clear();
+        if (channel.read(single) < 1) return -1;
+        return single.get(0) & 0xFF;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        return source.read(b);
+        return read(b, 0, b.length);
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        return source.read(b, off, len);
+        if (len == 0) return 0;
+        return channel.read(ByteBuffer.wrap(b, off, len));
     }
 
     @Override
     public long skip(long pos) throws IOException {
-        return source.skipBytes((int) pos);
+        if (pos <= 0) return 0;
+
+        long position = channel.position();
+        long target = Math.min(position + pos, channel.size());
+        if (target <= position) return 0;
+
+        channel.position(target);
+        return target - position;
     }
 
     @Override
     public long available() {
         try {
-            return source.length() - source.getFilePointer();
+            return channel.size() - channel.position();
         } catch (IOException e) {
             return 0;
         }
@@ -62,6 +98,7 @@ public class FileStream extends SharpStream {
             // nothing to do
         }
         source = null;
+        channel = null;
     }
 
     @Override
@@ -71,7 +108,7 @@ public class FileStream extends SharpStream {
 
     @Override
     public void rewind() throws IOException {
-        source.seek(0);
+        channel.position(0);
     }
 
     @Override
@@ -101,31 +138,38 @@ public class FileStream extends SharpStream {
 
     @Override
     public void write(byte value) throws IOException {
-        source.write(value);
+        single.clear();
+        single.put(0, value);
+        writeFully(single);
     }
 
     @Override
     public void write(byte[] buffer) throws IOException {
-        source.write(buffer);
+        write(buffer, 0, buffer.length);
     }
 
     @Override
     public void write(byte[] buffer, int offset, int count) throws IOException {
-        source.write(buffer, offset, count);
+        writeFully(ByteBuffer.wrap(buffer, offset, count));
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
     }
 
     @Override
     public void setLength(long length) throws IOException {
+        // unlike FileChannel.truncate() this also extends the file
         source.setLength(length);
     }
 
     @Override
     public void seek(long offset) throws IOException {
-        source.seek(offset);
+        channel.position(offset);
     }
 
     @Override
     public long length() throws IOException {
-        return source.length();
+        return channel.size();
     }
 }
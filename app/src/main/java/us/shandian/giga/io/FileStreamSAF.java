@@ -14,7 +14,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 
-public class FileStreamSAF extends SharpStream {
+public class FileStreamSAF extends SharpStream implements FileChannelProvider {
 
     private final FileInputStream in;
     private final FileOutputStream out;
@@ -40,6 +40,11 @@ public class FileStreamSAF extends SharpStream {
         channel = out.getChannel();// or use in.getChannel()
     }
 
+    @Override
+    public FileChannel getChannel() {
+        return channel;
+    }
+
     @Override
     public int read() throws IOException {
         return in.read();
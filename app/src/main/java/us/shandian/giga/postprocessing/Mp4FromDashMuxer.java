@@ -14,11 +14,19 @@ class Mp4FromDashMuxer extends Postprocessing {
         super(true, true, ALGORITHM_MP4_FROM_DASH_MUXER);
     }
 
+    @Override
+    public boolean canRunWhileDownloading() {
+        // the sample tables of every track are read before writing, the output can not start
+        // until the whole download is read
+        return false;
+    }
+
     @Override
     int process(SharpStream out, SharpStream... sources) throws IOException {
         Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
         muxer.parseSources();
         muxer.selectTracks(0, 0);
+        muxer.setFirstSourceOffset(getFirstSourceOffset());
         muxer.build(out);
 
         return OK_RESULT;
@@ -70,6 +70,14 @@ public abstract class Postprocessing implements Serializable {
      */
     public boolean reserveSpace;
 
+    /**
+     * @return {@code true} if the algorithm gains from running while the last resource is
+     * downloaded, it must read the resources in order and work on the same file
+     */
+    public boolean canRunWhileDownloading() {
+        return worksOnSameFile;
+    }
+
     /**
      * Gets the given algorithm short name
      */
@@ -85,7 +93,7 @@ public abstract class Postprocessing implements Serializable {
     Postprocessing(boolean reserveSpace, boolean worksOnSameFile, String algorithmName) {
         this.reserveSpace = reserveSpace;
         this.worksOnSameFile = worksOnSameFile;
-        this.name = algorithmName;// for debugging only
+        this.name = algorithmName;
     }
 
     public void setTemporalDir(@NonNull File directory) {
@@ -111,12 +119,17 @@ public abstract class Postprocessing implements Serializable {
         int result;
         long finalLength = -1;
 
-        mission.done = 0;
+        // while downloading, the mission progress belongs to the download
+        boolean pipelined = mission.isPsPipelined();
+
+        if (!pipelined) {
+            mission.done = 0;
 
-        long length = mission.storage.length() - mission.offsets[0];
-        mission.length = Math.max(length, mission.nearLength);
+            long length = mission.storage.length() - mission.offsets[0];
+            mission.length = Math.max(length, mission.nearLength);
+        }
 
-        final ProgressReport readProgress = (long position) -> {
+        final ProgressReport readProgress = pipelined ? null : (long position) -> {
             position -= mission.offsets[0];
             if (position > mission.done) mission.done = position;
         };
@@ -131,10 +144,18 @@ public abstract class Postprocessing implements Serializable {
                     sources[i] = new ChunkFileInputStream(source, mission.offsets[i], end, readProgress);
                 }
 
+                // the last resource is still downloading, the file is already allocated
+                if (pipelined) sources[sources.length - 1].setDownloadedLength(mission::waitForDownload);
+
                 if (test(sources)) {
                     for (SharpStream source : sources) source.rewind();
 
                     OffsetChecker checker = () -> {
+                        // keep the downloaded resources untouched until the download ends, so
+                        // a paused or failed mission can run the post-processing again
+                        if (pipelined && !mission.isDownloadCompleted())
+                            return Math.max(mission.offsets[0] - 1, 0);
+
                         for (ChunkFileInputStream source : sources) {
                             /*
                              * WARNING: never use rewind() in any chunk after any writing (especially on first chunks)
@@ -152,7 +173,7 @@ public abstract class Postprocessing implements Serializable {
 
                     try (CircularFileWriter out = new CircularFileWriter(
                             mission.storage.getStream(), tempFile, checker)) {
-                        out.onProgress = (long position) -> mission.done = position;
+                        if (!pipelined) out.onProgress = (long position) -> mission.done = position;
 
                         out.onWriteError = err -> {
                             mission.psState = 3;
@@ -173,8 +194,14 @@ public abstract class Postprocessing implements Serializable {
 
                         result = process(out, sources);
 
-                        if (result == OK_RESULT)
+                        if (result == OK_RESULT) {
+                            // the algorithm can end without reading the whole last resource,
+                            // finalizing writes over it and truncates the file, so the
+                            // download must be done first
+                            if (pipelined) mission.waitForDownload(Long.MAX_VALUE);
+
                             finalLength = out.finalizeFile();
+                        }
                     }
                 } else {
                     result = OK_RESULT;
@@ -188,7 +215,6 @@ public abstract class Postprocessing implements Serializable {
                 if (tempFile != null) {
                     //noinspection ResultOfMethodCallIgnored
                     tempFile.delete();
-                    tempFile = null;
                 }
             }
         } else {
@@ -230,6 +256,28 @@ public abstract class Postprocessing implements Serializable {
      */
     abstract int process(SharpStream out, SharpStream... sources) throws IOException;
 
+    /**
+     * @return offset of the first source in the file, the output is written over the sources
+     * from the beginning of the file
+     */
+    long getFirstSourceOffset() {
+        return mission.offsets[0];
+    }
+
+    /**
+     * @return the algorithm name, see {@link #getAlgorithm(String, String[])}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the algorithm arguments, see {@link #getAlgorithm(String, String[])}
+     */
+    public String[] getArgs() {
+        return args;
+    }
+
     String getArgumentAt(int index, String defaultValue) {
         if (args == null || index >= args.length) {
             return defaultValue;
@@ -0,0 +1,208 @@
+package us.shandian.giga.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import us.shandian.giga.get.DownloadMission;
+import us.shandian.giga.util.FairShare;
+
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+
+/**
+ * Shares a total connection and bandwidth budget between the running missions.
+ * <p>
+ * Every {@link #INTERVAL} the rate achieved by each mission is measured and the budget is split
+ * again in proportion to the mission priority. A mission using less bandwidth than its share
+ * leaves the rest to the others. Nothing is split while the current network does not allow
+ * downloads, {@link DownloadManager} pauses and resumes the missions on network changes.
+ */
+class BandwidthScheduler {
+    private static final String TAG = "BandwidthScheduler";
+
+    /**
+     * Milliseconds between measuring the missions and splitting the budget
+     */
+    private static final long INTERVAL = 1000;
+
+    /**
+     * A mission below its bandwidth share can grow this much before its share is lowered
+     */
+    private static final double RATE_HEADROOM = 1.25;
+
+    /**
+     * Lowest bandwidth given to a mission, in bytes per second
+     */
+    private static final long MINIMUM_RATE = 32 * 1024;
+
+    /**
+     * Weight of every priority in the split, a high priority mission gets three shares
+     */
+    private static final double[] PRIORITY_WEIGHTS = {1, 3};
+
+    private static final ScheduledExecutorService EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final DownloadManager mManager;
+    private final Map<DownloadMission, Sample> mSamples = new HashMap<>();
+    private ScheduledFuture<?> mTask;
+
+    BandwidthScheduler(@NonNull DownloadManager manager) {
+        mManager = manager;
+    }
+
+    /**
+     * Start splitting the budget, stops by itself once no mission is running
+     */
+    synchronized void schedule() {
+        if (mTask != null) return;
+        mTask = EXECUTOR.scheduleWithFixedDelay(this::rebalance, 0, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void cancel() {
+        if (mTask != null) mTask.cancel(false);
+        mTask = null;
+        mSamples.clear();
+    }
+
+    /**
+     * Measure the running missions and split the budget between them
+     */
+    void rebalance() {
+        // taken before locking, the download manager schedules holding its own lock
+        List<DownloadMission> running = mManager.getDownloadingMissions();
+        boolean blocked = mManager.isDownloadBlockedByNetwork();
+
+        synchronized (this) {
+            measure(running, System.nanoTime());
+
+            if (running.isEmpty()) {
+                cancel();
+                return;
+            }
+
+            // the missions are about to be paused by the network change
+            if (blocked) return;
+
+            split(running, mManager.mPrefMaxConnections, mManager.mPrefRateLimit);
+        }
+    }
+
+    private void split(List<DownloadMission> running, int maxConnections, long rateLimit) {
+        int count = running.size();
+        double[] weights = new double[count];
+        long[] connections = new long[count];
+        long[] rates = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            DownloadMission mission = running.get(i);
+            int priority = Math.max(0, Math.min(mission.priority, PRIORITY_WEIGHTS.length - 1));
+            weights[i] = PRIORITY_WEIGHTS[priority];
+            connections[i] = mission.threadCount;
+            rates[i] = getRateDemand(mission);
+        }
+
+        if (maxConnections > 0) connections = FairShare.split(maxConnections, weights, connections);
+        if (rateLimit > 0) rates = FairShare.split(rateLimit, weights, rates);
+
+        for (int i = 0; i < count; i++) {
+            DownloadMission mission = running.get(i);
+
+            // every mission keeps one connection, even if the budget is lower than the missions
+            mission.setConnectionBudget(maxConnections > 0 ? (int) Math.max(connections[i], 1) : 0);
+            mission.setRateLimit(rateLimit > 0 ? Math.max(rates[i], MINIMUM_RATE) : 0);
+        }
+
+        if (DEBUG && count > 1) {
+            StringBuilder log = new StringBuilder("budget:");
+            for (int i = 0; i < count; i++) {
+                DownloadMission mission = running.get(i);
+                log.append(' ').append(mission.storage.getName()).append('=')
+                        .append(maxConnections > 0 ? connections[i] : mission.threadCount).append("c/")
+                        .append(mission.getRateLimit() / 1024).append("KiB/s (")
+                        .append(mission.achievedRate / 1024).append("KiB/s)");
+            }
+            Log.d(TAG, log.toString());
+        }
+    }
+
+    /**
+     * Update the achieved rate of the running missions, and forget the stopped ones
+     */
+    private void measure(List<DownloadMission> running, long now) {
+        Iterator<Map.Entry<DownloadMission, Sample>> iterator = mSamples.entrySet().iterator();
+        while (iterator.hasNext()) {
+            DownloadMission mission = iterator.next().getKey();
+            if (!running.contains(mission)) {
+                // a mission started again runs unbounded until the next split
+                mission.setConnectionBudget(0);
+                mission.setRateLimit(0);
+                mission.achievedRate = 0;
+                iterator.remove();
+            }
+        }
+
+        for (DownloadMission mission : running) {
+            Sample sample = mSamples.get(mission);
+            long done = mission.done;
+
+            if (sample == null) {
+                sample = new Sample();
+                mSamples.put(mission, sample);
+            } else if (now > sample.time && done >= sample.done) {
+                long rate = (done - sample.done) * 1000000000L / (now - sample.time);
+                // smooth the bursts of the progress reporter
+                mission.achievedRate = mission.achievedRate < 1 ? rate : (mission.achievedRate + rate) / 2;
+                sample.measured = true;
+            }
+
+            sample.done = done;
+            sample.time = now;
+        }
+    }
+
+    /**
+     * @return the bandwidth the mission can use, unbounded if the mission is using all of its
+     * share or was not measured yet
+     */
+    private long getRateDemand(DownloadMission mission) {
+        Sample sample = mSamples.get(mission);
+        if (sample == null || !sample.measured) return Long.MAX_VALUE;
+
+        long limit = mission.getRateLimit();
+        long achieved = mission.achievedRate;
+        if (limit < 1 || achieved * RATE_HEADROOM >= limit) return Long.MAX_VALUE;
+
+        return Math.max((long) (achieved * RATE_HEADROOM), MINIMUM_RATE);
+    }
+
+    /**
+     * Gets the achieved rate of every running mission
+     *
+     * @return the running missions and their bytes per second
+     */
+    synchronized Map<DownloadMission, Long> getAchievedRates() {
+        Map<DownloadMission, Long> rates = new HashMap<>(mSamples.size());
+        for (DownloadMission mission : mSamples.keySet()) rates.put(mission, mission.achievedRate);
+        return rates;
+    }
+
+    private static class Sample {
+        long done;
+        long time;
+        boolean measured;
+    }
+}
@@ -14,10 +14,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 import us.shandian.giga.get.DownloadMission;
 import us.shandian.giga.get.FinishedMission;
 import us.shandian.giga.get.Mission;
+import us.shandian.giga.get.MissionJournal;
+import us.shandian.giga.get.MissionTask;
 import us.shandian.giga.get.sqlite.FinishedMissionStore;
 import org.schabi.newpipe.streams.io.StoredDirectoryHelper;
 import org.schabi.newpipe.streams.io.StoredFileHelper;
@@ -51,7 +54,22 @@ public class DownloadManager {
     int mPrefMaxRetry;
     boolean mPrefMeteredDownloads;
     boolean mPrefQueueLimit;
+    boolean mPrefPipelinedPostprocessing;
+
+    /**
+     * Connections and bytes per second shared by all running missions, 0 if not limited
+     */
+    int mPrefMaxConnections;
+    long mPrefRateLimit;
+
+    /**
+     * Bounds of the block size and of the bytes requested at once by every mission
+     */
+    int mPrefMinBlockSize = DownloadMission.DEFAULT_MIN_BLOCK_SIZE;
+    int mPrefMaxRequestSize = DownloadMission.DEFAULT_MAX_REQUEST_SIZE;
+
     private boolean mSelfMissionsControl;
+    private final BandwidthScheduler mScheduler = new BandwidthScheduler(this);
 
     StoredDirectoryHelper mMainStorageAudio;
     StoredDirectoryHelper mMainStorageVideo;
@@ -146,16 +164,17 @@ public class DownloadManager {
 
         for (File sub : subs) {
             if (!sub.isFile()) continue;
-            if (sub.getName().equals(".tmp")) continue;
+            if (!MissionJournal.isSnapshot(sub)) continue;
 
-            DownloadMission mis = Utility.readFromFile(sub);
+            DownloadMission mis = MissionJournal.load(sub);
             if (mis == null || mis.isFinished() || mis.hasInvalidStorage()) {
+                MissionJournal.delete(sub);
                 //noinspection ResultOfMethodCallIgnored
                 sub.delete();
                 continue;
             }
 
-            mis.threads = new Thread[0];
+            mis.threads = new MissionTask[0];
 
             boolean exists;
             try {
@@ -194,6 +213,9 @@ public class DownloadManager {
 
             mis.metadata = sub;
             mis.maxRetry = mPrefMaxRetry;
+            mis.pipelinedPostprocessing = mPrefPipelinedPostprocessing;
+            mis.minBlockSize = mPrefMinBlockSize;
+            mis.maxRequestSize = mPrefMaxRequestSize;
             mis.mHandler = mHandler;
 
             mMissionsPending.add(mis);
@@ -213,6 +235,9 @@ public class DownloadManager {
             mission.timestamp = System.currentTimeMillis();
             mission.mHandler = mHandler;
             mission.maxRetry = mPrefMaxRetry;
+            mission.pipelinedPostprocessing = mPrefPipelinedPostprocessing;
+            mission.minBlockSize = mPrefMinBlockSize;
+            mission.maxRequestSize = mPrefMaxRequestSize;
 
             // create metadata file
             while (true) {
@@ -233,7 +258,7 @@ public class DownloadManager {
             mMissionsPending.add(mission);
 
             // Before continue, save the metadata in case the internet connection is not available
-            Utility.writeToFile(mission.metadata, mission);
+            mission.writeThisToFile();
 
             if (mission.storage == null) {
                 // noting to do here
@@ -247,6 +272,7 @@ public class DownloadManager {
 
             if (canDownloadInCurrentNetwork() && start) {
                 mission.start();
+                mScheduler.schedule();
             }
         }
     }
@@ -255,9 +281,22 @@ public class DownloadManager {
     public void resumeMission(DownloadMission mission) {
         if (!mission.running) {
             mission.start();
+            mScheduler.schedule();
         }
     }
 
+    /**
+     * Change the share of the bandwidth given to a mission
+     *
+     * @param mission  the mission
+     * @param priority {@link DownloadMission#PRIORITY_NORMAL} or {@link DownloadMission#PRIORITY_HIGH}
+     */
+    public void setPriority(DownloadMission mission, int priority) {
+        if (mission.priority == priority) return;
+        mission.setPriority(priority);
+        if (mission.running) mScheduler.schedule();
+    }
+
     public void pauseMission(DownloadMission mission) {
         if (mission.running) {
             mission.setEnqueued(false);
@@ -378,7 +417,8 @@ public class DownloadManager {
         int count = 0;
         synchronized (this) {
             for (DownloadMission mission : mMissionsPending) {
-                if (mission.running && !mission.isPsFailed() && !mission.isFinished())
+                // a mission waiting for a worker is not running yet
+                if (mission.running && !mission.isWaitingForWorker() && !mission.isPsFailed() && !mission.isFinished())
                     count++;
             }
         }
@@ -386,17 +426,11 @@ public class DownloadManager {
         return count;
     }
 
-    public void pauseAllMissions(boolean force) {
+    public void pauseAllMissions() {
         synchronized (this) {
             for (DownloadMission mission : mMissionsPending) {
                 if (!mission.running || mission.isPsRunning() || mission.isFinished()) continue;
 
-                if (force) {
-                    // avoid waiting for threads
-                    mission.init = null;
-                    mission.threads = new Thread[0];
-                }
-
                 mission.pause();
             }
         }
@@ -410,6 +444,8 @@ public class DownloadManager {
                 mission.start();
             }
         }
+
+        mScheduler.schedule();
     }
 
     /**
@@ -445,7 +481,7 @@ public class DownloadManager {
                 if (mission.running || !mission.enqueued || mission.isFinished())
                     continue;
 
-                resumeMission(mission);
+                resumeMission(mission);// also schedules the bandwidth
                 if (mission.errCode != DownloadMission.ERROR_NOTHING) continue;
 
                 if (mPrefQueueLimit) return true;
@@ -473,6 +509,44 @@ public class DownloadManager {
         }
     }
 
+    /**
+     * @return {@code true} if the network is available but downloads are not allowed on it
+     */
+    boolean isDownloadBlockedByNetwork() {
+        return mLastNetworkStatus != NetworkState.Unavailable && !canDownloadInCurrentNetwork();
+    }
+
+    /**
+     * @return the missions downloading, without the ones running the post-processing
+     */
+    List<DownloadMission> getDownloadingMissions() {
+        synchronized (this) {
+            ArrayList<DownloadMission> list = new ArrayList<>(mMissionsPending.size());
+            for (DownloadMission mission : mMissionsPending) {
+                if (mission.running && !mission.isPsRunning() && !mission.isFinished())
+                    list.add(mission);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Gets the bytes per second downloaded by every running mission, measured by the
+     * bandwidth scheduler
+     *
+     * @return the running missions and their achieved rate
+     */
+    public Map<DownloadMission, Long> getAchievedRates() {
+        return mScheduler.getAchievedRates();
+    }
+
+    /**
+     * Split the connection and bandwidth budget again, called when it is changed
+     */
+    void updateBandwidthBudget() {
+        mScheduler.schedule();
+    }
+
     private boolean canDownloadInCurrentNetwork() {
         if (mLastNetworkStatus == NetworkState.Unavailable) return false;
         return !(mPrefMeteredDownloads && mLastNetworkStatus == NetworkState.MeteredOperating);
@@ -498,6 +572,7 @@ public class DownloadManager {
                     mission.pause();
                 } else if (!mission.running && !isMetered && mission.enqueued) {
                     mission.start();
+                    mScheduler.schedule();
                     if (mPrefQueueLimit) break;
                 }
             }
@@ -510,6 +585,22 @@ public class DownloadManager {
         }
     }
 
+    void updatePipelinedPostprocessing() {
+        synchronized (this) {
+            for (DownloadMission mission : mMissionsPending)
+                mission.pipelinedPostprocessing = mPrefPipelinedPostprocessing;
+        }
+    }
+
+    void updateRequestSizes() {
+        synchronized (this) {
+            for (DownloadMission mission : mMissionsPending) {
+                mission.minBlockSize = mPrefMinBlockSize;
+                mission.maxRequestSize = mPrefMaxRequestSize;
+            }
+        }
+    }
+
     public MissionState checkForExistingMission(StoredFileHelper storage) {
         synchronized (this) {
             DownloadMission pending = getPendingMission(storage);
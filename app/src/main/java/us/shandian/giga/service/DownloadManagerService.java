@@ -47,6 +47,7 @@ import java.util.ArrayList;
 
 import us.shandian.giga.get.DownloadMission;
 import us.shandian.giga.get.MissionRecoveryInfo;
+import us.shandian.giga.get.SegmentedMission;
 import org.schabi.newpipe.streams.io.StoredDirectoryHelper;
 import org.schabi.newpipe.streams.io.StoredFileHelper;
 import org.schabi.newpipe.util.Localization;
@@ -81,6 +82,7 @@ public class DownloadManagerService extends Service {
     private static final String EXTRA_PARENT_PATH = "DownloadManagerService.extra.storageParentPath";
     private static final String EXTRA_STORAGE_TAG = "DownloadManagerService.extra.storageTag";
     private static final String EXTRA_RECOVERY_INFO = "DownloadManagerService.extra.recoveryInfo";
+    private static final String EXTRA_SEGMENTED = "DownloadManagerService.extra.segmented";
 
     private static final String ACTION_RESET_DOWNLOAD_FINISHED = APPLICATION_ID + ".reset_download_finished";
     private static final String ACTION_OPEN_DOWNLOADS_FINISHED = APPLICATION_ID + ".open_downloads_finished";
@@ -194,6 +196,11 @@ public class DownloadManagerService extends Service {
         handlePreferenceChange(mPrefs, getString(R.string.downloads_cross_network));
         handlePreferenceChange(mPrefs, getString(R.string.downloads_maximum_retry));
         handlePreferenceChange(mPrefs, getString(R.string.downloads_queue_limit));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_pipelined_postprocessing));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_max_connections));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_rate_limit));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_min_block_size));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_max_request_size));
 
         mLock = new LockManager(this);
     }
@@ -258,7 +265,7 @@ public class DownloadManagerService extends Service {
         if (icLauncher != null) icLauncher.recycle();
 
         mHandler = null;
-        mManager.pauseAllMissions(true);
+        mManager.pauseAllMissions();
     }
 
     @Override
@@ -352,6 +359,41 @@ public class DownloadManagerService extends Service {
             mManager.mPrefMeteredDownloads = prefs.getBoolean(key, false);
         } else if (key.equals(getString(R.string.downloads_queue_limit))) {
             mManager.mPrefQueueLimit = prefs.getBoolean(key, true);
+        } else if (key.equals(getString(R.string.downloads_pipelined_postprocessing))) {
+            mManager.mPrefPipelinedPostprocessing = prefs.getBoolean(key, false);
+            mManager.updatePipelinedPostprocessing();
+        } else if (key.equals(getString(R.string.downloads_max_connections))) {
+            try {
+                String value = prefs.getString(key, getString(R.string.downloads_max_connections_default));
+                mManager.mPrefMaxConnections = value == null ? 0 : Integer.parseInt(value);
+            } catch (Exception e) {
+                mManager.mPrefMaxConnections = 0;
+            }
+            mManager.updateBandwidthBudget();
+        } else if (key.equals(getString(R.string.downloads_rate_limit))) {
+            try {
+                String value = prefs.getString(key, getString(R.string.downloads_rate_limit_default));
+                mManager.mPrefRateLimit = value == null ? 0 : Long.parseLong(value) * 1024;
+            } catch (Exception e) {
+                mManager.mPrefRateLimit = 0;
+            }
+            mManager.updateBandwidthBudget();
+        } else if (key.equals(getString(R.string.downloads_min_block_size))) {
+            try {
+                String value = prefs.getString(key, getString(R.string.downloads_min_block_size_default));
+                mManager.mPrefMinBlockSize = Integer.parseInt(value) * 1024;
+            } catch (Exception e) {
+                mManager.mPrefMinBlockSize = DownloadMission.DEFAULT_MIN_BLOCK_SIZE;
+            }
+            mManager.updateRequestSizes();
+        } else if (key.equals(getString(R.string.downloads_max_request_size))) {
+            try {
+                String value = prefs.getString(key, getString(R.string.downloads_max_request_size_default));
+                mManager.mPrefMaxRequestSize = Integer.parseInt(value) * 1024;
+            } catch (Exception e) {
+                mManager.mPrefMaxRequestSize = DownloadMission.DEFAULT_MAX_REQUEST_SIZE;
+            }
+            mManager.updateRequestSizes();
         } else if (key.equals(getString(R.string.download_path_video_key))) {
             mManager.mMainStorageVideo = loadMainVideoStorage();
         } else if (key.equals(getString(R.string.download_path_audio_key))) {
@@ -390,6 +432,28 @@ public class DownloadManagerService extends Service {
     public static void startMission(Context context, String[] urls, StoredFileHelper storage,
                                     char kind, int threads, String source, String psName,
                                     String[] psArgs, long nearLength, MissionRecoveryInfo[] recoveryInfo) {
+        startMission(context, urls, false, storage, kind, threads, source, psName, psArgs, nearLength, recoveryInfo);
+    }
+
+    /**
+     * Start a new download mission of segmented resources (HLS). The segment lists are read from
+     * the playlists once the mission starts, they are not passed along.
+     *
+     * @param context      the activity context
+     * @param urls         array of urls to download, one per resource, the HLS playlists if segmented
+     * @param segmented    {@code true} if the urls are HLS playlists, otherwise, {@code false}
+     * @param storage      where the file is saved
+     * @param kind         type of file (a: audio  v: video  s: subtitle ?: file-extension defined)
+     * @param threads      the number of threads maximal used to download segments of the file.
+     * @param psName       the name of the required post-processing algorithm, or {@code null} to ignore.
+     * @param source       source url of the resource
+     * @param psArgs       the arguments for the post-processing algorithm.
+     * @param nearLength   the approximated final length of the file
+     * @param recoveryInfo array of MissionRecoveryInfo, in case is required recover the download
+     */
+    public static void startMission(Context context, String[] urls, boolean segmented, StoredFileHelper storage,
+                                    char kind, int threads, String source, String psName,
+                                    String[] psArgs, long nearLength, MissionRecoveryInfo[] recoveryInfo) {
         Intent intent = new Intent(context, DownloadManagerService.class);
         intent.setAction(Intent.ACTION_RUN);
         intent.putExtra(EXTRA_URLS, urls);
@@ -400,6 +464,7 @@ public class DownloadManagerService extends Service {
         intent.putExtra(EXTRA_POSTPROCESSING_ARGS, psArgs);
         intent.putExtra(EXTRA_NEAR_LENGTH, nearLength);
         intent.putExtra(EXTRA_RECOVERY_INFO, recoveryInfo);
+        intent.putExtra(EXTRA_SEGMENTED, segmented);
 
         intent.putExtra(EXTRA_PARENT_PATH, storage.getParentUri());
         intent.putExtra(EXTRA_PATH, storage.getUri());
@@ -420,6 +485,7 @@ public class DownloadManagerService extends Service {
         long nearLength = intent.getLongExtra(EXTRA_NEAR_LENGTH, 0);
         String tag = intent.getStringExtra(EXTRA_STORAGE_TAG);
         Parcelable[] parcelRecovery = intent.getParcelableArrayExtra(EXTRA_RECOVERY_INFO);
+        boolean segmented = intent.getBooleanExtra(EXTRA_SEGMENTED, false);
 
         StoredFileHelper storage;
         try {
@@ -438,7 +504,11 @@ public class DownloadManagerService extends Service {
         for (int i = 0; i < parcelRecovery.length; i++)
             recovery[i] = (MissionRecoveryInfo) parcelRecovery[i];
 
-        final DownloadMission mission = new DownloadMission(urls, storage, kind, ps);
+        final DownloadMission mission;
+        if (segmented)
+            mission = new SegmentedMission(urls, storage, kind, ps);
+        else
+            mission = new DownloadMission(urls, storage, kind, ps);
         mission.threadCount = threads;
         mission.source = source;
         mission.nearLength = nearLength;
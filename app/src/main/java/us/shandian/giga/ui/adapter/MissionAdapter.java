@@ -275,6 +275,8 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             return;
         } else if (!mission.running) {
             state = mission.enqueued ? R.string.queued : R.string.paused;
+        } else if (mission.isWaitingForWorker()) {
+            state = R.string.queued;
         } else if (mission.isPsRunning()) {
             state = R.string.post_processing;
         } else if (mission.isRecovering()) {
@@ -656,6 +658,11 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                     mission.setEnqueued(flag);
                     updateProgress(h);
                     return true;
+                case R.id.priority:
+                    boolean high = !h.priority.isChecked();
+                    h.priority.setChecked(high);
+                    mDownloadManager.setPriority(mission, high ? DownloadMission.PRIORITY_HIGH : DownloadMission.PRIORITY_NORMAL);
+                    return true;
                 case R.id.retry:
                     if (mission.isPsRunning()) {
                         mission.psContinue(true);
@@ -856,6 +863,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         MenuItem pause;
         MenuItem open;
         MenuItem queue;
+        MenuItem priority;
         MenuItem showError;
         MenuItem delete;
         MenuItem source;
@@ -891,6 +899,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             pause = menu.findItem(R.id.pause);
             open = menu.findItem(R.id.menu_item_share);
             queue = menu.findItem(R.id.queue);
+            priority = menu.findItem(R.id.priority);
             showError = menu.findItem(R.id.error_message_view);
             delete = menu.findItem(R.id.delete);
             source = menu.findItem(R.id.source);
@@ -917,6 +926,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             pause.setVisible(false);
             open.setVisible(false);
             queue.setVisible(false);
+            priority.setVisible(false);
             showError.setVisible(false);
             delete.setVisible(false);
             source.setVisible(false);
@@ -939,6 +949,9 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                             break;
                     }
                 } else {
+                    priority.setChecked(mission.priority == DownloadMission.PRIORITY_HIGH);
+                    priority.setVisible(!mission.isPsFailed() && mission.urls.length > 0);
+
                     if (mission.running) {
                         pause.setVisible(true);
                     } else {
@@ -198,7 +198,7 @@ public class MissionsFragment extends Fragment {
                 mBinder.getDownloadManager().startAllMissions();
                 return true;
             case R.id.pause_downloads:
-                mBinder.getDownloadManager().pauseAllMissions(false);
+                mBinder.getDownloadManager().pauseAllMissions();
                 mAdapter.refreshMissionItems();// update items view
             default:
                 return super.onOptionsItemSelected(item);
@@ -0,0 +1,53 @@
+package us.shandian.giga.util;
+
+/**
+ * Weighted max-min fair sharing: every consumer gets a share of the total proportional to its
+ * weight, and the part of a share above the consumer demand goes to the other consumers.
+ */
+public class FairShare {
+    private FairShare() {
+    }
+
+    /**
+     * Split an amount between consumers
+     *
+     * @param total   the amount to split
+     * @param weights weight of every consumer, greater than 0
+     * @param demands the most every consumer can use, {@link Long#MAX_VALUE} if unbounded
+     * @return the share of every consumer, rounded down
+     */
+    public static long[] split(long total, double[] weights, long[] demands) {
+        int count = weights.length;
+        long[] shares = new long[count];
+        boolean[] satisfied = new boolean[count];
+
+        double weightLeft = 0;
+        for (double weight : weights) weightLeft += weight;
+        double left = total;
+
+        // give their demand to the consumers asking less than their fair share, until every
+        // remaining consumer asks more than its share
+        boolean changed = true;
+        while (changed && weightLeft > 0) {
+            changed = false;
+            for (int i = 0; i < count; i++) {
+                if (satisfied[i]) continue;
+
+                double fair = left * weights[i] / weightLeft;
+                if (demands[i] <= fair) {
+                    shares[i] = demands[i];
+                    satisfied[i] = true;
+                    left -= demands[i];
+                    weightLeft -= weights[i];
+                    changed = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (!satisfied[i]) shares[i] = (long) (left * weights[i] / weightLeft);
+        }
+
+        return shares;
+    }
+}
@@ -0,0 +1,112 @@
+package us.shandian.giga.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by the threads of a download. Threads take the bytes they have read,
+ * once the bucket is empty they sleep until the rate pays the debt back. A burst of a quarter
+ * of a second is allowed, so short stalls are not lost.
+ */
+public class RateLimiter {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * Bytes per second, 0 for unlimited
+     */
+    private volatile long rate;
+
+    private final Clock clock;
+    private final Sleeper sleeper;
+
+    private long available;
+    private long refilledAt;
+
+    /**
+     * @param rate bytes per second, 0 for unlimited
+     */
+    public RateLimiter(long rate) {
+        this(rate, System::nanoTime, nanos -> Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L)));
+    }
+
+    /**
+     * @param rate    bytes per second, 0 for unlimited
+     * @param clock   source of the time
+     * @param sleeper waits the time computed to pay a debt back
+     */
+    RateLimiter(long rate, Clock clock, Sleeper sleeper) {
+        this.clock = clock;
+        this.sleeper = sleeper;
+        refilledAt = clock.nanoTime();
+        setRate(rate);
+    }
+
+    /**
+     * @param rate bytes per second, 0 for unlimited
+     */
+    public synchronized void setRate(long rate) {
+        refill(clock.nanoTime());
+        this.rate = Math.max(rate, 0);
+        available = Math.min(available, getBurst());
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Take bytes from the bucket, sleeps if the bucket is in debt
+     *
+     * @param bytes amount of bytes read
+     * @throws InterruptedIOException if the thread was interrupted while sleeping
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        if (rate < 1) return;
+
+        long wait;
+        synchronized (this) {
+            long now = clock.nanoTime();
+            refill(now);
+            available -= bytes;
+
+            long limit = rate;
+            wait = available < 0 && limit > 0 ? -available * NANOS_PER_SECOND / limit : 0;
+        }
+
+        if (wait < 1) return;
+
+        try {
+            sleeper.sleep(wait);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while throttled");
+        }
+    }
+
+    private void refill(long now) {
+        long limit = rate;
+        // the burst is below a second of bytes, a longer pause adds nothing and could overflow
+        long elapsed = Math.min(now - refilledAt, NANOS_PER_SECOND);
+        refilledAt = now;
+        if (limit < 1 || elapsed <= 0) return;
+
+        available = Math.min(available + elapsed * limit / NANOS_PER_SECOND, getBurst());
+    }
+
+    private long getBurst() {
+        return rate / 4;
+    }
+
+    interface Clock {
+        /**
+         * @return the current time in nanoseconds, like {@link System#nanoTime()}
+         */
+        long nanoTime();
+    }
+
+    interface Sleeper {
+        /**
+         * @param nanos nanoseconds to wait
+         * @throws InterruptedException if the thread was interrupted while waiting
+         */
+        void sleep(long nanos) throws InterruptedException;
+    }
+}
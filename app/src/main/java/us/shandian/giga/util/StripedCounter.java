@@ -0,0 +1,56 @@
+package us.shandian.giga.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter split in stripes, so threads adding to different stripes do not contend.
+ * Every stripe lives in its own cache line. The total is only known when the stripes are summed.
+ */
+public class StripedCounter {
+    /**
+     * Distance between stripes in longs, 64 bytes
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int stripes;
+
+    /**
+     * @param stripes amount of stripes, usually the amount of threads adding to the counter
+     */
+    public StripedCounter(int stripes) {
+        this.stripes = Math.max(stripes, 1);
+        this.cells = new AtomicLongArray(this.stripes * PADDING);
+    }
+
+    /**
+     * Add to a stripe
+     *
+     * @param stripe the stripe, an id of the calling thread
+     * @param delta  the amount to add
+     */
+    public void add(int stripe, long delta) {
+        cells.addAndGet(Math.abs(stripe % stripes) * PADDING, delta);
+    }
+
+    /**
+     * @return the total of all stripes, concurrent additions may be missing
+     */
+    public long sum() {
+        long total = 0;
+        for (int i = 0; i < stripes; i++) total += cells.get(i * PADDING);
+        return total;
+    }
+
+    /**
+     * Sum all stripes and set them to zero. Concurrent additions are never lost, they are
+     * returned now or by the next call.
+     *
+     * @return the total of all stripes
+     */
+    public long sumThenReset() {
+        long total = 0;
+        for (int i = 0; i < stripes; i++) total += cells.getAndSet(i * PADDING, 0);
+        return total;
+    }
+}
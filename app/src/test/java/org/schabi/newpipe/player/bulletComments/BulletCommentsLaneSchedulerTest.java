@@ -0,0 +1,123 @@
+package org.schabi.newpipe.player.bulletComments;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.player.bulletComments.BulletCommentsLaneScheduler.LaneType;
+import org.schabi.newpipe.player.bulletComments.BulletCommentsLaneScheduler.OverflowPolicy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BulletCommentsLaneSchedulerTest {
+    private static final long DURATION = 4000;
+    private static final float VIEW_WIDTH = 1000;
+
+    private final List<String> placed = new ArrayList<>();
+    private final BulletCommentsLaneScheduler<String> scheduler =
+            new BulletCommentsLaneScheduler<>(3, DURATION,
+                    (item, laneType, lane, width) -> placed.add(item + "@" + laneType + lane));
+
+    @Before
+    public void setUp() {
+        scheduler.setViewWidth(VIEW_WIDTH);
+    }
+
+    @Test
+    public void testScrollingUsesFirstFreeLane() {
+        scheduler.submit(0, "a", LaneType.SCROLLING, 100);
+        scheduler.submit(0, "b", LaneType.SCROLLING, 100);
+        // "a" has entered the screen and "c" is not faster.
+        scheduler.submit(1000, "c", LaneType.SCROLLING, 100);
+        assertEquals(Arrays.asList("a@SCROLLING0", "b@SCROLLING1", "c@SCROLLING0"), placed);
+    }
+
+    @Test
+    public void testFasterCommentDoesNotCatchUp() {
+        scheduler.submit(0, "short", LaneType.SCROLLING, 10);
+        // A much longer comment is faster and would overlap "short" in lane 0.
+        scheduler.submit(500, "long", LaneType.SCROLLING, 2000);
+        assertEquals(Arrays.asList("short@SCROLLING0", "long@SCROLLING1"), placed);
+    }
+
+    @Test
+    public void testFixedLanes() {
+        scheduler.submit(0, "t1", LaneType.TOP, 100);
+        scheduler.submit(0, "t2", LaneType.TOP, 100);
+        scheduler.submit(0, "b1", LaneType.BOTTOM, 100);
+        scheduler.submit(DURATION, "t3", LaneType.TOP, 100);
+        assertEquals(Arrays.asList("t1@TOP0", "t2@TOP1", "b1@BOTTOM0", "t3@TOP0"), placed);
+    }
+
+    @Test
+    public void testDropWhenFull() {
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(0, "t" + i, LaneType.TOP, 100);
+        }
+        assertEquals(3, placed.size());
+        assertEquals(1, scheduler.getDroppedCount());
+    }
+
+    @Test
+    public void testQueueWhenFull() {
+        scheduler.setOverflowPolicy(OverflowPolicy.QUEUE);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(0, "t" + i, LaneType.TOP, 100);
+        }
+        assertEquals(1, scheduler.getQueuedCount());
+
+        scheduler.retryQueued(DURATION);
+        assertEquals("t3@TOP0", placed.get(3));
+        assertEquals(0, scheduler.getQueuedCount());
+        assertEquals(0, scheduler.getDroppedCount());
+    }
+
+    @Test
+    public void testQueuedKindDoesNotBlockOtherKinds() {
+        scheduler.setOverflowPolicy(OverflowPolicy.QUEUE);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(0, "t" + i, LaneType.TOP, 100);
+        }
+        // "t3" waits for a top lane, scrolling and bottom lanes are still free.
+        scheduler.retryQueued(100);
+        scheduler.submit(100, "s", LaneType.SCROLLING, 100);
+        scheduler.submit(100, "b", LaneType.BOTTOM, 100);
+        assertEquals(Arrays.asList("t0@TOP0", "t1@TOP1", "t2@TOP2", "s@SCROLLING0", "b@BOTTOM0"),
+                placed);
+        assertEquals(1, scheduler.getQueuedCount());
+
+        scheduler.retryQueued(DURATION);
+        assertEquals("t3@TOP0", placed.get(5));
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void testQueueSizeDropsOldest() {
+        scheduler.setOverflowPolicy(OverflowPolicy.QUEUE);
+        scheduler.setMaxQueueSize(1);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(0, "t" + i, LaneType.TOP, 100);
+        }
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(10, "b" + i, LaneType.BOTTOM, 100);
+        }
+        assertEquals(1, scheduler.getQueuedCount());
+        assertEquals(1, scheduler.getDroppedCount());
+
+        scheduler.retryQueued(DURATION + 10);
+        assertEquals("b3@BOTTOM0", placed.get(6));
+    }
+
+    @Test
+    public void testDensityCap() {
+        scheduler.setDensityCap(2);
+        scheduler.submit(0, "a", LaneType.SCROLLING, 100);
+        scheduler.submit(0, "b", LaneType.SCROLLING, 100);
+        scheduler.submit(0, "c", LaneType.TOP, 100);
+        assertEquals(2, placed.size());
+        assertEquals(2, scheduler.getActiveCount(0));
+        assertEquals(0, scheduler.getActiveCount(DURATION));
+    }
+}
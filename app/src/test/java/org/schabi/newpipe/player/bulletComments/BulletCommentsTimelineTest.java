@@ -0,0 +1,147 @@
+package org.schabi.newpipe.player.bulletComments;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class BulletCommentsTimelineTest {
+    private static final long TICK_MILLIS = 50;
+    private static final int TICKS = 2000;
+
+    private static BulletCommentsTimeline<Long> timelineOf(final Long... offsets) {
+        return new BulletCommentsTimeline<>(Arrays.asList(offsets), Long::longValue);
+    }
+
+    @Test
+    public void testAdvanceEmitsInOrder() {
+        final BulletCommentsTimeline<Long> timeline = timelineOf(300L, 100L, 200L, 100L);
+        final List<Long> out = new ArrayList<>();
+
+        assertEquals(2, timeline.advanceTo(150, out));
+        assertEquals(Arrays.asList(100L, 100L), out);
+
+        out.clear();
+        assertEquals(0, timeline.advanceTo(200, out));
+        assertEquals(2, timeline.advanceTo(Long.MAX_VALUE, out));
+        assertEquals(Arrays.asList(200L, 300L), out);
+    }
+
+    @Test
+    public void testSeek() {
+        final BulletCommentsTimeline<Long> timeline = timelineOf(100L, 200L, 200L, 300L);
+        final List<Long> out = new ArrayList<>();
+
+        timeline.seekTo(200);
+        assertEquals(1, timeline.getCursor());
+        assertEquals(2, timeline.advanceTo(250, out));
+
+        timeline.seekTo(0);
+        assertEquals(0, timeline.getCursor());
+        timeline.seekTo(301);
+        assertEquals(4, timeline.getCursor());
+        assertEquals(0, timeline.advanceTo(Long.MAX_VALUE, out));
+    }
+
+    @Test
+    public void testEmpty() {
+        final BulletCommentsTimeline<Long> timeline = timelineOf();
+        final List<Long> out = new ArrayList<>();
+        timeline.seekTo(100);
+        assertEquals(0, timeline.size());
+        assertEquals(0, timeline.advanceTo(Long.MAX_VALUE, out));
+    }
+
+    @Test
+    public void testAddAfterCursor() {
+        final BulletCommentsTimeline<Long> timeline = timelineOf(100L, 300L);
+        final List<Long> out = new ArrayList<>();
+        assertEquals(1, timeline.advanceTo(200, out));
+
+        // Appended page.
+        timeline.addAll(Arrays.asList(500L, 400L));
+        // Merged page, the comment before the cursor position has already been passed.
+        timeline.addAll(Arrays.asList(150L, 250L, 300L));
+        assertEquals(7, timeline.size());
+
+        out.clear();
+        assertEquals(5, timeline.advanceTo(Long.MAX_VALUE, out));
+        assertEquals(Arrays.asList(250L, 300L, 300L, 400L, 500L), out);
+    }
+
+    @Test
+    public void testAddToEmpty() {
+        final BulletCommentsTimeline<Long> timeline = new BulletCommentsTimeline<>(Long::longValue);
+        final List<Long> out = new ArrayList<>();
+        timeline.seekTo(100);
+        assertEquals(0, timeline.advanceTo(200, out));
+
+        timeline.addAll(Arrays.asList(50L, 250L, 150L));
+        assertEquals(2, timeline.getCursor());
+        assertEquals(1, timeline.advanceTo(Long.MAX_VALUE, out));
+        assertEquals(Arrays.asList(250L), out);
+    }
+
+    /**
+     * Compares the cost of a 50 ms tick between the timeline and a full scan of all comments,
+     * which is how comments were selected before. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmarkTickCost() {
+        assumeTrue("benchmark, run with -Pbenchmark", Boolean.getBoolean("newpipe.benchmark"));
+
+        for (final int count : new int[]{1_000, 10_000, 100_000}) {
+            final long movieMillis = TICK_MILLIS * TICKS;
+            final Random random = new Random(count);
+            final List<Duration> comments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                comments.add(Duration.ofMillis((long) (random.nextDouble() * movieMillis)));
+            }
+
+            long start = System.nanoTime();
+            final int scanned = runFullScan(comments);
+            final long fullScanNanos = System.nanoTime() - start;
+
+            final BulletCommentsTimeline<Duration> timeline =
+                    new BulletCommentsTimeline<>(comments, Duration::toMillis);
+            start = System.nanoTime();
+            final int emitted = runTimeline(timeline);
+            final long timelineNanos = System.nanoTime() - start;
+
+            assertEquals(count, scanned);
+            assertEquals(count, emitted);
+            System.out.printf("%d comments: full scan %d ns/tick, timeline %d ns/tick%n",
+                    count, fullScanNanos / TICKS, timelineNanos / TICKS);
+        }
+    }
+
+    private static int runFullScan(final List<Duration> comments) {
+        int emitted = 0;
+        Duration lastPosition = Duration.ZERO;
+        for (int tick = 1; tick <= TICKS; tick++) {
+            final Duration drawUntilPosition = Duration.ofMillis(tick * TICK_MILLIS);
+            final Duration from = lastPosition;
+            emitted += comments.stream()
+                    .filter(d -> d.compareTo(from) >= 0 && d.compareTo(drawUntilPosition) < 0)
+                    .toArray(Duration[]::new).length;
+            lastPosition = drawUntilPosition;
+        }
+        return emitted;
+    }
+
+    private static int runTimeline(final BulletCommentsTimeline<Duration> timeline) {
+        final List<Duration> out = new ArrayList<>();
+        int emitted = 0;
+        for (int tick = 1; tick <= TICKS; tick++) {
+            out.clear();
+            emitted += timeline.advanceTo(tick * TICK_MILLIS, out);
+        }
+        return emitted;
+    }
+}
@@ -0,0 +1,96 @@
+package org.schabi.newpipe.player.helper;
+
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.player.helper.PlayerCacheManager.PartitionEvictor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class PlayerCacheManagerTest {
+    private static final long BUDGET = 100;
+    private static final long SPAN = 10;
+
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicLong pinnedSince = new AtomicLong(Long.MAX_VALUE);
+    private long timestamp;
+
+    @Before
+    public void setUp() {
+        cachedBytes.set(0);
+        pinnedSince.set(Long.MAX_VALUE);
+        timestamp = 1;
+    }
+
+    private PartitionEvictor newEvictor(final Cache cache, final int budgetPercent) {
+        final PartitionEvictor evictor = new PartitionEvictor(cachedBytes, pinnedSince);
+        evictor.setBudget(BUDGET * budgetPercent / 100, BUDGET);
+        doAnswer(invocation -> {
+            evictor.onSpanRemoved(cache, invocation.getArgument(0));
+            return null;
+        }).when(cache).removeSpan(any());
+        return evictor;
+    }
+
+    private void add(final PartitionEvictor evictor, final Cache cache, final String key) {
+        final long time = timestamp++;
+        evictor.onSpanAdded(cache, new CacheSpan(key, time * SPAN, SPAN, time, null));
+    }
+
+    @Test
+    public void testPinnedDataOfAllPartitionsStaysWithinTheBudget() {
+        final Cache video = mock(Cache.class);
+        final Cache audio = mock(Cache.class);
+        final PartitionEvictor videoEvictor = newEvictor(video, 70);
+        final PartitionEvictor audioEvictor = newEvictor(audio, 25);
+
+        // everything touched from now on is pinned
+        pinnedSince.set(0);
+
+        for (int i = 0; i < 30; i++) {
+            add(videoEvictor, video, "video");
+            assertTrue(cachedBytes.get() <= BUDGET);
+
+            if (i % 3 == 0) {
+                // the audio stays within its share, the video gives the room back
+                add(audioEvictor, audio, "audio");
+                assertTrue(cachedBytes.get() <= BUDGET + SPAN);
+            }
+        }
+
+        assertTrue(cachedBytes.get() <= BUDGET);
+    }
+
+    @Test
+    public void testUnpinnedDataIsEvictedBeyondTheShare() {
+        final Cache video = mock(Cache.class);
+        final PartitionEvictor videoEvictor = newEvictor(video, 70);
+
+        for (int i = 0; i < 20; i++) {
+            add(videoEvictor, video, "video");
+        }
+
+        assertEquals(70, cachedBytes.get());
+    }
+
+    @Test
+    public void testPinnedDataGrowsBeyondTheShareWithinTheBudget() {
+        final Cache video = mock(Cache.class);
+        final PartitionEvictor videoEvictor = newEvictor(video, 70);
+        pinnedSince.set(0);
+
+        for (int i = 0; i < 20; i++) {
+            add(videoEvictor, video, "video");
+        }
+
+        assertEquals(BUDGET, cachedBytes.get());
+    }
+}
@@ -0,0 +1,36 @@
+package org.schabi.newpipe.player.playback;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MediaSourceManagerTest {
+
+    @Test
+    public void testFastLoadingLoadsOneAhead() {
+        assertEquals(1, MediaSourceManager.getWindowSize(0, false, false));
+        assertEquals(1, MediaSourceManager.getWindowSize(1500, false, false));
+    }
+
+    @Test
+    public void testSlowLoadingLoadsFurtherAhead() {
+        assertEquals(2, MediaSourceManager.getWindowSize(2000, false, false));
+        assertEquals(4, MediaSourceManager.getWindowSize(6500, false, false));
+        assertEquals(5, MediaSourceManager.getWindowSize(60_000, false, false));
+    }
+
+    @Test
+    public void testAudioOnlyLoadsFurtherAhead() {
+        assertTrue(MediaSourceManager.getWindowSize(0, true, false)
+                > MediaSourceManager.getWindowSize(0, false, false));
+        assertEquals(5, MediaSourceManager.getWindowSize(60_000, true, false));
+    }
+
+    @Test
+    public void testMeteredNetworkLoadsLessAhead() {
+        assertEquals(1, MediaSourceManager.getWindowSize(0, false, true));
+        assertEquals(1, MediaSourceManager.getWindowSize(0, true, true));
+        assertEquals(2, MediaSourceManager.getWindowSize(6500, false, true));
+    }
+}
@@ -0,0 +1,517 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4FromDashWriterTest {
+    private static final int VIDEO_TRACK = 1;
+    private static final int AUDIO_TRACK = 2;
+    private static final int VIDEO_TIMESCALE = 30;
+    private static final int AUDIO_TIMESCALE = 44100;
+    private static final int AUDIO_SAMPLE_DURATION = 1024;
+    private static final int AUDIO_SAMPLE_SIZE = 96;
+    private static final int SAMPLES_PER_FRAGMENT = 150;
+    private static final int KEYFRAME_INTERVAL = 60;
+
+    @Test
+    public void testVideoAndAudioSamplesAreReachable() throws IOException {
+        final int videoSamples = 2000;
+        final int audioSamples = 2900;
+        final byte[] output = mux(makeVideo(videoSamples), makeAudio(audioSamples));
+
+        final List<Track> tracks = parseMoov(output);
+        assertEquals(2, tracks.size());
+
+        final Track video = tracks.get(0);
+        assertEquals(videoSamples, video.stts[0]);
+        assertEquals(1, video.stts[1]);
+        assertEquals(videoSamples / KEYFRAME_INTERVAL + 1, video.stss.length);
+        assertEquals(1, video.stss[0]);
+        assertEquals(KEYFRAME_INTERVAL + 1, video.stss[1]);
+        assertNotNull(video.ctts);
+        assertEquals(videoSamples, sumCounts(video.ctts));
+        assertEquals(0, video.stszDefault);
+        assertArrayEquals(new int[]{1, 2, 1, 2, 6, 1}, Arrays.copyOf(video.stsc, 6));
+        assertSamples(output, video, VIDEO_TRACK, videoSamples);
+
+        final Track audio = tracks.get(1);
+        assertEquals(audioSamples, audio.stts[0]);
+        assertEquals(AUDIO_SAMPLE_DURATION, audio.stts[1]);
+        assertEquals(0, audio.stss.length);
+        assertEquals(AUDIO_SAMPLE_SIZE, audio.stszDefault);
+        assertSamples(output, audio, AUDIO_TRACK, audioSamples);
+
+        // the chunks of both tracks are interleaved
+        assertTrue(video.chunkOffsets[0] < audio.chunkOffsets[0]);
+        assertTrue(audio.chunkOffsets[0] < video.chunkOffsets[1]);
+    }
+
+    @Test
+    public void testLastCompositionOffsetAndConstantSampleSizeAreWritten() throws IOException {
+        // the last video sample has the composition offset 2
+        final int videoSamples = 2000;
+        final byte[] output = mux(makeVideo(videoSamples), makeAudio(100));
+        final List<Track> tracks = parseMoov(output);
+
+        final int[] ctts = tracks.get(0).ctts;
+        assertEquals(1, ctts[ctts.length - 2]);
+        assertEquals(((videoSamples - 1) % 3) * 2, ctts[ctts.length - 1]);
+
+        // a constant sample size leaves the stsz table without rows
+        final Track audio = tracks.get(1);
+        assertEquals(AUDIO_SAMPLE_SIZE, audio.stszDefault);
+        assertEquals(0, audio.stsz.length);
+        assertNotNull(audio.chunkOffsets);
+        assertSamples(output, audio, AUDIO_TRACK, 100);
+    }
+
+    @Test
+    public void testAudioOnlyUsesLongChunks() throws IOException {
+        final int audioSamples = 1000;
+        final byte[] output = mux(makeAudio(audioSamples));
+
+        final Track audio = parseMoov(output).get(0);
+        final int samplesPerChunk = AUDIO_TIMESCALE / 1000;
+        assertEquals(audioSamples / samplesPerChunk + 1, audio.chunkOffsets.length);
+        assertArrayEquals(new int[]{1, samplesPerChunk, 1,
+                audio.chunkOffsets.length, audioSamples % samplesPerChunk, 1}, audio.stsc);
+        assertSamples(output, audio, AUDIO_TRACK, audioSamples);
+    }
+
+    @Test
+    public void testOutputNeverPassesTheFirstSource() throws IOException {
+        final byte[] video = makeVideo(20000);
+        final byte[] audio = makeAudio(29000);
+        final long offset = 512 * 1024;
+
+        // without the offset the audio chunks are interleaved as usual, and overwrite video data
+        assertTrue(muxOverSources(video, audio, offset, false).overtaken > 0);
+
+        final ByteArrayStream output = muxOverSources(video, audio, offset, true);
+        assertEquals(0, output.overtaken);
+
+        final byte[] file = output.toByteArray();
+        final List<Track> tracks = parseMoov(file);
+        assertSamples(file, tracks.get(0), VIDEO_TRACK, 20000);
+        assertSamples(file, tracks.get(1), AUDIO_TRACK, 29000);
+    }
+
+    private static byte[] mux(final byte[]... sources) throws IOException {
+        final SharpStream[] streams = new SharpStream[sources.length];
+        final int[] selected = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            streams[i] = new ByteArrayStream(sources[i]);
+        }
+
+        final ByteArrayStream output = new ByteArrayStream(new byte[0]);
+        final Mp4FromDashWriter muxer = new Mp4FromDashWriter(streams);
+        muxer.parseSources();
+        muxer.selectTracks(selected);
+        muxer.build(output);
+        muxer.close();
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Muxes as it is done over the downloaded file, the first source is stored after the output
+     * at the given offset. The output measures how far it goes past the unread data of the
+     * first source.
+     */
+    private static ByteArrayStream muxOverSources(final byte[] video, final byte[] audio,
+                                                  final long offset, final boolean setOffset)
+            throws IOException {
+        final ByteArrayStream first = new ByteArrayStream(video);
+        final ByteArrayStream output = new ByteArrayStream(new byte[0]);
+        output.behind = first;
+        output.behindOffset = offset;
+
+        final Mp4FromDashWriter muxer = new Mp4FromDashWriter(first, new ByteArrayStream(audio));
+        muxer.parseSources();
+        muxer.selectTracks(0, 0);
+        if (setOffset) {
+            muxer.setFirstSourceOffset(offset);
+        }
+        muxer.build(output);
+        muxer.close();
+
+        return output;
+    }
+
+    private static int sumCounts(final int[] entries) {
+        int sum = 0;
+        for (int i = 0; i < entries.length; i += 2) {
+            sum += entries[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Follows the chunk offsets and the sample sizes, every sample starts with its index and
+     * is filled with the track id.
+     */
+    private static void assertSamples(final byte[] output, final Track track, final int trackId,
+                                      final int sampleCount) {
+        final ByteBuffer file = ByteBuffer.wrap(output);
+        int sample = 0;
+
+        for (int chunk = 0; chunk < track.chunkOffsets.length; chunk++) {
+            int samples = 0;
+            for (int i = 0; i < track.stsc.length; i += 3) {
+                if (track.stsc[i] <= chunk + 1) {
+                    samples = track.stsc[i + 1];
+                }
+            }
+
+            long offset = track.chunkOffsets[chunk];
+            for (int i = 0; i < samples; i++, sample++) {
+                final int size = track.stszDefault > 0 ? track.stszDefault : track.stsz[sample];
+                assertEquals(sample, file.getInt((int) offset));
+                assertEquals(trackId, file.get((int) offset + size - 1));
+                offset += size;
+            }
+        }
+
+        assertEquals(sampleCount, sample);
+    }
+
+    private static final class Track {
+        int[] stts;
+        int[] stss = new int[0];
+        int[] ctts;
+        int[] stsc;
+        int stszDefault;
+        int[] stsz;
+        long[] chunkOffsets;
+    }
+
+    private static List<Track> parseMoov(final byte[] file) {
+        final ByteBuffer buffer = ByteBuffer.wrap(file);
+        final List<Track> tracks = new ArrayList<>();
+
+        while (buffer.hasRemaining()) {
+            final int start = buffer.position();
+            final long size = readSize(buffer);
+            final int type = buffer.getInt();
+
+            if (type == box("moov")) {
+                parseContainer(buffer, start + (int) size, tracks);
+            }
+            buffer.position((int) (start + size));
+        }
+
+        return tracks;
+    }
+
+    private static long readSize(final ByteBuffer buffer) {
+        final long size = buffer.getInt() & 0xFFFFFFFFL;
+        if (size == 1) {
+            final int position = buffer.position();
+            final long largeSize = buffer.getLong(position + 4);
+            buffer.position(position);
+            return largeSize;
+        }
+        return size;
+    }
+
+    private static void parseContainer(final ByteBuffer buffer, final int end,
+                                       final List<Track> tracks) {
+        while (buffer.position() < end) {
+            final int start = buffer.position();
+            final int size = buffer.getInt();
+            final int type = buffer.getInt();
+
+            if (type == box("trak")) {
+                tracks.add(new Track());
+            }
+
+            if (type == box("trak") || type == box("mdia") || type == box("minf")
+                    || type == box("stbl")) {
+                parseContainer(buffer, start + size, tracks);
+            } else {
+                parseTable(buffer, type, tracks.isEmpty() ? null : tracks.get(tracks.size() - 1));
+            }
+
+            buffer.position(start + size);
+        }
+    }
+
+    private static void parseTable(final ByteBuffer buffer, final int type, final Track track) {
+        if (type == box("stts")) {
+            track.stts = readEntries(buffer, 2);
+        } else if (type == box("stss")) {
+            track.stss = readEntries(buffer, 1);
+        } else if (type == box("ctts")) {
+            track.ctts = readEntries(buffer, 2);
+        } else if (type == box("stsc")) {
+            track.stsc = readEntries(buffer, 3);
+        } else if (type == box("stsz")) {
+            buffer.getInt(); // version & flags
+            track.stszDefault = buffer.getInt();
+            track.stsz = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(track.stsz);
+        } else if (type == box("stco")) {
+            final int[] offsets = readEntries(buffer, 1);
+            track.chunkOffsets = new long[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                track.chunkOffsets[i] = offsets[i] & 0xFFFFFFFFL;
+            }
+        } else if (type == box("co64")) {
+            buffer.getInt(); // version & flags
+            track.chunkOffsets = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(track.chunkOffsets);
+        }
+    }
+
+    private static int[] readEntries(final ByteBuffer buffer, final int columns) {
+        buffer.getInt(); // version & flags
+        final int[] entries = new int[buffer.getInt() * columns];
+        buffer.asIntBuffer().get(entries);
+        return entries;
+    }
+
+    private static int box(final String type) {
+        return ByteBuffer.wrap(type.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+
+    /**
+     * Makes a DASH video track, with a keyframe every {@link #KEYFRAME_INTERVAL} samples,
+     * composition offsets and variable sample sizes
+     */
+    private static byte[] makeVideo(final int sampleCount) {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        write(file, makeInit(VIDEO_TRACK, VIDEO_TIMESCALE, sampleCount, "vide", "vmhd"));
+
+        for (int first = 0; first < sampleCount; first += SAMPLES_PER_FRAGMENT) {
+            final int count = Math.min(SAMPLES_PER_FRAGMENT, sampleCount - first);
+            final ByteBuffer entries = ByteBuffer.allocate(count * 16);
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+            for (int i = first; i < first + count; i++) {
+                final int size = 64 + (i % 7) * 13;
+                entries.putInt(1); // duration
+                entries.putInt(size);
+                entries.putInt(i % KEYFRAME_INTERVAL == 0 ? 0 : 0x10000); // flags
+                entries.putInt((i % 3) * 2); // composition offset
+                write(data, makeSample(i, size, VIDEO_TRACK));
+            }
+
+            write(file, makeFragment(VIDEO_TRACK, 0x00, 0x0F01, count, entries.array(),
+                    data.toByteArray()));
+        }
+
+        return file.toByteArray();
+    }
+
+    /**
+     * Makes a DASH audio track, with a default sample duration and a constant sample size
+     */
+    private static byte[] makeAudio(final int sampleCount) {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        write(file, makeInit(AUDIO_TRACK, AUDIO_TIMESCALE, sampleCount * AUDIO_SAMPLE_DURATION,
+                "soun", "smhd"));
+
+        for (int first = 0; first < sampleCount; first += SAMPLES_PER_FRAGMENT) {
+            final int count = Math.min(SAMPLES_PER_FRAGMENT, sampleCount - first);
+            final ByteBuffer entries = ByteBuffer.allocate(count * 4);
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+            for (int i = first; i < first + count; i++) {
+                entries.putInt(AUDIO_SAMPLE_SIZE);
+                write(data, makeSample(i, AUDIO_SAMPLE_SIZE, AUDIO_TRACK));
+            }
+
+            write(file, makeFragment(AUDIO_TRACK, 0x28, 0x0201, count, entries.array(),
+                    data.toByteArray()));
+        }
+
+        return file.toByteArray();
+    }
+
+    private static byte[] makeSample(final int index, final int size, final int trackId) {
+        final ByteBuffer sample = ByteBuffer.allocate(size);
+        sample.putInt(index);
+        while (sample.hasRemaining()) {
+            sample.put((byte) trackId);
+        }
+        return sample.array();
+    }
+
+    private static byte[] makeInit(final int trackId, final int timescale, final long duration,
+                                   final String handler, final String mediaHeader) {
+        final byte[] ftyp = box("ftyp", ints(box("dash"), 0, box("iso6")));
+        final byte[] mvhd = box("mvhd", ints(0, 0, 0, 1000, 0), new byte[76],
+                ints(trackId + 1));
+        final byte[] tkhd = box("tkhd", ints(0, 0, 0, trackId, 0, (int) duration, 0, 0, 0, 0),
+                ints(0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000, 0, 0));
+        final byte[] mdhd = box("mdhd", ints(0, 0, 0, timescale, (int) duration, 0));
+        final byte[] hdlr = box("hdlr", ints(0, 0, box(handler), 0, 0, 0), new byte[1]);
+        final byte[] stbl = box("stbl", box("stsd", ints(0, 0)));
+        final byte[] minf = box("minf", box(mediaHeader, ints(0, 0)), box("dinf", ints(0)), stbl);
+        final byte[] trak = box("trak", tkhd, box("mdia", mdhd, hdlr, minf));
+        final byte[] mvex = box("mvex", box("trex", ints(0, trackId, 1, 0, 0, 0)));
+
+        return concat(ftyp, box("moov", mvhd, trak, mvex));
+    }
+
+    private static byte[] makeFragment(final int trackId, final int tfhdFlags,
+                                       final int trunFlags, final int count,
+                                       final byte[] entries, final byte[] data) {
+        final byte[] tfhd = (tfhdFlags & 0x08) == 0
+                ? box("tfhd", ints(tfhdFlags, trackId))
+                : box("tfhd", ints(tfhdFlags, trackId, AUDIO_SAMPLE_DURATION, 0));
+        final int trunSize = 8 + 12 + entries.length;
+        final int moofSize = 8 + 16 + 8 + tfhd.length + trunSize;
+
+        final byte[] trun = box("trun", ints(trunFlags, count, moofSize + 8), entries);
+        final byte[] moof = box("moof", box("mfhd", ints(0, 1)), box("traf", tfhd, trun));
+
+        return concat(moof, box("mdat", data));
+    }
+
+    private static byte[] box(final String type, final byte[]... content) {
+        final byte[] body = concat(content);
+        return concat(ints(8 + body.length, box(type)), body);
+    }
+
+    private static byte[] ints(final int... values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (final int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(final ByteArrayOutputStream out, final byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    private static final class ByteArrayStream extends SharpStream {
+        private byte[] data;
+        private int length;
+        private int position;
+
+        /**
+         * Stream stored after this one, written data should not pass its unread data
+         */
+        ByteArrayStream behind;
+        long behindOffset;
+        long overtaken;
+
+        ByteArrayStream(final byte[] data) {
+            this.data = data;
+            this.length = data.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+
+        @Override
+        public int read() {
+            return position < length ? data[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] buffer) {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) {
+            if (position >= length) {
+                return -1;
+            }
+            final int read = Math.min(count, length - position);
+            System.arraycopy(data, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long amount) {
+            final int skip = (int) Math.min(amount, length - position);
+            position += skip;
+            return skip;
+        }
+
+        @Override
+        public long available() {
+            return length - position;
+        }
+
+        @Override
+        public void rewind() {
+            position = 0;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean canRewind() {
+            return true;
+        }
+
+        @Override
+        public boolean canRead() {
+            return true;
+        }
+
+        @Override
+        public boolean canWrite() {
+            return true;
+        }
+
+        @Override
+        public void write(final byte value) {
+            write(new byte[]{value}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buffer) {
+            write(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) {
+            if (behind != null && behind.available() > 0) {
+                final long limit = behindOffset + behind.position - 1;
+                overtaken = Math.max(overtaken, position + count - limit);
+            }
+            if (position + count > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, position + count));
+            }
+            System.arraycopy(buffer, offset, data, position, count);
+            position += count;
+            length = Math.max(length, position);
+        }
+    }
+}
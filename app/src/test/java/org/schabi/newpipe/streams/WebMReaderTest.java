@@ -0,0 +1,388 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.WebMReader.Cluster;
+import org.schabi.newpipe.streams.WebMReader.Segment;
+import org.schabi.newpipe.streams.WebMReader.SimpleBlock;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class WebMReaderTest {
+    private static final int BLOCK_DURATION_MS = 20;
+    private static final int BLOCKS_PER_CLUSTER = 250;
+    private static final int PAYLOAD_SIZE = 96;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void testStreamAndBufferReadTheSameBlocks() throws IOException {
+        final byte[] file = makeWebM(10 * 60 * 1000 / BLOCK_DURATION_MS);
+
+        final Result stream = demux(new WebMReader(new ByteArrayStream(file)));
+        final Result buffer = demux(new WebMReader(ByteBuffer.wrap(file)));
+
+        assertEquals(30000, stream.blocks);
+        assertEquals(stream.blocks, buffer.blocks);
+        assertEquals(stream.bytes, buffer.bytes);
+        assertEquals(stream.checksum, buffer.checksum);
+        assertEquals(stream.lastTimecodeNs, buffer.lastTimecodeNs);
+        assertEquals((30000L - 1) * BLOCK_DURATION_MS * 1000000L, buffer.lastTimecodeNs);
+    }
+
+    @Test
+    public void testPayloadIsOnlyExposedForBuffers() throws IOException {
+        final byte[] file = makeWebM(1);
+
+        final WebMReader stream = new WebMReader(new ByteArrayStream(file));
+        stream.parse();
+        stream.selectTrack(0);
+        assertNull(stream.getNextSegment().getNextCluster().getNextSimpleBlock().payload);
+
+        final WebMReader buffer = new WebMReader(ByteBuffer.wrap(file));
+        buffer.parse();
+        buffer.selectTrack(0);
+        final SimpleBlock block = buffer.getNextSegment().getNextCluster().getNextSimpleBlock();
+        assertNotNull(block.payload);
+        assertEquals(PAYLOAD_SIZE, block.payload.remaining());
+        assertEquals(0, block.payload.get(block.payload.position()));
+    }
+
+    @Test
+    public void testMuxerReadsMappedSources() throws IOException {
+        final byte[] file = makeWebM(1000);
+
+        final WebMReader reader = WebMReader.open(new ByteArrayStream(file, true));
+        reader.parse();
+        reader.selectTrack(0);
+        assertNotNull(reader.getNextSegment().getNextCluster().getNextSimpleBlock().payload);
+
+        final byte[] stream = remux(new ByteArrayStream(file, false));
+        final byte[] mapped = remux(new ByteArrayStream(file, true));
+        assertTrue(stream.length > 1000 * PAYLOAD_SIZE);
+        assertArrayEquals(stream, mapped);
+    }
+
+    private static byte[] remux(final ByteArrayStream source) throws IOException {
+        final ByteArrayStream out = new ByteArrayStream(new byte[0], false);
+
+        final WebMWriter writer = new WebMWriter(source);
+        writer.parseSources();
+        writer.selectTracks(0);
+        writer.build(out);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Demuxes a synthetic two hours audio track, reading the blocks from a stream and from a
+     * buffer, and prints the best throughput of {@link #ROUNDS} and the bytes allocated per block.
+     * Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmarkLongFile() throws IOException {
+        assumeTrue("benchmark, run with -Pbenchmark", Boolean.getBoolean("newpipe.benchmark"));
+
+        final byte[] file = makeWebM(2 * 60 * 60 * 1000 / BLOCK_DURATION_MS);
+
+        run("stream", () -> new WebMReader(new ByteArrayStream(file)), file.length);
+        final Result buffer = run("buffer", () -> new WebMReader(ByteBuffer.wrap(file)),
+                file.length);
+
+        if (buffer.allocated >= 0) {
+            assertTrue("allocations per block " + buffer.allocated / buffer.blocks,
+                    buffer.allocated / buffer.blocks < 16);
+        }
+    }
+
+    private interface ReaderFactory {
+        WebMReader create();
+    }
+
+    private static final class Result {
+        long blocks;
+        long bytes;
+        long checksum;
+        long lastTimecodeNs;
+        long allocated = -1;
+    }
+
+    private static Result run(final String name, final ReaderFactory factory, final long size)
+            throws IOException {
+        Result result = null;
+        long best = Long.MAX_VALUE;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            final WebMReader reader = factory.create();
+            final long allocatedStart = getAllocatedBytes();
+            final long start = System.nanoTime();
+
+            result = demux(reader);
+
+            best = Math.min(best, System.nanoTime() - start);
+            final long allocatedEnd = getAllocatedBytes();
+            if (allocatedStart >= 0 && allocatedEnd >= 0) {
+                result.allocated = allocatedEnd - allocatedStart;
+            }
+        }
+
+        System.out.printf("%s: %d blocks, %d MiB/s, %d bytes allocated per block%n", name,
+                result.blocks, size * 1000000000L / best / (1024 * 1024),
+                result.allocated / result.blocks);
+        return result;
+    }
+
+    private static Result demux(final WebMReader reader) throws IOException {
+        final Result result = new Result();
+        final byte[] buffer = new byte[PAYLOAD_SIZE];
+
+        reader.parse();
+        reader.selectTrack(0);
+
+        Segment segment;
+        while ((segment = reader.getNextSegment()) != null) {
+            Cluster cluster;
+            while ((cluster = segment.getNextCluster()) != null) {
+                SimpleBlock block;
+                while ((block = cluster.getNextSimpleBlock()) != null) {
+                    if (block.payload != null) {
+                        result.checksum += block.payload.get(block.payload.limit() - 1);
+                    } else {
+                        final int read = block.data.read(buffer, 0, block.dataSize);
+                        result.checksum += buffer[read - 1];
+                    }
+                    result.blocks++;
+                    result.bytes += block.dataSize;
+                    result.lastTimecodeNs = block.absoluteTimeCodeNs;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return bytes allocated by the current thread, or -1 if the JVM can not measure it
+     */
+    private static long getAllocatedBytes() {
+        // the management API is not part of the Android SDK
+        try {
+            final Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            final Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (final Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Makes a WebM file with an audio track and blocks of {@link #BLOCK_DURATION_MS}
+     */
+    private static byte[] makeWebM(final int blockCount) {
+        final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        element(segment, 0x0549A966, element(0x0AD7B1, number(1000000))); // Info
+        element(segment, 0x0654AE6B, element(0x2E, concat( // Tracks, TrackEntry
+                element(0x57, number(1)),
+                element(0x03, number(2)),
+                element(0x06, "A_OPUS".getBytes(StandardCharsets.US_ASCII)),
+                element(0x1C, number(0))
+        )));
+
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int first = 0; first < blockCount; first += BLOCKS_PER_CLUSTER) {
+            final ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+            element(cluster, 0x67, number((long) first * BLOCK_DURATION_MS));
+
+            final int count = Math.min(BLOCKS_PER_CLUSTER, blockCount - first);
+            for (int i = 0; i < count; i++) {
+                final int timecode = i * BLOCK_DURATION_MS;
+                payload[PAYLOAD_SIZE - 1] = (byte) (first + i);
+                final byte[] header = {(byte) 0x81, (byte) (timecode >> 8), (byte) timecode,
+                        (byte) 0x80};
+                element(cluster, 0x23, concat(header, payload)); // SimpleBlock
+            }
+
+            element(segment, 0x0F43B675, cluster.toByteArray()); // Cluster
+        }
+
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        element(file, 0x0A45DFA3, concat( // EBML
+                element(0x02F7, number(1)),
+                element(0x0282, "webm".getBytes(StandardCharsets.US_ASCII)),
+                element(0x0285, number(2))
+        ));
+        element(file, 0x08538067, segment.toByteArray()); // Segment
+        return file.toByteArray();
+    }
+
+    private static byte[] element(final int id, final byte[] content) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        element(out, id, content);
+        return out.toByteArray();
+    }
+
+    private static void element(final ByteArrayOutputStream out, final int id,
+                                final byte[] content) {
+        int idSize = 1;
+        while (id >= (1 << (7 * idSize)) - 1) {
+            idSize++;
+        }
+        writeEncoded(out, id, idSize);
+        writeEncoded(out, content.length, 8);
+        out.write(content, 0, content.length);
+    }
+
+    private static void writeEncoded(final ByteArrayOutputStream out, final long value,
+                                     final int size) {
+        final long encoded = value | (1L << (7 * size));
+        for (int i = size - 1; i >= 0; i--) {
+            out.write((int) (encoded >>> (8 * i)));
+        }
+    }
+
+    private static byte[] number(final long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A file in memory, its content can be mapped like a local file
+     */
+    private static final class ByteArrayStream extends SharpStream {
+        private final boolean mappable;
+        private byte[] data;
+        private int length;
+        private int position;
+
+        ByteArrayStream(final byte[] data) {
+            this(data, false);
+        }
+
+        ByteArrayStream(final byte[] data, final boolean mappable) {
+            this.data = data;
+            this.length = data.length;
+            this.mappable = mappable;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+
+        @Override
+        public ByteBuffer mapRemaining() {
+            return mappable ? ByteBuffer.wrap(data, position, length - position).slice() : null;
+        }
+
+        @Override
+        public int read() {
+            return position < length ? data[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] buffer) {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) {
+            if (position >= length) {
+                return -1;
+            }
+            final int read = Math.min(count, length - position);
+            System.arraycopy(data, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long amount) {
+            final int skip = (int) Math.min(amount, length - position);
+            position += skip;
+            return skip;
+        }
+
+        @Override
+        public long available() {
+            return length - position;
+        }
+
+        @Override
+        public void rewind() {
+            position = 0;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean canRewind() {
+            return true;
+        }
+
+        @Override
+        public boolean canRead() {
+            return true;
+        }
+
+        @Override
+        public boolean canWrite() {
+            return true;
+        }
+
+        @Override
+        public boolean canSeek() {
+            return true;
+        }
+
+        @Override
+        public void seek(final long offset) {
+            position = (int) offset;
+        }
+
+        @Override
+        public void write(final byte value) {
+            write(new byte[]{value}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buffer) {
+            write(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) {
+            if (position + count > data.length) {
+                data = Arrays.copyOf(data, Math.max(position + count, data.length * 2));
+            }
+            System.arraycopy(buffer, offset, data, position, count);
+            position += count;
+            length = Math.max(length, position);
+        }
+    }
+}
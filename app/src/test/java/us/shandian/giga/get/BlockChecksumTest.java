@@ -0,0 +1,44 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockChecksumTest {
+
+    private static long crc(final byte[] data, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    @Test
+    public void testCombinedPartsMatchTheWholeBlock() {
+        final byte[] block = new byte[256 * 1024];
+        new Random(42).nextBytes(block);
+        final long expected = crc(block, 0, block.length);
+
+        // a block split in three parts, like a stolen part of a retried request
+        final int[] ends = {1, 70001, 70002, block.length};
+        long value = 0;
+        int start = 0;
+        for (final int end : ends) {
+            value = BlockChecksum.combine(value, crc(block, start, end - start), end - start);
+            start = end;
+        }
+
+        assertEquals(expected, value);
+    }
+
+    @Test
+    public void testCombineWithAnEmptyPart() {
+        final byte[] data = {1, 2, 3};
+        final long value = crc(data, 0, data.length);
+
+        assertEquals(value, BlockChecksum.combine(value, 0, 0));
+        assertEquals(value, BlockChecksum.combine(0, value, data.length));
+    }
+}
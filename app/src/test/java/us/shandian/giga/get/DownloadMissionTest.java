@@ -0,0 +1,42 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadMissionTest {
+    private static final int KIB = 1024;
+    private static final int MIB = 1024 * 1024;
+
+    @Test
+    public void testBlockSizeStaysWithinTheBounds() {
+        // 1 MiB split for 3 connections would be tiny blocks
+        assertEquals(256 * KIB, DownloadMission.pickBlockSize(MIB, 3, 256 * KIB, 32 * MIB));
+        assertEquals(64 * KIB, DownloadMission.pickBlockSize(MIB, 3, 64 * KIB, 32 * MIB));
+
+        // 4 GiB split for 3 connections would be huge blocks
+        final long length = 4L * 1024 * MIB;
+        assertEquals(DownloadMission.MAX_BLOCK_SIZE,
+                DownloadMission.pickBlockSize(length, 3, 256 * KIB, 32 * MIB));
+        assertEquals(2 * MIB, DownloadMission.pickBlockSize(length, 3, 256 * KIB, 2 * MIB));
+    }
+
+    @Test
+    public void testBlockSizeIsAMultipleOfTheBuffer() {
+        final int size = DownloadMission.pickBlockSize(100 * MIB + 1, 3, 256 * KIB, 32 * MIB);
+        assertEquals(0, size % DownloadMission.BUFFER_SIZE);
+    }
+
+    @Test
+    public void testRequestSpanFollowsTheThroughput() {
+        // a slow connection requests one block at a time
+        assertEquals(1, DownloadMission.pickRequestSpan(0, 2, MIB, 32 * MIB));
+        assertEquals(1, DownloadMission.pickRequestSpan(256 * KIB, 2, MIB, 32 * MIB));
+
+        // 4 MiB/s for 2 connections, each one downloads 4 MiB per request
+        assertEquals(4, DownloadMission.pickRequestSpan(4 * MIB, 2, MIB, 32 * MIB));
+
+        // a fast link is limited by the largest request
+        assertEquals(8, DownloadMission.pickRequestSpan(100 * MIB, 1, MIB, 8 * MIB));
+    }
+}
@@ -0,0 +1,60 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HlsPlaylistTest {
+    private static final String BASE = "https://example.com/video/index.m3u8";
+
+    @Test
+    public void testSegmentsAreResolvedInOrderAfterTheInitializationSegment() throws IOException {
+        final String playlist = "#EXTM3U\n"
+                + "#EXT-X-VERSION:7\n"
+                + "#EXT-X-TARGETDURATION:6\n"
+                + "#EXT-X-MAP:URI=\"init.mp4\"\n"
+                + "#EXTINF:6.0,\n"
+                + "seg0.m4s\n"
+                + "#EXTINF:6.0,\n"
+                + "/other/seg1.m4s\n"
+                + "#EXTINF:2.5,\n"
+                + "https://cdn.example.com/seg2.m4s\n"
+                + "#EXT-X-ENDLIST\n";
+
+        assertArrayEquals(new String[]{
+                "https://example.com/video/init.mp4",
+                "https://example.com/video/seg0.m4s",
+                "https://example.com/other/seg1.m4s",
+                "https://cdn.example.com/seg2.m4s"
+        }, HlsPlaylist.parseSegments(BASE, playlist));
+    }
+
+    @Test
+    public void testTheFirstVariantOfAMasterPlaylistIsPicked() throws IOException {
+        final String master = "#EXTM3U\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=1280000\n"
+                + "720p/index.m3u8\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=640000\n"
+                + "360p/index.m3u8\n";
+
+        assertEquals("https://example.com/video/720p/index.m3u8",
+                HlsPlaylist.getFirstVariant(BASE, master));
+        assertNull(HlsPlaylist.getFirstVariant(BASE, "#EXTM3U\n#EXTINF:6.0,\nseg0.ts\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLivePlaylistsAreRejected() throws IOException {
+        HlsPlaylist.parseSegments(BASE, "#EXTM3U\n#EXTINF:6.0,\nseg0.ts\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void testEncryptedSegmentsAreRejected() throws IOException {
+        HlsPlaylist.parseSegments(BASE, "#EXTM3U\n"
+                + "#EXT-X-KEY:METHOD=AES-128,URI=\"key\"\n"
+                + "#EXTINF:6.0,\nseg0.ts\n#EXT-X-ENDLIST\n");
+    }
+}
@@ -0,0 +1,134 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MissionJournalTest {
+
+    private static DownloadMission newMission() {
+        final DownloadMission mission = new DownloadMission(
+                new String[]{"https://example.com/video"}, null, 'v', null);
+        mission.timestamp = 1234;
+        mission.length = 3 * 1024;
+        mission.blockSize = 1024;
+        mission.blocks = new int[]{-1, 100, 0};
+        mission.checksums = new long[]{7, DownloadMission.CHECKSUM_UNKNOWN,
+                DownloadMission.CHECKSUM_UNKNOWN};
+        mission.checkpointId = 3;
+        return mission;
+    }
+
+    @Test
+    public void testSnapshotKeepsTheProgressButNotTheErrorDetails() throws IOException {
+        final File metadata = File.createTempFile("mission", null);
+        try {
+            final DownloadMission mission = newMission();
+            mission.done = 1124;
+            mission.errCode = DownloadMission.ERROR_HTTP_NO_CONTENT;
+            mission.errObject = new IOException("not saved");
+            MissionJournal.writeSnapshot(metadata, MissionJournal.takeSnapshot(mission));
+
+            final DownloadMission loaded = MissionJournal.load(metadata);
+            assertNotNull(loaded);
+            assertArrayEquals(mission.urls, loaded.urls);
+            assertEquals(1234, loaded.timestamp);
+            assertEquals(1124, loaded.done);
+            assertEquals(1024, loaded.blockSize);
+            assertArrayEquals(mission.blocks, loaded.blocks);
+            assertArrayEquals(mission.checksums, loaded.checksums);
+            assertEquals(3, loaded.checkpointId);
+            assertEquals(DownloadMission.ERROR_HTTP_NO_CONTENT, loaded.errCode);
+            assertNull(loaded.errObject);
+        } finally {
+            MissionJournal.delete(metadata);
+            //noinspection ResultOfMethodCallIgnored
+            metadata.delete();
+        }
+    }
+
+    @Test
+    public void testRecordsAppendedWhileWritingTheSnapshotAreReplayed() throws IOException {
+        final File metadata = File.createTempFile("mission", null);
+        try {
+            final DownloadMission mission = newMission();
+            final byte[] snapshot = MissionJournal.takeSnapshot(mission);
+
+            final MissionJournal journal = new MissionJournal(mission.checkpointId);
+            journal.append(MissionJournal.RECORD_BLOCK, 1, -1);
+            MissionJournal.writeSnapshot(metadata, snapshot);
+            journal.open(metadata);
+            journal.append(MissionJournal.RECORD_PROGRESS, 0, 2048);
+            journal.close();
+
+            final DownloadMission loaded = MissionJournal.load(metadata);
+            assertNotNull(loaded);
+            assertArrayEquals(new int[]{-1, -1, 0}, loaded.blocks);
+            assertEquals(2048, loaded.done);
+        } finally {
+            MissionJournal.delete(metadata);
+            //noinspection ResultOfMethodCallIgnored
+            metadata.delete();
+        }
+    }
+
+    @Test
+    public void testJournalOfAnOlderSnapshotIsIgnored() throws IOException {
+        final File metadata = File.createTempFile("mission", null);
+        try {
+            final DownloadMission mission = newMission();
+            final MissionJournal journal = new MissionJournal(mission.checkpointId - 1);
+            journal.open(metadata);
+            journal.append(MissionJournal.RECORD_BLOCK, 1, -1);
+            journal.close();
+            MissionJournal.writeSnapshot(metadata, MissionJournal.takeSnapshot(mission));
+
+            final DownloadMission loaded = MissionJournal.load(metadata);
+            assertNotNull(loaded);
+            assertArrayEquals(mission.blocks, loaded.blocks);
+        } finally {
+            MissionJournal.delete(metadata);
+            //noinspection ResultOfMethodCallIgnored
+            metadata.delete();
+        }
+    }
+
+    @Test
+    public void testSegmentListsAreSavedBesideTheSnapshot() throws IOException {
+        final File metadata = File.createTempFile("mission", null);
+        try {
+            final SegmentedMission mission = new SegmentedMission(
+                    new String[]{"https://example.com/playlist.m3u8"}, null, 'v', null);
+            mission.segments = new String[][]{{"https://example.com/0.ts",
+                    "https://example.com/1.ts"}};
+            mission.blocks = new int[]{-1, 0};
+            mission.nextSegment = 1;
+            mission.committedLength = 100;
+            MissionJournal.writeSegments(metadata, mission.segments);
+            MissionJournal.writeSnapshot(metadata, MissionJournal.takeSnapshot(mission));
+
+            final SegmentedMission loaded = (SegmentedMission) MissionJournal.load(metadata);
+            assertNotNull(loaded);
+            assertNull(loaded.segments);
+            assertEquals(1, loaded.nextSegment);
+            assertEquals(100, loaded.committedLength);
+
+            final String[][] segments = MissionJournal.readSegments(metadata);
+            assertNotNull(segments);
+            assertEquals(1, segments.length);
+            assertArrayEquals(mission.segments[0], segments[0]);
+        } finally {
+            MissionJournal.delete(metadata);
+            //noinspection ResultOfMethodCallIgnored
+            metadata.delete();
+        }
+
+        assertNull(MissionJournal.readSegments(metadata));
+    }
+}
@@ -0,0 +1,87 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MissionTaskTest {
+
+    @Test
+    public void testCancelWhileQueuedNeverRuns() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+
+        final MissionTask blocker = MissionTask.of(() -> {
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                // nothing to do
+            }
+        }).submit(executor, null);
+        final MissionTask queued = MissionTask.of(() -> ran.set(true)).submit(executor, null);
+
+        queued.cancel();
+        assertFalse(queued.isAlive());
+
+        release.countDown();
+        blocker.join();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void testCancelInterruptsAndReleases() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean released = new AtomicBoolean();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+
+        final MissionTask task = new MissionTask() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (final InterruptedException e) {
+                    interrupted.set(isCancelled());
+                }
+            }
+
+            @Override
+            protected void onCancel() {
+                released.set(true);
+            }
+        }.submit(executor, null);
+
+        started.await();
+        task.cancel();
+        task.join();
+        executor.shutdown();
+
+        assertTrue(interrupted.get());
+        assertTrue(released.get());
+    }
+
+    @Test
+    public void testInterruptionIsNotPassedToTheNextTask() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicBoolean interrupted = new AtomicBoolean(true);
+
+        MissionTask.of(() -> Thread.currentThread().interrupt()).submit(executor, null).join();
+        MissionTask.of(() -> interrupted.set(Thread.currentThread().isInterrupted()))
+                .submit(executor, null).join();
+        executor.shutdown();
+
+        assertFalse(interrupted.get());
+    }
+}
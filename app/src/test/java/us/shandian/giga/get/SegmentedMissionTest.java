@@ -0,0 +1,228 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import us.shandian.giga.get.SegmentedMission.Segment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedMissionTest {
+
+    private static SegmentedMission newMission(final int threadCount, final String... segments) {
+        final SegmentedMission mission = new SegmentedMission(
+                new String[]{"https://example.com/playlist.m3u8"}, null, 'v', null);
+        mission.segments = new String[][]{segments};
+        mission.blocks = new int[segments.length];
+        mission.threadCount = threadCount;
+        mission.running = true;
+        mission.resetSegments();
+        return mission;
+    }
+
+    private static void download(final Segment segment, final MemoryStream file,
+                                 final String content) throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (segment.direct) {
+            file.seek(segment.position);
+            file.write(bytes, 0, bytes.length);
+        } else {
+            segment.buffer = bytes;
+        }
+        segment.size = bytes.length;
+    }
+
+    @Test
+    public void testSegmentsCompletedOutOfOrderAreWrittenInOrder() throws IOException {
+        final SegmentedMission mission = newMission(2, "a", "b", "c");
+        final MemoryStream file = new MemoryStream();
+
+        final Segment first = mission.acquireSegment();
+        final Segment second = mission.acquireSegment();
+        final Segment third = mission.acquireSegment();
+        assertEquals(0, first.index);
+        assertEquals(1, second.index);
+        assertEquals(2, third.index);
+        assertEquals("a", first.url);
+
+        // only the first unwritten segment knows its position
+        assertTrue(first.direct);
+        assertFalse(second.direct);
+        assertFalse(third.direct);
+        assertNull(mission.acquireSegment());
+
+        download(third, file, "333");
+        mission.commitSegment(third, file);
+        download(second, file, "22");
+        mission.commitSegment(second, file);
+
+        // kept until the first segment is written
+        assertEquals(0, mission.nextSegment);
+        assertEquals(0, file.toByteArray().length);
+
+        download(first, file, "1");
+        mission.commitSegment(first, file);
+
+        assertEquals(3, mission.nextSegment);
+        assertEquals(6, mission.committedLength);
+        assertEquals(6, mission.length);
+        assertArrayEquals("122333".getBytes(StandardCharsets.UTF_8), file.toByteArray());
+        assertArrayEquals(new int[]{-1, -1, -1}, mission.blocks);
+    }
+
+    @Test
+    public void testThreadsWaitForTheWrittenSegments() throws Exception {
+        // one thread can download two segments ahead of the first unwritten one
+        final SegmentedMission mission = newMission(1, "a", "b", "c");
+        final MemoryStream file = new MemoryStream();
+
+        final Segment first = mission.acquireSegment();
+        final Segment second = mission.acquireSegment();
+
+        final Segment[] acquired = new Segment[1];
+        final Thread thread = new Thread(() -> acquired[0] = mission.acquireSegment());
+        thread.start();
+        thread.join(200);
+        assertTrue(thread.isAlive());
+
+        download(first, file, "1");
+        mission.commitSegment(first, file);
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertEquals(2, acquired[0].index);
+
+        // written once the segment before it is
+        download(acquired[0], file, "333");
+        mission.commitSegment(acquired[0], file);
+        download(second, file, "22");
+        mission.commitSegment(second, file);
+
+        assertArrayEquals("122333".getBytes(StandardCharsets.UTF_8), file.toByteArray());
+    }
+
+    @Test
+    public void testTheLengthIsEstimatedFromTheWrittenSegments() throws IOException {
+        final SegmentedMission mission = newMission(1, "a", "b", "c", "d");
+        final MemoryStream file = new MemoryStream();
+
+        final Segment first = mission.acquireSegment();
+        download(first, file, "1111");
+        mission.commitSegment(first, file);
+
+        assertEquals(16, mission.length);
+    }
+
+    /**
+     * A seekable file in memory
+     */
+    private static final class MemoryStream extends SharpStream {
+        private byte[] data = new byte[0];
+        private int position;
+
+        byte[] toByteArray() {
+            return data.clone();
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] buffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long skip(final long amount) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long available() {
+            return 0;
+        }
+
+        @Override
+        public void rewind() {
+            position = 0;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean canRewind() {
+            return true;
+        }
+
+        @Override
+        public boolean canRead() {
+            return false;
+        }
+
+        @Override
+        public boolean canWrite() {
+            return true;
+        }
+
+        @Override
+        public boolean canSeek() {
+            return true;
+        }
+
+        @Override
+        public boolean canSetLength() {
+            return true;
+        }
+
+        @Override
+        public void seek(final long offset) {
+            position = (int) offset;
+        }
+
+        @Override
+        public void setLength(final long length) {
+            data = Arrays.copyOf(data, (int) length);
+        }
+
+        @Override
+        public void write(final byte value) {
+            write(new byte[]{value}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buffer) {
+            write(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) {
+            if (position + count > data.length) {
+                data = Arrays.copyOf(data, position + count);
+            }
+            System.arraycopy(buffer, offset, data, position, count);
+            position += count;
+        }
+    }
+}
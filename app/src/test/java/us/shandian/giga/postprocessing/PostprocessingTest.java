@@ -0,0 +1,115 @@
+package us.shandian.giga.postprocessing;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.SharpStream;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import us.shandian.giga.get.DownloadMission;
+import us.shandian.giga.io.FileStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+public class PostprocessingTest {
+
+    /**
+     * Writes a header and the first resource, the last resource is never read
+     */
+    private static final class HeaderMuxer extends Postprocessing {
+        HeaderMuxer() {
+            super(false, true, "header");
+        }
+
+        @Override
+        int process(final SharpStream out, final SharpStream... sources) throws IOException {
+            final byte[] first = new byte[(int) sources[0].available()];
+            sources[0].read(first);
+
+            out.write("OUT".getBytes(StandardCharsets.US_ASCII));
+            out.write(first);
+            return OK_RESULT;
+        }
+    }
+
+    @Test
+    public void testTheFileIsFinalizedOnceTheLastResourceIsDownloaded() throws Exception {
+        final File file = File.createTempFile("mission", null);
+        final File temporalDir = Files.createTempDirectory("postprocessing").toFile();
+        try {
+            // the last block of the second resource did not land yet
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.write("AAAABBBB".getBytes(StandardCharsets.US_ASCII));
+                raf.setLength(12);
+            }
+
+            final StoredFileHelper storage = mock(StoredFileHelper.class);
+            when(storage.getStream()).thenAnswer(invocation -> new FileStream(file));
+            when(storage.length()).thenAnswer(invocation -> file.length());
+
+            final HeaderMuxer muxer = new HeaderMuxer();
+            muxer.setTemporalDir(temporalDir);
+
+            final AtomicBoolean downloaded = new AtomicBoolean(false);
+            final CountDownLatch landed = new CountDownLatch(1);
+            final DownloadMission mission = spy(new DownloadMission(
+                    new String[]{"https://example.com/a", "https://example.com/b"},
+                    storage, 'v', muxer));
+            mission.offsets = new long[]{0, 4};
+            doReturn(true).when(mission).isPsPipelined();
+            doAnswer(invocation -> downloaded.get()).when(mission).isDownloadCompleted();
+            doAnswer(invocation -> {
+                landed.await();
+                return Long.MAX_VALUE;
+            }).when(mission).waitForDownload(anyLong());
+
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            final Thread thread = new Thread(() -> {
+                try {
+                    muxer.run(mission);
+                } catch (final Throwable e) {
+                    error.set(e);
+                }
+            });
+            thread.start();
+
+            // the muxer is done, but the file must not be finalized yet
+            thread.join(300);
+            assertTrue(thread.isAlive());
+            assertArrayEquals("AAAABBBB\0\0\0\0".getBytes(StandardCharsets.US_ASCII),
+                    Files.readAllBytes(file.toPath()));
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(8);
+                raf.write("CCCC".getBytes(StandardCharsets.US_ASCII));
+            }
+            downloaded.set(true);
+            landed.countDown();
+
+            thread.join(5000);
+            assertNull(error.get());
+            assertArrayEquals("OUTAAAA".getBytes(StandardCharsets.US_ASCII),
+                    Files.readAllBytes(file.toPath()));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            //noinspection ResultOfMethodCallIgnored
+            temporalDir.delete();
+        }
+    }
+}
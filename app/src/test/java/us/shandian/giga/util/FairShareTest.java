@@ -0,0 +1,37 @@
+package us.shandian.giga.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FairShareTest {
+    private static final long UNBOUNDED = Long.MAX_VALUE;
+
+    @Test
+    public void testSplitFollowsTheWeights() {
+        final long[] shares = FairShare.split(800, new double[]{1, 3},
+                new long[]{UNBOUNDED, UNBOUNDED});
+        assertArrayEquals(new long[]{200, 600}, shares);
+    }
+
+    @Test
+    public void testUnusedShareGoesToTheOthers() {
+        final long[] shares = FairShare.split(900, new double[]{1, 1, 1},
+                new long[]{100, UNBOUNDED, UNBOUNDED});
+        assertArrayEquals(new long[]{100, 400, 400}, shares);
+    }
+
+    @Test
+    public void testEveryDemandFits() {
+        final long[] shares = FairShare.split(16, new double[]{1, 3}, new long[]{3, 4});
+        assertArrayEquals(new long[]{3, 4}, shares);
+    }
+
+    @Test
+    public void testSatisfyingOneMayFreeMoreForAnother() {
+        // the second consumer fits only after the first one leaves its share
+        final long[] shares = FairShare.split(12, new double[]{1, 1, 1},
+                new long[]{2, 5, UNBOUNDED});
+        assertArrayEquals(new long[]{2, 5, 5}, shares);
+    }
+}
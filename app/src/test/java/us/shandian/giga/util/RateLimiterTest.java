@@ -0,0 +1,113 @@
+package us.shandian.giga.util;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long RATE = 4 * 1024 * 1024;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * A clock which only moves when told, and a sleeper recording the waits
+     */
+    private static final class FakeTime {
+        final List<Long> waits = new ArrayList<>();
+        long now = 1000 * NANOS_PER_MILLI;
+        boolean sleepMovesTheClock = true;
+
+        RateLimiter newLimiter(final long rate) {
+            return new RateLimiter(rate, () -> now, nanos -> {
+                waits.add(nanos);
+                if (sleepMovesTheClock) {
+                    now += nanos;
+                }
+            });
+        }
+
+        long totalWaitMillis() {
+            long total = 0;
+            for (final long wait : waits) {
+                total += wait;
+            }
+            return total / NANOS_PER_MILLI;
+        }
+    }
+
+    @Test
+    public void testDebtIsPaidAtTheRate() throws InterruptedIOException {
+        final FakeTime time = new FakeTime();
+        final RateLimiter limiter = time.newLimiter(RATE);
+
+        // the bucket starts empty, half a second of bytes is paid by half a second of waits
+        for (long read = 0; read < RATE / 2; read += BUFFER_SIZE) {
+            limiter.acquire(BUFFER_SIZE);
+        }
+
+        assertEquals(500, time.totalWaitMillis());
+    }
+
+    @Test
+    public void testThreadsShareTheRate() throws InterruptedIOException {
+        final FakeTime time = new FakeTime();
+        final RateLimiter limiter = time.newLimiter(RATE);
+
+        // four threads reading at the same time, each one waits for the debt of the previous
+        time.sleepMovesTheClock = false;
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(BUFFER_SIZE);
+        }
+
+        final long perBuffer = BUFFER_SIZE * 1000000000L / RATE;
+        assertEquals(4, time.waits.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals((i + 1) * perBuffer, (long) time.waits.get(i));
+        }
+    }
+
+    @Test
+    public void testBurstIsRefilledAfterAStall() throws InterruptedIOException {
+        final FakeTime time = new FakeTime();
+        final RateLimiter limiter = time.newLimiter(RATE);
+
+        // a long stall fills a quarter of a second of bytes, not more
+        time.now += 10000 * NANOS_PER_MILLI;
+        for (long read = 0; read < RATE / 4; read += BUFFER_SIZE) {
+            limiter.acquire(BUFFER_SIZE);
+        }
+        assertTrue(time.waits.isEmpty());
+
+        limiter.acquire(BUFFER_SIZE);
+        assertEquals(1, time.waits.size());
+    }
+
+    @Test
+    public void testUnlimitedNeverWaits() throws InterruptedIOException {
+        final FakeTime time = new FakeTime();
+        final RateLimiter limiter = time.newLimiter(0);
+        for (int i = 0; i < 100000; i++) {
+            limiter.acquire(BUFFER_SIZE);
+        }
+        assertTrue(time.waits.isEmpty());
+    }
+
+    @Test
+    public void testLoweredRateApplies() throws InterruptedIOException {
+        final FakeTime time = new FakeTime();
+        final RateLimiter limiter = time.newLimiter(RATE);
+        limiter.setRate(RATE / 8);
+
+        // half a second of bytes at the lowered rate
+        for (long read = 0; read < RATE / 16; read += BUFFER_SIZE) {
+            limiter.acquire(BUFFER_SIZE);
+        }
+
+        assertEquals(500, time.totalWaitMillis());
+    }
+}
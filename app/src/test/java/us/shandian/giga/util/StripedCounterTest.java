@@ -0,0 +1,113 @@
+package us.shandian.giga.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class StripedCounterTest {
+    private static final int THREADS = 4;
+    private static final int ADDS_PER_THREAD = 1_000_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    public void testSumThenResetLosesNothing() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter(THREADS);
+        final long[] drained = new long[1];
+
+        final Thread reporter = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                drained[0] += counter.sumThenReset();
+            }
+        });
+        reporter.start();
+        runConcurrently(index -> counter.add(index, 1));
+        reporter.interrupt();
+        reporter.join();
+        drained[0] += counter.sumThenReset();
+
+        assertEquals((long) THREADS * ADDS_PER_THREAD, drained[0]);
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void testStripesWrapAround() {
+        final StripedCounter counter = new StripedCounter(2);
+        counter.add(0, 1);
+        counter.add(3, 2);
+        counter.add(-1, 4);
+        assertEquals(7, counter.sum());
+        assertEquals(7, counter.sumThenReset());
+        assertEquals(0, counter.sum());
+    }
+
+    /**
+     * Compares the cost of adding the size of a buffer from several threads, with a
+     * synchronized method as it was done in the download loop, and with the striped counter.
+     * Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmarkContention() throws InterruptedException {
+        assumeTrue("benchmark, run with -Pbenchmark", Boolean.getBoolean("newpipe.benchmark"));
+
+        final SynchronizedCounter locked = new SynchronizedCounter();
+        final long lockedNanos = runConcurrently(index -> locked.add(BUFFER_SIZE));
+
+        final StripedCounter striped = new StripedCounter(THREADS);
+        final long stripedNanos = runConcurrently(index -> striped.add(index, BUFFER_SIZE));
+
+        final long expected = (long) THREADS * ADDS_PER_THREAD * BUFFER_SIZE;
+        assertEquals(expected, locked.value);
+        assertEquals(expected, striped.sum());
+
+        final long adds = (long) THREADS * ADDS_PER_THREAD;
+        System.out.printf("%d threads: synchronized %d ns/add, striped %d ns/add%n",
+                THREADS, lockedNanos / adds, stripedNanos / adds);
+    }
+
+    private interface Adder {
+        void add(int index);
+    }
+
+    private static final class SynchronizedCounter {
+        private long value;
+
+        synchronized void add(final long delta) {
+            value += delta;
+        }
+    }
+
+    /**
+     * @return elapsed nanoseconds
+     */
+    private static long runConcurrently(final Adder adder) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(THREADS);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < ADDS_PER_THREAD; i++) {
+                    adder.add(index);
+                }
+            });
+            threads[t].start();
+        }
+
+        ready.await();
+        final long start = System.nanoTime();
+        go.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+}